@@ -5,6 +5,16 @@ uniform vec3 g_CameraPosition;
 attribute vec3 inPosition;
 attribute vec2 inTexCoord;
 
+#ifdef INSTANCING
+//Per instance: x, z, size and angle of the patch.
+attribute vec4 inTexCoord3;
+//Per instance: the terrain height at each end of the quads.
+attribute vec4 inTexCoord4;
+//Per vertex: selects the end of the quad.
+attribute vec4 inTexCoord5;
+uniform vec4 m_GrassSize;
+#endif
+
 #ifdef VERTEX_COLORS
 attribute vec4 inColor;
 varying vec4 color;
@@ -42,7 +52,18 @@ varying vec3 texCoord;
 
 void main() {
     texCoord = vec3(inTexCoord,1.0);
+    #ifdef INSTANCING
+    //The template spans -1 to 1 along the quads and 0 to 1 upwards.
+    float halfWidth = 0.5*mix(m_GrassSize.x, m_GrassSize.y, inTexCoord3.z);
+    float height = mix(m_GrassSize.z, m_GrassSize.w, inTexCoord3.z);
+    vec2 dir = vec2(cos(inTexCoord3.w), sin(inTexCoord3.w));
+    vec2 perp = vec2(-dir.y, dir.x);
+    vec2 side = (inPosition.x*dir + inPosition.z*perp)*halfWidth;
+    vec4 pos = vec4(inTexCoord3.x + side.x, dot(inTexCoord4, inTexCoord5) + inPosition.y*height, 
+                    inTexCoord3.y + side.y, 1.0);
+    #else
     vec4 pos = vec4(inPosition,1.0);
+    #endif
 
     #ifdef VERTEX_COLORS
     color = inColor;
@@ -53,9 +74,13 @@ void main() {
     #ifdef VERTEX_LIGHTING
     diffuseLight = vec3(0.0,0.0,0.0);
       #ifdef SELF_SHADOWING
+      #ifdef INSTANCING
+      vec2 quadNorm = inTexCoord2.x*dir + inTexCoord2.y*perp;
+      #else
       vec2 quadNorm = inTexCoord2;
+      #endif
       //Tangent directed towards texcoord x = 1.
-      vec2 quadTan = vec2(inTexCoord2.y,-inTexCoord2.x);
+      vec2 quadTan = vec2(quadNorm.y,-quadNorm.x);
       #endif
     for(int i = 0; i < NUM_LIGHTS; i++){
     vec3 diffLight = vec3(0.0,0.0,0.0);
@@ -0,0 +1,37 @@
+uniform mat4 g_WorldViewProjectionMatrix;
+uniform mat3 g_NormalMatrix;
+
+attribute vec3 inPosition;
+attribute vec2 inTexCoord;
+
+#ifdef INSTANCING
+//Per instance: x, z, size and angle of the patch.
+attribute vec4 inTexCoord3;
+//Per instance: the terrain height at each end of the quads.
+attribute vec4 inTexCoord4;
+//Per vertex: selects the end of the quad.
+attribute vec4 inTexCoord5;
+uniform vec4 m_GrassSize;
+#endif
+
+varying vec3 normal;
+varying vec2 texCoord;
+
+//Normal pass for SSAO. Grass meshes have no normals, so they face up.
+void main() {
+    texCoord = inTexCoord;
+    #ifdef INSTANCING
+    //Same as in Grass.vert.
+    float halfWidth = 0.5*mix(m_GrassSize.x, m_GrassSize.y, inTexCoord3.z);
+    float height = mix(m_GrassSize.z, m_GrassSize.w, inTexCoord3.z);
+    vec2 dir = vec2(cos(inTexCoord3.w), sin(inTexCoord3.w));
+    vec2 perp = vec2(-dir.y, dir.x);
+    vec2 side = (inPosition.x*dir + inPosition.z*perp)*halfWidth;
+    vec4 pos = vec4(inTexCoord3.x + side.x, dot(inTexCoord4, inTexCoord5) + inPosition.y*height, 
+                    inTexCoord3.y + side.y, 1.0);
+    #else
+    vec4 pos = vec4(inPosition,1.0);
+    #endif
+    normal = normalize(g_NormalMatrix * vec3(0.0,1.0,0.0));
+    gl_Position = g_WorldViewProjectionMatrix * pos;
+}
@@ -0,0 +1,272 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * A flat, contiguous block of floats that backs {@link Heightmap} and
+ * {@link Vectorfield}.
+ * The storage either lives on the java heap (a single {@code float[]}) or
+ * off-heap in a direct {@link FloatBuffer}. Off-heap storage does not count
+ * towards the heap size and is never moved by the garbage collector, which
+ * is useful for very large maps.
+ * @author Sebastian Weiss
+ */
+public abstract class FloatStorage {
+
+	/**
+	 * Allocates a new storage, all values are initialized with zero.
+	 * @param capacity the number of floats
+	 * @param direct {@code true} to allocate the storage off-heap
+	 * @return the new storage
+	 */
+	public static FloatStorage allocate(long capacity, boolean direct) {
+		if (capacity < 0 || capacity > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("unsupported capacity: "+capacity);
+		}
+		if (direct) {
+			return new DirectStorage((int) capacity);
+		} else {
+			return new HeapStorage((int) capacity);
+		}
+	}
+
+	/**
+	 * @return the number of floats in this storage
+	 */
+	public abstract int capacity();
+
+	/**
+	 * @return {@code true} if the storage is allocated off-heap
+	 */
+	public abstract boolean isDirect();
+
+	/**
+	 * @return {@code true} if this storage is backed by an accessible array
+	 * @see #array()
+	 */
+	public abstract boolean hasArray();
+
+	/**
+	 * Returns the backing array for tight loops over heap storages.
+	 * Changes to the array are visible in the storage and vice versa.
+	 * @return the backing array
+	 * @throws UnsupportedOperationException if {@link #hasArray() } returns false
+	 */
+	public abstract float[] array();
+
+	public abstract float get(int index);
+
+	public abstract void set(int index, float value);
+
+	public void add(int index, float value) {
+		set(index, get(index) + value);
+	}
+
+	/**
+	 * Copies {@code length} floats starting at {@code index} into the array.
+	 * @param index the first index in this storage
+	 * @param dst the target array
+	 * @param offset the first index in the target array
+	 * @param length the number of floats to copy
+	 */
+	public abstract void get(int index, float[] dst, int offset, int length);
+
+	/**
+	 * Copies {@code length} floats from the array into this storage, starting at {@code index}.
+	 * @param index the first index in this storage
+	 * @param src the source array
+	 * @param offset the first index in the source array
+	 * @param length the number of floats to copy
+	 */
+	public abstract void set(int index, float[] src, int offset, int length);
+
+	/**
+	 * Fills the range from {@code from} (inclusive) to {@code to} (exclusive) with the value.
+	 * @param from
+	 * @param to
+	 * @param value
+	 */
+	public abstract void fill(int from, int to, float value);
+
+	/**
+	 * Copies {@code length} floats from the other storage into this storage.
+	 * @param index the first index in this storage
+	 * @param src the source storage
+	 * @param srcIndex the first index in the source storage
+	 * @param length the number of floats to copy
+	 */
+	public void set(int index, FloatStorage src, int srcIndex, int length) {
+		if (src.hasArray()) {
+			set(index, src.array(), srcIndex, length);
+		} else if (hasArray()) {
+			src.get(srcIndex, array(), index, length);
+		} else {
+			for (int i=0; i<length; ++i) {
+				set(index+i, src.get(srcIndex+i));
+			}
+		}
+	}
+
+	/**
+	 * Computes a checksum of the values (FNV-1a over the float bits).
+	 * It is stable between runs, so it can be used as a key for data that
+	 * is cached on disk.
+	 * @return the checksum
+	 */
+	public long checksum() {
+		long hash = 0xcbf29ce484222325L;
+		int n = capacity();
+		if (hasArray()) {
+			float[] a = array();
+			for (int i=0; i<n; ++i) {
+				hash = (hash ^ Float.floatToIntBits(a[i])) * 0x100000001b3L;
+			}
+		} else {
+			float[] buf = new float[Math.min(n, 4096)];
+			for (int i=0; i<n; i+=buf.length) {
+				int length = Math.min(buf.length, n-i);
+				get(i, buf, 0, length);
+				for (int j=0; j<length; ++j) {
+					hash = (hash ^ Float.floatToIntBits(buf[j])) * 0x100000001b3L;
+				}
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return a deep copy of this storage of the same type (heap or direct)
+	 */
+	public FloatStorage copy() {
+		FloatStorage s = allocate(capacity(), isDirect());
+		s.set(0, this, 0, capacity());
+		return s;
+	}
+
+	private static final class HeapStorage extends FloatStorage {
+		private final float[] data;
+
+		private HeapStorage(int capacity) {
+			this.data = new float[capacity];
+		}
+
+		@Override
+		public int capacity() {
+			return data.length;
+		}
+
+		@Override
+		public boolean isDirect() {
+			return false;
+		}
+
+		@Override
+		public boolean hasArray() {
+			return true;
+		}
+
+		@Override
+		public float[] array() {
+			return data;
+		}
+
+		@Override
+		public float get(int index) {
+			return data[index];
+		}
+
+		@Override
+		public void set(int index, float value) {
+			data[index] = value;
+		}
+
+		@Override
+		public void add(int index, float value) {
+			data[index] += value;
+		}
+
+		@Override
+		public void get(int index, float[] dst, int offset, int length) {
+			System.arraycopy(data, index, dst, offset, length);
+		}
+
+		@Override
+		public void set(int index, float[] src, int offset, int length) {
+			System.arraycopy(src, offset, data, index, length);
+		}
+
+		@Override
+		public void fill(int from, int to, float value) {
+			Arrays.fill(data, from, to, value);
+		}
+	}
+
+	private static final class DirectStorage extends FloatStorage {
+		private final FloatBuffer data;
+
+		private DirectStorage(int capacity) {
+			this.data = ByteBuffer.allocateDirect(capacity * 4)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		@Override
+		public int capacity() {
+			return data.capacity();
+		}
+
+		@Override
+		public boolean isDirect() {
+			return true;
+		}
+
+		@Override
+		public boolean hasArray() {
+			return false;
+		}
+
+		@Override
+		public float[] array() {
+			throw new UnsupportedOperationException("direct storage is not backed by an array");
+		}
+
+		@Override
+		public float get(int index) {
+			return data.get(index);
+		}
+
+		@Override
+		public void set(int index, float value) {
+			data.put(index, value);
+		}
+
+		@Override
+		public void get(int index, float[] dst, int offset, int length) {
+			//duplicate() to keep the absolute access thread safe
+			FloatBuffer b = data.duplicate();
+			b.position(index);
+			b.get(dst, offset, length);
+		}
+
+		@Override
+		public void set(int index, float[] src, int offset, int length) {
+			FloatBuffer b = data.duplicate();
+			b.position(index);
+			b.put(src, offset, length);
+		}
+
+		@Override
+		public void fill(int from, int to, float value) {
+			for (int i=from; i<to; ++i) {
+				data.put(i, value);
+			}
+		}
+	}
+}
@@ -6,41 +6,153 @@
 package org.shaman.terrain;
 
 import com.jme3.math.FastMath;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.Arrays;
 
 /**
- * A class for storing heightmaps
+ * A class for storing heightmaps.
+ * The heights are stored in a single {@link FloatStorage} with the
+ * entry {@code (x,y)} at index {@code x*size + y}, either on the java heap
+ * or off-heap.
  * @author Sebastian Weiss
  */
 public class Heightmap implements Cloneable, Serializable {
 	private static final long serialVersionUID = 4683025587440740836L;
+	/**
+	 * The serialized form is kept as {@code int size, float[][] data}
+	 * to stay compatible with old save files.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("size", int.class),
+		new ObjectStreamField("data", float[][].class)
+	};
 	private int size;
-	private float data[][];
+	private transient FloatStorage data;
 
 	public Heightmap(int size) {
-		setSize(size);
+		this(size, false);
 	}
 	
-	public float[][] getRawData() {
+	/**
+	 * Creates a new heightmap
+	 * @param size the size in x and y direction
+	 * @param direct {@code true} if the heights should be stored off-heap
+	 */
+	public Heightmap(int size, boolean direct) {
+		setSize(size, direct);
+	}
+	
+	/**
+	 * Returns the underlying storage. The entry {@code (x,y)} is stored at
+	 * index {@code x*getSize() + y}.
+	 * @return the storage
+	 */
+	public FloatStorage getStorage() {
 		return data;
 	}
 	
 	public void setSize(int size) {
+		setSize(size, data!=null && data.isDirect());
+	}
+	
+	public void setSize(int size, boolean direct) {
 		this.size = size;
-		this.data = new float[size][size];
+		this.data = FloatStorage.allocate((long) size * size, direct);
 	}
 	
 	public int getSize() {
 		return size;
 	}
 	
+	public boolean isDirect() {
+		return data.isDirect();
+	}
+	
+	/**
+	 * Computes a checksum of the heights, see {@link FloatStorage#checksum() }
+	 * @return the checksum
+	 */
+	public long getChecksum() {
+		return (data.checksum() ^ size) * 0x100000001b3L;
+	}
+	
 	public void fillHeight(float h) {
-		for (int x=0; x<size; ++x) {
-			Arrays.fill(data[x], h);
+		data.fill(0, size*size, h);
+	}
+	
+	/**
+	 * Copies the heights {@code (x, 0)} to {@code (x, size-1)} into the array.
+	 * This is a contiguous block in the storage.
+	 * @param x
+	 * @param store the target array or {@code null}
+	 * @return the target array
+	 */
+	public float[] getRow(int x, float[] store) {
+		if (store==null || store.length<size) {
+			store = new float[size];
+		}
+		data.get(x*size, store, 0, size);
+		return store;
+	}
+	
+	/**
+	 * Sets the heights {@code (x, 0)} to {@code (x, size-1)} from the array.
+	 * @param x
+	 * @param row the new heights
+	 */
+	public void setRow(int x, float[] row) {
+		data.set(x*size, row, 0, size);
+	}
+	
+	/**
+	 * Copies the rectangular region starting at {@code (x,y)} into the array.
+	 * The entry {@code (x+i, y+j)} is stored at {@code i*sizeY + j}.
+	 * @param x
+	 * @param y
+	 * @param sizeX
+	 * @param sizeY
+	 * @param store the target array or {@code null}
+	 * @return the target array
+	 */
+	public float[] getRegion(int x, int y, int sizeX, int sizeY, float[] store) {
+		if (store==null || store.length<sizeX*sizeY) {
+			store = new float[sizeX*sizeY];
+		}
+		for (int i=0; i<sizeX; ++i) {
+			data.get((x+i)*size + y, store, i*sizeY, sizeY);
+		}
+		return store;
+	}
+	
+	/**
+	 * Sets the rectangular region starting at {@code (x,y)} from the array.
+	 * The entry {@code (x+i, y+j)} is read from {@code i*sizeY + j}.
+	 * @param x
+	 * @param y
+	 * @param sizeX
+	 * @param sizeY
+	 * @param region the new heights
+	 */
+	public void setRegion(int x, int y, int sizeX, int sizeY, float[] region) {
+		for (int i=0; i<sizeX; ++i) {
+			data.set((x+i)*size + y, region, i*sizeY, sizeY);
 		}
 	}
 	
+	/**
+	 * Copies all heights from the other heightmap of the same size into this one.
+	 * @param map 
+	 */
+	public void set(Heightmap map) {
+		if (map.size != size) {
+			throw new IllegalArgumentException("heightmaps must be of equal size");
+		}
+		data.set(0, map.data, 0, size*size);
+	}
+	
 	/**
 	 * Returns the height at the specific coordinates without checking for
 	 * array boundaries.
@@ -49,7 +161,7 @@ public class Heightmap implements Cloneable, Serializable {
 	 * @return 
 	 */
 	public float getHeightAt(int x, int y) {
-		return data[x][y];
+		return data.get(x*size + y);
 	}
 	
 	/**
@@ -62,7 +174,7 @@ public class Heightmap implements Cloneable, Serializable {
 	public float getHeightAtWrapping(int x, int y) {
 		x = (x+size) % size;
 		y = (y+size) % size;
-		return data[x][y];
+		return data.get(x*size + y);
 	}
 	
 	/**
@@ -73,7 +185,7 @@ public class Heightmap implements Cloneable, Serializable {
 	 * @return 
 	 */
 	public float getHeightAtClamping(int x, int y) {
-		return data[Math.min(size-1, Math.max(0, x))][Math.min(size-1, Math.max(0, y))];
+		return data.get(Math.min(size-1, Math.max(0, x))*size + Math.min(size-1, Math.max(0, y)));
 	}
 	
 	/**
@@ -149,7 +261,7 @@ public class Heightmap implements Cloneable, Serializable {
 	 */
 	public void setHeightAt(int x, int y, float height) {
 		if (x>=0 && x<size && y>=0 && y<size) {
-			data[x][y] = height;
+			data.set(x*size + y, height);
 		}
 	}
 	
@@ -162,7 +274,7 @@ public class Heightmap implements Cloneable, Serializable {
 	 */
 	public void adjustHeightAt(int x, int y, float toAdd) {
 		if (x>=0 && x<size && y>=0 && y<size) {
-			data[x][y] += toAdd;
+			data.add(x*size + y, toAdd);
 		}
 	}
 	
@@ -190,12 +302,7 @@ public class Heightmap implements Cloneable, Serializable {
 	public Heightmap clone() {
 		try {
 			Heightmap map = (Heightmap) super.clone();
-			map.data = new float[map.size][map.size];
-			for (int x=0; x<map.size; ++x) {
-				for (int y=0; y<map.size; ++y) {
-					map.data[x][y] = this.data[x][y];
-				}
-			}
+			map.data = data.copy();
 			return map;
 		} catch (CloneNotSupportedException ex) {
 			throw new RuntimeException("unable to clone heightmap", ex);
@@ -213,4 +320,24 @@ public class Heightmap implements Cloneable, Serializable {
 		}
 		return a;
 	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		float[][] d = new float[size][];
+		for (int x=0; x<size; ++x) {
+			d[x] = getRow(x, null);
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("size", size);
+		fields.put("data", d);
+		out.writeFields();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		float[][] d = (float[][]) fields.get("data", null);
+		setSize(fields.get("size", 0), false);
+		for (int x=0; x<size; ++x) {
+			setRow(x, d[x]);
+		}
+	}
 }
@@ -0,0 +1,430 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import com.jme3.material.MatParam;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import org.shaman.terrain.heightmap.TileExecutor;
+
+/**
+ * A software rasterizer for flat meshes, replaces the offscreen rendering into
+ * a {@link com.jme3.texture.FrameBuffer} and the readback of the pixels.
+ * It needs no graphics context and can be used on headless machines.
+ * <p>
+ * The meshes are projected top-down: the world coordinates x,y are the pixel
+ * coordinates, z is ignored and the primitives are drawn in order, as in the
+ * Gui bucket. The vertex colors are interpolated linearly over triangles
+ * and lines. The pixel {@code (x,y)} is sampled at its center
+ * {@code (x+0.5, y+0.5)} and stored at index {@code x*size+y} of the
+ * four RGBA channels, like the entries of a {@link Heightmap}.
+ * <p>
+ * Triangles follow a top-left fill rule, therefore pixels on shared edges are
+ * drawn exactly once. This matters for {@link BlendMode#ADD}.
+ * The image is split into bands of rows that are rasterized in parallel,
+ * the result is independent of the number of threads.
+ * @author Sebastian Weiss
+ */
+public class MeshRasterizer {
+	/**
+	 * The blend modes, {@code src} is the color of the primitive
+	 */
+	public static enum BlendMode {
+		/** dst = src */
+		REPLACE,
+		/** dst = src*src.a + dst*(1-src.a), for all four channels as in OpenGL */
+		ALPHA,
+		/** dst = dst + src */
+		ADD,
+		/** dst = max(dst, src) */
+		MAX
+	}
+
+	private final int size;
+	private final TileExecutor executor;
+	private final float[][] channels;
+
+	public MeshRasterizer(int size) {
+		this(size, TileExecutor.getDefault());
+	}
+
+	public MeshRasterizer(int size, TileExecutor executor) {
+		this.size = size;
+		this.executor = executor;
+		this.channels = new float[4][size*size];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Fills the image with the color
+	 * @param color the background color
+	 */
+	public void clear(ColorRGBA color) {
+		Arrays.fill(channels[0], color.r);
+		Arrays.fill(channels[1], color.g);
+		Arrays.fill(channels[2], color.b);
+		Arrays.fill(channels[3], color.a);
+	}
+
+	/**
+	 * Direct access to the pixels of one channel
+	 * @param channel 0=red, 1=green, 2=blue, 3=alpha
+	 * @return the pixel values, the pixel {@code (x,y)} is at {@code x*size+y}
+	 */
+	public float[] getChannel(int channel) {
+		return channels[channel];
+	}
+
+	/**
+	 * Copies a channel into the heightmap and maps the values from [0,1] to [min,max]
+	 * @param channel 0=red, 1=green, 2=blue, 3=alpha
+	 * @param target the target heightmap of the same size
+	 * @param min the value that 0 is mapped to
+	 * @param max the value that 1 is mapped to
+	 */
+	public void copyChannel(int channel, Heightmap target, float min, float max) {
+		float[] data = channels[channel];
+		float scale = max - min;
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				target.setHeightAt(x, y, data[x*size + y] * scale + min);
+			}
+		}
+	}
+
+	/**
+	 * Copies the four channels into the first four dimensions of the vectorfield
+	 * and maps the values from [0,1] to [min,max]
+	 * @param target the target vectorfield of the same size
+	 * @param min the value that 0 is mapped to
+	 * @param max the value that 1 is mapped to
+	 */
+	public void copyChannels(Vectorfield target, float min, float max) {
+		float scale = max - min;
+		for (int c=0; c<4; ++c) {
+			float[] data = channels[c];
+			for (int x=0; x<size; ++x) {
+				for (int y=0; y<size; ++y) {
+					target.setScalarAt(x, y, c, data[x*size + y] * scale + min);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws all geometries of the scene in depth-first order.
+	 * The color and blend mode are taken from the materials, only the
+	 * parameters {@code Color} and {@code VertexColor} of the
+	 * Unshaded material definition are supported.
+	 * @param scene the scene
+	 */
+	public void draw(Spatial scene) {
+		scene.updateGeometricState();
+		drawSpatial(scene);
+	}
+
+	private void drawSpatial(Spatial s) {
+		if (s instanceof Node) {
+			for (Spatial child : ((Node) s).getChildren()) {
+				drawSpatial(child);
+			}
+		} else if (s instanceof Geometry) {
+			Geometry geom = (Geometry) s;
+			Material mat = geom.getMaterial();
+			BlendMode blend;
+			switch (mat.getAdditionalRenderState().getBlendMode()) {
+				case Off: blend = BlendMode.REPLACE; break;
+				case Alpha: blend = BlendMode.ALPHA; break;
+				case Additive: blend = BlendMode.ADD; break;
+				default: throw new UnsupportedOperationException("unsupported blend mode "
+						+mat.getAdditionalRenderState().getBlendMode());
+			}
+			MatParam vertexColor = mat.getParam("VertexColor");
+			MatParam color = mat.getParam("Color");
+			ColorRGBA col;
+			if (vertexColor!=null && Boolean.TRUE.equals(vertexColor.getValue())
+					&& geom.getMesh().getBuffer(VertexBuffer.Type.Color)!=null) {
+				col = null;
+			} else if (color != null) {
+				col = (ColorRGBA) color.getValue();
+			} else {
+				col = ColorRGBA.White;
+			}
+			draw(geom.getMesh(), geom.getWorldTransform(), col, blend);
+		}
+	}
+
+	/**
+	 * Draws the mesh.
+	 * Supported are the modes Triangles, TriangleStrip, TriangleFan, Lines,
+	 * LineStrip and LineLoop, lines have a width of one pixel.
+	 * @param mesh the mesh
+	 * @param transform the transformation from mesh to pixel coordinates,
+	 * {@code null} for the identity
+	 * @param color the color of the mesh, or {@code null} to use the vertex colors
+	 * @param blend the blend mode
+	 */
+	public void draw(Mesh mesh, @Nullable Transform transform, @Nullable ColorRGBA color, BlendMode blend) {
+		final Primitives p = new Primitives(mesh, transform, color, blend);
+		if (p.triangleCount == 0 && p.lineCount == 0) {
+			return;
+		}
+		executor.forEachBand(size, executor.getDefaultBandSize(size), new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int band, int x0, int y0, int x1, int y1) {
+				for (int t=0; t<p.triangleCount; ++t) {
+					drawTriangle(p, p.triangles[3*t], p.triangles[3*t+1], p.triangles[3*t+2], x0, x1);
+				}
+				for (int l=0; l<p.lineCount; ++l) {
+					drawLine(p, p.lines[2*l], p.lines[2*l+1], x0, x1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The transformed vertices and the primitives of a mesh
+	 */
+	private static final class Primitives {
+		private final float[] px, py;
+		private final float[] r, g, b, a;
+		private final boolean vertexColors;
+		private final BlendMode blend;
+		private int[] triangles;
+		private int triangleCount;
+		private int[] lines;
+		private int lineCount;
+
+		private Primitives(Mesh mesh, Transform transform, ColorRGBA color, BlendMode blend) {
+			this.blend = blend;
+			//positions
+			VertexBuffer pb = mesh.getBuffer(VertexBuffer.Type.Position);
+			FloatBuffer pos = (FloatBuffer) pb.getData();
+			int comps = pb.getNumComponents();
+			int n = pos.limit() / comps;
+			px = new float[n];
+			py = new float[n];
+			Vector3f v = new Vector3f();
+			for (int i=0; i<n; ++i) {
+				v.set(pos.get(i*comps), pos.get(i*comps+1), comps>2 ? pos.get(i*comps+2) : 0);
+				if (transform != null) {
+					transform.transformVector(v, v);
+				}
+				px[i] = v.x;
+				py[i] = v.y;
+			}
+			//colors
+			vertexColors = color == null;
+			if (vertexColors) {
+				r = new float[n];
+				g = new float[n];
+				b = new float[n];
+				a = new float[n];
+				VertexBuffer cb = mesh.getBuffer(VertexBuffer.Type.Color);
+				int cc = cb.getNumComponents();
+				Buffer data = cb.getData();
+				for (int i=0; i<n; ++i) {
+					r[i] = colorComponent(data, i*cc);
+					g[i] = colorComponent(data, i*cc+1);
+					b[i] = colorComponent(data, i*cc+2);
+					a[i] = cc>3 ? colorComponent(data, i*cc+3) : 1;
+				}
+			} else {
+				r = new float[] {color.r};
+				g = new float[] {color.g};
+				b = new float[] {color.b};
+				a = new float[] {color.a};
+			}
+			//primitives
+			IndexBuffer ib = mesh.getIndexBuffer();
+			int count = ib==null ? n : ib.size();
+			int[] index = new int[count];
+			for (int i=0; i<count; ++i) {
+				index[i] = ib==null ? i : ib.get(i);
+			}
+			switch (mesh.getMode()) {
+				case Triangles:
+					triangles = index;
+					triangleCount = count / 3;
+					break;
+				case TriangleStrip:
+					triangleCount = Math.max(0, count-2);
+					triangles = new int[3*triangleCount];
+					for (int i=0; i<triangleCount; ++i) {
+						triangles[3*i] = index[i];
+						triangles[3*i+1] = index[i+1];
+						triangles[3*i+2] = index[i+2];
+					}
+					break;
+				case TriangleFan:
+					triangleCount = Math.max(0, count-2);
+					triangles = new int[3*triangleCount];
+					for (int i=0; i<triangleCount; ++i) {
+						triangles[3*i] = index[0];
+						triangles[3*i+1] = index[i+1];
+						triangles[3*i+2] = index[i+2];
+					}
+					break;
+				case Lines:
+					lines = index;
+					lineCount = count / 2;
+					break;
+				case LineStrip:
+				case LineLoop:
+					boolean loop = mesh.getMode() == Mesh.Mode.LineLoop && count > 2;
+					lineCount = Math.max(0, count-1) + (loop ? 1 : 0);
+					lines = new int[2*lineCount];
+					for (int i=0; i<lineCount; ++i) {
+						lines[2*i] = index[i];
+						lines[2*i+1] = index[(i+1) % count];
+					}
+					break;
+				default:
+					throw new UnsupportedOperationException("unsupported mesh mode "+mesh.getMode());
+			}
+		}
+
+		private static float colorComponent(Buffer data, int i) {
+			if (data instanceof FloatBuffer) {
+				return ((FloatBuffer) data).get(i);
+			} else {
+				return (((ByteBuffer) data).get(i) & 0xff) / 255f;
+			}
+		}
+	}
+
+	private void drawTriangle(Primitives p, int ia, int ib, int ic, int bandX0, int bandX1) {
+		float ax = p.px[ia], ay = p.py[ia];
+		float bx = p.px[ib], by = p.py[ib];
+		float cx = p.px[ic], cy = p.py[ic];
+		float area = (bx-ax)*(cy-ay) - (by-ay)*(cx-ax);
+		if (area == 0) {
+			return;
+		}
+		if (area < 0) {
+			//counter-clockwise order
+			int ti = ib; ib = ic; ic = ti;
+			float t = bx; bx = cx; cx = t;
+			t = by; by = cy; cy = t;
+			area = -area;
+		}
+		int xMin = Math.max(bandX0, (int) Math.floor(Math.min(ax, Math.min(bx, cx))));
+		int xMax = Math.min(bandX1-1, (int) Math.floor(Math.max(ax, Math.max(bx, cx))));
+		if (xMin > xMax) {
+			return;
+		}
+		//edge functions E(x,y) = A*x + B*y + C, positive inside, Ei is opposite to vertex i
+		float a0 = -(cy-by), b0 = cx-bx, c0 = -b0*by - a0*bx;
+		float a1 = -(ay-cy), b1 = ax-cx, c1 = -b1*cy - a1*cx;
+		float a2 = -(by-ay), b2 = bx-ax, c2 = -b2*ay - a2*ax;
+		float invArea = 1 / area;
+		for (int x=xMin; x<=xMax; ++x) {
+			float fx = x + 0.5f;
+			float k0 = a0*fx + c0, k1 = a1*fx + c1, k2 = a2*fx + c2;
+			//intersect the three half planes with the pixel row
+			float lo = Float.NEGATIVE_INFINITY, hi = Float.POSITIVE_INFINITY;
+			if (b0 > 0) lo = Math.max(lo, -k0/b0); else if (b0 < 0) hi = Math.min(hi, -k0/b0); else if (a0 > 0 ? k0 < 0 : k0 <= 0) continue;
+			if (b1 > 0) lo = Math.max(lo, -k1/b1); else if (b1 < 0) hi = Math.min(hi, -k1/b1); else if (a1 > 0 ? k1 < 0 : k1 <= 0) continue;
+			if (b2 > 0) lo = Math.max(lo, -k2/b2); else if (b2 < 0) hi = Math.min(hi, -k2/b2); else if (a2 > 0 ? k2 < 0 : k2 <= 0) continue;
+			//lower bound inclusive, upper bound exclusive
+			int y0 = (int) Math.max(0, Math.ceil(lo - 0.5f));
+			int y1 = (int) Math.min(size, Math.ceil(hi - 0.5f));
+			for (int y=y0; y<y1; ++y) {
+				float fy = y + 0.5f;
+				float l0 = (k0 + b0*fy) * invArea;
+				float l1 = (k1 + b1*fy) * invArea;
+				float l2 = 1 - l0 - l1;
+				if (p.vertexColors) {
+					blend(p.blend, x*size + y,
+							l0*p.r[ia] + l1*p.r[ib] + l2*p.r[ic],
+							l0*p.g[ia] + l1*p.g[ib] + l2*p.g[ic],
+							l0*p.b[ia] + l1*p.b[ib] + l2*p.b[ic],
+							l0*p.a[ia] + l1*p.a[ib] + l2*p.a[ic]);
+				} else {
+					blend(p.blend, x*size + y, p.r[0], p.g[0], p.b[0], p.a[0]);
+				}
+			}
+		}
+	}
+
+	private void drawLine(Primitives p, int i0, int i1, int bandX0, int bandX1) {
+		float x0 = p.px[i0], y0 = p.py[i0];
+		float dx = p.px[i1] - x0, dy = p.py[i1] - y0;
+		boolean xMajor = Math.abs(dx) >= Math.abs(dy);
+		float major0 = xMajor ? x0 : y0;
+		float majorD = xMajor ? dx : dy;
+		if (majorD == 0) {
+			return;
+		}
+		//one pixel per pixel center along the major axis, half-open [start, end)
+		float start = Math.min(major0, major0 + majorD);
+		float end = Math.max(major0, major0 + majorD);
+		int m0 = (int) Math.ceil(start - 0.5f);
+		int m1 = (int) Math.ceil(end - 0.5f);
+		for (int m=m0; m<m1; ++m) {
+			float t = (m + 0.5f - major0) / majorD;
+			int x, y;
+			if (xMajor) {
+				x = m;
+				y = (int) Math.floor(y0 + t*dy);
+			} else {
+				y = m;
+				x = (int) Math.floor(x0 + t*dx);
+			}
+			if (x<bandX0 || x>=bandX1 || y<0 || y>=size) {
+				continue;
+			}
+			if (p.vertexColors) {
+				blend(p.blend, x*size + y,
+						(1-t)*p.r[i0] + t*p.r[i1],
+						(1-t)*p.g[i0] + t*p.g[i1],
+						(1-t)*p.b[i0] + t*p.b[i1],
+						(1-t)*p.a[i0] + t*p.a[i1]);
+			} else {
+				blend(p.blend, x*size + y, p.r[0], p.g[0], p.b[0], p.a[0]);
+			}
+		}
+	}
+
+	private void blend(BlendMode mode, int i, float r, float g, float b, float a) {
+		float[] cr = channels[0], cg = channels[1], cb = channels[2], ca = channels[3];
+		switch (mode) {
+			case REPLACE:
+				cr[i] = r; cg[i] = g; cb[i] = b; ca[i] = a;
+				break;
+			case ALPHA:
+				float ia = 1-a;
+				cr[i] = r*a + cr[i]*ia;
+				cg[i] = g*a + cg[i]*ia;
+				cb[i] = b*a + cb[i]*ia;
+				ca[i] = a*a + ca[i]*ia;
+				break;
+			case ADD:
+				cr[i] += r; cg[i] += g; cb[i] += b; ca[i] += a;
+				break;
+			case MAX:
+				cr[i] = Math.max(cr[i], r); cg[i] = Math.max(cg[i], g);
+				cb[i] = Math.max(cb[i], b); ca[i] = Math.max(ca[i], a);
+				break;
+		}
+	}
+}
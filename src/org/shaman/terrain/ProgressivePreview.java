@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.shaman.terrain.heightmap.TileExecutor;
+
+/**
+ * Runs a generator progressively on a background thread: first at 1/8 and
+ * 1/4 of the target resolution, then at the full resolution.
+ * Every result is passed to the listener, so the user gets a coarse
+ * preview quickly.
+ * Submitting a new generation cancels the running one: the worker is
+ * interrupted and no further results of it are delivered.
+ * Generators can check {@link Thread#isInterrupted() } and throw a
+ * {@link CancellationException} to stop early, like the
+ * {@link org.shaman.terrain.heightmap.ChainProcessor} does between its steps.
+ * @author Sebastian Weiss
+ * @param <T> the type of the result
+ */
+public class ProgressivePreview<T> {
+	private static final Logger LOG = Logger.getLogger(ProgressivePreview.class.getName());
+	/**
+	 * The resolutions of the previews, as divisors of the target size
+	 */
+	private static final int[] PREVIEW_DIVISORS = {8, 4};
+	/**
+	 * Previews smaller than this are skipped
+	 */
+	private static final int MIN_PREVIEW_SIZE = 32;
+
+	public static interface Generator<T> {
+		/**
+		 * Generates the result at the given resolution
+		 * @param size the size of the map
+		 * @return the result
+		 */
+		T generate(int size);
+	}
+
+	public static interface Listener<T> {
+		/**
+		 * Called on the worker thread for every resolution.
+		 * Use {@code app.enqueue(...)} to update the scene.
+		 * @param result the result
+		 * @param size the size of the result
+		 * @param finished {@code true} if this is the result at full resolution
+		 */
+		void update(T result, int size, boolean finished);
+	}
+
+	private final ExecutorService executor;
+	private Future<?> current;
+	private volatile int generation;
+
+	public ProgressivePreview() {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ProgressivePreview");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts a new generation, a running generation is cancelled
+	 * @param size the target size
+	 * @param generator the generator
+	 * @param listener receives the previews and the final result
+	 */
+	public synchronized void submit(final int size, final Generator<T> generator, final Listener<T> listener) {
+		cancel();
+		final int id = generation;
+		current = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int divisor : PREVIEW_DIVISORS) {
+						int s = size / divisor;
+						if (s < MIN_PREVIEW_SIZE) {
+							continue;
+						}
+						long time = System.currentTimeMillis();
+						T result = generator.generate(s);
+						if (id != generation) {
+							return;
+						}
+						LOG.log(Level.FINE, "preview {0} computed in {1} ms", new Object[]{s, System.currentTimeMillis()-time});
+						listener.update(result, s, false);
+					}
+					T result = generator.generate(size);
+					if (id != generation) {
+						return;
+					}
+					listener.update(result, size, true);
+				} catch (CancellationException ex) {
+					LOG.fine("generation cancelled");
+				} catch (RuntimeException ex) {
+					LOG.log(Level.SEVERE, "generation failed", ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Cancels the running generation, no further results are delivered
+	 */
+	public synchronized void cancel() {
+		generation++;
+		if (current != null) {
+			current.cancel(true);
+			current = null;
+		}
+	}
+
+	/**
+	 * Cancels the running generation and blocks until the worker has
+	 * stopped. Use this before the input of the generator is modified.
+	 */
+	public void cancelAndWait() {
+		cancel();
+		try {
+			//the executor has a single thread, so this runs after the cancelled task
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			LOG.log(Level.WARNING, "unable to wait for the worker", ex);
+		}
+	}
+
+	/**
+	 * Stops the background thread
+	 */
+	public void shutdown() {
+		cancel();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Upsamples a preview to the target size with bilinear interpolation
+	 * @param map the preview
+	 * @param size the target size
+	 * @return the new map, or the same map if it already has the target size
+	 */
+	public static Heightmap upsample(final Heightmap map, int size) {
+		if (map.getSize() == size) {
+			return map;
+		}
+		final Heightmap target = new Heightmap(size);
+		final float factor = (map.getSize() - 1) / (float) (size - 1);
+		TileExecutor.getDefault().forEachTile(size, new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				for (int x=x0; x<x1; ++x) {
+					for (int y=y0; y<y1; ++y) {
+						target.setHeightAt(x, y, map.getHeightInterpolating(x*factor, y*factor));
+					}
+				}
+			}
+		});
+		return target;
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.shaman.terrain.heightmap.TileExecutor;
+
+/**
+ * Exports heightmaps and vector fields to raster files for the import tools
+ * of game engines, without building a {@code BufferedImage} of the whole map.
+ * <p>
+ * The rows of the map (fixed x) are written as the scanlines of the image,
+ * like in the debug images before. Supported are 16-bit grayscale/RGB(A)
+ * PNGs and raw little-endian float32 ({@code .r32}), both as one file or as
+ * tiles. The PNG is compressed in bands of rows in parallel: every band is
+ * deflated on its own and flushed, so the bands can be concatenated to one
+ * zlib stream.
+ * @author Sebastian Weiss
+ */
+public class RasterExporter {
+	private static final Logger LOG = Logger.getLogger(RasterExporter.class.getName());
+	private static final byte[] PNG_SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+	/**
+	 * The PNG color types for 1 to 4 channels: gray, gray+alpha, RGB, RGBA
+	 */
+	private static final int[] PNG_COLOR_TYPES = {0, 4, 2, 6};
+	private static final int PNG_FILTER_UP = 2;
+	/**
+	 * The number of rows compressed together
+	 */
+	private static final int BAND_SIZE = 64;
+
+	public static enum Format {
+		/**
+		 * 16-bit PNG, the values are mapped from [min,max] to [0,65535]
+		 */
+		PNG16(".png"),
+		/**
+		 * Raw little-endian float32 without header, the channels are interleaved.
+		 * The values are written unchanged.
+		 */
+		R32(".r32");
+
+		private final String extension;
+
+		private Format(String extension) {
+			this.extension = extension;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+	}
+
+	/**
+	 * The data to export: a square map with one or more channels.
+	 * The methods are called concurrently.
+	 */
+	public static interface Source {
+		int getSize();
+
+		/**
+		 * @return the number of channels, 1 to 4 for PNGs
+		 */
+		int getChannels();
+
+		/**
+		 * Copies the values {@code (x, y)} to {@code (x, y+length-1)} of the channel
+		 * into the array
+		 */
+		void getRow(int channel, int x, int y, int length, float[] store);
+	}
+
+	private RasterExporter() {
+	}
+
+	/**
+	 * @param map the heightmap
+	 * @return a source with one channel
+	 */
+	public static Source of(final Heightmap map) {
+		return new Source() {
+			@Override
+			public int getSize() {
+				return map.getSize();
+			}
+
+			@Override
+			public int getChannels() {
+				return 1;
+			}
+
+			@Override
+			public void getRow(int channel, int x, int y, int length, float[] store) {
+				map.getStorage().get(x*map.getSize() + y, store, 0, length);
+			}
+		};
+	}
+
+	/**
+	 * @param field the vector field
+	 * @param layers the layers of the vector field that become the channels
+	 * @return a source with one channel per layer
+	 */
+	public static Source of(final Vectorfield field, final int... layers) {
+		return new Source() {
+			@Override
+			public int getSize() {
+				return field.getSize();
+			}
+
+			@Override
+			public int getChannels() {
+				return layers.length;
+			}
+
+			@Override
+			public void getRow(int channel, int x, int y, int length, float[] store) {
+				int size = field.getSize();
+				field.getStorage().get(layers[channel]*size*size + x*size + y, store, 0, length);
+			}
+		};
+	}
+
+	/**
+	 * Writes the source to one file
+	 * @param source the source
+	 * @param format the format
+	 * @param min the value mapped to 0 in PNGs
+	 * @param max the value mapped to 65535 in PNGs
+	 * @param file the target file
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write(Source source, Format format, float min, float max, File file) throws IOException {
+		long time = System.currentTimeMillis();
+		write(source, format, min, max, file, true);
+		LOG.log(Level.FINE, "{0} written in {1} ms", new Object[]{file, System.currentTimeMillis()-time});
+	}
+
+	/**
+	 * Writes the source as tiles, one file per tile, the tiles are written in
+	 * parallel. Every tile has {@code tileSize+1} samples per side, so
+	 * neighbouring tiles share their border like the engines expect.
+	 * Tiles at the border of the map are filled up with the last row or column.
+	 * The files are named {@code prefix_x<i>_y<j>} plus the extension of the format,
+	 * where {@code i} is the index of the tile in x direction.
+	 * @param source the source
+	 * @param format the format
+	 * @param min the value mapped to 0 in PNGs
+	 * @param max the value mapped to 65535 in PNGs
+	 * @param tileSize the size of a tile, without the shared border
+	 * @param folder the target folder
+	 * @param prefix the prefix of the file names
+	 * @throws IOException if a file could not be written
+	 */
+	public static void writeTiles(final Source source, final Format format, final float min, final float max,
+			final int tileSize, final File folder, final String prefix) throws IOException {
+		long time = System.currentTimeMillis();
+		if (!folder.isDirectory() && !folder.mkdirs()) {
+			throw new IOException("unable to create folder "+folder);
+		}
+		int tiles = Math.max(1, (source.getSize() - 1 + tileSize - 1) / tileSize);
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int tx=0; tx<tiles; ++tx) {
+			for (int ty=0; ty<tiles; ++ty) {
+				final Source tile = region(source, tx*tileSize, ty*tileSize, tileSize+1);
+				final File file = new File(folder, prefix+"_x"+tx+"_y"+ty+format.getExtension());
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						write(tile, format, min, max, file, false);
+						return null;
+					}
+				});
+			}
+		}
+		try {
+			TileExecutor.getDefault().invokeAll(tasks);
+		} catch (RuntimeException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw ex;
+		}
+		LOG.log(Level.FINE, "{0} tiles written in {1} ms", new Object[]{tiles*tiles, System.currentTimeMillis()-time});
+	}
+
+	/**
+	 * A square region of the source, values outside of the source are clamped
+	 */
+	private static Source region(final Source source, final int x0, final int y0, final int size) {
+		return new Source() {
+			@Override
+			public int getSize() {
+				return size;
+			}
+
+			@Override
+			public int getChannels() {
+				return source.getChannels();
+			}
+
+			@Override
+			public void getRow(int channel, int x, int y, int length, float[] store) {
+				int s = source.getSize();
+				int n = Math.min(length, s - y0 - y);
+				source.getRow(channel, Math.min(s-1, x0+x), y0+y, n, store);
+				for (int i=n; i<length; ++i) {
+					store[i] = store[n-1];
+				}
+			}
+		};
+	}
+
+	private static void write(Source source, Format format, float min, float max, File file, boolean parallel) throws IOException {
+		switch (format) {
+			case PNG16:
+				writePNG(source, min, max, file, parallel);
+				break;
+			case R32:
+				writeR32(source, file);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown format "+format);
+		}
+	}
+
+	private static void writeR32(Source source, File file) throws IOException {
+		int size = source.getSize();
+		int channels = source.getChannels();
+		float[][] rows = new float[channels][size];
+		ByteBuffer buffer = ByteBuffer.allocate(size*channels*4).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			FileChannel channel = out.getChannel();
+			for (int x=0; x<size; ++x) {
+				for (int c=0; c<channels; ++c) {
+					source.getRow(c, x, 0, size, rows[c]);
+				}
+				buffer.clear();
+				if (channels == 1) {
+					buffer.asFloatBuffer().put(rows[0]);
+				} else {
+					for (int y=0; y<size; ++y) {
+						for (int c=0; c<channels; ++c) {
+							buffer.putFloat((y*channels + c)*4, rows[c][y]);
+						}
+					}
+				}
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		}
+	}
+
+	private static void writePNG(final Source source, final float min, final float max, File file, boolean parallel) throws IOException {
+		final int size = source.getSize();
+		int channels = source.getChannels();
+		if (channels < 1 || channels > 4) {
+			throw new IllegalArgumentException("PNGs support 1 to 4 channels, not "+channels);
+		}
+		final int bands = (size + BAND_SIZE - 1) / BAND_SIZE;
+		//bands are compressed in groups to limit the memory
+		int group = parallel ? 2 * TileExecutor.getDefault().getParallelism() : 1;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.write(PNG_SIGNATURE);
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream h = new DataOutputStream(header);
+			h.writeInt(size); //width: the y coordinate
+			h.writeInt(size); //height: the x coordinate
+			h.writeByte(16);
+			h.writeByte(PNG_COLOR_TYPES[channels-1]);
+			h.writeByte(0); //compression
+			h.writeByte(0); //filter
+			h.writeByte(0); //no interlacing
+			writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+			//zlib header: deflate, 32K window, fastest compression
+			writeChunk(out, "IDAT", new byte[]{0x78, 0x01}, 0, 2);
+			Adler32 adler = new Adler32();
+			for (int b0=0; b0<bands; b0+=group) {
+				List<Callable<byte[][]>> tasks = new ArrayList<>();
+				for (int b=b0; b<Math.min(bands, b0+group); ++b) {
+					final int band = b;
+					tasks.add(new Callable<byte[][]>() {
+						@Override
+						public byte[][] call() {
+							return encodeBand(source, min, max, band*BAND_SIZE,
+									Math.min(size, (band+1)*BAND_SIZE), band==bands-1);
+						}
+					});
+				}
+				List<byte[][]> results;
+				if (parallel) {
+					results = TileExecutor.getDefault().invokeAll(tasks);
+				} else {
+					results = new ArrayList<>();
+					for (Callable<byte[][]> task : tasks) {
+						try {
+							results.add(task.call());
+						} catch (Exception ex) {
+							throw new IllegalStateException(ex);
+						}
+					}
+				}
+				for (byte[][] r : results) {
+					adler.update(r[0]);
+					writeChunk(out, "IDAT", r[1], 0, r[1].length);
+				}
+			}
+			int checksum = (int) adler.getValue();
+			writeChunk(out, "IDAT", new byte[]{(byte) (checksum>>>24), (byte) (checksum>>>16),
+				(byte) (checksum>>>8), (byte) checksum}, 0, 4);
+			writeChunk(out, "IEND", new byte[0], 0, 0);
+		}
+	}
+
+	/**
+	 * Quantizes, filters and compresses the rows from x0 inclusive to x1 exclusive.
+	 * @return the filtered rows and the raw deflate data, flushed to a byte
+	 * boundary or finished for the last band
+	 */
+	private static byte[][] encodeBand(Source source, float min, float max, int x0, int x1, boolean last) {
+		int size = source.getSize();
+		int channels = source.getChannels();
+		int rowBytes = size*channels*2;
+		float scale = 65535 / (max - min);
+		float[] values = new float[size];
+		byte[] previous = new byte[rowBytes];
+		byte[] current = new byte[rowBytes];
+		byte[] raw = new byte[(x1-x0) * (rowBytes+1)];
+		for (int x=x0-1; x<x1; ++x) {
+			if (x < 0) {
+				continue; //the row above the image is zero
+			}
+			for (int c=0; c<channels; ++c) {
+				source.getRow(c, x, 0, size, values);
+				for (int y=0; y<size; ++y) {
+					int v = Math.max(0, Math.min(65535, Math.round((values[y]-min) * scale)));
+					int i = (y*channels + c) * 2;
+					current[i] = (byte) (v >>> 8);
+					current[i+1] = (byte) v;
+				}
+			}
+			if (x >= x0) {
+				int o = (x-x0) * (rowBytes+1);
+				raw[o] = PNG_FILTER_UP;
+				for (int i=0; i<rowBytes; ++i) {
+					raw[o+1+i] = (byte) (current[i] - previous[i]);
+				}
+			}
+			byte[] tmp = previous;
+			previous = current;
+			current = tmp;
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(raw);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+			byte[] buf = new byte[64*1024];
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					out.write(buf, 0, deflater.deflate(buf));
+				}
+			} else {
+				int n;
+				do {
+					n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+					out.write(buf, 0, n);
+				} while (n == buf.length);
+			}
+			return new byte[][]{raw, out.toByteArray()};
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+		byte[] t = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(t);
+		crc.update(data, offset, length);
+		out.writeInt(length);
+		out.write(t);
+		out.write(data, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+}
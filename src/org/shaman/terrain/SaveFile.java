@@ -0,0 +1,73 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * The content of a save file: the current step and its properties.
+ * Reading and writing does not require a running application, this allows
+ * tools like {@link org.shaman.terrain.erosion.ErosionRunner} to work on saves
+ * without a renderer.
+ * Saves are written as {@link TerrainArchive}, the serialized saves of older
+ * versions can still be read.
+ * @author Sebastian Weiss
+ */
+public class SaveFile {
+	private final Class<? extends AbstractTerrainStep> step;
+	private final Map<Object, Object> properties;
+
+	public SaveFile(Class<? extends AbstractTerrainStep> step, Map<Object, Object> properties) {
+		this.step = step;
+		this.properties = properties;
+	}
+
+	public Class<? extends AbstractTerrainStep> getStep() {
+		return step;
+	}
+
+	public Map<Object, Object> getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Reads the save file.
+	 * Use {@link TerrainArchive#open(java.io.File) } to read only single
+	 * channels or regions.
+	 * @param file the file
+	 * @return the step and properties
+	 * @throws IOException if the file could not be read
+	 */
+	@SuppressWarnings("unchecked")
+	public static SaveFile read(File file) throws IOException {
+		if (TerrainArchive.isArchive(file)) {
+			try (TerrainArchive archive = TerrainArchive.open(file)) {
+				Class<? extends AbstractTerrainStep> step = Class.forName(archive.getStep()).asSubclass(AbstractTerrainStep.class);
+				return new SaveFile(step, archive.readProperties());
+			} catch (ClassNotFoundException | ClassCastException ex) {
+				throw new IOException("invalid save file "+file, ex);
+			}
+		}
+		//serialized save of an older version
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			Class<? extends AbstractTerrainStep> step = (Class<? extends AbstractTerrainStep>) in.readObject();
+			Map<Object, Object> properties = (Map<Object, Object>) in.readObject();
+			return new SaveFile(step, properties);
+		} catch (ClassNotFoundException | ClassCastException ex) {
+			throw new IOException("invalid save file "+file, ex);
+		}
+	}
+
+	/**
+	 * Writes this save to the file
+	 * @param file the file
+	 * @throws IOException if the file could not be written
+	 */
+	public void write(File file) throws IOException {
+		TerrainArchive.write(file, step.getName(), properties);
+	}
+}
@@ -0,0 +1,566 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.shaman.terrain.heightmap.TileExecutor;
+
+/**
+ * The binary container of the save files.
+ * <p>
+ * Heightmaps and vector fields are stored as typed channels, split into tiles
+ * of {@link #TILE_SIZE}² values per layer. The float bits of every tile are
+ * delta encoded, split into byte planes and the compressible planes are
+ * compressed with Deflate.
+ * Tiles are encoded and decoded in parallel.
+ * An index lists the position of every tile, so single channels or regions
+ * are read from the memory-mapped file without decoding the rest.
+ * All other properties are stored with Java serialization.
+ * <p>
+ * Layout: {@code int magic, int version, long indexPosition}, the tiles,
+ * the serialized properties and the index.
+ * @author Sebastian Weiss
+ */
+public class TerrainArchive implements Closeable {
+	private static final Logger LOG = Logger.getLogger(TerrainArchive.class.getName());
+	private static final int MAGIC = 0x50545356; //"PTSV"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	public static final int TILE_SIZE = 256;
+	private static final byte TYPE_HEIGHTMAP = 0;
+	private static final byte TYPE_VECTORFIELD = 1;
+	private static final byte PLANE_RAW = 0;
+	private static final byte PLANE_DEFLATE = 1;
+	/**
+	 * Byte planes with a higher entropy, in bits per byte, are not compressed
+	 */
+	private static final double MAX_ENTROPY = 7.5;
+
+	private static class Channel {
+		private String name;
+		private byte type;
+		private int size;
+		private int layers;
+		private int tilesPerSide;
+		private long[] offsets;
+		private int[] lengths;
+
+		private Channel(String name, byte type, int size, int layers) {
+			this.name = name;
+			this.type = type;
+			this.size = size;
+			this.layers = layers;
+			this.tilesPerSide = (size + TILE_SIZE - 1) / TILE_SIZE;
+			this.offsets = new long[layers * tilesPerSide * tilesPerSide];
+			this.lengths = new int[offsets.length];
+		}
+
+		private int getTile(int layer, int tx, int ty) {
+			return (layer*tilesPerSide + tx)*tilesPerSide + ty;
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel fileChannel;
+	private final MappedByteBuffer buffer;
+	private final String step;
+	private final Map<String, Channel> channels = new LinkedHashMap<>();
+	private final long propertiesOffset;
+	private final int propertiesLength;
+
+	private TerrainArchive(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		try {
+			fileChannel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(fileChannel, header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC) {
+				throw new IOException("not a terrain archive: "+f);
+			}
+			int version = header.getInt();
+			if (version > VERSION) {
+				throw new IOException("unsupported archive version "+version);
+			}
+			long indexOffset = header.getLong();
+			long length = fileChannel.size();
+			//files above 2GB are mapped tile by tile
+			buffer = length <= Integer.MAX_VALUE ? fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, length) : null;
+			ByteBuffer index = ByteBuffer.allocate((int) (length - indexOffset));
+			readFully(fileChannel, index, indexOffset);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+			step = in.readUTF();
+			int count = in.readInt();
+			for (int i=0; i<count; ++i) {
+				Channel c = new Channel(in.readUTF(), in.readByte(), in.readInt(), in.readInt());
+				for (int j=0; j<c.offsets.length; ++j) {
+					c.offsets[j] = in.readLong();
+					c.lengths[j] = in.readInt();
+				}
+				channels.put(c.name, c);
+			}
+			propertiesOffset = in.readLong();
+			propertiesLength = in.readInt();
+		} catch (IOException | RuntimeException ex) {
+			file.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Opens the archive, only the index is read
+	 * @param file the file
+	 * @return the archive, it has to be closed
+	 * @throws IOException if the file could not be read or is not an archive
+	 */
+	public static TerrainArchive open(File file) throws IOException {
+		return new TerrainArchive(file);
+	}
+
+	/**
+	 * @param file the file
+	 * @return {@code true} if the file is an archive, {@code false} e.g.
+	 * for the serialized save files of older versions
+	 * @throws IOException if the file could not be read
+	 */
+	public static boolean isArchive(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		} catch (EOFException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the class name of the step
+	 */
+	public String getStep() {
+		return step;
+	}
+
+	/**
+	 * @return the names of the heightmap and vector field channels
+	 */
+	public Set<String> getChannels() {
+		return Collections.unmodifiableSet(channels.keySet());
+	}
+
+	public int getSize(String channel) {
+		return getChannel(channel).size;
+	}
+
+	/**
+	 * @param channel the channel
+	 * @return the number of layers, 1 for heightmaps
+	 */
+	public int getLayers(String channel) {
+		return getChannel(channel).layers;
+	}
+
+	public boolean isVectorfield(String channel) {
+		return getChannel(channel).type == TYPE_VECTORFIELD;
+	}
+
+	private Channel getChannel(String name) {
+		Channel c = channels.get(name);
+		if (c == null) {
+			throw new IllegalArgumentException("unknown channel "+name);
+		}
+		return c;
+	}
+
+	/**
+	 * Reads a heightmap channel
+	 * @param channel the channel
+	 * @return the heightmap
+	 * @throws IOException if the file could not be read
+	 */
+	public Heightmap readHeightmap(String channel) throws IOException {
+		Channel c = getChannel(channel);
+		if (c.type != TYPE_HEIGHTMAP) {
+			throw new IllegalArgumentException("channel "+channel+" is not a heightmap");
+		}
+		Heightmap map = new Heightmap(c.size);
+		readChannel(c, map.getStorage());
+		return map;
+	}
+
+	/**
+	 * Reads a vector field channel
+	 * @param channel the channel
+	 * @return the vector field
+	 * @throws IOException if the file could not be read
+	 */
+	public Vectorfield readVectorfield(String channel) throws IOException {
+		Channel c = getChannel(channel);
+		if (c.type != TYPE_VECTORFIELD) {
+			throw new IllegalArgumentException("channel "+channel+" is not a vector field");
+		}
+		Vectorfield field = new Vectorfield(c.size, c.layers);
+		readChannel(c, field.getStorage());
+		return field;
+	}
+
+	/**
+	 * Reads a rectangular region of one layer, only the tiles intersecting
+	 * the region are decoded.
+	 * The entry {@code (x+u, y+v)} is stored at {@code u*sizeY + v},
+	 * like in {@link Heightmap#getRegion(int, int, int, int, float[]) }.
+	 * @param channel the channel
+	 * @param layer the layer, 0 for heightmaps
+	 * @param x
+	 * @param y
+	 * @param sizeX
+	 * @param sizeY
+	 * @param store the target array or {@code null}
+	 * @return the target array
+	 * @throws IOException if the file could not be read
+	 */
+	public float[] readRegion(String channel, int layer, int x, int y, int sizeX, int sizeY, float[] store) throws IOException {
+		Channel c = getChannel(channel);
+		if (layer<0 || layer>=c.layers || x<0 || y<0 || x+sizeX>c.size || y+sizeY>c.size) {
+			throw new IllegalArgumentException("region out of bounds");
+		}
+		if (store==null || store.length<sizeX*sizeY) {
+			store = new float[sizeX*sizeY];
+		}
+		float[] tile = null;
+		for (int tx=x/TILE_SIZE; tx*TILE_SIZE<x+sizeX; ++tx) {
+			for (int ty=y/TILE_SIZE; ty*TILE_SIZE<y+sizeY; ++ty) {
+				int x0 = tx*TILE_SIZE;
+				int y0 = ty*TILE_SIZE;
+				int w = Math.min(TILE_SIZE, c.size-x0);
+				int h = Math.min(TILE_SIZE, c.size-y0);
+				tile = decode(c, c.getTile(layer, tx, ty), w*h, tile);
+				int u0 = Math.max(x, x0);
+				int u1 = Math.min(x+sizeX, x0+w);
+				int v0 = Math.max(y, y0);
+				int v1 = Math.min(y+sizeY, y0+h);
+				for (int u=u0; u<u1; ++u) {
+					System.arraycopy(tile, (u-x0)*h + v0-y0, store, (u-x)*sizeY + v0-y, v1-v0);
+				}
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Reads all channels and the other properties
+	 * @return the properties
+	 * @throws IOException if the file could not be read
+	 * @throws ClassNotFoundException if a serialized property could not be read
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Object, Object> readProperties() throws IOException, ClassNotFoundException {
+		Map<Object, Object> properties = new HashMap<>();
+		if (propertiesLength > 0) {
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(getBytes(propertiesOffset, propertiesLength)))) {
+				properties.putAll((Map<Object, Object>) in.readObject());
+			}
+		}
+		for (Channel c : channels.values()) {
+			properties.put(c.name, c.type==TYPE_HEIGHTMAP ? readHeightmap(c.name) : readVectorfield(c.name));
+		}
+		return properties;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private void readChannel(final Channel c, final FloatStorage target) throws IOException {
+		List<Callable<Void>> tasks = new ArrayList<>(c.offsets.length);
+		for (int l=0; l<c.layers; ++l) {
+			for (int tx=0; tx<c.tilesPerSide; ++tx) {
+				for (int ty=0; ty<c.tilesPerSide; ++ty) {
+					final int tile = c.getTile(l, tx, ty);
+					final int base = l*c.size*c.size;
+					final int x0 = tx*TILE_SIZE;
+					final int y0 = ty*TILE_SIZE;
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							int w = Math.min(TILE_SIZE, c.size-x0);
+							int h = Math.min(TILE_SIZE, c.size-y0);
+							float[] data = decode(c, tile, w*h, null);
+							for (int u=0; u<w; ++u) {
+								target.set(base + (x0+u)*c.size + y0, data, u*h, h);
+							}
+							return null;
+						}
+					});
+				}
+			}
+		}
+		try {
+			TileExecutor.getDefault().invokeAll(tasks);
+		} catch (RuntimeException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw ex;
+		}
+	}
+
+	private byte[] getBytes(long offset, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		if (buffer != null) {
+			//duplicate() to keep the access thread safe
+			ByteBuffer b = buffer.duplicate();
+			b.position((int) offset);
+			b.get(bytes);
+		} else {
+			fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length).get(bytes);
+		}
+		return bytes;
+	}
+
+	private float[] decode(Channel c, int tile, int count, float[] store) throws IOException {
+		byte[] raw = new byte[count*4];
+		ByteBuffer in = ByteBuffer.wrap(getBytes(c.offsets[tile], c.lengths[tile]));
+		Inflater inflater = new Inflater();
+		try {
+			for (int plane=0; plane<4; ++plane) {
+				byte method = in.get();
+				if (method == PLANE_RAW) {
+					in.get(raw, plane*count, count);
+					continue;
+				}
+				int length = in.getInt();
+				inflater.reset();
+				inflater.setInput(in.array(), in.position(), length);
+				in.position(in.position() + length);
+				int n = 0;
+				while (n < count && !inflater.finished()) {
+					int r = inflater.inflate(raw, plane*count + n, count-n);
+					if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					n += r;
+				}
+				if (n != count) {
+					throw new IOException("corrupt tile "+tile+" in channel "+c.name);
+				}
+			}
+		} catch (DataFormatException | RuntimeException ex) {
+			throw new IOException("corrupt tile "+tile+" in channel "+c.name, ex);
+		} finally {
+			inflater.end();
+		}
+		if (store==null || store.length<count) {
+			store = new float[count];
+		}
+		int prev = 0;
+		for (int i=0; i<count; ++i) {
+			int d = ((raw[i] & 0xff) << 24) | ((raw[count+i] & 0xff) << 16)
+					| ((raw[2*count+i] & 0xff) << 8) | (raw[3*count+i] & 0xff);
+			prev += d;
+			store[i] = Float.intBitsToFloat(prev);
+		}
+		return store;
+	}
+
+	/**
+	 * Encodes one tile. The float bits are stored as the difference to
+	 * the previous value, with the bytes of the same significance grouped
+	 * together in planes. For smooth data, the high planes are mostly zero
+	 * and compress well. The low planes are often noise, they are stored
+	 * uncompressed because Deflate is slow on them and gains nothing.
+	 */
+	private static byte[] encode(FloatStorage data, int base, int size, int x0, int y0, int w, int h) {
+		int count = w*h;
+		float[] tile = new float[count];
+		for (int u=0; u<w; ++u) {
+			data.get(base + (x0+u)*size + y0, tile, u*h, h);
+		}
+		byte[] raw = new byte[count*4];
+		int prev = 0;
+		for (int i=0; i<count; ++i) {
+			int bits = Float.floatToRawIntBits(tile[i]);
+			int d = bits - prev;
+			prev = bits;
+			raw[i] = (byte) (d >>> 24);
+			raw[count+i] = (byte) (d >>> 16);
+			raw[2*count+i] = (byte) (d >>> 8);
+			raw[3*count+i] = (byte) d;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 2 + 20);
+		DataOutputStream out = new DataOutputStream(bytes);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		byte[] buf = new byte[count + 64];
+		try {
+			for (int plane=0; plane<4; ++plane) {
+				int n = 0;
+				if (entropy(raw, plane*count, count) < MAX_ENTROPY) {
+					deflater.reset();
+					deflater.setInput(raw, plane*count, count);
+					deflater.finish();
+					while (!deflater.finished() && n < buf.length) {
+						n += deflater.deflate(buf, n, buf.length-n);
+					}
+				}
+				if (n > 0 && deflater.finished() && n < count) {
+					out.writeByte(PLANE_DEFLATE);
+					out.writeInt(n);
+					out.write(buf, 0, n);
+				} else {
+					out.writeByte(PLANE_RAW);
+					out.write(raw, plane*count, count);
+				}
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); //not thrown by a ByteArrayOutputStream
+		} finally {
+			deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the order-0 entropy of the bytes in bits per byte
+	 */
+	private static double entropy(byte[] data, int offset, int length) {
+		int[] histogram = new int[256];
+		for (int i=offset; i<offset+length; ++i) {
+			histogram[data[i] & 0xff]++;
+		}
+		double e = 0;
+		for (int n : histogram) {
+			if (n > 0) {
+				double p = n / (double) length;
+				e -= p * Math.log(p);
+			}
+		}
+		return e / Math.log(2);
+	}
+
+	/**
+	 * Writes the archive. String keys with a {@link Heightmap} or
+	 * {@link Vectorfield} value become channels, all other properties
+	 * are serialized.
+	 * @param file the file
+	 * @param step the class name of the step
+	 * @param properties the properties
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write(File file, String step, Map<Object, Object> properties) throws IOException {
+		long time = System.currentTimeMillis();
+		List<Channel> channels = new ArrayList<>();
+		List<FloatStorage> storages = new ArrayList<>();
+		HashMap<Object, Object> others = new HashMap<>();
+		for (Map.Entry<Object, Object> e : properties.entrySet()) {
+			if (e.getKey() instanceof String && e.getValue() instanceof Heightmap) {
+				Heightmap map = (Heightmap) e.getValue();
+				channels.add(new Channel((String) e.getKey(), TYPE_HEIGHTMAP, map.getSize(), 1));
+				storages.add(map.getStorage());
+			} else if (e.getKey() instanceof String && e.getValue() instanceof Vectorfield) {
+				Vectorfield field = (Vectorfield) e.getValue();
+				channels.add(new Channel((String) e.getKey(), TYPE_VECTORFIELD, field.getSize(), field.getDimensions()));
+				storages.add(field.getStorage());
+			} else {
+				others.put(e.getKey(), e.getValue());
+			}
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			FileChannel out = raf.getChannel();
+			out.position(HEADER_SIZE);
+			//tiles
+			for (int i=0; i<channels.size(); ++i) {
+				final Channel c = channels.get(i);
+				final FloatStorage data = storages.get(i);
+				List<Callable<byte[]>> tasks = new ArrayList<>(c.offsets.length);
+				for (int l=0; l<c.layers; ++l) {
+					for (int tx=0; tx<c.tilesPerSide; ++tx) {
+						for (int ty=0; ty<c.tilesPerSide; ++ty) {
+							final int base = l*c.size*c.size;
+							final int x0 = tx*TILE_SIZE;
+							final int y0 = ty*TILE_SIZE;
+							tasks.add(new Callable<byte[]>() {
+								@Override
+								public byte[] call() {
+									return encode(data, base, c.size, x0, y0,
+											Math.min(TILE_SIZE, c.size-x0), Math.min(TILE_SIZE, c.size-y0));
+								}
+							});
+						}
+					}
+				}
+				List<byte[]> tiles = TileExecutor.getDefault().invokeAll(tasks);
+				for (int j=0; j<tiles.size(); ++j) {
+					c.offsets[j] = out.position();
+					c.lengths[j] = tiles.get(j).length;
+					writeFully(out, ByteBuffer.wrap(tiles.get(j)));
+				}
+			}
+			//other properties
+			long propertiesOffset = out.position();
+			int propertiesLength = 0;
+			if (!others.isEmpty()) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (ObjectOutputStream o = new ObjectOutputStream(bytes)) {
+					o.writeObject(others);
+				}
+				propertiesLength = bytes.size();
+				writeFully(out, ByteBuffer.wrap(bytes.toByteArray()));
+			}
+			//index
+			long indexOffset = out.position();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream index = new DataOutputStream(bytes);
+			index.writeUTF(step);
+			index.writeInt(channels.size());
+			for (Channel c : channels) {
+				index.writeUTF(c.name);
+				index.writeByte(c.type);
+				index.writeInt(c.size);
+				index.writeInt(c.layers);
+				for (int j=0; j<c.offsets.length; ++j) {
+					index.writeLong(c.offsets[j]);
+					index.writeInt(c.lengths[j]);
+				}
+			}
+			index.writeLong(propertiesOffset);
+			index.writeInt(propertiesLength);
+			index.flush();
+			writeFully(out, ByteBuffer.wrap(bytes.toByteArray()));
+			//header
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(indexOffset);
+			header.flip();
+			out.position(0);
+			writeFully(out, header);
+		}
+		LOG.log(Level.FINE, "archive {0} written in {1} ms", new Object[]{file, System.currentTimeMillis()-time});
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			position += n;
+		}
+	}
+}
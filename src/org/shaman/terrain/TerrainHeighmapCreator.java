@@ -132,7 +132,6 @@ public class TerrainHeighmapCreator extends SimpleApplication {
 	private Heightmap heightmap;
 	private Texture2D alphaMap;
 
-	@SuppressWarnings("unchecked")
     public static void main(String[] args) {
 		//load save
 		File root = new File("./saves/");
@@ -141,10 +140,11 @@ public class TerrainHeighmapCreator extends SimpleApplication {
 		chooser.setFileFilter(new FileNameExtensionFilter(null, "save"));
 		int result = chooser.showOpenDialog(null);
 		if (result == JFileChooser.APPROVE_OPTION) {
-			try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(chooser.getSelectedFile())))) {
-				loadedStep = (Class<? extends AbstractTerrainStep>) in.readObject();
-				loadedProperties = (Map<Object, Object>) in.readObject();
-			} catch (Exception ex) {
+			try {
+				SaveFile save = SaveFile.read(chooser.getSelectedFile());
+				loadedStep = save.getStep();
+				loadedProperties = save.getProperties();
+			} catch (IOException ex) {
 				LOG.log(Level.SEVERE, "unable to load save file", ex);
 			}
 		}
@@ -451,9 +451,8 @@ public class TerrainHeighmapCreator extends SimpleApplication {
 			file = new File(root, fileName);
 		}
 		//save file
-		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
-			out.writeObject(step);
-			out.writeObject(properties);
+		try {
+			new SaveFile(step, properties).write(file);
 		} catch (IOException ex) {
 			LOG.log(Level.SEVERE, "unable to save file", ex);
 			return;
@@ -5,30 +5,67 @@
  */
 package org.shaman.terrain;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
- * Represents an n-dimensional vector field
+ * Represents an n-dimensional vector field.
+ * The components are stored per channel (structure of arrays) in a single
+ * {@link FloatStorage}: the i-th component at {@code (x,y)} is located at index
+ * {@code i*size*size + x*size + y}.
  * @author Sebastian Weiss
  */
 public class Vectorfield implements Cloneable, Serializable {
 	private static final long serialVersionUID = 8072220924471909437L;
+	/**
+	 * The serialized form is kept as {@code int size, int dimensions, float[][][] data}
+	 * to stay compatible with old save files.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("size", int.class),
+		new ObjectStreamField("dimensions", int.class),
+		new ObjectStreamField("data", float[][][].class)
+	};
 	private int size;
 	private int dimensions;
-	private float data[][][];
+	private transient int channelSize;
+	private transient FloatStorage data;
 
 	public Vectorfield(int size, int dimensions) {
-		setSize(size, dimensions);
+		this(size, dimensions, false);
+	}
+	
+	/**
+	 * Creates a new vector field
+	 * @param size the size in x and y direction
+	 * @param dimensions the number of components per vector
+	 * @param direct {@code true} if the data should be stored off-heap
+	 */
+	public Vectorfield(int size, int dimensions, boolean direct) {
+		setSize(size, dimensions, direct);
 	}
 	
-	public float[][][] getRawData() {
+	/**
+	 * Returns the underlying storage. The i-th component at {@code (x,y)}
+	 * is stored at index {@code i*getSize()*getSize() + x*getSize() + y}.
+	 * @return the storage
+	 */
+	public FloatStorage getStorage() {
 		return data;
 	}
 	
 	public void setSize(int size, int dimensions) {
+		setSize(size, dimensions, data!=null && data.isDirect());
+	}
+	
+	public void setSize(int size, int dimensions, boolean direct) {
 		this.size = size;
 		this.dimensions = dimensions;
-		this.data = new float[size][size][dimensions];
+		this.channelSize = size*size;
+		this.data = FloatStorage.allocate((long) size * size * dimensions, direct);
 	}
 	
 	public int getSize() {
@@ -39,6 +76,18 @@ public class Vectorfield implements Cloneable, Serializable {
 		return dimensions;
 	}
 	
+	public boolean isDirect() {
+		return data.isDirect();
+	}
+	
+	/**
+	 * Computes a checksum of the values, see {@link FloatStorage#checksum() }
+	 * @return the checksum
+	 */
+	public long getChecksum() {
+		return (((data.checksum() ^ size) * 0x100000001b3L) ^ dimensions) * 0x100000001b3L;
+	}
+	
 	/**
 	 * Returns the height at the specific coordinates without checking for
 	 * array boundaries.
@@ -48,15 +97,41 @@ public class Vectorfield implements Cloneable, Serializable {
 	 * @return 
 	 */
 	public float getScalarAt(int x, int y, int i) {
-		return data[x][y][i];
+		return data.get(i*channelSize + x*size + y);
 	}
 	
 	public float getScalarAtClamping(int x, int y, int i) {
-		return data[Math.min(size-1, Math.max(0, x))][Math.min(size-1, Math.max(0, y))][i];
+		return data.get(i*channelSize + Math.min(size-1, Math.max(0, x))*size + Math.min(size-1, Math.max(0, y)));
 	}
 	
+	/**
+	 * Returns a copy of the vector at the specific coordinates.
+	 * Use {@link #getVectorAt(int, int, float[]) } in loops to avoid the allocation.
+	 * @param x
+	 * @param y
+	 * @return 
+	 */
 	public float[] getVectorAt(int x, int y) {
-		return data[x][y];
+		return getVectorAt(x, y, null);
+	}
+	
+	/**
+	 * Copies the vector at the specific coordinates into {@code store}.
+	 * @param x
+	 * @param y
+	 * @param store the target array, if {@code null} or too small, a new one is created
+	 * @return the target array
+	 */
+	public float[] getVectorAt(int x, int y, float[] store) {
+		if (store==null || store.length<dimensions) {
+			store = new float[dimensions];
+		}
+		int index = x*size + y;
+		for (int i=0; i<dimensions; ++i) {
+			store[i] = data.get(index);
+			index += channelSize;
+		}
+		return store;
 	}
 	
 	/**
@@ -67,9 +142,13 @@ public class Vectorfield implements Cloneable, Serializable {
 	 * @return 
 	 */
 	public float[] getVectorAtWrapping(int x, int y) {
+		return getVectorAtWrapping(x, y, null);
+	}
+	
+	public float[] getVectorAtWrapping(int x, int y, float[] store) {
 		x = (x+size) % size;
 		y = (y+size) % size;
-		return data[x][y];
+		return getVectorAt(x, y, store);
 	}
 	
 	/**
@@ -80,7 +159,11 @@ public class Vectorfield implements Cloneable, Serializable {
 	 * @return 
 	 */
 	public float[] getVectorAtClamping(int x, int y) {
-		return data[Math.min(size-1, Math.max(0, x))][Math.min(size-1, Math.max(0, y))];
+		return getVectorAtClamping(x, y, null);
+	}
+	
+	public float[] getVectorAtClamping(int x, int y, float[] store) {
+		return getVectorAt(Math.min(size-1, Math.max(0, x)), Math.min(size-1, Math.max(0, y)), store);
 	}
 	
 	/**
@@ -96,19 +179,23 @@ public class Vectorfield implements Cloneable, Serializable {
 		x = Math.max(0, Math.min(size-1, x));
 		y = Math.max(0, Math.min(size-1, y));
 		int ax = (int) Math.floor(x);
-		int bx = ax+1;//(int) Math.ceil(x);
+		int bx = Math.min(size-1, ax+1);
 		int ay = (int) Math.floor(y);
-		int by = ay+1;//(int) Math.ceil(y);
+		int by = Math.min(size-1, ay+1);
 		float fx = x%1;
 		float fy = y%1;
-		float[] q11 = getVectorAtClamping(ax, ay);
-		float[] q12 = getVectorAtClamping(ax, by);
-		float[] q21 = getVectorAtClamping(bx, ay);
-		float[] q22 = getVectorAtClamping(bx, by);
+		int i11 = ax*size + ay;
+		int i12 = ax*size + by;
+		int i21 = bx*size + ay;
+		int i22 = bx*size + by;
 		for (int i=0; i<dimensions; ++i) {
-			float v1 = (1-fx)*q11[i] + fx*q12[i];
-			float v2 = (1-fx)*q21[i] + fx*q22[i];
+			float v1 = (1-fx)*data.get(i11) + fx*data.get(i12);
+			float v2 = (1-fx)*data.get(i21) + fx*data.get(i22);
 			store[i] = (1-fy)*v1 + fy*v2;
+			i11 += channelSize;
+			i12 += channelSize;
+			i21 += channelSize;
+			i22 += channelSize;
 		}
 		return store;
 	}
@@ -122,54 +209,144 @@ public class Vectorfield implements Cloneable, Serializable {
 	 */
 	public void setVectorAt(int x, int y, float[] vector) {
 		if (x>=0 && x<size && y>=0 && y<size) {
+			int index = x*size + y;
 			for (int i=0; i<dimensions; ++i) {
-				data[x][y][i] = vector[i];
+				data.set(index, vector[i]);
+				index += channelSize;
 			}
 		}
 	}
 	
 	public void setScalarAt(int x, int y, int i, float scalar) {
 		if (x>=0 && x<size && y>=0 && y<size && i>=0 && i<dimensions) {
-			data[x][y][i] = scalar;
+			data.set(i*channelSize + x*size + y, scalar);
 		}
 	}
 	
-	public void setLayer(int i, float[][] layer) {
-		for (int x=0; x<size; ++x) {
-			for (int y=0; y<size; ++y) {
-				data[x][y][i] = layer[x][y];
-			}
+	/**
+	 * Copies the i-th component of the vectors {@code (x, 0)} to {@code (x, size-1)}
+	 * into the array. This is a contiguous block in the storage.
+	 * @param i the component
+	 * @param x
+	 * @param store the target array or {@code null}
+	 * @return the target array
+	 */
+	public float[] getRow(int i, int x, float[] store) {
+		if (store==null || store.length<size) {
+			store = new float[size];
 		}
+		data.get(i*channelSize + x*size, store, 0, size);
+		return store;
 	}
-	public float[][] getLayer(int i, float[][] store) {
-		if (store==null || store.length!=size || store[0].length!=size) {
-			store = new float[size][size];
+	
+	/**
+	 * Sets the i-th component of the vectors {@code (x, 0)} to {@code (x, size-1)}.
+	 * @param i the component
+	 * @param x
+	 * @param row the new values
+	 */
+	public void setRow(int i, int x, float[] row) {
+		data.set(i*channelSize + x*size, row, 0, size);
+	}
+	
+	/**
+	 * Copies the i-th component of the rectangular region starting at {@code (x,y)}
+	 * into the array. The entry {@code (x+u, y+v)} is stored at {@code u*sizeY + v}.
+	 * @param i the component
+	 * @param x
+	 * @param y
+	 * @param sizeX
+	 * @param sizeY
+	 * @param store the target array or {@code null}
+	 * @return the target array
+	 */
+	public float[] getRegion(int i, int x, int y, int sizeX, int sizeY, float[] store) {
+		if (store==null || store.length<sizeX*sizeY) {
+			store = new float[sizeX*sizeY];
 		}
-		for (int x=0; x<size; ++x) {
-			for (int y=0; y<size; ++y) {
-				store[x][y] = data[x][y][i];
-			}
+		for (int u=0; u<sizeX; ++u) {
+			data.get(i*channelSize + (x+u)*size + y, store, u*sizeY, sizeY);
 		}
 		return store;
 	}
+	
+	/**
+	 * Sets the i-th component of the rectangular region starting at {@code (x,y)}.
+	 * The entry {@code (x+u, y+v)} is read from {@code u*sizeY + v}.
+	 * @param i the component
+	 * @param x
+	 * @param y
+	 * @param sizeX
+	 * @param sizeY
+	 * @param region the new values
+	 */
+	public void setRegion(int i, int x, int y, int sizeX, int sizeY, float[] region) {
+		for (int u=0; u<sizeX; ++u) {
+			data.set(i*channelSize + (x+u)*size + y, region, u*sizeY, sizeY);
+		}
+	}
+	
+	/**
+	 * Sets the i-th component of all vectors from the heightmap
+	 * @param i the component
+	 * @param layer a heightmap of the same size
+	 */
+	public void setLayer(int i, Heightmap layer) {
+		if (layer.getSize() != size) {
+			throw new IllegalArgumentException("layer must have the same size as the vector field");
+		}
+		data.set(i*channelSize, layer.getStorage(), 0, channelSize);
+	}
+	
+	/**
+	 * Copies the i-th component of all vectors into a heightmap
+	 * @param i the component
+	 * @param store the target heightmap or {@code null}
+	 * @return the target heightmap
+	 */
+	public Heightmap getLayer(int i, Heightmap store) {
+		if (store==null || store.getSize()!=size) {
+			store = new Heightmap(size);
+		}
+		store.getStorage().set(0, data, i*channelSize, channelSize);
+		return store;
+	}
 
 	@Override
 	@SuppressWarnings("CloneDeclaresCloneNotSupported")
 	public Vectorfield clone() {
 		try {
 			Vectorfield map = (Vectorfield) super.clone();
-			map.data = new float[map.size][map.size][dimensions];
-			for (int x=0; x<map.size; ++x) {
-				for (int y=0; y<map.size; ++y) {
-					for (int i=0; i<map.dimensions; ++i) {
-						map.data[x][y][i] = this.data[x][y][i];
-					}
-				}
-			}
+			map.data = data.copy();
 			return map;
 		} catch (CloneNotSupportedException ex) {
 			throw new RuntimeException("unable to clone heightmap", ex);
 		}
 	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		float[][][] d = new float[size][size][];
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				d[x][y] = getVectorAt(x, y, null);
+			}
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("size", size);
+		fields.put("dimensions", dimensions);
+		fields.put("data", d);
+		out.writeFields();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		float[][][] d = (float[][][]) fields.get("data", null);
+		setSize(fields.get("size", 0), fields.get("dimensions", 0), false);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				setVectorAt(x, y, d[x][y]);
+			}
+		}
+	}
 
 }
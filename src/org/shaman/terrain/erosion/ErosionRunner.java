@@ -0,0 +1,339 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.erosion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.shaman.terrain.AbstractTerrainStep;
+import org.shaman.terrain.Heightmap;
+import org.shaman.terrain.SaveFile;
+import org.shaman.terrain.heightmap.TileExecutor;
+
+/**
+ * Drives the {@link WaterErosionSimulation.ErosionSolver} independent of the
+ * render loop.
+ * The solver either runs on a background worker thread ({@link #start() }),
+ * or synchronously on the calling thread ({@link #runIterations(int) }).
+ * The current state is published as an immutable {@link Snapshot} every
+ * {@link #setPublishIterations(int) N iterations} or
+ * {@link #setPublishMillis(long) X milliseconds}, whatever comes first.
+ * The UI only reads these snapshots and never touches the solver directly.
+ * <p>
+ * The {@link #main(java.lang.String[]) main method} runs the erosion headless
+ * on a save file, without a jME application.
+ * @author Sebastian Weiss
+ */
+public class ErosionRunner {
+	private static final Logger LOG = Logger.getLogger(ErosionRunner.class.getName());
+
+	/**
+	 * An immutable copy of the solver state
+	 */
+	public static final class Snapshot {
+		private final int iteration;
+		private final Heightmap terrainHeight;
+		private final Heightmap waterHeight;
+
+		private Snapshot(int iteration, Heightmap terrainHeight, Heightmap waterHeight) {
+			this.iteration = iteration;
+			this.terrainHeight = terrainHeight;
+			this.waterHeight = waterHeight;
+		}
+
+		/**
+		 * @return the number of iterations that were computed
+		 */
+		public int getIteration() {
+			return iteration;
+		}
+
+		/**
+		 * @return the terrain height, must not be modified
+		 */
+		public Heightmap getTerrainHeight() {
+			return terrainHeight;
+		}
+
+		/**
+		 * @return the water height, must not be modified
+		 */
+		public Heightmap getWaterHeight() {
+			return waterHeight;
+		}
+	}
+
+	private final WaterErosionSimulation.ErosionSolver solver;
+	private final Object lock = new Object();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private volatile boolean raining = true;
+	private volatile boolean riverActive = false;
+	private volatile int publishIterations = 1;
+	private volatile long publishMillis = 100;
+	private volatile Snapshot snapshot;
+	private volatile boolean running;
+	private Thread worker;
+	//guarded by lock
+	private int iteration;
+
+	public ErosionRunner(WaterErosionSimulation.ErosionSolver solver) {
+		this.solver = solver;
+		publish();
+	}
+
+	public WaterErosionSimulation.ErosionSolver getSolver() {
+		return solver;
+	}
+
+	public void setRaining(boolean raining) {
+		this.raining = raining;
+	}
+
+	public void setRiverActive(boolean riverActive) {
+		this.riverActive = riverActive;
+	}
+
+	/**
+	 * Sets the number of iterations after which a new snapshot is published
+	 * @param publishIterations the number of iterations, at least 1
+	 */
+	public void setPublishIterations(int publishIterations) {
+		this.publishIterations = Math.max(1, publishIterations);
+	}
+
+	public int getPublishIterations() {
+		return publishIterations;
+	}
+
+	/**
+	 * Sets the time after which a new snapshot is published, even if
+	 * less than {@link #getPublishIterations() } iterations were computed.
+	 * @param publishMillis the time in milliseconds
+	 */
+	public void setPublishMillis(long publishMillis) {
+		this.publishMillis = publishMillis;
+	}
+
+	public long getPublishMillis() {
+		return publishMillis;
+	}
+
+	/**
+	 * @return the latest published snapshot, never {@code null}
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Executes the task on the solver between two iterations.
+	 * If the worker is not running, the task is executed immediately.
+	 * @param task the task
+	 */
+	public void submit(Runnable task) {
+		tasks.add(task);
+		if (!running) {
+			synchronized (lock) {
+				runTasks();
+			}
+		}
+	}
+
+	/**
+	 * Starts the background worker. Does nothing if it is already running.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "ErosionRunner");
+		worker.setDaemon(true);
+		worker.start();
+		LOG.info("erosion worker started");
+	}
+
+	/**
+	 * Stops the background worker and waits until it has finished the
+	 * current iteration. The final state is published as a snapshot.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			worker.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		worker = null;
+		LOG.info("erosion worker stopped");
+	}
+
+	/**
+	 * Runs the specified number of iterations on the calling thread and
+	 * publishes the result.
+	 * @param count the number of iterations
+	 * @throws IllegalStateException if the background worker is running
+	 */
+	public void runIterations(int count) {
+		if (running) {
+			throw new IllegalStateException("the background worker is running");
+		}
+		synchronized (lock) {
+			runTasks();
+			for (int i=0; i<count; ++i) {
+				solver.oneIteration(raining, riverActive);
+				iteration++;
+			}
+			publish();
+		}
+	}
+
+	private void work() {
+		int sincePublish = 0;
+		long lastPublish = System.currentTimeMillis();
+		while (running) {
+			synchronized (lock) {
+				runTasks();
+				solver.oneIteration(raining, riverActive);
+				iteration++;
+				sincePublish++;
+				long time = System.currentTimeMillis();
+				if (sincePublish >= publishIterations || time - lastPublish >= publishMillis) {
+					publish();
+					sincePublish = 0;
+					lastPublish = time;
+				}
+			}
+		}
+		synchronized (lock) {
+			runTasks();
+			publish();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void publish() {
+		snapshot = new Snapshot(iteration, solver.getTerrainHeight().clone(), solver.getWaterHeight().clone());
+	}
+
+	/**
+	 * Runs the erosion headless on a save file.
+	 * The result is written as a save of the {@link WaterErosionSimulation} step.
+	 * <pre>
+	 * ErosionRunner input.save iterations output.save [-norain] [-rivers] [-log N] [-seed S]
+	 * </pre>
+	 * With the same seed, the result is reproducible.
+	 * @param args the command line arguments
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println("usage: ErosionRunner input.save iterations output.save [-norain] [-rivers] [-log N] [-seed S]");
+			System.exit(1);
+		}
+		File input = new File(args[0]);
+		int iterations = Integer.parseInt(args[1]);
+		File output = new File(args[2]);
+		boolean raining = true;
+		boolean rivers = false;
+		int logInterval = 100;
+		long seed = 0;
+		for (int i=3; i<args.length; ++i) {
+			switch (args[i]) {
+				case "-norain": raining = false; break;
+				case "-rivers": rivers = true; break;
+				case "-log": logInterval = Math.max(1, Integer.parseInt(args[++i])); break;
+				case "-seed": seed = Long.parseLong(args[++i]); break;
+				default:
+					System.err.println("unknown argument: "+args[i]);
+					System.exit(1);
+			}
+		}
+
+		SaveFile save;
+		try {
+			save = SaveFile.read(input);
+		} catch (IOException ex) {
+			LOG.log(Level.SEVERE, "unable to load save file", ex);
+			System.exit(2);
+			return;
+		}
+		Map<Object, Object> properties = save.getProperties();
+		Heightmap map = (Heightmap) properties.get(AbstractTerrainStep.KEY_HEIGHTMAP);
+		if (map == null) {
+			LOG.severe("the save file contains no heightmap");
+			System.exit(2);
+			return;
+		}
+		Heightmap temperature = (Heightmap) properties.get(AbstractTerrainStep.KEY_TEMPERATURE);
+		if (temperature == null) {
+			temperature = new Heightmap(map.getSize());
+			temperature.fillHeight(0.5f);
+		}
+		Heightmap moisture = (Heightmap) properties.get(AbstractTerrainStep.KEY_MOISTURE);
+		if (moisture == null) {
+			moisture = new Heightmap(map.getSize());
+			moisture.fillHeight(0.5f);
+		}
+		List<RiverSource> riverSources = (List<RiverSource>) properties.get(AbstractTerrainStep.KEY_RIVER_SOURCES);
+		if (riverSources == null) {
+			riverSources = new ArrayList<>();
+		}
+
+		WaterErosionSimulation.ErosionSolver solver = new WaterErosionSimulation.ErosionSolver(
+				temperature, moisture, map.clone(), seed, TileExecutor.getDefault());
+		solver.setRiverSources(riverSources);
+		ErosionRunner runner = new ErosionRunner(solver);
+		runner.setRaining(raining);
+		runner.setRiverActive(rivers);
+		LOG.log(Level.INFO, "run {0} iterations on a heightmap of size {1}", new Object[]{iterations, map.getSize()});
+		long start = System.currentTimeMillis();
+		for (int i=0; i<iterations; i+=logInterval) {
+			runner.runIterations(Math.min(logInterval, iterations-i));
+			LOG.log(Level.INFO, "iteration {0}, {1}ms", new Object[]{
+				runner.getSnapshot().getIteration(), System.currentTimeMillis()-start});
+		}
+
+		Map<Object, Object> result = new HashMap<>(properties);
+		result.put(AbstractTerrainStep.KEY_HEIGHTMAP, solver.getTerrainHeight());
+		result.put(AbstractTerrainStep.KEY_TEMPERATURE, temperature);
+		result.put(AbstractTerrainStep.KEY_MOISTURE, moisture);
+		result.put(AbstractTerrainStep.KEY_WATER, solver.getWaterHeight());
+		result.put(AbstractTerrainStep.KEY_RIVER_SOURCES, riverSources);
+		try {
+			new SaveFile(WaterErosionSimulation.class, result).write(output);
+		} catch (IOException ex) {
+			LOG.log(Level.SEVERE, "unable to save file", ex);
+			System.exit(2);
+		}
+		LOG.info("file saved to "+output);
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.erosion;
+
+import org.shaman.terrain.Heightmap;
+
+/**
+ * The distribution of the rain drops over the map.
+ * Every land cell receives rain with a probability proportional to its
+ * moisture, ocean cells receive no rain. The distribution is stored as an
+ * alias table (Vose's method), this allows to sample a cell in constant time
+ * from a single random number.
+ * <p>
+ * The random numbers are produced by a counter-based generator:
+ * {@link #random(long, long, long) } hashes the seed and a counter
+ * into a random value. Every drop has its own counter, therefore the drops
+ * can be generated in any order and on any number of threads with the same
+ * result.
+ * @author Sebastian Weiss
+ */
+final class RainDistribution {
+	private final int cells;
+	/**
+	 * probability to keep the cell, otherwise the alias is used
+	 */
+	private final float[] probability;
+	private final int[] alias;
+	private final boolean empty;
+
+	/**
+	 * Creates the distribution
+	 * @param terrain the terrain height, cells with a height {@code <=0} are ocean
+	 * @param moisture the moisture, clamped to [0,1]
+	 */
+	RainDistribution(Heightmap terrain, Heightmap moisture) {
+		int size = terrain.getSize();
+		cells = size*size;
+		probability = new float[cells];
+		alias = new int[cells];
+		//weights
+		double[] weights = new double[cells];
+		double total = 0;
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				if (terrain.getHeightAt(x, y) > 0) {
+					double w = Math.max(0, Math.min(1, moisture.getHeightAt(x, y)));
+					weights[x*size + y] = w;
+					total += w;
+				}
+			}
+		}
+		empty = total <= 0;
+		if (empty) {
+			return;
+		}
+		//Vose's alias method
+		int[] small = new int[cells];
+		int[] large = new int[cells];
+		int numSmall = 0, numLarge = 0;
+		double scale = cells / total;
+		for (int i=0; i<cells; ++i) {
+			weights[i] *= scale;
+			if (weights[i] < 1) {
+				small[numSmall++] = i;
+			} else {
+				large[numLarge++] = i;
+			}
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+			probability[s] = (float) weights[s];
+			alias[s] = l;
+			weights[l] = (weights[l] + weights[s]) - 1;
+			if (weights[l] < 1) {
+				small[numSmall++] = l;
+			} else {
+				large[numLarge++] = l;
+			}
+		}
+		//the remaining cells are full, up to rounding errors
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			probability[l] = 1;
+			alias[l] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			probability[s] = 1;
+			alias[s] = s;
+		}
+	}
+
+	/**
+	 * @return {@code true} if no cell receives rain
+	 */
+	boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * Samples a cell
+	 * @param random a random number, e.g. from {@link #random(long, long, long) }
+	 * @return the index {@code x*size+y} of the cell
+	 */
+	int sample(long random) {
+		//upper 32 bits select the column, lower 24 bits are the coin flip
+		int column = (int) (((random >>> 32) * cells) >>> 32);
+		float coin = (random & 0xFFFFFF) * (1f / (1<<24));
+		return coin < probability[column] ? column : alias[column];
+	}
+
+	/**
+	 * Counter-based random number generator, based on the SplitMix64 finalizer.
+	 * @param seed the seed
+	 * @param stream the stream, e.g. the iteration
+	 * @param counter the counter within the stream
+	 * @return a random 64-bit value
+	 */
+	static long random(long seed, long stream, long counter) {
+		long z = seed + stream * 0x9E3779B97F4A7C15L;
+		z = mix(z) + counter * 0xBF58476D1CE4E5B9L;
+		return mix(z);
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -31,7 +31,7 @@ import java.util.logging.Logger;
 import org.shaman.terrain.AbstractTerrainStep;
 import org.shaman.terrain.Heightmap;
 import org.shaman.terrain.TerrainHeighmapCreator;
-import org.shaman.terrain.Vectorfield;
+import org.shaman.terrain.heightmap.TileExecutor;
 import org.shaman.terrain.polygonal.PolygonalMapGenerator;
 import org.shaman.terrain.vegetation.VegetationGenerator;
 
@@ -89,6 +89,7 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 	
 	//solver
 	private ErosionSolver solver;
+	private ErosionRunner runner;
 	private Texture solverAlphaTexture;
 	private Texture solverHeightTexture;
 	private Material solverMaterial;
@@ -96,6 +97,14 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 	private Material heightDiffMaterial;
 	private int iteration = 0;
 	private boolean solving = false;
+	/**
+	 * The number of iterations the solver computes between two snapshots for the ui
+	 */
+	private static final int ITERATIONS_PER_SNAPSHOT = 4;
+	/**
+	 * The maximal time between two snapshots for the ui
+	 */
+	private static final long MILLIS_PER_SNAPSHOT = 100;
 
 	@Override
 	protected void enable() {
@@ -166,6 +175,9 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 
 	@Override
 	protected void disable() {
+		if (runner != null) {
+			runner.stop();
+		}
 		app.getHeightmapSpatial().setLocalScale(originalMapScale);
 		app.forceTerrainMaterial(null);
 		unregisterListener();
@@ -173,7 +185,7 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 
 	@Override
 	public void update(float tpf) {
-		if (solving) {
+		if (runner != null) {
 			solverUpdate();
 		}
 		if (recording) {
@@ -354,7 +366,7 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 		moistureTexture.setMagFilter(Texture.MagFilter.Bilinear);
 		moistureMaterial.setTexture("DiffuseMap", moistureTexture);
 	}
-	private void updateSolverTexture() {		
+	private void updateSolverTexture(Heightmap terrainHeight, Heightmap waterHeight) {		
 		Image image = solverAlphaTexture.getImage();
 		ByteBuffer data = image.getData(0);
 		int size = map.getSize();
@@ -367,11 +379,11 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 		int positiveWaterCounter = 0;
 		for (int x=0; x<size; ++x) {
 			for (int y=0; y<size; ++y) {
-				float slope = solver.getTerrainHeight().getSlopeAt(y, size-x-1);
+				float slope = terrainHeight.getSlopeAt(y, size-x-1);
 				slope = (float) Math.pow(slope * TerrainHeighmapCreator.SLOPE_SCALE, TerrainHeighmapCreator.SLOPE_POWER);
 				float g = Math.max(0, 1-slope);
 				float r = 1-g;
-				float wh = solver.getWaterHeight().getHeightAt(y, size-x-1);
+				float wh = waterHeight.getHeightAt(y, size-x-1);
 				float b = Math.min(1, wh*WATER_COLOR_FACTOR);
 				g = Math.max(0, g-b/2);
 				r = Math.max(0, r-b/2);
@@ -395,7 +407,7 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 		solverAlphaTexture.setMagFilter(Texture.MagFilter.Bilinear);
 		solverMaterial.setTexture("AlphaMap", solverAlphaTexture);
 	}
-	private void updateSolverHeightmap() {
+	private void updateSolverHeightmap(Heightmap terrainHeight, Heightmap waterHeight) {
 		Image image = solverHeightTexture.getImage();
 		ByteBuffer data = image.getData(0);
 		int size = map.getSize();
@@ -405,8 +417,8 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 		data.rewind();
 		for (int x=0; x<size; ++x) {
 			for (int y=0; y<size; ++y) {
-				float h = solver.getTerrainHeight().getHeightAt(y, size-x-1) 
-						+ solver.getWaterHeight().getHeightAt(y, size-x-1);
+				float h = terrainHeight.getHeightAt(y, size-x-1) 
+						+ waterHeight.getHeightAt(y, size-x-1);
 				h = (h/4)+0.5f;
 				h = Math.min(1, Math.max(0, h));
 				h *= 1<<16;
@@ -543,28 +555,58 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 			solverAlphaTexture = new Texture2D(size, size, Image.Format.ABGR8);
 			solverHeightTexture = new Texture2D(size, size, Image.Format.Depth16);
 			iteration = 0;
+			runner = new ErosionRunner(solver);
+			runner.setPublishIterations(ITERATIONS_PER_SNAPSHOT);
+			runner.setPublishMillis(MILLIS_PER_SNAPSHOT);
+			updateSolverTexture(solver.getTerrainHeight(), solver.getWaterHeight());
+			updateSolverHeightmap(solver.getTerrainHeight(), solver.getWaterHeight());
 		} //else: resume after guiStop()
-		solver.setRiverSources(riverSources);
-		updateSolverTexture();
-		updateSolverHeightmap();
+		final List<RiverSource> sources = new ArrayList<>(riverSources);
+		runner.submit(new Runnable() {
+			@Override
+			public void run() {
+				solver.setRiverSources(sources);
+			}
+		});
+		runner.setRaining(screenController.isRaining());
+		runner.setRiverActive(screenController.isRiverActive());
 		app.forceTerrainMaterial(solverMaterial);
 		solving = true;
+		runner.start();
 		LOG.info("start solving");
 	}
+	/**
+	 * Shows the latest snapshot of the solver, the solver itself runs
+	 * in the background.
+	 */
 	private void solverUpdate() {
-		solver.oneIteration(screenController.isRaining(), screenController.isRiverActive());
-		updateSolverTexture();
-		updateSolverHeightmap();
-		newMap = solver.getTerrainHeight();
-		iteration++;
+		if (solving) {
+			runner.setRaining(screenController.isRaining());
+			runner.setRiverActive(screenController.isRiverActive());
+		}
+		ErosionRunner.Snapshot snapshot = runner.getSnapshot();
+		if (snapshot.getIteration() == iteration) {
+			return; //nothing new
+		}
+		updateSolverTexture(snapshot.getTerrainHeight(), snapshot.getWaterHeight());
+		updateSolverHeightmap(snapshot.getTerrainHeight(), snapshot.getWaterHeight());
+		newMap = snapshot.getTerrainHeight();
+		iteration = snapshot.getIteration();
 		screenController.setIteration(iteration);
 	}
 	void guiStop() {
 		screenController.setSolving(false);
 		solving = false;
+		if (runner != null) {
+			runner.stop();
+		}
 		LOG.info("solving stopped");
 	}
 	void guiReset() {
+		if (runner != null) {
+			runner.stop();
+		}
+		runner = null;
 		solver = null;
 		app.forceTerrainMaterial(null);
 		screenController.setIteration(0);
@@ -584,16 +626,25 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 		}
 	}
 	void guiDeleteWater() {
-		if (solver != null) {
-			solver.deleteWater();
+		if (runner != null) {
+			runner.submit(new Runnable() {
+				@Override
+				public void run() {
+					solver.deleteWater();
+				}
+			});
 		}
 	}
 	void guiNextStep() {
+		guiStop();
+		if (runner != null) {
+			newMap = runner.getSnapshot().getTerrainHeight();
+		}
 		Map<Object, Object> props = new HashMap<>(properties);
 		props.put(KEY_HEIGHTMAP, newMap==null ? map : newMap);
 		props.put(KEY_MOISTURE, moisture);
 		props.put(KEY_TEMPERATURE, temperature);
-		props.put(KEY_WATER, solver==null ? new Heightmap(map.getSize()) : solver.getWaterHeight());
+		props.put(KEY_WATER, runner==null ? new Heightmap(map.getSize()) : runner.getSnapshot().getWaterHeight());
 		props.put(KEY_RIVER_SOURCES, riverSources);
 		props.put(KEY_TERRAIN_SCALE, 1f/scaleFactor);
 		super.nextStep(NEXT_STEP, props);
@@ -667,6 +718,21 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 		
 	}
 		
+	/**
+	 * The hydraulic erosion solver.
+	 * All fields are stored in flat arrays, the cell {@code (x,y)} is at index
+	 * {@code x*size + y}. One iteration consists of three parallel sweeps over
+	 * row bands:
+	 * <ol>
+	 * <li>outflow flux and terrain slope</li>
+	 * <li>water volume, velocity and erosion / deposition</li>
+	 * <li>sediment transport, evaporation and ocean boundary conditions</li>
+	 * </ol>
+	 * Each sweep only writes to the cell it is processing and reads the
+	 * neighbors only from fields that are not written in the same sweep.
+	 * The semi-Lagrangian sediment advection reads from the old and writes
+	 * to a second sediment buffer.
+	 */
 	public static class ErosionSolver {
 		//Settings
 		private static final float RAINDROPS_PER_ITERATION = 0.001f;
@@ -686,41 +752,136 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 		private static final float EROSION_FACTOR = 200;
 		private static final float Ke = 0.1f; //evaporation constant
 		private static final float RIVER_FACTOR = 0.2f;
+		private static final int RAINDROPS_PER_TASK = 4096;
+		private static final float FLUX_FACTOR = DELTA_T * A * G / L;
 		//Input
 		private final int size;
 		private final int raindropsPerIteration;
 		private final Heightmap originalHeight;
 		private final Heightmap temperature;
-		private final Heightmap moisture;
-		private final Random rand = new Random();
+		private final long seed;
+		private final RainDistribution rain;
+		private final int[] raindrops;
 		private int iteration = 0;
 		private List<? extends RiverSource> riverSources;
 		//maps
-		private Heightmap terrainHeight;
-		private Heightmap waterHeight;
+		private final Heightmap terrainHeight;
+		private final Heightmap waterHeight;
 		private Heightmap sediment;
 		private Heightmap tmpSediment;
+		//flat buffers
+		private final float[] original;
+		private final float[] temp;
+		private final float[] terrain;
+		private final float[] water;
+		private float[] sed;
+		private float[] tmpSed;
+		private final float[] slope;
 		/**
-		 * Dimensions: 0=left/-x, 1=right,+x, 2=down/-y, 3=up/+y
+		 * The outflow flux: left/-x, right/+x, down/-y, up/+y
 		 */
-		private Vectorfield outflowFlux;
-		private Vectorfield velocity;
-		private static final float[] NULL_FLUX = {0,0,0,0};
-		private static final float[] NULL_VELOCITY = {0,0};
+		private final float[] fluxL, fluxR, fluxD, fluxU;
+		private final float[] velX, velY;
+		//parallelization
+		private final TileExecutor executor;
+		private final int bandSize;
+		private final float[] erodedPerBand;
+		private final float[] deposedPerBand;
+		private final TileExecutor.TileVisitor rainPass;
+		private final TileExecutor.TileVisitor flowPass;
+		private final TileExecutor.TileVisitor erosionPass;
+		private final TileExecutor.TileVisitor transportPass;
 
 		public ErosionSolver(Heightmap temperature, Heightmap moisture, Heightmap height) {
+			this(temperature, moisture, height, new Random().nextLong(), TileExecutor.getDefault());
+		}
+		
+		/**
+		 * Creates the solver.
+		 * The result only depends on the seed, not on the number of threads
+		 * of the executor.
+		 * @param temperature the temperature map
+		 * @param moisture the moisture map, controls the rain distribution
+		 * @param height the terrain height, modified by the ocean boundary conditions
+		 * @param seed the seed for the rain
+		 * @param executor the executor for the parallel passes
+		 */
+		public ErosionSolver(Heightmap temperature, Heightmap moisture, Heightmap height,
+				long seed, TileExecutor executor) {
 			this.size = height.getSize();
 			this.temperature = temperature;
-			this.moisture = moisture;
 			this.originalHeight = height;
-			this.terrainHeight = height.clone();
+			this.terrainHeight = new Heightmap(size);
+			this.terrainHeight.set(height);
 			
 			this.raindropsPerIteration = (int) (RAINDROPS_PER_ITERATION * size * size);
+			this.seed = seed;
+			this.rain = new RainDistribution(height, moisture);
+			this.raindrops = new int[raindropsPerIteration];
 			this.waterHeight = new Heightmap(size);
 			this.sediment = new Heightmap(size);
 			this.tmpSediment = new Heightmap(size);
-			this.outflowFlux = new Vectorfield(size, 4);
-			this.velocity = new Vectorfield(size, 2);
+			
+			int n = size*size;
+			this.original = arrayOf(originalHeight);
+			this.temp = arrayOf(temperature);
+			this.terrain = terrainHeight.getStorage().array();
+			this.water = waterHeight.getStorage().array();
+			this.sed = sediment.getStorage().array();
+			this.tmpSed = tmpSediment.getStorage().array();
+			this.slope = new float[n];
+			this.fluxL = new float[n];
+			this.fluxR = new float[n];
+			this.fluxD = new float[n];
+			this.fluxU = new float[n];
+			this.velX = new float[n];
+			this.velY = new float[n];
+			
+			this.executor = executor;
+			this.bandSize = executor.getDefaultBandSize(size);
+			this.erodedPerBand = new float[executor.getBandCount(size, bandSize)];
+			this.deposedPerBand = new float[erodedPerBand.length];
+			this.rainPass = new TileExecutor.TileVisitor() {
+				@Override
+				public void visit(int task, int d0, int y0, int d1, int y1) {
+					for (int d=d0; d<d1; ++d) {
+						raindrops[d] = rain.sample(RainDistribution.random(ErosionSolver.this.seed, iteration, d));
+					}
+				}
+			};
+			this.flowPass = new TileExecutor.TileVisitor() {
+				@Override
+				public void visit(int band, int x0, int y0, int x1, int y1) {
+					computeFlow(x0, x1);
+				}
+			};
+			this.erosionPass = new TileExecutor.TileVisitor() {
+				@Override
+				public void visit(int band, int x0, int y0, int x1, int y1) {
+					computeWaterVolumeVelocityAndErosion(band, x0, x1);
+				}
+			};
+			this.transportPass = new TileExecutor.TileVisitor() {
+				@Override
+				public void visit(int band, int x0, int y0, int x1, int y1) {
+					computeTransportEvaporationAndBoundary(x0, x1);
+				}
+			};
+		}
+		
+		/**
+		 * Returns the backing array of the map.
+		 * Maps that are stored off-heap are copied, changes to them are not written back.
+		 */
+		private static float[] arrayOf(Heightmap map) {
+			if (map.getStorage().hasArray()) {
+				return map.getStorage().array();
+			}
+			return map.getRegion(0, 0, map.getSize(), map.getSize(), null);
+		}
+		
+		public long getSeed() {
+			return seed;
 		}
 		
 		public void setRiverSources(List<? extends RiverSource> sources) {
@@ -735,11 +896,20 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 			if (riverActive) {
 				addRiverWater();
 			}
-			computeFlow();
-			computeWaterVolumeAndVelocity();
-			computeErosion();
-			computeEvaporation();
-			computeOceanBoundaryConditions();
+			executor.forEachBand(size, bandSize, flowPass);
+			executor.forEachBand(size, bandSize, erosionPass);
+			executor.forEachBand(size, bandSize, transportPass);
+			//swap sediment buffers
+			Heightmap tmp = sediment;
+			sediment = tmpSediment;
+			tmpSediment = tmp;
+			float[] tmpArray = sed;
+			sed = tmpSed;
+			tmpSed = tmpArray;
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.log(Level.FINE, "Total sediment eroded={0}, deposited={1}", 
+						new Object[]{getErodedSediment(), getDeposedSediment()});
+			}
 		}
 		
 		/**
@@ -757,21 +927,18 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 			sediment.fillHeight(0);
 		}
 		
+		/**
+		 * Adds the rain drops. The cells are sampled in parallel from the
+		 * precomputed rain distribution, every drop uses its own random
+		 * number derived from the seed, the iteration and the drop index.
+		 */
 		private void addRainWater() {
-			//create raindrops
-			int n = 0;
-			while (n<raindropsPerIteration) {
-				int x = rand.nextInt(size);
-				int y = rand.nextInt(size);
-				if (terrainHeight.getHeightAt(x, y)<=0) {
-					continue; //no rain in the ocean
-				}
-				float v = rand.nextFloat();
-				if (v<moisture.getHeightAt(x, y)) {
-					//add drop
-					n++;
-					waterHeight.adjustHeightAt(x, y, DELTA_T * RAINDROP_WATER);
-				}
+			if (rain.isEmpty()) {
+				return;
+			}
+			executor.forEachBand(raindropsPerIteration, RAINDROPS_PER_TASK, rainPass);
+			for (int d=0; d<raindropsPerIteration; ++d) {
+				water[raindrops[d]] += DELTA_T * RAINDROP_WATER;
 			}
 		}
 		private void addRiverWater() {
@@ -790,159 +957,187 @@ public class WaterErosionSimulation extends AbstractTerrainStep {
 				}
 			}
 		}
-		private void computeFlow() {
-			//compute flow
-			for (int x=0; x<size; ++x) {
+		/**
+		 * First pass: updates the outflow flux and stores the terrain slope
+		 * before the erosion of this iteration changes the terrain.
+		 */
+		private void computeFlow(int x0, int x1) {
+			for (int x=x0; x<x1; ++x) {
 				for (int y=0; y<size; ++y) {
-					float deltaH;
-					//left
-					deltaH = terrainHeight.getHeightAt(x, y) + waterHeight.getHeightAt(x, y)
-							- terrainHeight.getHeightAtClamping(x-1, y) - waterHeight.getHeightAtClamping(x-1, y);
-					outflowFlux.setScalarAt(x, y, 0, Math.max(0, outflowFlux.getScalarAt(x, y, 0)
-							+ DELTA_T * A * G * deltaH / L));
-					//right
-					deltaH = terrainHeight.getHeightAt(x, y) + waterHeight.getHeightAt(x, y)
-							- terrainHeight.getHeightAtClamping(x+1, y) - waterHeight.getHeightAtClamping(x+1, y);
-					outflowFlux.setScalarAt(x, y, 1, Math.max(0, outflowFlux.getScalarAt(x, y, 1)
-							+ DELTA_T * A * G * deltaH / L));
-					//down
-					deltaH = terrainHeight.getHeightAt(x, y) + waterHeight.getHeightAt(x, y)
-							- terrainHeight.getHeightAtClamping(x, y-1) - waterHeight.getHeightAtClamping(x, y-1);
-					outflowFlux.setScalarAt(x, y, 2, Math.max(0, outflowFlux.getScalarAt(x, y, 2)
-							+ DELTA_T * A * G * deltaH / L));
-					//up
-					deltaH = terrainHeight.getHeightAt(x, y) + waterHeight.getHeightAt(x, y)
-							- terrainHeight.getHeightAtClamping(x, y+1) - waterHeight.getHeightAtClamping(x, y+1);
-					outflowFlux.setScalarAt(x, y, 3, Math.max(0, outflowFlux.getScalarAt(x, y, 3)
-							+ DELTA_T * A * G * deltaH / L));
+					int i = x*size + y;
+					//neighbors, clamped at the border
+					int iL = x>0 ? i-size : i;
+					int iR = x<size-1 ? i+size : i;
+					int iD = y>0 ? i-1 : i;
+					int iU = y<size-1 ? i+1 : i;
+					float t = terrain[i];
+					float h = t + water[i];
+					float fL = Math.max(0, fluxL[i] + FLUX_FACTOR * (h - terrain[iL] - water[iL]));
+					float fR = Math.max(0, fluxR[i] + FLUX_FACTOR * (h - terrain[iR] - water[iR]));
+					float fD = Math.max(0, fluxD[i] + FLUX_FACTOR * (h - terrain[iD] - water[iD]));
+					float fU = Math.max(0, fluxU[i] + FLUX_FACTOR * (h - terrain[iU] - water[iU]));
 					//scale
-					float sum = outflowFlux.getScalarAt(x, y, 0)+outflowFlux.getScalarAt(x, y, 1)
-							  +outflowFlux.getScalarAt(x, y, 2)+outflowFlux.getScalarAt(x, y, 3);
+					float sum = fL + fR + fD + fU;
 					float K;
 					if (Math.abs(sum) < 0.0001f) {
 						K = 1;
 					} else {
-						K = Math.min(1, waterHeight.getHeightAt(x, y) * L * L /	(sum * DELTA_T) );
+						K = Math.min(1, water[i] * L * L / (sum * DELTA_T));
 					}
-					outflowFlux.setScalarAt(x, y, 0, K*outflowFlux.getScalarAt(x, y, 0));
-					outflowFlux.setScalarAt(x, y, 1, K*outflowFlux.getScalarAt(x, y, 1));
-					outflowFlux.setScalarAt(x, y, 2, K*outflowFlux.getScalarAt(x, y, 2));
-					outflowFlux.setScalarAt(x, y, 3, K*outflowFlux.getScalarAt(x, y, 3));
+					fluxL[i] = K*fL;
+					fluxR[i] = K*fR;
+					fluxD[i] = K*fD;
+					fluxU[i] = K*fU;
+					//slope
+					slope[i] = Math.max(
+							Math.max(Math.abs(t-terrain[iR]), Math.abs(t-terrain[iL])),
+							Math.max(Math.abs(t-terrain[iU]), Math.abs(t-terrain[iD])));
 				}
 			}
 		}
-		private void computeWaterVolumeAndVelocity() {
-			//compute water volume change and velocity field
-			for (int x=0; x<size; ++x) {
+		/**
+		 * Second pass: water volume change, velocity field and the 
+		 * sediment erosion and deposition
+		 */
+		private void computeWaterVolumeVelocityAndErosion(int band, int x0, int x1) {
+			float erodedSum = 0;
+			float deposSum = 0;
+			for (int x=x0; x<x1; ++x) {
 				for (int y=0; y<size; ++y) {
+					int i = x*size + y;
+					int iL = x>0 ? i-size : i;
+					int iR = x<size-1 ? i+size : i;
+					int iD = y>0 ? i-1 : i;
+					int iU = y<size-1 ? i+1 : i;
 					//water volume
+					float fL = fluxL[i], fR = fluxR[i], fD = fluxD[i], fU = fluxU[i];
 					float deltaV = DELTA_T * (
-							outflowFlux.getScalarAtClamping(x-1, y, 1) + outflowFlux.getScalarAtClamping(x+1, y, 0)
-							+ outflowFlux.getScalarAtClamping(x, y-1, 3) + outflowFlux.getScalarAtClamping(x, y+1, 2)
-							- outflowFlux.getScalarAt(x, y, 0) - outflowFlux.getScalarAt(x, y, 1)
-							- outflowFlux.getScalarAt(x, y, 2) - outflowFlux.getScalarAt(x, y, 3)
+							fluxR[iL] + fluxL[iR] + fluxU[iD] + fluxD[iU]
+							- fL - fR - fD - fU
 						);
-					float d1 = waterHeight.getHeightAt(x, y);
-//					float d2 = Math.max(0, d1 + deltaV / (L*L));
+					float d1 = water[i];
 					float d2 = d1 + deltaV / (L*L);
-					waterHeight.setHeightAt(x, y, d2);
+					water[i] = d2;
 					float averageD = (d1 + d2)/2;
 					//velocity field
+					float vx, vy;
 					if (Math.abs(averageD)<0.0001) {
-						velocity.setVectorAt(x, y, NULL_VELOCITY);
+						vx = 0;
+						vy = 0;
 					} else {
 						//NOTE: the original model divides the velocity values by averageD.
 						//I have removed this and added a scaling factor of 25 to balance this out.
 						//This gives a muvh smoother result!!!
-						float deltaWx = (outflowFlux.getScalarAtClamping(x-1, y, 1) - outflowFlux.getScalarAt(x, y, 0)
-								+ outflowFlux.getScalarAt(x, y, 1) - outflowFlux.getScalarAtClamping(x+1, y, 0));
-						//velocity.setScalarAt(x, y, 0, deltaWx * 100 / L);
-						velocity.setScalarAt(x, y, 0, deltaWx / averageD);
-						float deltaWy = (outflowFlux.getScalarAtClamping(x, y-1, 3) - outflowFlux.getScalarAt(x, y, 2)
-								+ outflowFlux.getScalarAt(x, y, 3) - outflowFlux.getScalarAtClamping(x, y+1, 2));
-//						velocity.setScalarAt(x, y, 1, deltaWy * 100 / L);
-						velocity.setScalarAt(x, y, 1, deltaWy / averageD);
+						vx = (fluxR[iL] - fL + fR - fluxL[iR]) / averageD;
+						vy = (fluxU[iD] - fD + fU - fluxD[iU]) / averageD;
 					}
-				}
-			}
-		}
-		private void computeErosion() {
-			//sediment erosion and deposition
-			float erodedSum = 0;
-			float deposSum = 0;
-			for (int x=0; x<size; ++x) {
-				for (int y=0; y<size; ++y) {
-					float slope = Math.max(MIN_SLOPE, Math.min(MAX_SLOPE, terrainHeight.getSlopeAt(x, y)));
-					float[] v = velocity.getVectorAt(x, y);
-					float c = (terrainHeight.getHeightAt(x, y)<=0 ? KcOcean : Kc) * slope 
-							* FastMath.sqrt(v[0]*v[0] + v[1]*v[1]);// * waterHeight.getHeightAt(x, y);
-					float st = sediment.getHeightAt(x, y);
-					float delta = originalHeight.getHeightAt(x, y)-terrainHeight.getHeightAt(x, y);
+					velX[i] = vx;
+					velY[i] = vy;
+					
+					//sediment erosion and deposition
+					float s = Math.max(MIN_SLOPE, Math.min(MAX_SLOPE, slope[i]));
+					float t = terrain[i];
+					float c = (t<=0 ? KcOcean : Kc) * s * FastMath.sqrt(vx*vx + vy*vy);
+					float st = sed[i];
+					float delta = original[i]-t;
 					if (c>st) {
 						//erosion
-//						float ks = Ks;
-//						float eroded = ks * (c-st);
-						float ks = (float) (Math.pow(2, -(delta/(MAX_EROSION/2))) * Ks);
-						float eroded = (c-st) * ks;// * waterHeight.getHeightAt(x, y);
-						eroded = Math.max(0, Math.min(eroded, MAX_EROSION - delta));
-						if (delta>MAX_EROSION) {
-//							System.err.println("maximal erosion reached!");
-							continue;
-						}
-						terrainHeight.adjustHeightAt(x, y, -eroded);
-						if (terrainHeight.getHeightAt(x, y)<-5) {
-							System.err.println("error");
+						if (delta<=MAX_EROSION) {
+							float ks = (float) (Math.pow(2, -(delta/(MAX_EROSION/2))) * Ks);
+							float eroded = (c-st) * ks;
+							eroded = Math.max(0, Math.min(eroded, MAX_EROSION - delta));
+							terrain[i] = t - eroded;
+							if (terrain[i]<-5) {
+								System.err.println("error");
+							}
+							sed[i] = st + eroded;
+							erodedSum+=eroded;
 						}
-						sediment.adjustHeightAt(x, y, eroded);
-						erodedSum+=eroded;
 					} else if (c<st) {
 						//deposition
-						float kd = (float) (Kd * Math.pow(2, delta/(MAX_DEPOSITION/2)));
-						float depos = kd * (st-c);// * waterHeight.getHeightAt(x, y);
-						depos = Math.max(0, Math.min(depos, MAX_DEPOSITION + delta));
-						if (-delta>MAX_DEPOSITION) {
-							continue;
+						if (-delta<=MAX_DEPOSITION) {
+							float kd = (float) (Kd * Math.pow(2, delta/(MAX_DEPOSITION/2)));
+							float depos = kd * (st-c);
+							depos = Math.max(0, Math.min(depos, MAX_DEPOSITION + delta));
+							terrain[i] = t + depos;
+							sed[i] = st - depos;
+							deposSum +=depos;
 						}
-						terrainHeight.adjustHeightAt(x, y, depos);
-						sediment.adjustHeightAt(x, y, -depos);
-						deposSum +=depos;
 					}
 				}
 			}
-			System.out.println("Total sediment eroded="+erodedSum+", deposited="+deposSum);
-			//sediment transportation
-			for (int x=0; x<size; ++x) {
+			erodedPerBand[band] = erodedSum;
+			deposedPerBand[band] = deposSum;
+		}
+		/**
+		 * Third pass: semi-Lagrangian sediment transportation into the second
+		 * sediment buffer, evaporation and the ocean boundary conditions
+		 */
+		private void computeTransportEvaporationAndBoundary(int x0, int x1) {
+			for (int x=x0; x<x1; ++x) {
 				for (int y=0; y<size; ++y) {
-					float[] v = velocity.getVectorAt(x, y);
-					tmpSediment.setHeightAt(x, y, sediment.getHeightInterpolating(x-v[0]*DELTA_T, y-v[1]*DELTA_T));
+					int i = x*size + y;
+					//sediment transportation
+					float s = interpolate(sed, x-velX[i]*DELTA_T, y-velY[i]*DELTA_T);
+					//evaporation
+					float evaporationFactor = (1-Ke*temp[i]*DELTA_T);
+					water[i] *= evaporationFactor;
+					//oceans act like endless sinks
+					if (original[i]<=0) {
+						water[i] = 0;
+						fluxL[i] = 0;
+						fluxR[i] = 0;
+						fluxD[i] = 0;
+						fluxU[i] = 0;
+						velX[i] = 0;
+						velY[i] = 0;
+						original[i] += s * 0.25f;
+						s = 0;
+					}
+					tmpSed[i] = s;
 				}
 			}
-			Heightmap tmp = sediment;
-			sediment = tmpSediment;
-			tmpSediment = tmp;
 		}
-		private void computeEvaporation() {	
-			//evaporation
-			for (int x=0; x<size; ++x) {
-				for (int y=0; y<size; ++y) {
-					float evaporationFactor = (1-Ke*temperature.getHeightAt(x, y)*DELTA_T);
-					waterHeight.setHeightAt(x, y, waterHeight.getHeightAt(x, y)*evaporationFactor);
-				}
+		/**
+		 * Bilinear interpolation, equal to {@link Heightmap#getHeightInterpolating(float, float) }
+		 */
+		private float interpolate(float[] data, float x, float y) {
+			x = Math.max(0, Math.min(size-1, x));
+			y = Math.max(0, Math.min(size-1, y));
+			int ax = (int) x;
+			int bx = Math.min(size-1, ax+1);
+			int ay = (int) y;
+			int by = Math.min(size-1, ay+1);
+			float fx = x%1;
+			float fy = y%1;
+			float q11 = data[ax*size + ay];
+			float q12 = data[ax*size + by];
+			float q21 = data[bx*size + ay];
+			float q22 = data[bx*size + by];
+			float v1 = (1-fx)*q11 + fx*q21;
+			float v2 = (1-fx)*q12 + fx*q22;
+			return (1-fy)*v1 + fy*v2;
+		}
+		
+		/**
+		 * @return the total sediment that was eroded in the last iteration
+		 */
+		public float getErodedSediment() {
+			float sum = 0;
+			for (float v : erodedPerBand) {
+				sum += v;
 			}
+			return sum;
 		}
-		private void computeOceanBoundaryConditions() {	
-			//oceans act like endless sinks
-			for (int x=0; x<size; ++x) {
-				for (int y=0; y<size; ++y) {
-					if (originalHeight.getHeightAt(x, y)<=0) {
-						waterHeight.setHeightAt(x, y, 0);
-						outflowFlux.setVectorAt(x, y, NULL_FLUX);
-						velocity.setVectorAt(x, y, NULL_VELOCITY);
-						originalHeight.adjustHeightAt(x, y, sediment.getHeightAt(x, y) * 0.25f);
-						sediment.setHeightAt(x, y, 0);
-					}
-				}
+		/**
+		 * @return the total sediment that was deposited in the last iteration
+		 */
+		public float getDeposedSediment() {
+			float sum = 0;
+			for (float v : deposedPerBand) {
+				sum += v;
 			}
+			return sum;
 		}
 		
 		public Heightmap getTerrainHeight() {
@@ -9,12 +9,51 @@ import org.shaman.terrain.Heightmap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Logger;
+import org.shaman.terrain.FloatStorage;
 
 /**
  * A {@code HeightmapProcessor} that links multiple processors together.
+ * The processors are applied one after another, each {@link TiledHeightmapProcessor}
+ * is executed in parallel by the {@link TileExecutor}.
+ * Consecutive {@link FusableHeightmapProcessor}s are merged into a single
+ * loop over the map, see {@link #getPlan() }.
+ * If a {@link HeightmapCache} is set, the result of every step is cached
+ * and the chain only recomputes the steps after the last cached one.
+ * If the thread is interrupted, the chain stops between two steps with a
+ * {@link CancellationException}.
  * @author Sebastian Weiss
  */
 public class ChainProcessor extends ArrayList<HeightmapProcessor> implements HeightmapProcessor {
+	private static final Logger LOG = Logger.getLogger(ChainProcessor.class.getName());
+
+	/**
+	 * A step of the execution plan: either a single processor or
+	 * a group of fused processors
+	 */
+	private static class Step {
+		private final List<HeightmapProcessor> processors = new ArrayList<>();
+		private final boolean fused;
+		/**
+		 * The processor of the next step whose reduction is computed
+		 * in the loop of this step
+		 */
+		private FusableHeightmapProcessor reduction;
+
+		private Step(boolean fused) {
+			this.fused = fused;
+		}
+
+		private long getFingerprint() {
+			Fingerprint f = new Fingerprint(Step.class);
+			for (HeightmapProcessor p : processors) {
+				f.add(p.getFingerprint());
+			}
+			return f.get();
+		}
+	}
+	private HeightmapCache cache;
 
 	public ChainProcessor() {
 	}
@@ -27,14 +66,192 @@ public class ChainProcessor extends ArrayList<HeightmapProcessor> implements Hei
 		super(initialCapacity);
 	}
 	
+	private List<Step> plan() {
+		List<Step> steps = new ArrayList<>();
+		Step current = null;
+		for (HeightmapProcessor p : this) {
+			if (p instanceof FusableHeightmapProcessor) {
+				FusableHeightmapProcessor f = (FusableHeightmapProcessor) p;
+				boolean barrier = f.createReduction() != null;
+				if (current == null || barrier) {
+					if (current != null) {
+						current.reduction = f;
+					}
+					current = new Step(true);
+					steps.add(current);
+				}
+				current.processors.add(p);
+			} else {
+				Step step = new Step(false);
+				step.processors.add(p);
+				steps.add(step);
+				current = null;
+			}
+		}
+		return steps;
+	}
+
+	/**
+	 * Describes the execution plan: the steps are separated by {@code " | "},
+	 * fused processors are written in brackets, followed by the reduction
+	 * that is computed in the same loop.
+	 * Example: {@code [PerlinNoiseProcessor, PerlinNoiseProcessor] +reduce(NormalizationProcessor) | [NormalizationProcessor] | ThermalErosionProcessor}
+	 * @return the plan
+	 */
+	public String getPlan() {
+		StringBuilder str = new StringBuilder();
+		for (Step step : plan()) {
+			if (str.length() > 0) {
+				str.append(" | ");
+			}
+			if (!step.fused) {
+				str.append(step.processors.get(0).getClass().getSimpleName());
+				continue;
+			}
+			str.append('[');
+			for (int i=0; i<step.processors.size(); ++i) {
+				if (i>0) {
+					str.append(", ");
+				}
+				str.append(step.processors.get(i).getClass().getSimpleName());
+			}
+			str.append(']');
+			if (step.reduction != null) {
+				str.append(" +reduce(").append(step.reduction.getClass().getSimpleName()).append(')');
+			}
+		}
+		return str.toString();
+	}
+	
+	public HeightmapCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets the cache for the intermediate results.
+	 * The key of a step is the fingerprint of the input map and the
+	 * fingerprints of all processors up to this step. Hence after a property
+	 * was changed, only the steps starting with the changed processor are
+	 * recomputed.
+	 * @param cache the cache or {@code null} to disable caching
+	 */
+	public void setCache(HeightmapCache cache) {
+		this.cache = cache;
+	}
+	
 	@Override
 	public Heightmap apply(Heightmap map) {
-		for (HeightmapProcessor p : this) {
-			map = p.apply(map);
+		List<Step> steps = plan();
+		LOG.fine("execution plan: "+getPlan());
+		long[] keys = null;
+		int start = 0;
+		if (cache != null) {
+			keys = new long[steps.size()];
+			long key = Fingerprint.of(map);
+			for (int i=0; i<keys.length; ++i) {
+				key = new Fingerprint(ChainProcessor.class).add(key).add(steps.get(i).getFingerprint()).get();
+				keys[i] = key;
+			}
+			for (int i=keys.length-1; i>=0; --i) {
+				if (cache.copyTo(keys[i], map)) {
+					start = i+1;
+					break;
+				}
+			}
+			LOG.fine("resume at step "+start+" of "+steps.size());
+		}
+		FusableHeightmapProcessor.Reduction input = null;
+		for (int s=start; s<steps.size(); ++s) {
+			if (Thread.currentThread().isInterrupted()) {
+				//e.g. a stale preview, see ProgressivePreview
+				throw new CancellationException("chain interrupted before step "+s);
+			}
+			Step step = steps.get(s);
+			if (!step.fused) {
+				map = step.processors.get(0).apply(map);
+				input = null;
+				if (cache != null && !Thread.currentThread().isInterrupted()) {
+					cache.put(keys[s], map);
+				}
+				continue;
+			}
+			FusableHeightmapProcessor first = (FusableHeightmapProcessor) step.processors.get(0);
+			if (input == null) {
+				//the first step or the previous step was not fused
+				input = loop(map, new FusableHeightmapProcessor.Kernel[0], first);
+			}
+			FusableHeightmapProcessor.Kernel[] kernels = new FusableHeightmapProcessor.Kernel[step.processors.size()];
+			kernels[0] = first.createKernel(map, input);
+			for (int i=1; i<kernels.length; ++i) {
+				kernels[i] = ((FusableHeightmapProcessor) step.processors.get(i)).createKernel(map, null);
+			}
+			input = loop(map, kernels, step.reduction);
+			if (cache != null && !Thread.currentThread().isInterrupted()) {
+				//the parameters might have changed while an interrupted step was running
+				cache.put(keys[s], map);
+			}
 		}
 		return map;
 	}
 
+	/**
+	 * Applies the kernels to every tile and computes the reduction of the result.
+	 * @return the merged reduction or {@code null}
+	 */
+	private static FusableHeightmapProcessor.Reduction loop(Heightmap map, 
+			final FusableHeightmapProcessor.Kernel[] kernels, 
+			final FusableHeightmapProcessor reductionProcessor) {
+		final FusableHeightmapProcessor.Reduction first = reductionProcessor == null 
+				? null : reductionProcessor.createReduction();
+		if (kernels.length == 0 && first == null) {
+			return null;
+		}
+		TileExecutor executor = TileExecutor.getDefault();
+		final int size = map.getSize();
+		final FloatStorage storage = map.getStorage();
+		final FusableHeightmapProcessor.Reduction[] reductions 
+				= new FusableHeightmapProcessor.Reduction[executor.getTileCount(size)];
+		executor.forEachTile(size, new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				float[] data;
+				int stride;
+				int offset;
+				if (storage.hasArray()) {
+					data = storage.array();
+					stride = size;
+					offset = 0;
+				} else {
+					//copy the tile into a buffer
+					stride = y1 - y0;
+					offset = -x0*stride - y0;
+					data = new float[(x1-x0)*stride];
+					for (int x=x0; x<x1; ++x) {
+						storage.get(x*size + y0, data, (x-x0)*stride, stride);
+					}
+				}
+				for (FusableHeightmapProcessor.Kernel kernel : kernels) {
+					kernel.applyTile(data, stride, x0, y0, x1, y1, offset);
+				}
+				if (first != null) {
+					reductions[tile] = tile==0 ? first : reductionProcessor.createReduction();
+					reductions[tile].addTile(data, stride, x0, y0, x1, y1, offset);
+				}
+				if (!storage.hasArray() && kernels.length > 0) {
+					for (int x=x0; x<x1; ++x) {
+						storage.set(x*size + y0, data, (x-x0)*stride, stride);
+					}
+				}
+			}
+		});
+		if (first != null) {
+			for (int i=1; i<reductions.length; ++i) {
+				first.merge(reductions[i]);
+			}
+		}
+		return first;
+	}
+
 	@Override
 	public void reseed() {
 		for (HeightmapProcessor p : this) {
@@ -42,6 +259,15 @@ public class ChainProcessor extends ArrayList<HeightmapProcessor> implements Hei
 		}
 	}
 
+	@Override
+	public long getFingerprint() {
+		Fingerprint f = new Fingerprint(getClass());
+		for (HeightmapProcessor p : this) {
+			f.add(p.getFingerprint());
+		}
+		return f.get();
+	}
+
 	@Override
 	public List<? extends PropItem> getProperties() {
 		ArrayList<PropItem> items = new ArrayList<>();
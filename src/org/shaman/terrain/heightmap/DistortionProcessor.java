@@ -16,7 +16,8 @@ import java.util.Random;
  *
  * @author Sebastian Weiss
  */
-public class DistortionProcessor implements HeightmapProcessor {
+public class DistortionProcessor implements TiledHeightmapProcessor {
+	private long seed;
 	private Noise noise;
 	private float distortion;
 	private float frequency;
@@ -24,7 +25,7 @@ public class DistortionProcessor implements HeightmapProcessor {
 	public DistortionProcessor(float distortion, float frequency) {
 		this.distortion = distortion;
 		this.frequency = frequency;
-		noise = new Noise(new Random().nextLong());
+		reseed();
 	}
 
 	public DistortionProcessor() {
@@ -53,9 +54,18 @@ public class DistortionProcessor implements HeightmapProcessor {
 
 	@Override
 	public Heightmap apply(Heightmap map) {
-		Heightmap m = new Heightmap(map.getSize());
-		for (int x=0; x<map.getSize(); ++x) {
-			for (int y=0; y<map.getSize(); ++y) {
+		return TileExecutor.getDefault().apply(this, map);
+	}
+
+	@Override
+	public int getHalo() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void applyTile(Heightmap map, Heightmap m, int x0, int y0, int x1, int y1) {
+		for (int x=x0; x<x1; ++x) {
+			for (int y=y0; y<y1; ++y) {
 				float s = x/(float)map.getSize();
 				float t = y/(float)map.getSize();
 				float ss = (float) (s + distortion * snoise(s*frequency, t*frequency, 0));
@@ -64,12 +74,17 @@ public class DistortionProcessor implements HeightmapProcessor {
 				m.setHeightAt(x, y, v);
 			}
 		}
-		return m;
 	}
 
 	@Override
 	public void reseed() {
-		noise = new Noise(new Random().nextLong());
+		seed = new Random().nextLong();
+		noise = new Noise(seed);
+	}
+
+	@Override
+	public long getFingerprint() {
+		return new Fingerprint(getClass()).add(seed).add(distortion).add(frequency).get();
 	}
 
 	@Override
@@ -0,0 +1,77 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import org.shaman.terrain.FloatStorage;
+import org.shaman.terrain.Heightmap;
+
+/**
+ * Builds a 64-bit hash of the parameters of a {@link HeightmapProcessor},
+ * see {@link HeightmapProcessor#getFingerprint() }.
+ * @author Sebastian Weiss
+ */
+public final class Fingerprint {
+	private long hash;
+
+	/**
+	 * Starts a new fingerprint for the processor class
+	 * @param type the class of the processor
+	 */
+	public Fingerprint(Class<?> type) {
+		hash = 0xcbf29ce484222325L;
+		add(type.getName().hashCode());
+	}
+
+	public Fingerprint add(long value) {
+		//SplitMix64 finalizer
+		long z = (hash ^ value) + 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		hash = z ^ (z >>> 31);
+		return this;
+	}
+
+	public Fingerprint add(int value) {
+		return add((long) value);
+	}
+
+	public Fingerprint add(double value) {
+		return add(Double.doubleToLongBits(value));
+	}
+
+	public Fingerprint add(float value) {
+		return add((long) Float.floatToIntBits(value));
+	}
+
+	public Fingerprint add(boolean value) {
+		return add(value ? 1L : 0L);
+	}
+
+	public long get() {
+		return hash;
+	}
+
+	/**
+	 * Computes the fingerprint of the content of a heightmap
+	 * @param map the map
+	 * @return the fingerprint of the size and all values
+	 */
+	public static long of(Heightmap map) {
+		int size = map.getSize();
+		FloatStorage storage = map.getStorage();
+		Fingerprint f = new Fingerprint(Heightmap.class).add(size);
+		long h = 0;
+		float[] row = new float[size];
+		for (int x=0; x<size; ++x) {
+			storage.get(x*size, row, 0, size);
+			for (int y=0; y<size; ++y) {
+				h = h * 31 + Float.floatToIntBits(row[y]);
+			}
+			f.add(h);
+		}
+		return f.get();
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import java.util.Random;
+
+/**
+ * Multi-octave noise (fBm): the sum of several {@link GradientNoise} octaves,
+ * each with its own frequency and amplitude.
+ * All octaves of a row or tile are evaluated in one pass, so the tile stays in the cache
+ * while the octaves are added.
+ * With {@link GradientNoise.Mode#COMPATIBLE} octaves, the result is
+ * bit-identical to a chain of {@link PerlinNoiseProcessor}s.
+ * @author Sebastian Weiss
+ */
+public final class FractalNoise {
+	private final GradientNoise[] octaves;
+	private final double[] frequencies;
+	private final double[] amplitudes;
+
+	/**
+	 * @param octaves the noise of every octave
+	 * @param frequencies the frequency of every octave, in periods per map
+	 * @param amplitudes the amplitude of every octave
+	 */
+	public FractalNoise(GradientNoise[] octaves, double[] frequencies, double[] amplitudes) {
+		if (octaves.length != frequencies.length || octaves.length != amplitudes.length) {
+			throw new IllegalArgumentException("the arrays must have the same length");
+		}
+		this.octaves = octaves.clone();
+		this.frequencies = frequencies.clone();
+		this.amplitudes = amplitudes.clone();
+	}
+
+	/**
+	 * Creates the classic fBm: octave {@code i} has the frequency
+	 * {@code frequency*lacunarity^i} and the amplitude {@code gain^i}.
+	 * @param seed the seed, every octave gets its own seed
+	 * @param mode the noise mode
+	 * @param octaves the number of octaves
+	 * @param frequency the frequency of the first octave
+	 * @param lacunarity the frequency factor between octaves
+	 * @param gain the amplitude factor between octaves
+	 * @return the fractal noise
+	 */
+	public static FractalNoise create(long seed, GradientNoise.Mode mode, int octaves,
+			double frequency, double lacunarity, double gain) {
+		Random rand = new Random(seed);
+		GradientNoise[] noise = new GradientNoise[octaves];
+		double[] f = new double[octaves];
+		double[] a = new double[octaves];
+		double amplitude = 1;
+		for (int i=0; i<octaves; ++i) {
+			noise[i] = GradientNoise.create(rand.nextLong(), mode);
+			f[i] = frequency;
+			a[i] = amplitude;
+			frequency *= lacunarity;
+			amplitude *= gain;
+		}
+		return new FractalNoise(noise, f, a);
+	}
+
+	public int getOctaves() {
+		return octaves.length;
+	}
+
+	public GradientNoise getOctave(int i) {
+		return octaves[i];
+	}
+
+	public double getFrequency(int i) {
+		return frequencies[i];
+	}
+
+	public double getAmplitude(int i) {
+		return amplitudes[i];
+	}
+
+	/**
+	 * @param x the x coordinate, the map spans [0,1]
+	 * @param y the y coordinate, the map spans [0,1]
+	 * @return the sum of all octaves
+	 */
+	public double noise(double x, double y) {
+		double v = 0;
+		for (int i=0; i<octaves.length; ++i) {
+			v += octaves[i].noise(x*frequencies[i], y*frequencies[i]) * amplitudes[i];
+		}
+		return v;
+	}
+
+	/**
+	 * Adds all octaves to one row of a flat map with the given size.
+	 * @param target the target array
+	 * @param offset the index of {@code (x, y0)} in the target array
+	 * @param size the size of the map, the pixel coordinates are divided by it
+	 * @param x the x coordinate of the row
+	 * @param y0 the first y coordinate, inclusive
+	 * @param y1 the last y coordinate, exclusive
+	 * @see GradientNoise#addRow(float[], int, int, int, int, double, double)
+	 */
+	public void addRow(float[] target, int offset, int size, int x, int y0, int y1) {
+		for (int i=0; i<octaves.length; ++i) {
+			octaves[i].addRow(target, offset, x, y0, y1, frequencies[i] / size, amplitudes[i]);
+		}
+	}
+
+	/**
+	 * Adds all octaves to the tile from {@code (x0,y0)} inclusive to {@code (x1,y1)}
+	 * exclusive of a flat map with the given size.
+	 * The tile should fit into the cache, e.g. the tiles of the {@link TileExecutor}.
+	 */
+	public void addTile(float[] target, int size, int x0, int y0, int x1, int y1) {
+		for (int i=0; i<octaves.length; ++i) {
+			octaves[i].addTile(target, size, x0, y0, x1, y1, frequencies[i] / size, amplitudes[i]);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.shaman.terrain.FloatStorage;
+import org.shaman.terrain.Heightmap;
+
+/**
+ * Adds multi-octave Perlin noise to the heightmap and normalizes it.
+ * This replaces a {@link ChainProcessor} of one {@link PerlinNoiseProcessor}
+ * per octave followed by a {@link NormalizationProcessor}:
+ * all octaves are evaluated in one parallel pass by {@link FractalNoise},
+ * the range is tracked per tile on the fly, so the normalization is the
+ * only second pass.
+ * The properties are the same as the ones of the single processors.
+ * @author Sebastian Weiss
+ */
+public class FractalNoiseProcessor implements HeightmapProcessor {
+	private final double[] frequencies;
+	private final double[] amplitudes;
+	private final GradientNoise[] noise;
+	private boolean normalize = true;
+
+	/**
+	 * Octave {@code i} has the frequency {@code frequency*lacunarity^i}
+	 * and the amplitude {@code amplitude*gain^i}.
+	 * @param octaves the number of octaves
+	 * @param frequency the frequency of the first octave
+	 * @param lacunarity the frequency factor between octaves
+	 * @param amplitude the amplitude of the first octave
+	 * @param gain the amplitude factor between octaves
+	 */
+	public FractalNoiseProcessor(int octaves, double frequency, double lacunarity, double amplitude, double gain) {
+		frequencies = new double[octaves];
+		amplitudes = new double[octaves];
+		noise = new GradientNoise[octaves];
+		for (int i=0; i<octaves; ++i) {
+			frequencies[i] = frequency;
+			amplitudes[i] = amplitude;
+			frequency *= lacunarity;
+			amplitude *= gain;
+		}
+		reseed();
+	}
+
+	public int getOctaves() {
+		return noise.length;
+	}
+
+	public double getFrequency(int octave) {
+		return frequencies[octave];
+	}
+
+	public void setFrequency(int octave, double frequency) {
+		frequencies[octave] = frequency;
+	}
+
+	public double getAmplitude(int octave) {
+		return amplitudes[octave];
+	}
+
+	public void setAmplitude(int octave, double amplitude) {
+		amplitudes[octave] = amplitude;
+	}
+
+	public boolean isNormalize() {
+		return normalize;
+	}
+
+	/**
+	 * @param normalize {@code true} if the result should be normalized to [0,1]
+	 */
+	public void setNormalize(boolean normalize) {
+		this.normalize = normalize;
+	}
+
+	@Override
+	public Heightmap apply(final Heightmap map) {
+		final FractalNoise fractal = new FractalNoise(noise, frequencies, amplitudes);
+		final int size = map.getSize();
+		final FloatStorage storage = map.getStorage();
+		TileExecutor executor = TileExecutor.getDefault();
+		final float[] mins = new float[executor.getTileCount(size)];
+		final float[] maxs = new float[mins.length];
+		executor.forEachTile(size, new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				float min = Float.MAX_VALUE;
+				float max = -Float.MAX_VALUE;
+				if (storage.hasArray()) {
+					float[] data = storage.array();
+					fractal.addTile(data, size, x0, y0, x1, y1);
+					//the tile is still in the cache
+					for (int x=x0; x<x1; ++x) {
+						for (int i=x*size+y0; i<x*size+y1; ++i) {
+							float v = data[i];
+							if (v < min) min = v;
+							if (v > max) max = v;
+						}
+					}
+				} else {
+					float[] row = new float[y1-y0];
+					for (int x=x0; x<x1; ++x) {
+						storage.get(x*size + y0, row, 0, row.length);
+						fractal.addRow(row, 0, size, x, y0, y1);
+						storage.set(x*size + y0, row, 0, row.length);
+						for (float v : row) {
+							min = Math.min(min, v);
+							max = Math.max(max, v);
+						}
+					}
+				}
+				mins[tile] = min;
+				maxs[tile] = max;
+			}
+		});
+		if (!normalize) {
+			return map;
+		}
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (int i=0; i<mins.length; ++i) {
+			min = Math.min(min, mins[i]);
+			max = Math.max(max, maxs[i]);
+		}
+		return NormalizationProcessor.normalize(map, min, max);
+	}
+
+	@Override
+	public void reseed() {
+		Random rand = new Random();
+		for (int i=0; i<noise.length; ++i) {
+			noise[i] = GradientNoise.compatible(rand.nextLong());
+		}
+	}
+
+	@Override
+	public long getFingerprint() {
+		Fingerprint f = new Fingerprint(getClass()).add(normalize);
+		for (int i=0; i<noise.length; ++i) {
+			f.add(noise[i].getSeed()).add(frequencies[i]).add(amplitudes[i]);
+		}
+		return f.get();
+	}
+
+	@Override
+	public List<? extends PropItem> getProperties() {
+		final DecimalFormat format = new DecimalFormat("0.000");
+		List<PropItem> items = new ArrayList<>();
+		for (int i=0; i<noise.length; ++i) {
+			final int octave = i;
+			items.add(new PropItem() {
+
+				@Override
+				public String getText() {
+					return "Perlin "+(octave+1)+": Frequency="+format.format(frequencies[octave]);
+				}
+
+				@Override
+				public boolean change(boolean up) {
+					if (up) {
+						frequencies[octave] *= 1.5f;
+					} else {
+						frequencies[octave] /= 1.5f;
+					}
+					return true;
+				}
+			});
+			items.add(new PropItem() {
+
+				@Override
+				public String getText() {
+					return "Perlin "+(octave+1)+": Amplitude="+format.format(amplitudes[octave]);
+				}
+
+				@Override
+				public boolean change(boolean up) {
+					if (up) {
+						amplitudes[octave] *= 1.5f;
+					} else {
+						amplitudes[octave] /= 1.5f;
+					}
+					return true;
+				}
+			});
+		}
+		return items;
+	}
+
+}
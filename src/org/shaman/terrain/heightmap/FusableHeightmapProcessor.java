@@ -0,0 +1,68 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import org.shaman.terrain.Heightmap;
+
+/**
+ * A {@link HeightmapProcessor} that is a point-wise operation: the new value
+ * of a pixel only depends on the old value, the position and optionally
+ * a reduction over the whole input map (e.g. min/max).
+ * <p>
+ * The {@link ChainProcessor} merges consecutive fusable processors into one
+ * loop over the map. A processor with a reduction is a barrier: the reduction
+ * is computed in the loop of the previous processors, the processor itself
+ * starts the next loop.
+ * <p>
+ * The data of a tile is passed as a flat array, the entry {@code (x,y)} is
+ * stored at {@code data[x*stride + y + offset]}. It is either the storage of
+ * the map or a buffer of the tile.
+ * @author Sebastian Weiss
+ */
+public interface FusableHeightmapProcessor extends HeightmapProcessor {
+
+	/**
+	 * The point-wise operation, applied concurrently to several tiles.
+	 */
+	interface Kernel {
+		/**
+		 * Applies the operation in place to the tile from {@code (x0,y0)} inclusive
+		 * to {@code (x1,y1)} exclusive.
+		 */
+		void applyTile(float[] data, int stride, int x0, int y0, int x1, int y1, int offset);
+	}
+
+	/**
+	 * A reduction over the input map, one instance per tile.
+	 */
+	interface Reduction {
+		/**
+		 * Adds the tile from {@code (x0,y0)} inclusive to {@code (x1,y1)} exclusive
+		 * to the reduction.
+		 */
+		void addTile(float[] data, int stride, int x0, int y0, int x1, int y1, int offset);
+
+		/**
+		 * Merges the reduction of another tile into this one
+		 */
+		void merge(Reduction other);
+	}
+
+	/**
+	 * @return a new, empty reduction or {@code null} if the processor does not
+	 * need a reduction over its input
+	 */
+	Reduction createReduction();
+
+	/**
+	 * Creates the kernel for one application to the given map.
+	 * @param map the map, the kernel must not access its values
+	 * @param reduction the merged reduction over the input, {@code null}
+	 * if {@link #createReduction() } returns {@code null}
+	 * @return the kernel
+	 */
+	Kernel createKernel(Heightmap map, Reduction reduction);
+}
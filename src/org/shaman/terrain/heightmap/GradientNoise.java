@@ -0,0 +1,394 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+/**
+ * Gradient noise with a batch API.
+ * <p>
+ * Two implementations are available:
+ * <ul>
+ * <li>{@link Mode#COMPATIBLE}: the Perlin noise of {@link Noise}, bit-identical
+ * for the same seed, but with flat tables and the lattice lookups of a tile
+ * computed once per row and column.</li>
+ * <li>{@link Mode#FAST}: table-free gradient noise in float precision, the
+ * gradients are computed from a hash of the lattice coordinates.
+ * The values are in [-1,1].</li>
+ * </ul>
+ * Instances are immutable and can be used by several threads at the same time.
+ * <p>
+ * The batch methods work on the flat storage of a {@link org.shaman.terrain.Heightmap},
+ * where the entry {@code (x,y)} is stored at {@code x*size+y}. A row is
+ * therefore a contiguous range of a fixed x.
+ * @author Sebastian Weiss
+ */
+public abstract class GradientNoise {
+
+	public static enum Mode {
+		COMPATIBLE,
+		FAST
+	}
+
+	private final long seed;
+
+	private GradientNoise(long seed) {
+		this.seed = seed;
+	}
+
+	public static GradientNoise create(long seed, Mode mode) {
+		switch (mode) {
+			case COMPATIBLE: return compatible(seed);
+			case FAST: return fast(seed);
+			default: throw new IllegalArgumentException("unknown mode "+mode);
+		}
+	}
+
+	/**
+	 * @param seed the seed
+	 * @return noise with the same values as {@code new Noise(seed)}
+	 */
+	public static GradientNoise compatible(long seed) {
+		return new Compatible(seed);
+	}
+
+	/**
+	 * @param seed the seed
+	 * @return table-free gradient noise in float precision
+	 */
+	public static GradientNoise fast(long seed) {
+		return new Fast(seed);
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public abstract Mode getMode();
+
+	public abstract double noise(double x, double y);
+
+	public abstract double noise(double x, double y, double z);
+
+	/**
+	 * Adds the noise to one row of a flat array:
+	 * {@code target[offset + y - y0] += amplitude * noise(x*scale, y*scale)}
+	 * for {@code y0 <= y < y1}.
+	 * The sum is computed as {@code (float) (target + amplitude*noise)}, like
+	 * {@code float v; v += amplitude*noise}.
+	 * @param target the target array
+	 * @param offset the index of {@code (x, y0)} in the target array
+	 * @param x the x coordinate of the row
+	 * @param y0 the first y coordinate, inclusive
+	 * @param y1 the last y coordinate, exclusive
+	 * @param scale the scale from pixel coordinates to noise coordinates
+	 * @param amplitude the factor of the noise values
+	 */
+	public void addRow(float[] target, int offset, int x, int y0, int y1, double scale, double amplitude) {
+		double xs = x*scale;
+		for (int y=y0; y<y1; ++y) {
+			target[offset++] += noise(xs, y*scale) * amplitude;
+		}
+	}
+
+	/**
+	 * Adds the noise to the tile from {@code (x0,y0)} inclusive to {@code (x1,y1)}
+	 * exclusive of a flat map with the given size.
+	 * @see #addRow(float[], int, int, int, int, double, double)
+	 */
+	public void addTile(float[] target, int size, int x0, int y0, int x1, int y1, double scale, double amplitude) {
+		addTile(target, size, x0, y0, x1, y1, 0, scale, amplitude);
+	}
+
+	/**
+	 * Adds the noise to the tile from {@code (x0,y0)} inclusive to {@code (x1,y1)}
+	 * exclusive, the entry {@code (x,y)} is stored at {@code x*stride + y + offset}.
+	 * This allows to use tile buffers that are smaller than the map.
+	 * @see #addRow(float[], int, int, int, int, double, double)
+	 */
+	public void addTile(float[] target, int stride, int x0, int y0, int x1, int y1, int offset, double scale, double amplitude) {
+		for (int x=x0; x<x1; ++x) {
+			addRow(target, x*stride + y0 + offset, x, y0, y1, scale, amplitude);
+		}
+	}
+
+	/**
+	 * The algorithm of {@link Noise}
+	 */
+	private static final class Compatible extends GradientNoise {
+		private static final int N = 256;
+		private static final int M = 255;
+		private final Noise noise;
+		private final int[] p;
+		private final double[] g2;
+
+		private Compatible(long seed) {
+			super(seed);
+			noise = new Noise(seed);
+			p = noise.getPermutation();
+			g2 = noise.getGradients2();
+		}
+
+		@Override
+		public Mode getMode() {
+			return Mode.COMPATIBLE;
+		}
+
+		@Override
+		public double noise(double x, double y) {
+			double t = x + N;
+			int bx0 = ((int)t)&M;
+			double rx0 = t - (int) t;
+			return noise(p[bx0], p[(bx0+1)&M], rx0, rx0 - 1, s_curve(rx0), y);
+		}
+
+		/**
+		 * The part of {@link Noise#noise(double, double) } after the x-lookup
+		 */
+		private double noise(int i, int j, double rx0, double rx1, double sx, double y) {
+			double t = y + N;
+			int by0 = ((int)t)&M;
+			int by1 = (by0+1)&M;
+			double ry0 = t - (int)t;
+			double ry1 = ry0 - 1;
+
+			int b00 = 2*p[i+by0];
+			int b10 = 2*p[j+by0];
+			int b01 = 2*p[i+by1];
+			int b11 = 2*p[j+by1];
+
+			double sy = s_curve(ry0);
+
+			double u = rx0 * g2[b00] + ry0 * g2[b00+1];
+			double v = rx1 * g2[b10] + ry0 * g2[b10+1];
+			double a = u + sx * (v - u);
+
+			u = rx0 * g2[b01] + ry1 * g2[b01+1];
+			v = rx1 * g2[b11] + ry1 * g2[b11+1];
+			double b = u + sx * (v - u);
+
+			return a + sy * (b - a);
+		}
+
+		private static double s_curve(double t) {
+			return t * t * (3 - t - t);
+		}
+
+		@Override
+		public double noise(double x, double y, double z) {
+			return noise.noise(x, y, z);
+		}
+
+		@Override
+		public void addRow(float[] target, int offset, int x, int y0, int y1, double scale, double amplitude) {
+			addTile(target, 0, x, y0, x+1, y1, offset - y0, scale, amplitude);
+		}
+
+		/**
+		 * The lattice lookup is separable: the y-part is computed once for
+		 * the whole tile, the x-part once per row.
+		 */
+		@Override
+		public void addTile(float[] target, int size, int x0, int y0, int x1, int y1, int offset, double scale, double amplitude) {
+			int n = y1 - y0;
+			int[] by0 = new int[n];
+			int[] by1 = new int[n];
+			double[] ry0 = new double[n];
+			double[] sy = new double[n];
+			for (int k=0; k<n; ++k) {
+				double t = (y0+k)*scale + N;
+				by0[k] = ((int)t)&M;
+				by1[k] = (by0[k]+1)&M;
+				ry0[k] = t - (int)t;
+				sy[k] = s_curve(ry0[k]);
+			}
+			for (int x=x0; x<x1; ++x) {
+				double t = x*scale + N;
+				int bx0 = ((int)t)&M;
+				int i = p[bx0];
+				int j = p[(bx0+1)&M];
+				double rx0 = t - (int) t;
+				double rx1 = rx0 - 1;
+				double sx = s_curve(rx0);
+				int index = x*size + y0 + offset;
+				for (int k=0; k<n; ++k) {
+					double ry = ry0[k];
+					double ry1 = ry - 1;
+					int b00 = 2*p[i+by0[k]];
+					int b10 = 2*p[j+by0[k]];
+					int b01 = 2*p[i+by1[k]];
+					int b11 = 2*p[j+by1[k]];
+					double u = rx0 * g2[b00] + ry * g2[b00+1];
+					double v = rx1 * g2[b10] + ry * g2[b10+1];
+					double a = u + sx * (v - u);
+					u = rx0 * g2[b01] + ry1 * g2[b01+1];
+					v = rx1 * g2[b11] + ry1 * g2[b11+1];
+					double b = u + sx * (v - u);
+					target[index++] += (a + sy[k] * (b - a)) * amplitude;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gradient noise in float precision, the gradients are hashed from the
+	 * lattice coordinates instead of looked up in a permutation table.
+	 * Uses the quintic fade curve, so there is no period and no visible
+	 * grid artifacts.
+	 */
+	private static final class Fast extends GradientNoise {
+		private static final int PRIME_X = 501125321;
+		private static final int PRIME_Y = 1136930381;
+		private static final int PRIME_Z = 1720413743;
+		private final int hashSeed;
+
+		private Fast(long seed) {
+			super(seed);
+			hashSeed = (int) (seed ^ (seed >>> 32));
+		}
+
+		@Override
+		public Mode getMode() {
+			return Mode.FAST;
+		}
+
+		private static int floor(float v) {
+			int i = (int) v;
+			return v < i ? i-1 : i;
+		}
+
+		/**
+		 * Only the two highest bits are used by {@link #grad(int, float, float) },
+		 * they are well mixed by the multiplication.
+		 * @param hx {@code hashSeed ^ i*PRIME_X}
+		 * @param hy {@code j*PRIME_Y}
+		 */
+		private static int hash(int hx, int hy) {
+			return (hx ^ hy) * 0x27d4eb2d;
+		}
+
+		private int hash(int i, int j, int k) {
+			int h = (hashSeed ^ i*PRIME_X ^ j*PRIME_Y ^ k*PRIME_Z) * 0x27d4eb2d;
+			return h ^ (h >>> 15);
+		}
+
+		/**
+		 * One of the four diagonal gradients, chosen by the two highest bits
+		 * without branches
+		 */
+		private static float grad(int h, float x, float y) {
+			return ((h >> 31) | 1) * x + (((h << 1) >> 31) | 1) * y;
+		}
+
+		private static float grad(int h, float x, float y, float z) {
+			//the twelve edges of a cube
+			switch (h & 15) {
+				case 0: case 12: return x + y;
+				case 1: case 13: return -x + y;
+				case 2: return x - y;
+				case 3: return -x - y;
+				case 4: return x + z;
+				case 5: return -x + z;
+				case 6: return x - z;
+				case 7: return -x - z;
+				case 8: return y + z;
+				case 9: case 14: return -y + z;
+				case 10: return y - z;
+				default: return -y - z;
+			}
+		}
+
+		private static float fade(float t) {
+			return t * t * t * (t * (t * 6 - 15) + 10);
+		}
+
+		private static float lerp(float t, float a, float b) {
+			return a + t * (b - a);
+		}
+
+		@Override
+		public double noise(double x, double y) {
+			float fx = (float) x;
+			float fy = (float) y;
+			int i = floor(fx);
+			int j = floor(fy);
+			fx -= i;
+			fy -= j;
+			int hx0 = hashSeed ^ i*PRIME_X;
+			int hx1 = hashSeed ^ (i+1)*PRIME_X;
+			int hy0 = j*PRIME_Y;
+			int hy1 = (j+1)*PRIME_Y;
+			float u = fade(fx);
+			float a = lerp(u, grad(hash(hx0, hy0), fx, fy), grad(hash(hx1, hy0), fx-1, fy));
+			float b = lerp(u, grad(hash(hx0, hy1), fx, fy-1), grad(hash(hx1, hy1), fx-1, fy-1));
+			return lerp(fade(fy), a, b);
+		}
+
+		@Override
+		public double noise(double x, double y, double z) {
+			float fx = (float) x;
+			float fy = (float) y;
+			float fz = (float) z;
+			int i = floor(fx);
+			int j = floor(fy);
+			int k = floor(fz);
+			fx -= i;
+			fy -= j;
+			fz -= k;
+			float u = fade(fx);
+			float v = fade(fy);
+			float w = fade(fz);
+			float a = lerp(u, grad(hash(i, j, k), fx, fy, fz), grad(hash(i+1, j, k), fx-1, fy, fz));
+			float b = lerp(u, grad(hash(i, j+1, k), fx, fy-1, fz), grad(hash(i+1, j+1, k), fx-1, fy-1, fz));
+			float c = lerp(u, grad(hash(i, j, k+1), fx, fy, fz-1), grad(hash(i+1, j, k+1), fx-1, fy, fz-1));
+			float d = lerp(u, grad(hash(i, j+1, k+1), fx, fy-1, fz-1), grad(hash(i+1, j+1, k+1), fx-1, fy-1, fz-1));
+			return lerp(w, lerp(v, a, b), lerp(v, c, d));
+		}
+
+		@Override
+		public void addRow(float[] target, int offset, int x, int y0, int y1, double scale, double amplitude) {
+			addTile(target, 0, x, y0, x+1, y1, offset - y0, scale, amplitude);
+		}
+
+		/**
+		 * Same as {@link #noise(double, double) }, but the y-part is computed
+		 * once for the whole tile and the x-part once per row.
+		 */
+		@Override
+		public void addTile(float[] target, int size, int x0, int y0, int x1, int y1, int offset, double scale, double amplitude) {
+			int n = y1 - y0;
+			int[] hy0 = new int[n];
+			int[] hy1 = new int[n];
+			float[] fy = new float[n];
+			float[] v = new float[n];
+			for (int k=0; k<n; ++k) {
+				float y = (float) ((y0+k)*scale);
+				int j = floor(y);
+				hy0[k] = j*PRIME_Y;
+				hy1[k] = (j+1)*PRIME_Y;
+				fy[k] = y - j;
+				v[k] = fade(fy[k]);
+			}
+			float famplitude = (float) amplitude;
+			for (int x=x0; x<x1; ++x) {
+				float fx = (float) (x*scale);
+				int i = floor(fx);
+				fx -= i;
+				int hx0 = hashSeed ^ i*PRIME_X;
+				int hx1 = hashSeed ^ (i+1)*PRIME_X;
+				float fx1 = fx - 1;
+				float u = fade(fx);
+				int index = x*size + y0 + offset;
+				//no branches and no dependencies, the JIT can vectorize this loop
+				for (int k=0; k<n; ++k) {
+					float ry = fy[k];
+					float ry1 = ry - 1;
+					float a = lerp(u, grad(hash(hx0, hy0[k]), fx, ry), grad(hash(hx1, hy0[k]), fx1, ry));
+					float b = lerp(u, grad(hash(hx0, hy1[k]), fx, ry1), grad(hash(hx1, hy1[k]), fx1, ry1));
+					target[index + k] += lerp(v[k], a, b) * famplitude;
+				}
+			}
+		}
+	}
+}
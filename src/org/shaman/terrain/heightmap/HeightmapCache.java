@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.shaman.terrain.Heightmap;
+
+/**
+ * A least-recently-used cache of intermediate heightmaps with a memory budget.
+ * The keys are fingerprints, see {@link ChainProcessor#setCache(org.shaman.terrain.heightmap.HeightmapCache) }.
+ * The cache stores copies, so the maps can be modified afterwards.
+ * @author Sebastian Weiss
+ */
+public class HeightmapCache {
+	private final long budget;
+	private final LinkedHashMap<Long, Heightmap> maps = new LinkedHashMap<>(16, 0.75f, true);
+	private long usedBytes;
+	private int hits;
+	private int misses;
+
+	/**
+	 * @param budget the maximal memory of the cached maps in bytes
+	 */
+	public HeightmapCache(long budget) {
+		this.budget = budget;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public synchronized int size() {
+		return maps.size();
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	private static long bytes(Heightmap map) {
+		return 4L * map.getSize() * map.getSize();
+	}
+
+	/**
+	 * Copies the cached map into the target map
+	 * @param key the fingerprint
+	 * @param target the target map, must have the same size as the cached map
+	 * @return {@code true} if the map was found and copied
+	 */
+	public synchronized boolean copyTo(long key, Heightmap target) {
+		Heightmap map = maps.get(key);
+		if (map == null || map.getSize() != target.getSize()) {
+			misses++;
+			return false;
+		}
+		hits++;
+		int n = map.getSize() * map.getSize();
+		target.getStorage().set(0, map.getStorage(), 0, n);
+		return true;
+	}
+
+	/**
+	 * Stores a copy of the map, the least recently used maps are evicted
+	 * if the budget is exceeded
+	 * @param key the fingerprint
+	 * @param map the map
+	 */
+	public synchronized void put(long key, Heightmap map) {
+		long bytes = bytes(map);
+		if (bytes > budget) {
+			return;
+		}
+		Heightmap old = maps.put(key, map.clone());
+		if (old != null) {
+			usedBytes -= bytes(old);
+		}
+		usedBytes += bytes;
+		Iterator<Map.Entry<Long, Heightmap>> it = maps.entrySet().iterator();
+		while (usedBytes > budget && it.hasNext()) {
+			Map.Entry<Long, Heightmap> e = it.next();
+			if (e.getKey() == key) {
+				continue;
+			}
+			usedBytes -= bytes(e.getValue());
+			it.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		maps.clear();
+		usedBytes = 0;
+	}
+}
@@ -45,5 +45,13 @@ public interface HeightmapProcessor {
 	 */
 	void reseed();
 	
+	/**
+	 * Returns a fingerprint of all parameters and the seed of this processor.
+	 * Two applications with the same fingerprint must produce the same result
+	 * on the same input. Used to cache intermediate results, see {@link HeightmapCache}.
+	 * @return the fingerprint, built with {@link Fingerprint}
+	 */
+	long getFingerprint();
+	
 	List<? extends PropItem> getProperties();
 }
@@ -12,6 +12,7 @@ import java.util.*;
     The result is a continuous function that interpolates a smooth path
     along a series random points. The function is consitent, so given
     the same parameters, it will always return the same value.
+    For batch evaluation and fBm, see {@link GradientNoise} and {@link FractalNoise}.
     @see ImprovedNoise
 */
 
@@ -31,7 +32,7 @@ public final class Noise {
     private static final int NM = N-1;
 
     private int p[] = new int[B + B + 2];
-    private double g2[][] = new double[B + B + 2][2];
+    private double g2[] = new double[(B + B + 2) * 2]; //interleaved x,y
     private double g1[] = new double[B + B +2];
     private int start = 1;
     private double[][] points = new double[32][3];
@@ -76,7 +77,7 @@ public final class Noise {
     public double noise(double x, double y) {
 
        int bx0, bx1, by0, by1, b00, b10, b01, b11;
-       double rx0, rx1, ry0, ry1, sx, sy, a, b, t, u, v, q[];
+       double rx0, rx1, ry0, ry1, sx, sy, a, b, t, u, v;
        int i, j;
 
        t = x + N;
@@ -102,12 +103,12 @@ public final class Noise {
        sx = s_curve(rx0);
        sy = s_curve(ry0);
 
-       q = g2[b00]; u = rx0 * q[0] + ry0 * q[1];
-       q = g2[b10]; v = rx1 * q[0] + ry0 * q[1];
+       u = rx0 * g2[2*b00] + ry0 * g2[2*b00+1];
+       v = rx1 * g2[2*b10] + ry0 * g2[2*b10+1];
        a = lerp(sx, u, v);
 
-       q = g2[b01]; u = rx0 * q[0] + ry1 * q[1];
-       q = g2[b11]; v = rx1 * q[0] + ry1 * q[1];
+       u = rx0 * g2[2*b01] + ry1 * g2[2*b01+1];
+       v = rx1 * g2[2*b11] + ry1 * g2[2*b11+1];
        b = lerp(sx, u, v);
 
        return lerp(sy, a, b);
@@ -140,9 +141,6 @@ public final class Noise {
        if (bz < 0) bz += B;
        rz = z - Math.floor(z);
 
-       if (bx < 0 || bx >= B + B + 2)
-          System.out.println(bx);
-
        b0 = p[bx];
 
        bx++;
@@ -198,9 +196,9 @@ public final class Noise {
              Math.abs(u) > 2.5 * Math.abs(v) ||
              Math.abs(v) > 2.5 * Math.abs(u) ||
              Math.abs(Math.abs(u) - Math.abs(v)) < .4);
-          g2[i][0] = u;
-          g2[i][1] = v;
-          normalize2(g2[i]);
+          g2[2*i] = u;
+          g2[2*i+1] = v;
+          normalize2(g2, 2*i);
 
           do {
              u = 2*r.nextDouble()-1;
@@ -224,7 +222,7 @@ public final class Noise {
        for( i = 0; i <B+2; i++) {
           p[B+i] = p[i];
           g1[B+i] = g1[i];
-          for (j = 0 ; j < 2 ; j++) { g2[B + i][j] = g2[i][j]; }
+          for (j = 0 ; j < 2 ; j++) { g2[2*(B + i) + j] = g2[2*i + j]; }
        }
 
        points[3][0] = points[3][1] = points[3][2] = Math.sqrt(1./3);
@@ -247,10 +245,24 @@ public final class Noise {
        }
     }
 
-    private static void normalize2(double v[]) {
+    private static void normalize2(double v[], int i) {
        double s;
-       s = Math.sqrt(v[0] * v[0] + v[1] * v[1]);
-       v[0] = v[0] / s;
-       v[1] = v[1] / s;
+       s = Math.sqrt(v[i] * v[i] + v[i+1] * v[i+1]);
+       v[i] = v[i] / s;
+       v[i+1] = v[i+1] / s;
+    }
+
+    /**
+	@return the permutation table, used by {@link GradientNoise#compatible(long) }
+    */
+    int[] getPermutation() {
+       return p;
+    }
+
+    /**
+	@return the interleaved 2D gradients, used by {@link GradientNoise#compatible(long) }
+    */
+    double[] getGradients2() {
+       return g2;
     }
 }
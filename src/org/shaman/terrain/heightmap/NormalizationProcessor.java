@@ -5,6 +5,7 @@
  */
 package org.shaman.terrain.heightmap;
 
+import org.shaman.terrain.FloatStorage;
 import org.shaman.terrain.Heightmap;
 import java.util.Collections;
 import java.util.List;
@@ -13,34 +14,122 @@ import java.util.List;
  * A processor that normalizes the heightmap to be in the range from 0 to 1.
  * @author Sebastian Weiss
  */
-public class NormalizationProcessor implements HeightmapProcessor {
+public class NormalizationProcessor implements FusableHeightmapProcessor {
 
 	@Override
-	public Heightmap apply(Heightmap map) {
-		float min = Float.MAX_VALUE;
-		float max = -Float.MIN_VALUE;
-		for (int x=0; x<map.getSize(); ++x) {
-			for (int y=0; y<map.getSize(); ++y) {
-				float v = map.getHeightAt(x, y);
-				min = Math.min(min, v);
-				max = Math.max(max, v);
+	public Heightmap apply(final Heightmap map) {
+		TileExecutor executor = TileExecutor.getDefault();
+		//find min and max per tile
+		final MinMax[] ranges = new MinMax[executor.getTileCount(map.getSize())];
+		final FloatStorage storage = map.getStorage();
+		final int size = map.getSize();
+		executor.forEachTile(map.getSize(), new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				MinMax range = new MinMax();
+				if (storage.hasArray()) {
+					range.addTile(storage.array(), size, x0, y0, x1, y1, 0);
+				} else {
+					float[] row = new float[y1-y0];
+					for (int x=x0; x<x1; ++x) {
+						storage.get(x*size + y0, row, 0, row.length);
+						range.addTile(row, 0, x, y0, x+1, y1, -y0);
+					}
+				}
+				ranges[tile] = range;
 			}
+		});
+		for (int i=1; i<ranges.length; ++i) {
+			ranges[0].merge(ranges[i]);
 		}
-		float factor = 1f / (max-min);
-		for (int x=0; x<map.getSize(); ++x) {
-			for (int y=0; y<map.getSize(); ++y) {
-				float v = map.getHeightAt(x, y);
-				v -= min;
-				v *= factor;
-				map.setHeightAt(x, y, v);
+		return normalize(map, ranges[0].min, ranges[0].max);
+	}
+
+	/**
+	 * The range of the input map
+	 */
+	private static class MinMax implements Reduction {
+		private float min = Float.MAX_VALUE;
+		private float max = -Float.MAX_VALUE;
+
+		@Override
+		public void addTile(float[] data, int stride, int x0, int y0, int x1, int y1, int offset) {
+			for (int x=x0; x<x1; ++x) {
+				for (int i=x*stride+y0+offset; i<x*stride+y1+offset; ++i) {
+					float v = data[i];
+					if (v < min) min = v;
+					if (v > max) max = v;
+				}
 			}
 		}
+
+		@Override
+		public void merge(Reduction other) {
+			MinMax o = (MinMax) other;
+			min = Math.min(min, o.min);
+			max = Math.max(max, o.max);
+		}
+	}
+
+	@Override
+	public Reduction createReduction() {
+		return new MinMax();
+	}
+
+	@Override
+	public Kernel createKernel(Heightmap map, Reduction reduction) {
+		final float offset = ((MinMax) reduction).min;
+		final float factor = 1f / (((MinMax) reduction).max - offset);
+		return new Kernel() {
+			@Override
+			public void applyTile(float[] data, int stride, int x0, int y0, int x1, int y1, int o) {
+				for (int x=x0; x<x1; ++x) {
+					for (int i=x*stride+y0+o; i<x*stride+y1+o; ++i) {
+						float v = data[i];
+						v -= offset;
+						v *= factor;
+						data[i] = v;
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Maps the range from min to max linearly to [0,1], in parallel.
+	 * Used by processors that already know the range of their output.
+	 * @param map the map, modified in place
+	 * @param min the minimal value of the map
+	 * @param max the maximal value of the map
+	 * @return the map
+	 */
+	public static Heightmap normalize(final Heightmap map, float min, float max) {
+		final float offset = min;
+		final float factor = 1f / (max-min);
+		TileExecutor.getDefault().forEachTile(map.getSize(), new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				for (int x=x0; x<x1; ++x) {
+					for (int y=y0; y<y1; ++y) {
+						float v = map.getHeightAt(x, y);
+						v -= offset;
+						v *= factor;
+						map.setHeightAt(x, y, v);
+					}
+				}
+			}
+		});
 		return map;
 	}
 
 	@Override
 	public void reseed() {}
 
+	@Override
+	public long getFingerprint() {
+		return new Fingerprint(getClass()).get();
+	}
+
 	@Override
 	public List<? extends PropItem> getProperties() {
 		return Collections.emptyList();
@@ -5,6 +5,7 @@
  */
 package org.shaman.terrain.heightmap;
 
+import org.shaman.terrain.FloatStorage;
 import org.shaman.terrain.Heightmap;
 import java.text.DecimalFormat;
 import java.util.Arrays;
@@ -12,14 +13,14 @@ import java.util.List;
 import java.util.Random;
 
 
-public class PerlinNoiseProcessor implements HeightmapProcessor {
+public class PerlinNoiseProcessor implements TiledHeightmapProcessor, FusableHeightmapProcessor {
 	private int index;
-	private Noise noise;
+	private GradientNoise noise;
 	private double frequency;
 	private double amplitude;
 
 	public PerlinNoiseProcessor() {
-		noise = new Noise(new Random().nextInt());
+		noise = GradientNoise.compatible(new Random().nextInt());
 	}
 
 	public PerlinNoiseProcessor(int index, double frequency, double amplitude) {
@@ -47,20 +48,57 @@ public class PerlinNoiseProcessor implements HeightmapProcessor {
 
 	@Override
 	public Heightmap apply(Heightmap map) {
-		double scale = frequency / map.getSize();
-		for (int x=0; x<map.getSize(); ++x) {
-			for (int y=0; y<map.getSize(); ++y) {
-				float v = map.getHeightAt(x, y);
-				v += noise.noise(x*scale, y*scale)*amplitude;
-				map.setHeightAt(x, y, v);
+		return TileExecutor.getDefault().apply(this, map);
+	}
+
+	@Override
+	public int getHalo() {
+		return 0;
+	}
+
+	@Override
+	public void applyTile(Heightmap source, Heightmap target, int x0, int y0, int x1, int y1) {
+		int size = source.getSize();
+		double scale = frequency / size;
+		FloatStorage storage = target.getStorage();
+		if (storage.hasArray()) {
+			noise.addTile(storage.array(), size, x0, y0, x1, y1, scale, amplitude);
+		} else {
+			float[] row = new float[y1-y0];
+			for (int x=x0; x<x1; ++x) {
+				storage.get(x*size + y0, row, 0, row.length);
+				noise.addRow(row, 0, x, y0, y1, scale, amplitude);
+				storage.set(x*size + y0, row, 0, row.length);
 			}
 		}
-		return map;
+	}
+
+	@Override
+	public Reduction createReduction() {
+		return null;
+	}
+
+	@Override
+	public Kernel createKernel(Heightmap map, Reduction reduction) {
+		final GradientNoise noise = this.noise;
+		final double scale = frequency / map.getSize();
+		final double amplitude = this.amplitude;
+		return new Kernel() {
+			@Override
+			public void applyTile(float[] data, int stride, int x0, int y0, int x1, int y1, int offset) {
+				noise.addTile(data, stride, x0, y0, x1, y1, offset, scale, amplitude);
+			}
+		};
 	}
 
 	@Override
 	public void reseed() {
-		noise = new Noise(new Random().nextLong());
+		noise = GradientNoise.compatible(new Random().nextLong());
+	}
+
+	@Override
+	public long getFingerprint() {
+		return new Fingerprint(getClass()).add(noise.getSeed()).add(frequency).add(amplitude).get();
 	}
 
 	@Override
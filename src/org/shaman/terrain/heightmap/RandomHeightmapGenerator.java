@@ -15,7 +15,11 @@ import com.jme3.input.controls.KeyTrigger;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.shaman.terrain.AbstractTerrainStep;
+import org.shaman.terrain.ProgressivePreview;
 import org.shaman.terrain.sketch.SketchTerrain;
 
 /**
@@ -23,7 +27,12 @@ import org.shaman.terrain.sketch.SketchTerrain;
  * @author Sebastian Weiss
  */
 public class RandomHeightmapGenerator extends AbstractTerrainStep {
+	private static final Logger LOG = Logger.getLogger(RandomHeightmapGenerator.class.getName());
 	private static final int SIZE = 256;//1024;
+	/**
+	 * Memory for the intermediate results of the processors, in bytes
+	 */
+	private static final long CACHE_BUDGET = 256L << 20;
 	private static final Class<? extends AbstractTerrainStep> NEXT_STEP = SketchTerrain.class;
 	
 	private ArrayList<HeightmapProcessor.PropItem> propItems = new ArrayList<>();
@@ -36,6 +45,7 @@ public class RandomHeightmapGenerator extends AbstractTerrainStep {
 	private HeightmapProcessor processors;
 	private Heightmap heightmap;
 	private ActionListener listener;
+	private final ProgressivePreview<Heightmap> preview = new ProgressivePreview<>();
 
 	@Override
 	protected void enable() {
@@ -45,6 +55,7 @@ public class RandomHeightmapGenerator extends AbstractTerrainStep {
 
 	@Override
 	protected void disable() {
+		preview.cancel();
 		removePropertyUI();
 	}
 
@@ -55,48 +66,72 @@ public class RandomHeightmapGenerator extends AbstractTerrainStep {
 	
 	private void initHeightmap() {
 		//create processors
-		ChainProcessor noiseChain = new ChainProcessor();
 		float initFrequency = 2;
-		for (int i=0; i<7; ++i) {
-			PerlinNoiseProcessor noise = new PerlinNoiseProcessor(i+1, Math.pow(2, initFrequency+i), Math.pow(0.3, i+1));
-			noiseChain.add(noise);
-		}
-		noiseChain.add(new NormalizationProcessor());
+		FractalNoiseProcessor noise = new FractalNoiseProcessor(7, Math.pow(2, initFrequency), 2, 0.3, 0.3);
 		ChainProcessor voronoiChain = new ChainProcessor();
 		voronoiChain.add(new VoronoiProcessor());
 //		voronoiChain.add(new DistortionProcessor(0.01f, 8));
 		voronoiChain.add(new NormalizationProcessor());
 		ChainProcessor finalChain = new ChainProcessor();
 		finalChain.add(new SplitCombineProcessor(
-				new HeightmapProcessor[]{noiseChain, voronoiChain}, 
+				new HeightmapProcessor[]{noise, voronoiChain}, 
 				new float[]{0.6f, 0.3f}));
 		finalChain.add(new DistortionProcessor());
 		finalChain.add(new ThermalErosionProcessor());
+		finalChain.setCache(new HeightmapCache(CACHE_BUDGET));
 		processors = finalChain;
 		propItems.addAll(processors.getProperties());
 		processors.reseed();
-		heightmap = processors.apply(new Heightmap(SIZE));
 		changed = false;
-		app.setTerrain(heightmap);
+		generateHeightmap();
 	}
 	
 	private void updateHeightmap() {
-		long time1 = System.currentTimeMillis();
+		preview.cancelAndWait();
 		if (!changed) {
 			processors.reseed();
 		}
-		heightmap = processors.apply(new Heightmap(SIZE));
 		changed = false;
-		long time2 = System.currentTimeMillis();
-		System.out.println("Time to apply processors: "+(time2-time1)/1000.0+" sec");
-		
-		time1 = System.currentTimeMillis();
-		app.setTerrain(heightmap);
-		time2 = System.currentTimeMillis();
-		System.out.println("Time to update alpha map and mesh: "+(time2-time1)/1000.0+" sec");
+		generateHeightmap();
+	}
+	
+	/**
+	 * Applies the processors progressively in the background, the previews
+	 * are shown as soon as they are available
+	 */
+	private void generateHeightmap() {
+		heightmap = null;
+		final long startTime = System.currentTimeMillis();
+		preview.submit(SIZE, new ProgressivePreview.Generator<Heightmap>() {
+			@Override
+			public Heightmap generate(int size) {
+				return processors.apply(new Heightmap(size));
+			}
+		}, new ProgressivePreview.Listener<Heightmap>() {
+			@Override
+			public void update(Heightmap result, int size, final boolean finished) {
+				final Heightmap map = ProgressivePreview.upsample(result, SIZE);
+				LOG.log(Level.INFO, "heightmap with size {0} generated after {1} sec", 
+						new Object[]{size, (System.currentTimeMillis()-startTime)/1000.0});
+				app.enqueue(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						app.setTerrain(map);
+						if (finished) {
+							heightmap = map;
+						}
+						return null;
+					}
+				});
+			}
+		});
 	}
 	
 	private void nextStep() {
+		if (heightmap == null) {
+			LOG.info("heightmap not generated yet");
+			return;
+		}
 		Map<Object, Object> prop = new HashMap<>(properties);
 		prop.put(KEY_HEIGHTMAP, heightmap);
 		nextStep(NEXT_STEP, prop);
@@ -142,10 +177,12 @@ public class RandomHeightmapGenerator extends AbstractTerrainStep {
 						property = Math.max(0, property - 1);
 						break;
 					case "PropUp":
+						preview.cancelAndWait();
 						changed |= propItems.get(property).change(true);
 //						updateHeightmap();
 						break;
 					case "PropDown":
+						preview.cancelAndWait();
 						changed |= propItems.get(property).change(false);
 //						updateHeightmap();
 						break;
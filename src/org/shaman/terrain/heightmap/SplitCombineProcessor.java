@@ -9,10 +9,12 @@ import org.shaman.terrain.Heightmap;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * A {@code HeightmapProcessor} that splits the computation up into multiple
  * processors and combines the results then with given factors.
+ * The branches are independent of each other and are executed concurrently.
  * @author Sebastian Weiss
  */
 public class SplitCombineProcessor implements HeightmapProcessor {
@@ -42,19 +44,36 @@ public class SplitCombineProcessor implements HeightmapProcessor {
 
 	@Override
 	public Heightmap apply(Heightmap map) {
-		for (int i=0; i<processors.length; ++i) {
-			Heightmap m = map.clone();
-			m = processors[i].apply(m);
-			combine(map, factors[i], m);
+		TileExecutor executor = TileExecutor.getDefault();
+		final Heightmap input = map;
+		List<Callable<Heightmap>> branches = new ArrayList<>(processors.length);
+		for (final HeightmapProcessor p : processors) {
+			branches.add(new Callable<Heightmap>() {
+				@Override
+				public Heightmap call() throws Exception {
+					return p.apply(input.clone());
+				}
+			});
 		}
+		List<Heightmap> results = executor.invokeAll(branches);
+		combine(executor, map, factors, results);
 		return map;
 	}
-	private void combine(Heightmap target, float factor, Heightmap map) {
-		for (int x=0; x<map.getSize(); ++x) {
-			for (int y=0; y<map.getSize(); ++y) {
-				target.adjustHeightAt(x, y, factor * map.getHeightAt(x, y));
+	private void combine(TileExecutor executor, final Heightmap target, final float[] factors, final List<Heightmap> maps) {
+		executor.forEachTile(target.getSize(), new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				for (int x=x0; x<x1; ++x) {
+					for (int y=y0; y<y1; ++y) {
+						float v = target.getHeightAt(x, y);
+						for (int i=0; i<factors.length; ++i) {
+							v += factors[i] * maps.get(i).getHeightAt(x, y);
+						}
+						target.setHeightAt(x, y, v);
+					}
+				}
 			}
-		}
+		});
 	}
 
 	@Override
@@ -64,6 +83,15 @@ public class SplitCombineProcessor implements HeightmapProcessor {
 		}
 	}
 
+	@Override
+	public long getFingerprint() {
+		Fingerprint f = new Fingerprint(getClass());
+		for (int i=0; i<processors.length; ++i) {
+			f.add(processors[i].getFingerprint()).add(factors[i]);
+		}
+		return f.get();
+	}
+
 	@Override
 	public List<? extends PropItem> getProperties() {
 		final DecimalFormat format = new DecimalFormat("0.000");
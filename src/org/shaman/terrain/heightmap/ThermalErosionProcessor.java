@@ -10,20 +10,38 @@ import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- *
+ * Thermal erosion: material slides down from steep slopes to the neighbors.
+ * The iterations ping-pong between two flat buffers and are executed in
+ * two parallel passes without any per-pixel allocation:
+ * first each cell computes how much material it releases, then each cell
+ * gathers the material it receives from its neighbors. Hence no two threads
+ * ever write to the same cell.
  * @author Sebastian Weiss
  */
 public class ThermalErosionProcessor implements HeightmapProcessor {
+	private static final Logger LOG = Logger.getLogger(ThermalErosionProcessor.class.getName());
 	private static final int[][] NEIGHBORS = new int[][]{
 		{1, -1}, {1, 0}, {1, 1},
 		{-1, -1}, {-1, 0}, {-1, 1},
 		{0, 1}, {0, -1}
 	};
+	private static final int[] NX = new int[NEIGHBORS.length];
+	private static final int[] NY = new int[NEIGHBORS.length];
+	static {
+		for (int i=0; i<NEIGHBORS.length; ++i) {
+			NX[i] = NEIGHBORS[i][0];
+			NY[i] = NEIGHBORS[i][1];
+		}
+	}
 	private float c = 0.25f;
 	private float T = 2f;
 	private int iterations = 5;
+	private float convergenceThreshold = 0;
+	private int lastIterations;
 
 	public ThermalErosionProcessor() {
 	}
@@ -34,45 +52,177 @@ public class ThermalErosionProcessor implements HeightmapProcessor {
 		this.iterations = iterations;
 	}
 
+	public float getConvergenceThreshold() {
+		return convergenceThreshold;
+	}
+
+	/**
+	 * Sets the threshold for the early exit: if the maximal amount of material
+	 * that a single cell releases in one iteration drops below this value,
+	 * the remaining iterations are skipped.
+	 * @param convergenceThreshold the threshold, zero disables the early exit
+	 */
+	public void setConvergenceThreshold(float convergenceThreshold) {
+		this.convergenceThreshold = convergenceThreshold;
+	}
+
+	/**
+	 * @return the number of iterations that were executed in the last call
+	 * to {@link #apply(org.shaman.terrain.Heightmap) }
+	 */
+	public int getLastIterations() {
+		return lastIterations;
+	}
+
 	@Override
 	public Heightmap apply(Heightmap map) {
+		final int size = map.getSize();
+		final float t = T / size;
+		TileExecutor executor = TileExecutor.getDefault();
+		float[] heights = new float[size*size];
+		float[] next = new float[size*size];
+		final float[] factor = new float[size*size];
+		final float[] released = new float[size*size];
+		final float[] tileMax = new float[executor.getTileCount(size)];
+		map.getStorage().get(0, heights, 0, size*size);
+		
+		lastIterations = 0;
 		for (int i=0; i<iterations; ++i) {
-			map = oneIteration(map);
+			final float[] h = heights;
+			final float[] m = next;
+			//compute the released material
+			executor.forEachTile(size, new TileExecutor.TileVisitor() {
+				@Override
+				public void visit(int tile, int x0, int y0, int x1, int y1) {
+					tileMax[tile] = computeReleased(h, factor, released, size, t, x0, y0, x1, y1);
+				}
+			});
+			//gather the received material
+			executor.forEachTile(size, new TileExecutor.TileVisitor() {
+				@Override
+				public void visit(int tile, int x0, int y0, int x1, int y1) {
+					gather(h, m, factor, released, size, t, x0, y0, x1, y1);
+				}
+			});
+			heights = m;
+			next = h;
+			lastIterations++;
+			
+			if (convergenceThreshold > 0) {
+				float max = 0;
+				for (float v : tileMax) {
+					max = Math.max(max, v);
+				}
+				if (max < convergenceThreshold) {
+					LOG.log(Level.INFO, "thermal erosion converged after {0} iterations", lastIterations);
+					break;
+				}
+			}
 		}
+		
+		map.getStorage().set(0, heights, 0, size*size);
 		return map;
 	}
-	private Heightmap oneIteration(Heightmap map) {
-		Heightmap m = map.clone();
-		float t = T / map.getSize();
-		for (int x=0; x<map.getSize(); ++x) {
-			for (int y=0; y<map.getSize(); ++y) {
-				float h = map.getHeightAt(x, y);
-				float[] hi = new float[NEIGHBORS.length];
-				float[] di = new float[NEIGHBORS.length];
+	
+	/**
+	 * Computes for each cell of the tile the material it releases and the
+	 * factor by which it distributes it among its lower neighbors.
+	 * The material moved to neighbor i is {@code factor * (h - h_i)}.
+	 * @return the maximal released material in this tile
+	 */
+	private float computeReleased(float[] h, float[] factor, float[] released, 
+			int size, float t, int x0, int y0, int x1, int y1) {
+		float[] di = new float[NEIGHBORS.length];
+		int[] offsets = new int[NEIGHBORS.length];
+		for (int i=0; i<NEIGHBORS.length; ++i) {
+			offsets[i] = NX[i]*size + NY[i];
+		}
+		float maxReleased = 0;
+		for (int x=x0; x<x1; ++x) {
+			for (int y=y0; y<y1; ++y) {
+				int index = x*size + y;
+				float hp = h[index];
 				float dmax = 0;
 				float dtotal = 0;
 				//compute slopes
+				boolean interior = x>0 && x<size-1 && y>0 && y<size-1;
 				for (int i=0; i<NEIGHBORS.length; ++i) {
-					hi[i] = map.getHeightAtClamping(x + NEIGHBORS[i][0], y + NEIGHBORS[i][1]);
-					di[i] = h-hi[i];
+					int n;
+					if (interior) {
+						n = index + offsets[i];
+					} else {
+						n = Math.min(size-1, Math.max(0, x + NX[i]))*size
+								+ Math.min(size-1, Math.max(0, y + NY[i]));
+					}
+					di[i] = hp - h[n];
 					dmax = Math.max(dmax, di[i]);
 					if (di[i] > t) {
 						dtotal+=di[i];
 					}
 				}
-				//move terrain
+				if (dtotal == 0) {
+					factor[index] = 0;
+					released[index] = 0;
+					continue;
+				}
+				//material is also released over the border, it leaves the map
+				float f = c*(dmax-t)/dtotal;
 				float vsum = 0;
 				for (int i=0; i<NEIGHBORS.length; ++i) {
 					if (di[i] > t) {
-						float v = c*(dmax-t)*di[i]/dtotal;
-						m.adjustHeightAt(x + NEIGHBORS[i][0], y + NEIGHBORS[i][1], v);
-						vsum+=v;
+						vsum += f*di[i];
 					}
 				}
-				m.adjustHeightAt(x, y, -vsum);
+				factor[index] = f;
+				released[index] = vsum;
+				maxReleased = Math.max(maxReleased, vsum);
 			}
 		}
-		return m;
+		return maxReleased;
+	}
+	
+	/**
+	 * Computes the new heights of the tile: the old height minus the released
+	 * material plus the material received from the higher neighbors.
+	 */
+	private void gather(float[] h, float[] m, float[] factor, float[] released, 
+			int size, float t, int x0, int y0, int x1, int y1) {
+		int[] offsets = new int[NEIGHBORS.length];
+		for (int i=0; i<NEIGHBORS.length; ++i) {
+			offsets[i] = NX[i]*size + NY[i];
+		}
+		for (int x=x0; x<x1; ++x) {
+			for (int y=y0; y<y1; ++y) {
+				int index = x*size + y;
+				float hq = h[index];
+				float v = hq - released[index];
+				boolean interior = x>0 && x<size-1 && y>0 && y<size-1;
+				for (int i=0; i<NEIGHBORS.length; ++i) {
+					//the neighbor p that sends material in direction i to this cell
+					if (!interior) {
+						int px = x - NX[i];
+						int py = y - NY[i];
+						if (px<0 || px>=size || py<0 || py>=size) {
+							continue;
+						}
+					}
+					int p = index - offsets[i];
+					if (factor[p] == 0) {
+						continue;
+					}
+					float d = h[p] - hq;
+					if (d > t) {
+						v += factor[p]*d;
+					}
+				}
+				m[index] = v;
+			}
+		}
+	}
+
+	@Override
+	public long getFingerprint() {
+		return new Fingerprint(getClass()).add(c).add(T).add(iterations).add(convergenceThreshold).get();
 	}
 
 	@Override
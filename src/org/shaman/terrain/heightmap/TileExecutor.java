@@ -0,0 +1,250 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import org.shaman.terrain.Heightmap;
+
+/**
+ * Executes heightmap operations in parallel on a {@link ForkJoinPool}.
+ * The map is split into square tiles of {@link #getTileSize() } pixels
+ * that are distributed among the worker threads.
+ * Calls from within a worker thread (e.g. a processor inside a branch of
+ * a {@link SplitCombineProcessor}) join the running computation instead of
+ * blocking a worker.
+ * @author Sebastian Weiss
+ */
+public class TileExecutor {
+	public static final int DEFAULT_TILE_SIZE = 64;
+	private static TileExecutor DEFAULT;
+	
+	/**
+	 * Called for each tile by {@link #forEachTile(int, org.shaman.terrain.heightmap.TileExecutor.TileVisitor) }.
+	 * The visitor is called concurrently from multiple threads.
+	 */
+	public static interface TileVisitor {
+		/**
+		 * Visits the tile from {@code (x0,y0)} inclusive to {@code (x1,y1)} exclusive.
+		 * @param tile the index of the tile, from 0 to {@link #getTileCount(int) }-1
+		 * @param x0
+		 * @param y0
+		 * @param x1
+		 * @param y1 
+		 */
+		void visit(int tile, int x0, int y0, int x1, int y1);
+	}
+	
+	private final ForkJoinPool pool;
+	private final int tileSize;
+
+	/**
+	 * Creates a new executor with an own pool
+	 * @param parallelism the number of worker threads
+	 * @param tileSize the size of the tiles in pixels
+	 */
+	public TileExecutor(int parallelism, int tileSize) {
+		this(new ForkJoinPool(parallelism), tileSize);
+	}
+
+	public TileExecutor(ForkJoinPool pool, int tileSize) {
+		if (tileSize <= 0) {
+			throw new IllegalArgumentException("tile size must be positive");
+		}
+		this.pool = pool;
+		this.tileSize = tileSize;
+	}
+	
+	/**
+	 * @return the shared executor with one worker per available core
+	 */
+	public static synchronized TileExecutor getDefault() {
+		if (DEFAULT == null) {
+			DEFAULT = new TileExecutor(Runtime.getRuntime().availableProcessors(), DEFAULT_TILE_SIZE);
+		}
+		return DEFAULT;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+	
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+	
+	/**
+	 * @param size the size of the map
+	 * @return the number of tiles in one direction
+	 */
+	public int getTilesPerSide(int size) {
+		return (size + tileSize - 1) / tileSize;
+	}
+	
+	/**
+	 * @param size the size of the map
+	 * @return the total number of tiles
+	 */
+	public int getTileCount(int size) {
+		int n = getTilesPerSide(size);
+		return n*n;
+	}
+	
+	/**
+	 * Calls the visitor for each tile of a map with the given size and waits
+	 * until all tiles are processed.
+	 * @param size the size of the map
+	 * @param visitor the visitor
+	 */
+	public void forEachTile(int size, TileVisitor visitor) {
+		invoke(new TileAction(size, getTilesPerSide(size), visitor, 0, getTileCount(size)));
+	}
+	
+	/**
+	 * Calls the visitor for horizontal bands of {@code bandSize} rows (in x direction),
+	 * each spanning the whole y range, and waits until all bands are processed.
+	 * Bands are better suited than tiles for stencil operations that sweep
+	 * over the whole map, because they read contiguous memory.
+	 * @param size the size of the map
+	 * @param bandSize the number of rows per band
+	 * @param visitor the visitor, the tile index is the index of the band
+	 */
+	public void forEachBand(int size, int bandSize, TileVisitor visitor) {
+		invoke(new BandAction(size, Math.max(1, bandSize), visitor, 0, getBandCount(size, bandSize)));
+	}
+	
+	/**
+	 * @param size the size of the map
+	 * @param bandSize the number of rows per band
+	 * @return the number of bands
+	 */
+	public int getBandCount(int size, int bandSize) {
+		bandSize = Math.max(1, bandSize);
+		return (size + bandSize - 1) / bandSize;
+	}
+	
+	/**
+	 * @param size the size of the map
+	 * @return a band size that gives every worker several bands for load balancing
+	 */
+	public int getDefaultBandSize(int size) {
+		return Math.max(1, Math.min(tileSize, size / (4*getParallelism())));
+	}
+	
+	/**
+	 * Applies the processor to the map tile by tile.
+	 * If the processor has a halo, a new map is allocated as target
+	 * and returned, otherwise the map is modified in place.
+	 * @param processor the processor
+	 * @param map the source map
+	 * @return the processed map
+	 */
+	public Heightmap apply(final TiledHeightmapProcessor processor, final Heightmap map) {
+		final Heightmap target = processor.getHalo()==0 ? map : new Heightmap(map.getSize(), map.isDirect());
+		forEachTile(map.getSize(), new TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				processor.applyTile(map, target, x0, y0, x1, y1);
+			}
+		});
+		return target;
+	}
+	
+	/**
+	 * Executes the tasks concurrently and returns the results in the same order.
+	 * @param <T>
+	 * @param tasks
+	 * @return the results of the tasks
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+		final List<ForkJoinTask<T>> forks = new ArrayList<>(tasks.size());
+		for (Callable<T> c : tasks) {
+			forks.add(ForkJoinTask.adapt(c));
+		}
+		invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(forks);
+			}
+		});
+		List<T> results = new ArrayList<>(tasks.size());
+		for (ForkJoinTask<T> f : forks) {
+			results.add(f.join());
+		}
+		return results;
+	}
+	
+	private void invoke(ForkJoinTask<?> task) {
+		if (ForkJoinTask.inForkJoinPool()) {
+			task.invoke();
+		} else {
+			pool.invoke(task);
+		}
+	}
+	
+	private class TileAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int size;
+		private final int tilesPerSide;
+		private final TileVisitor visitor;
+		private final int from;
+		private final int to;
+
+		private TileAction(int size, int tilesPerSide, TileVisitor visitor, int from, int to) {
+			this.size = size;
+			this.tilesPerSide = tilesPerSide;
+			this.visitor = visitor;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new TileAction(size, tilesPerSide, visitor, from, mid),
+						new TileAction(size, tilesPerSide, visitor, mid, to));
+			} else if (to > from) {
+				int x0 = (from / tilesPerSide) * tileSize;
+				int y0 = (from % tilesPerSide) * tileSize;
+				visitor.visit(from, x0, y0, Math.min(size, x0+tileSize), Math.min(size, y0+tileSize));
+			}
+		}
+	}
+	
+	private static class BandAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int size;
+		private final int bandSize;
+		private final TileVisitor visitor;
+		private final int from;
+		private final int to;
+
+		private BandAction(int size, int bandSize, TileVisitor visitor, int from, int to) {
+			this.size = size;
+			this.bandSize = bandSize;
+			this.visitor = visitor;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new BandAction(size, bandSize, visitor, from, mid),
+						new BandAction(size, bandSize, visitor, mid, to));
+			} else if (to > from) {
+				int x0 = from * bandSize;
+				visitor.visit(from, x0, 0, Math.min(size, x0+bandSize), size);
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import org.shaman.terrain.Heightmap;
+
+/**
+ * A {@link HeightmapProcessor} that can process the heightmap tile by tile.
+ * The tiles are processed concurrently by the {@link TileExecutor}, so
+ * {@link #applyTile(org.shaman.terrain.Heightmap, org.shaman.terrain.Heightmap, int, int, int, int) }
+ * must only write into the given tile of the target map and must not modify
+ * shared state.
+ * @author Sebastian Weiss
+ */
+public interface TiledHeightmapProcessor extends HeightmapProcessor {
+	
+	/**
+	 * Returns the halo of this processor: how far outside of the current
+	 * tile it reads from the source map.
+	 * A halo of zero means that the processor is a per-pixel operation and
+	 * the tiles can be processed in place. Otherwise the source map is read-only
+	 * and the results are written to a separate target map.
+	 * @return the halo in pixels, {@link Integer#MAX_VALUE} if unbounded
+	 */
+	int getHalo();
+	
+	/**
+	 * Processes the tile from {@code (x0,y0)} inclusive to {@code (x1,y1)} exclusive.
+	 * @param source the input map, read only if the halo is larger than zero
+	 * @param target the output map, the same instance as {@code source} if
+	 * the halo is zero
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1 
+	 */
+	void applyTile(Heightmap source, Heightmap target, int x0, int y0, int x1, int y1);
+}
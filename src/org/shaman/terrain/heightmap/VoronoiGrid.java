@@ -0,0 +1,178 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A spatial index for the nearest-site queries of weighted Voronoi / Worley noise.
+ * The sites are given as {@link Vector3f} with the position in x,y and
+ * the weight in z. The distance of a site to a point is the euclidian distance
+ * multiplied by the weight, as used by {@link VoronoiProcessor}.<br>
+ * The sites are bucketed into a regular grid of cells. A query visits the
+ * cells in rings around the query point and stops as soon as no unvisited cell
+ * can contain a closer site. Queries are allocation-free and thread-safe.
+ * @author Sebastian Weiss
+ */
+public final class VoronoiGrid {
+	private final int cellCount;
+	private final float cellSize;
+	private final float invCellSize;
+	/**
+	 * The sites of cell {@code (i,j)} are stored from {@code cellStart[i*cellCount+j]}
+	 * to {@code cellStart[i*cellCount+j+1]}
+	 */
+	private final int[] cellStart;
+	private final float[] cellMinWeight;
+	private final float[] xs;
+	private final float[] ys;
+	private final float[] weights;
+	/**
+	 * Maps the sorted site index to the index in the input list
+	 */
+	private final int[] ids;
+	private final float minWeight;
+
+	/**
+	 * Creates the index
+	 * @param size the size of the area, all sites must lie in [0,size)
+	 * @param cellCount the number of cells in each direction
+	 * @param sites the sites: x,y position and the weight in z
+	 */
+	public VoronoiGrid(float size, int cellCount, List<Vector3f> sites) {
+		this.cellCount = Math.max(1, cellCount);
+		this.cellSize = size / this.cellCount;
+		this.invCellSize = 1 / cellSize;
+		int n = sites.size();
+		int cells = this.cellCount * this.cellCount;
+		//counting sort of the sites into the cells
+		int[] cellOf = new int[n];
+		cellStart = new int[cells + 1];
+		for (int i=0; i<n; ++i) {
+			Vector3f p = sites.get(i);
+			cellOf[i] = cellX(p.x)*this.cellCount + cellX(p.y);
+			cellStart[cellOf[i]+1]++;
+		}
+		for (int c=0; c<cells; ++c) {
+			cellStart[c+1] += cellStart[c];
+		}
+		int[] fill = new int[cells];
+		xs = new float[n];
+		ys = new float[n];
+		weights = new float[n];
+		ids = new int[n];
+		cellMinWeight = new float[cells];
+		Arrays.fill(cellMinWeight, Float.POSITIVE_INFINITY);
+		float min = Float.POSITIVE_INFINITY;
+		for (int i=0; i<n; ++i) {
+			Vector3f p = sites.get(i);
+			int c = cellOf[i];
+			int j = cellStart[c] + fill[c]++;
+			xs[j] = p.x;
+			ys[j] = p.y;
+			weights[j] = p.z;
+			ids[j] = i;
+			cellMinWeight[c] = Math.min(cellMinWeight[c], p.z);
+			min = Math.min(min, p.z);
+		}
+		minWeight = Math.max(0, min);
+	}
+
+	private int cellX(float x) {
+		return Math.max(0, Math.min(cellCount-1, (int) (x*invCellSize)));
+	}
+
+	/**
+	 * @return the number of sites
+	 */
+	public int getSiteCount() {
+		return ids.length;
+	}
+
+	/**
+	 * Finds the {@code k} sites with the smallest weighted distance to the point.
+	 * @param px the x coordinate of the query point
+	 * @param py the y coordinate of the query point
+	 * @param k the number of sites to find
+	 * @param indices stores the indices of the found sites in the input list,
+	 * sorted by distance, must have a length of at least k
+	 * @param distances stores the weighted distances of the found sites,
+	 * must have a length of at least k
+	 * @return the number of found sites, {@code min(k, getSiteCount())}
+	 */
+	public int findNearest(float px, float py, int k, int[] indices, float[] distances) {
+		if (k <= 0) {
+			return 0;
+		}
+		int cx = cellX(px);
+		int cy = cellX(py);
+		int found = 0;
+		int maxRing = Math.max(Math.max(cx, cellCount-1-cx), Math.max(cy, cellCount-1-cy));
+		for (int r=0; r<=maxRing; ++r) {
+			//visit all cells of the ring with radius r
+			int x0 = cx-r, x1 = cx+r, y0 = cy-r, y1 = cy+r;
+			for (int x=Math.max(0, x0); x<=Math.min(cellCount-1, x1); ++x) {
+				boolean fullColumn = (x==x0 || x==x1);
+				for (int y=Math.max(0, y0); y<=Math.min(cellCount-1, y1); ++y) {
+					if (!fullColumn && y!=y0 && y!=y1) {
+						y = y1-1; //jump to the other border of the ring
+						continue;
+					}
+					found = visitCell(x*cellCount + y, x, y, px, py, k, found, indices, distances);
+				}
+			}
+			//check if a cell outside of the visited block can contain a closer site
+			if (found == k) {
+				float bound = Float.POSITIVE_INFINITY;
+				if (x0 > 0) bound = Math.min(bound, px - x0*cellSize);
+				if (x1 < cellCount-1) bound = Math.min(bound, (x1+1)*cellSize - px);
+				if (y0 > 0) bound = Math.min(bound, py - y0*cellSize);
+				if (y1 < cellCount-1) bound = Math.min(bound, (y1+1)*cellSize - py);
+				if (distances[k-1] <= bound*minWeight) {
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	private int visitCell(int cell, int x, int y, float px, float py, int k, int found, int[] indices, float[] distances) {
+		int start = cellStart[cell];
+		int end = cellStart[cell+1];
+		if (start == end) {
+			return found;
+		}
+		if (found == k) {
+			//skip the cell if even its closest point with the lowest weight is too far away
+			float dx = Math.max(0, Math.max(x*cellSize - px, px - (x+1)*cellSize));
+			float dy = Math.max(0, Math.max(y*cellSize - py, py - (y+1)*cellSize));
+			if (FastMath.sqrt(dx*dx + dy*dy)*cellMinWeight[cell] >= distances[k-1]) {
+				return found;
+			}
+		}
+		for (int i=start; i<end; ++i) {
+			float dx = xs[i]-px;
+			float dy = ys[i]-py;
+			float d = FastMath.sqrt(dx*dx + dy*dy)*weights[i];
+			if (found == k && d >= distances[k-1]) {
+				continue;
+			}
+			//insertion into the sorted top-k list
+			int j = (found < k) ? found++ : k-1;
+			while (j > 0 && distances[j-1] > d) {
+				distances[j] = distances[j-1];
+				indices[j] = indices[j-1];
+				j--;
+			}
+			distances[j] = d;
+			indices[j] = ids[i];
+		}
+		return found;
+	}
+}
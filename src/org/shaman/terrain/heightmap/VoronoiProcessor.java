@@ -6,7 +6,6 @@
 package org.shaman.terrain.heightmap;
 
 import org.shaman.terrain.Heightmap;
-import com.jme3.math.FastMath;
 import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import java.text.DecimalFormat;
@@ -114,34 +113,31 @@ public class VoronoiProcessor implements HeightmapProcessor {
 				}
 			}
 		}
-		//now cycle through cells and find influencing hills
-		for (int x=0; x<s; ++x) {
-			for (int y=0; y<s; ++y) {
-				//sort points by distance to (x,y)
-				final float px = x;
-				final float py = y;
-				Collections.sort(points, new Comparator<Vector3f>() {
-
-					@Override
-					public int compare(Vector3f o1, Vector3f o2) {
-						float dist1 = dist(o1, px, py);
-						float dist2 = dist(o2, px, py);
-						return Float.compare(dist1, dist2);
+		//now cycle through the pixels and find the influencing hills
+		final VoronoiGrid grid = new VoronoiGrid(s, cellCount, points);
+		final Heightmap target = map;
+		TileExecutor.getDefault().forEachTile(s, new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				int[] indices = new int[3];
+				float[] distances = new float[3];
+				for (int x=x0; x<x1; ++x) {
+					for (int y=y0; y<y1; ++y) {
+						//find the three closest points to (x,y)
+						int n = grid.findNearest(x, y, 3, indices, distances);
+						//calc height
+						float v = 0;
+						if (n>0) v += d1*distances[0];
+						if (n>1) v += d2*distances[1];
+						if (n>2) v += d3*distances[2];
+						v += target.getHeightAt(x, y);
+						target.setHeightAt(x, y, v);
 					}
-				});
-				//calc height
-				float v = d1*dist(points.get(0), px, py) 
-						+ d2*dist(points.get(1), px, py)
-						+ d3*dist(points.get(2), px, py);
-				v += map.getHeightAt(x, y);
-				map.setHeightAt(x, y, v);
+				}
 			}
-		}
+		});
 		return map;
 	}
-	private static float dist(Vector3f hillCenter, float px, float py) {
-		return FastMath.sqrt((hillCenter.x-px)*(hillCenter.x-px) + (hillCenter.y-py)*(hillCenter.y-py))*hillCenter.z;
-	}
 	private static float smooth(float v) {
 		float v3 = v*v*v;
 		float v4 = v3*v;
@@ -154,6 +150,12 @@ public class VoronoiProcessor implements HeightmapProcessor {
 		seed = new Random().nextLong();
 	}
 
+	@Override
+	public long getFingerprint() {
+		return new Fingerprint(getClass()).add(seed).add(cellCount).add(pointsPerCell)
+				.add(minHeight).add(maxHeight).add(d1).add(d2).add(d3).get();
+	}
+
 	@Override
 	public List<? extends PropItem> getProperties() {
 		final DecimalFormat format = new DecimalFormat("0.000");
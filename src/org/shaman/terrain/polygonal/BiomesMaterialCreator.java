@@ -103,9 +103,10 @@ public class BiomesMaterialCreator {
 	private static Texture createAlphaMap(Vectorfield biomes, int slot1, int slot2, int slot3, int slot4) {
 		ByteBuffer data = BufferUtils.createByteBuffer(biomes.getSize()*biomes.getSize()*4);
 		data.rewind();
+		float[] v = new float[biomes.getDimensions()];
 		for (int x=0; x<biomes.getSize(); ++x) {
 			for (int y=0; y<biomes.getSize(); ++y) {
-				float[] v = biomes.getVectorAt(y, biomes.getSize()-x-1);
+				v = biomes.getVectorAt(y, biomes.getSize()-x-1, v);
 				float r=0, g=0, b=0, a=0;
 				for (int i=0; i<Biome.values().length; ++i) {
 					if (BIOME_TO_TEXTURE[i]==slot1) {
@@ -7,40 +7,28 @@ package org.shaman.terrain.polygonal;
 
 import org.shaman.terrain.Biome;
 import Jama.Matrix;
-import com.jme3.app.Application;
-import com.jme3.material.Material;
-import com.jme3.material.RenderState;
 import com.jme3.math.ColorRGBA;
 import com.jme3.math.FastMath;
+import com.jme3.math.Transform;
 import com.jme3.math.Vector3f;
-import com.jme3.renderer.Camera;
-import com.jme3.renderer.ViewPort;
-import com.jme3.renderer.queue.RenderQueue;
-import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
-import com.jme3.scene.Spatial;
 import com.jme3.scene.VertexBuffer;
-import com.jme3.texture.FrameBuffer;
-import com.jme3.texture.Image;
 import com.jme3.util.BufferUtils;
-import java.awt.Transparency;
-import java.awt.color.ColorSpace;
-import java.awt.image.*;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 import org.apache.commons.lang3.ArrayUtils;
 import org.shaman.terrain.AbstractTerrainStep;
 import org.shaman.terrain.Heightmap;
+import org.shaman.terrain.MeshRasterizer;
+import org.shaman.terrain.RasterExporter;
 import org.shaman.terrain.Vectorfield;
 import org.shaman.terrain.heightmap.Noise;
-import org.shaman.terrain.sketch.SketchTerrain;
+import org.shaman.terrain.heightmap.TileExecutor;
+import org.shaman.terrain.heightmap.VoronoiGrid;
 
 /**
  * Converts the graph to a heightmap.<br>
@@ -101,7 +89,6 @@ public class GraphToHeightmap {
 	//Input
 	private final Graph graph;
 	private final int size;
-	private final Application app;
 	private final Random rand;
 	//Output
 	private final Heightmap heightmap;
@@ -110,12 +97,12 @@ public class GraphToHeightmap {
 	private final Vectorfield biomes;
 	private final Map<Object, Object> properties;
 	//temporal values
-	private float[][][] noise;
+	private Vectorfield noise;
+	private MeshRasterizer rasterizer;
 	
-	public GraphToHeightmap(Graph graph, int size, Application app, long seed) {
+	public GraphToHeightmap(Graph graph, int size, long seed) {
 		this.graph = graph;
 		this.size = size;
-		this.app = app;
 		this.rand = new Random(seed);
 
 		heightmap = new Heightmap(size);
@@ -138,20 +125,34 @@ public class GraphToHeightmap {
 
 	private void calculate() {
 		calculateTemperatureAndMoisture();
+		checkInterrupted();
 		calculateElevation();
+		checkInterrupted();
 		calculateBiomeVectorfield();
 		
 //		saveMaps();
 	}
 	
+	/**
+	 * Stops the computation if the thread was interrupted, e.g. by a
+	 * cancelled {@link org.shaman.terrain.ProgressivePreview}
+	 */
+	private void checkInterrupted() {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new CancellationException("heightmap generation interrupted");
+		}
+	}
+	
 	private void calculateElevation() {
 		calculateBaseElevation();
+		checkInterrupted();
 		
 		//get noise parameters
-		Geometry geom = createNoiseGeometry();
-		noise = new float[size][size][4];
-		renderColor(noise, geom, ColorRGBA.Black, 0, 1);
+		Mesh mesh = createNoiseMesh();
+		noise = new Vectorfield(size, 4);
+		renderColor(noise, mesh, ColorRGBA.Black, 0, 1);
 		LOG.info("noise properties calculated");
+		checkInterrupted();
 		
 		addPerlinNoise();
 		
@@ -169,8 +170,9 @@ public class GraphToHeightmap {
 		float min = Float.POSITIVE_INFINITY;
 		float max = Float.NEGATIVE_INFINITY;
 		for (int x=0; x<size; ++x) {
+			checkInterrupted();
 			for (int y=0; y<size; ++y) {
-				float roughness = noise[x][y][1];
+				float roughness = noise.getScalarAt(x, y, 1);
 				//multi-fractal perlin noise
 				double perlin = 0;
 				for (int i=0; i<NOISE_OCTAVES; ++i) {
@@ -185,7 +187,7 @@ public class GraphToHeightmap {
 		float factor = 1f / (max-min);
 		for (int x=0; x<size; ++x) {
 			for (int y=0; y<size; ++y) {
-				float amplitude = noise[x][y][0];
+				float amplitude = noise.getScalarAt(x, y, 0);
 				float perlin = (values.getHeightAt(x, y) - min) * factor;
 				perlin *= amplitude * PERLIN_NOISE_SCALE;
 				heightmap.adjustHeightAt(x, y, perlin);
@@ -209,28 +211,40 @@ public class GraphToHeightmap {
 				}
 			}
 		}
-		Vector3f[] points = pointList.toArray(new Vector3f[pointList.size()]);
+		final VoronoiGrid grid = new VoronoiGrid(size, VORONOI_CELL_COUNT, pointList);
 		LOG.info("voronoi point created");
 		//now cycle through cells and find influencing hills
-		Heightmap tmp = new Heightmap(size);
-		Vector3f first = new Vector3f();
-		Vector3f second = new Vector3f();
+		final Heightmap tmp = new Heightmap(size);
+		TileExecutor executor = TileExecutor.getDefault();
+		final float[] mins = new float[executor.getTileCount(size)];
+		final float[] maxs = new float[mins.length];
+		executor.forEachTile(size, new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				int[] indices = new int[2];
+				float[] distances = new float[2];
+				float min = Float.POSITIVE_INFINITY;
+				float max = Float.NEGATIVE_INFINITY;
+				for (int x=x0; x<x1; ++x) {
+					for (int y=y0; y<y1; ++y) {
+						//find the two closest points to (x,y)
+						grid.findNearest(x, y, 2, indices, distances);
+						//calc height
+						float v = -1*distances[0] + 1*distances[1];
+						tmp.setHeightAt(x, y, v);
+						min = Math.min(v, min);
+						max = Math.max(v, max);
+					}
+				}
+				mins[tile] = min;
+				maxs[tile] = max;
+			}
+		});
 		float min = Float.POSITIVE_INFINITY;
 		float max = Float.NEGATIVE_INFINITY;
-		for (int x=0; x<size; ++x) {
-			for (int y=0; y<size; ++y) {
-				//sort points by distance to (x,y)
-				final float px = x;
-				final float py = y;
-				findClosestTwoPoints(points, px, py, first, second);
-				assert (dist(first, px, py) <= dist(second, px, py));
-				//calc height
-				float v = -1*dist(first, px, py) 
-						+ 1*dist(second, px, py);
-				tmp.setHeightAt(x, y, v);
-				min = Math.min(v, min);
-				max = Math.max(v, max);
-			}
+		for (int i=0; i<mins.length; ++i) {
+			min = Math.min(min, mins[i]);
+			max = Math.max(max, maxs[i]);
 		}
 		//normalize
 		float factor = 1f / (max-min);
@@ -262,34 +276,13 @@ public class GraphToHeightmap {
 		//apply
 		for (int x=0; x<size; ++x) {
 			for (int y=0; y<size; ++y) {
-				float amplitude = noise[x][y][2];
+				float amplitude = noise.getScalarAt(x, y, 2);
 				heightmap.adjustHeightAt(x, y, amplitude * tmp.getHeightAt(x, y) * VORONOI_SCALE);
 			}
 		}
 		
 		LOG.info("voronoi noise added");
 	}
-	private static void findClosestTwoPoints(Vector3f[] points, float px, float py, Vector3f first, Vector3f second) {
-		float dist1 = Float.POSITIVE_INFINITY;
-		float dist2 = Float.POSITIVE_INFINITY;
-		for (Vector3f p : points) {
-			float d = dist(p, px, py);
-			if (d<dist1) {
-				dist2 = dist1;
-				second.set(first);
-				dist1 = d;
-				first.set(p);
-			} else if (d<dist2) {
-				dist2 = d;
-				second.set(p);
-			}
-		}
-	}
-	private static float dist(Vector3f hillCenter, float px, float py) {
-		return FastMath.sqrt((hillCenter.x-px)*(hillCenter.x-px) + (hillCenter.y-py)*(hillCenter.y-py))*hillCenter.z;
-		//return ((hillCenter.x-px)*(hillCenter.x-px) + (hillCenter.y-py)*(hillCenter.y-py))*hillCenter.z;
-	}
-
 	private void calculateBaseElevation() {
 		//assign elevation to oceans
 		for (Graph.Corner c : graph.corners) {
@@ -315,9 +308,9 @@ public class GraphToHeightmap {
 		}
 		assignCenterElevations();
 		//render
-		Geometry geom = createElevationGeometry();
+		Mesh mesh = createElevationMesh();
 		Heightmap tmp = new Heightmap(size);
-		render(tmp.getRawData(), geom, ColorRGBA.Black, -1, 1);
+		render(tmp, mesh, ColorRGBA.Black, -1, 1);
 		//scale
 		for (int x=0; x<size; ++x) {
 			for (int y=0; y<size; ++y) {
@@ -414,45 +407,71 @@ public class GraphToHeightmap {
 	}
 	
 	private void calculateTemperatureAndMoisture() {
-		Geometry geom = createTemperatureGeometry();
-		render(temperature.getRawData(), geom, ColorRGBA.White, 0, 1);
+		Mesh mesh = createTemperatureMesh();
+		render(temperature, mesh, ColorRGBA.White, 0, 1);
 		LOG.info("temperature map created");
 		
-		geom = createMoistureGeometry();
-		render(moisture.getRawData(), geom, ColorRGBA.Black, 0, 1);
+		mesh = createMoistureMesh();
+		render(moisture, mesh, ColorRGBA.Black, 0, 1);
 		LOG.info("moisture map created");
 	}
 	
 	private void calculateBiomeVectorfield() {
-		float[][] tmp = new float[size][size];
-		Vectorfield tmpBiomes = new Vectorfield(size, Biome.values().length);
-		for (int i=0; i<Biome.values().length; ++i) {
-			Biome b = Biome.values()[i];
-			Geometry geom = createBiomesGeometry(b);
-			//render(tmp, geom, b==Biome.OCEAN ? ColorRGBA.White : ColorRGBA.Black, 0, 1);
-			render(tmp, geom, ColorRGBA.Black, 0, 1);
-			tmpBiomes.setLayer(i, tmp);
+		//rasterize the biome index of every polygon in one pass
+		Mesh mesh = createBiomesMesh();
+		rasterize(mesh, new ColorRGBA(-1, -1, -1, -1));
+		float[] raster = rasterizer.getChannel(0);
+		final byte[] biomeIndex = new byte[size*size];
+		for (int i=0; i<biomeIndex.length; ++i) {
+			biomeIndex[i] = (byte) Math.round(raster[i]); //-1: no polygon
 		}
 		LOG.info("biome vectorfield rendered");
-		//disturb
-		Noise distortionNoise = new Noise(rand.nextLong());
-		float[] v = new float[Biome.values().length];
-		for (int x=0; x<size; ++x) {
-			for (int y=0; y<size; ++y) {
-				float s = x/(float)size;
-				float t = y/(float)size;
-				float ss = (float) (s + BIOMES_DISTORTION_AMPLITUDE * 2*distortionNoise.noise(s*BIOMES_DISTORTION_FREQUENCY, t*BIOMES_DISTORTION_FREQUENCY, 0));
-				float tt = (float) (t + BIOMES_DISTORTION_AMPLITUDE * 2*distortionNoise.noise(s*BIOMES_DISTORTION_FREQUENCY, t*BIOMES_DISTORTION_FREQUENCY, 3.4));
-				v = tmpBiomes.getVectorInterpolating(ss*size, tt*size, v);
-				for (int i=0; i<Biome.values().length; ++i) {
-					biomes.setVectorAt(x, y, v);
+		//distort and resample the one-hot biome vectors in one pass
+		final Noise distortionNoise = new Noise(rand.nextLong());
+		TileExecutor.getDefault().forEachTile(size, new TileExecutor.TileVisitor() {
+			@Override
+			public void visit(int tile, int x0, int y0, int x1, int y1) {
+				float[] v = new float[Biome.values().length];
+				for (int x=x0; x<x1; ++x) {
+					for (int y=y0; y<y1; ++y) {
+						float s = x/(float)size;
+						float t = y/(float)size;
+						float ss = (float) (s + BIOMES_DISTORTION_AMPLITUDE * 2*distortionNoise.noise(s*BIOMES_DISTORTION_FREQUENCY, t*BIOMES_DISTORTION_FREQUENCY, 0));
+						float tt = (float) (t + BIOMES_DISTORTION_AMPLITUDE * 2*distortionNoise.noise(s*BIOMES_DISTORTION_FREQUENCY, t*BIOMES_DISTORTION_FREQUENCY, 3.4));
+						interpolateBiomes(biomeIndex, ss*size, tt*size, v);
+						biomes.setVectorAt(x, y, v);
+					}
 				}
 			}
-		}
+		});
 		//TODO: maybe add smoothing
 	}
+	/**
+	 * Bilinear interpolation of the one-hot biome vectors, 
+	 * uses the same weights as {@link Vectorfield#getVectorInterpolating(float, float, float[]) }
+	 */
+	private void interpolateBiomes(byte[] biomeIndex, float x, float y, float[] store) {
+		Arrays.fill(store, 0);
+		x = Math.max(0, Math.min(size-1, x));
+		y = Math.max(0, Math.min(size-1, y));
+		int ax = (int) Math.floor(x);
+		int bx = Math.min(size-1, ax+1);
+		int ay = (int) Math.floor(y);
+		int by = Math.min(size-1, ay+1);
+		float fx = x%1;
+		float fy = y%1;
+		addBiome(store, biomeIndex[ax*size + ay], (1-fx)*(1-fy));
+		addBiome(store, biomeIndex[ax*size + by], fx*(1-fy));
+		addBiome(store, biomeIndex[bx*size + ay], (1-fx)*fy);
+		addBiome(store, biomeIndex[bx*size + by], fx*fy);
+	}
+	private static void addBiome(float[] store, byte biome, float weight) {
+		if (biome >= 0) {
+			store[biome] += weight;
+		}
+	}
 	
-	private Geometry createElevationGeometry() {
+	private Mesh createElevationMesh() {
 		ArrayList<Vector3f> posList = new ArrayList<>();
 		ArrayList<Integer> indexList = new ArrayList<>();
 		ArrayList<ColorRGBA> colorList = new ArrayList<>();
@@ -479,17 +498,9 @@ public class GraphToHeightmap {
 		mesh.setBuffer(VertexBuffer.Type.Index, 1, BufferUtils.createIntBuffer(ArrayUtils.toPrimitive(indexList.toArray(new Integer[indexList.size()]))));
 		mesh.setMode(Mesh.Mode.Triangles);
 		mesh.updateCounts();
-		Material mat = new Material(app.getAssetManager(), "Common/MatDefs/Misc/Unshaded.j3md");
-		mat.setBoolean("VertexColor", true);
-		mat.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-		Geometry geom = new Geometry("elevationGeom", mesh);
-		geom.setMaterial(mat);
-		geom.setLocalScale(size);
-		geom.setQueueBucket(RenderQueue.Bucket.Gui);
-		geom.setCullHint(Spatial.CullHint.Never);
-		return geom;
+		return mesh;
 	}
-	private Geometry createNoiseGeometry() {
+	private Mesh createNoiseMesh() {
 		ArrayList<Vector3f> posList = new ArrayList<>(graph.centers.size());
 		ArrayList<Integer> indexList = new ArrayList<>();
 		ArrayList<ColorRGBA> colorList = new ArrayList<>(graph.centers.size());
@@ -519,17 +530,9 @@ public class GraphToHeightmap {
 		mesh.setBuffer(VertexBuffer.Type.Index, 1, BufferUtils.createIntBuffer(ArrayUtils.toPrimitive(indexList.toArray(new Integer[indexList.size()]))));
 		mesh.setMode(Mesh.Mode.Triangles);
 		mesh.updateCounts();
-		Material mat = new Material(app.getAssetManager(), "Common/MatDefs/Misc/Unshaded.j3md");
-		mat.setBoolean("VertexColor", true);
-		mat.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-		Geometry geom = new Geometry("elevationGeom", mesh);
-		geom.setMaterial(mat);
-		geom.setLocalScale(size);
-		geom.setQueueBucket(RenderQueue.Bucket.Gui);
-		geom.setCullHint(Spatial.CullHint.Never);
-		return geom;
+		return mesh;
 	}
-	private Geometry createTemperatureGeometry() {
+	private Mesh createTemperatureMesh() {
 		ArrayList<Vector3f> posList = new ArrayList<>();
 		ArrayList<Integer> indexList = new ArrayList<>();
 		ArrayList<ColorRGBA> colorList = new ArrayList<>();
@@ -556,17 +559,9 @@ public class GraphToHeightmap {
 		mesh.setBuffer(VertexBuffer.Type.Index, 1, BufferUtils.createIntBuffer(ArrayUtils.toPrimitive(indexList.toArray(new Integer[indexList.size()]))));
 		mesh.setMode(Mesh.Mode.Triangles);
 		mesh.updateCounts();
-		Material mat = new Material(app.getAssetManager(), "Common/MatDefs/Misc/Unshaded.j3md");
-		mat.setBoolean("VertexColor", true);
-		mat.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-		Geometry geom = new Geometry("biomesGeom", mesh);
-		geom.setMaterial(mat);
-		geom.setLocalScale(size);
-		geom.setQueueBucket(RenderQueue.Bucket.Gui);
-		geom.setCullHint(Spatial.CullHint.Never);
-		return geom;
+		return mesh;
 	}
-	private Geometry createMoistureGeometry() {
+	private Mesh createMoistureMesh() {
 		//moisture
 		ArrayList<Vector3f> posList = new ArrayList<>();
 		ArrayList<Integer> indexList = new ArrayList<>();
@@ -608,31 +603,28 @@ public class GraphToHeightmap {
 		mesh.setBuffer(VertexBuffer.Type.Index, 1, BufferUtils.createIntBuffer(ArrayUtils.toPrimitive(indexList.toArray(new Integer[indexList.size()]))));
 		mesh.setMode(Mesh.Mode.Triangles);
 		mesh.updateCounts();
-		Material mat = new Material(app.getAssetManager(), "Common/MatDefs/Misc/Unshaded.j3md");
-		mat.setBoolean("VertexColor", true);
-		mat.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-		Geometry geom = new Geometry("biomesGeom", mesh);
-		geom.setMaterial(mat);
-		geom.setLocalScale(size);
-		geom.setQueueBucket(RenderQueue.Bucket.Gui);
-		geom.setCullHint(Spatial.CullHint.Never);
-		return geom;
+		return mesh;
 	}
-	private Geometry createBiomesGeometry(Biome slot) {
+	/**
+	 * Creates a mesh of all polygons, the red channel of the vertex color
+	 * is the ordinal of the biome
+	 */
+	private Mesh createBiomesMesh() {
 		//biomes
 		ArrayList<Vector3f> posList = new ArrayList<>();
 		ArrayList<Integer> indexList = new ArrayList<>();
+		ArrayList<ColorRGBA> colorList = new ArrayList<>();
 		Map<Graph.Corner, Integer> cornerIndices = new HashMap<>();
 		for (Graph.Center c : graph.centers) {
-			if (c.biome != slot) {
-				continue;
-			}
+			ColorRGBA col = new ColorRGBA(c.biome.ordinal(), 0, 0, 1);
 			int i = posList.size();
 			posList.add(new Vector3f(c.location.x, c.location.y, 1));
+			colorList.add(col);
 			cornerIndices.clear();
 			for (Graph.Corner corner : c.corners) {
 				cornerIndices.put(corner, posList.size());
 				posList.add(new Vector3f(corner.point.x, corner.point.y, 1));
+				colorList.add(col);
 			}
 			for (Graph.Edge edge : c.borders) {
 				indexList.add(i);
@@ -642,193 +634,58 @@ public class GraphToHeightmap {
 		}
 		Mesh biomesMesh = new Mesh();
 		biomesMesh.setBuffer(VertexBuffer.Type.Position, 3, BufferUtils.createFloatBuffer(posList.toArray(new Vector3f[posList.size()])));
+		biomesMesh.setBuffer(VertexBuffer.Type.Color, 4, BufferUtils.createFloatBuffer(colorList.toArray(new ColorRGBA[colorList.size()])));
 		biomesMesh.setBuffer(VertexBuffer.Type.Index, 1, BufferUtils.createIntBuffer(ArrayUtils.toPrimitive(indexList.toArray(new Integer[indexList.size()]))));
 		biomesMesh.setMode(Mesh.Mode.Triangles);
 		biomesMesh.updateCounts();
-		Material mat = new Material(app.getAssetManager(), "Common/MatDefs/Misc/Unshaded.j3md");
-		mat.setColor("Color", ColorRGBA.White);
-		mat.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-		Geometry geom = new Geometry("biomesGeom", biomesMesh);
-		geom.setMaterial(mat);
-		geom.setLocalScale(size);
-		geom.setQueueBucket(RenderQueue.Bucket.Gui);
-		geom.setCullHint(Spatial.CullHint.Never);
-		return geom;
+		return biomesMesh;
 	}
 
 	/**
-	 * Renders the given scene in a top-down manner in the given matrix
+	 * Rasterizes the given mesh in a top-down manner in the given matrix.
+	 * The mesh is drawn with its vertex colors, or in white if it has none.
 	 *
-	 * @param matrix
-	 * @param scene
+	 * @param target
+	 * @param mesh the mesh in [0,1]^2
 	 */
-	private void render(float[][] matrix, final Spatial scene, final ColorRGBA background, float min, float max) {
-		final ByteBuffer data = BufferUtils.createByteBuffer(size * size * 4 * 4);
-		try {
-			app.enqueue(new Callable<Object>() {
-				@Override
-				public Object call() throws Exception {
-					//init
-					Camera cam = new Camera(size, size);
-					cam.setParallelProjection(true);
-					final ViewPort view = new ViewPort("Off", cam);
-					view.setBackgroundColor(background);
-					view.setClearFlags(true, true, true);
-					final FrameBuffer buffer = new FrameBuffer(size, size, 1);
-					buffer.setDepthBuffer(Image.Format.Depth);
-					buffer.setColorBuffer(Image.Format.RGBA32F);
-					view.setOutputFrameBuffer(buffer);
-					view.attachScene(scene);
-					//render
-					scene.setCullHint(Spatial.CullHint.Never);
-					scene.updateGeometricState();
-					view.setEnabled(true);
-					app.getRenderManager().renderViewPort(view, 0);
-					app.getRenderer().readFrameBufferWithFormat(buffer, data, Image.Format.RGBA32F);
-					return new Object();
-				}
-			}).get();
-		} catch (InterruptedException | ExecutionException ex) {
-			Logger.getLogger(GraphToHeightmap.class.getName()).log(Level.SEVERE, "unable to render", ex);
-			return;
-		}
-		data.rewind();
-		for (int y = 0; y < size; ++y) {
-			for (int x = 0; x < size; ++x) {
-				float v = data.getFloat();
-				v *= (max-min);
-				v += min;
-				matrix[x][y] = v;
-				data.getFloat();
-				data.getFloat();
-				data.getFloat();
-			}
-		}
+	private void render(Heightmap target, Mesh mesh, ColorRGBA background, float min, float max) {
+		rasterize(mesh, background);
+		rasterizer.copyChannel(0, target, min, max);
 	}
 	/**
-	 * Renders the given scene in a top-down manner in the given matrix
+	 * Rasterizes the given mesh in a top-down manner in the given matrix
 	 *
-	 * @param matrix
-	 * @param scene
+	 * @param target
+	 * @param mesh the mesh in [0,1]^2
 	 */
-	private void renderColor(float[][][] matrix, final Spatial scene, final ColorRGBA background, float min, float max) {
-		final ByteBuffer data = BufferUtils.createByteBuffer(size * size * 4 * 4);
-		try {
-			app.enqueue(new Callable<Object>() {
-				@Override
-				public Object call() throws Exception {
-					//init
-					Camera cam = new Camera(size, size);
-					cam.setParallelProjection(true);
-					final ViewPort view = new ViewPort("Off", cam);
-					view.setBackgroundColor(background);
-					view.setClearFlags(true, true, true);
-					final FrameBuffer buffer = new FrameBuffer(size, size, 1);
-					buffer.setDepthBuffer(Image.Format.Depth);
-					buffer.setColorBuffer(Image.Format.RGBA32F);
-					view.setOutputFrameBuffer(buffer);
-					view.attachScene(scene);
-					//render
-					scene.setCullHint(Spatial.CullHint.Never);
-					scene.updateGeometricState();
-					view.setEnabled(true);
-					app.getRenderManager().renderViewPort(view, 0);
-					app.getRenderer().readFrameBufferWithFormat(buffer, data, Image.Format.RGBA32F);
-					return new Object();
-				}
-			}).get();
-		} catch (InterruptedException | ExecutionException ex) {
-			Logger.getLogger(GraphToHeightmap.class.getName()).log(Level.SEVERE, "unable to render", ex);
-			return;
-		}
-		data.rewind();
-		for (int y = 0; y < size; ++y) {
-			for (int x = 0; x < size; ++x) {
-				float v;
-				v = data.getFloat();
-				v *= (max-min);
-				v += min;
-				matrix[x][y][0] = v;
-				
-				v = data.getFloat();
-				v *= (max-min);
-				v += min;
-				matrix[x][y][1] = v;
-				
-				v = data.getFloat();
-				v *= (max-min);
-				v += min;
-				matrix[x][y][2] = v;
-				
-				v = data.getFloat();
-				v *= (max-min);
-				v += min;
-				matrix[x][y][3] = v;
-			}
-		}
+	private void renderColor(Vectorfield target, Mesh mesh, ColorRGBA background, float min, float max) {
+		rasterize(mesh, background);
+		rasterizer.copyChannels(target, min, max);
 	}
-	
-	private void saveMaps() {
-		saveMatrix(temperature.getRawData(), "temperature.png", 0, 1);
-		saveMatrix(moisture.getRawData(), "moisture.png", 0, 1);
-		saveMatrix(heightmap.getRawData(), "elevation.png", -1.5f, 1.5f);
-		saveColorMatrix(noise, "noise.png", 0, 1);
-		
-		float[][] tmp = new float[size][size];
-		for (int i=0; i<Biome.values().length; ++i) {
-			tmp = biomes.getLayer(i, tmp);
-			saveMatrix(tmp, "Biome"+Biome.values()[i]+".png", 0, 1);
-		}
+	private void rasterize(Mesh mesh, ColorRGBA background) {
+		if (rasterizer == null) {
+			rasterizer = new MeshRasterizer(size);
+		}
+		Transform transform = new Transform();
+		transform.setScale(size);
+		rasterizer.clear(background);
+		rasterizer.draw(mesh, transform, 
+				mesh.getBuffer(VertexBuffer.Type.Color)==null ? ColorRGBA.White : null,
+				MeshRasterizer.BlendMode.REPLACE);
 	}
 	
-	private void saveMatrix(float[][] matrix, String filename, float min, float max) {
-		byte[] buffer = new byte[size*size];
-		int i=0;
-		for (int x=0; x<size; ++x) {
-			for (int y=0; y<size; ++y) {
-				buffer[i] = (byte) ((matrix[x][y]-min) * 255 / (max-min));
-				i++;
-			}
-		}
-		ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-		int[] nBits = { 8 };
-		ColorModel cm = new ComponentColorModel(cs, nBits, false, true,
-				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
-		SampleModel sm = cm.createCompatibleSampleModel(size, size);
-		DataBufferByte db = new DataBufferByte(buffer, size * size);
-		WritableRaster raster = Raster.createWritableRaster(sm, db, null);
-		BufferedImage result = new BufferedImage(cm, raster, false, null);
+	private void saveMaps() {
 		try {
-			ImageIO.write(result, "png", new File(filename));
-		} catch (IOException ex) {
-			Logger.getLogger(SketchTerrain.class.getName()).log(Level.SEVERE, null, ex);
-		}
-	}
-	private void saveColorMatrix(float[][][] matrix, String filename, float min, float max) {
-		byte[] buffer = new byte[size*size*3];
-		int i=0;
-		for (int x=0; x<size; ++x) {
-			for (int y=0; y<size; ++y) {
-				buffer[i] = (byte) ((matrix[x][y][0]-min) * 255 / (max-min));
-				i++;
-				buffer[i] = (byte) ((matrix[x][y][1]-min) * 255 / (max-min));
-				i++;
-				buffer[i] = (byte) ((matrix[x][y][2]-min) * 255 / (max-min));
-				i++;
+			RasterExporter.write(RasterExporter.of(temperature), RasterExporter.Format.PNG16, 0, 1, new File("temperature.png"));
+			RasterExporter.write(RasterExporter.of(moisture), RasterExporter.Format.PNG16, 0, 1, new File("moisture.png"));
+			RasterExporter.write(RasterExporter.of(heightmap), RasterExporter.Format.PNG16, -1.5f, 1.5f, new File("elevation.png"));
+			RasterExporter.write(RasterExporter.of(noise, 0, 1, 2), RasterExporter.Format.PNG16, 0, 1, new File("noise.png"));
+			for (int i=0; i<Biome.values().length; ++i) {
+				RasterExporter.write(RasterExporter.of(biomes, i), RasterExporter.Format.PNG16, 0, 1,
+						new File("Biome"+Biome.values()[i]+".png"));
 			}
-		}
-		ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB);
-		int[] nBits = { 8, 8, 8 };
-		ColorModel cm = new ComponentColorModel(cs, nBits, false, true,
-				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
-		SampleModel sm = cm.createCompatibleSampleModel(size, size);
-		DataBufferByte db = new DataBufferByte(buffer, size * size * 3);
-		WritableRaster raster = Raster.createWritableRaster(sm, db, null);
-		BufferedImage result = new BufferedImage(cm, raster, false, null);
-		try {
-			ImageIO.write(result, "png", new File(filename));
 		} catch (IOException ex) {
-			Logger.getLogger(SketchTerrain.class.getName()).log(Level.SEVERE, null, ex);
+			LOG.log(Level.SEVERE, "unable to save maps", ex);
 		}
 	}
 }
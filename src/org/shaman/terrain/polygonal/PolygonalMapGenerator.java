@@ -81,6 +81,7 @@ public class PolygonalMapGenerator extends AbstractTerrainStep {
 	private Geometry brushGeom;
 	
 	private Map<Object, Object> nextProps;
+	private final ProgressivePreview<Map<Object, Object>> preview = new ProgressivePreview<>();
 
 	public PolygonalMapGenerator() {
 	}
@@ -149,6 +150,7 @@ public class PolygonalMapGenerator extends AbstractTerrainStep {
 
 	@Override
 	protected void disable() {
+		preview.cancel();
 		app.setSkyEnabled(true);
 		app.setCameraEnabled(true);
 		
@@ -169,27 +171,38 @@ public class PolygonalMapGenerator extends AbstractTerrainStep {
 		screenController.setEditingEnabled(false);
 		screenController.showWaitPopup(true);
 		
-		new Thread(){
+		nextProps = null;
+		final int size = mapSize;
+		final int seed = mapSeed;
+		//show coarse previews first, the full resolution is computed in the background
+		preview.submit(size, new ProgressivePreview.Generator<Map<Object, Object>>() {
+			@Override
+			public Map<Object, Object> generate(int s) {
+				return new GraphToHeightmap(graph, s, seed).getResult();
+			}
+		}, new ProgressivePreview.Listener<Map<Object, Object>>() {
 			@Override
-			public void run() {
-				GraphToHeightmap converter = new GraphToHeightmap(graph, mapSize, app, mapSeed);
-				nextProps = converter.getResult();
+			public void update(final Map<Object, Object> result, int s, final boolean finished) {
+				LOG.info("map with size "+s+" generated");
+				final Heightmap map = ProgressivePreview.upsample((Heightmap) result.get(KEY_HEIGHTMAP), size);
 				app.enqueue(new Callable<Void>() {
 					@Override
 					public Void call() throws Exception {
-						Heightmap map = (Heightmap) nextProps.get(KEY_HEIGHTMAP);
-						Vectorfield biomes = (Vectorfield) nextProps.get(KEY_BIOMES);
+						Vectorfield biomes = (Vectorfield) result.get(KEY_BIOMES);
 						app.setTerrain(map);
 						app.forceTerrainMaterial(BiomesMaterialCreator.createTerrainMaterial(biomes, app.getAssetManager()));
 						app.setSkyEnabled(true);
 						app.setCameraEnabled(true);
 						app.enableWater(0);
 						screenController.showWaitPopup(false);
+						if (finished) {
+							nextProps = result;
+						}
 						return null;
 					}
 				});
 			}
-		}.start();
+		});
 	}
 	
 //<editor-fold defaultstate="collapsed" desc=" Graph creation ">
@@ -1075,6 +1088,8 @@ public class PolygonalMapGenerator extends AbstractTerrainStep {
 		}
 	}
 	void guiContinueEditing() {
+		//the generator reads the graph, it must be stopped before the graph is edited
+		preview.cancelAndWait();
 		graphNode.setCullHint(Spatial.CullHint.Never);
 		screenController.setEditingEnabled(true);
 		app.setSkyEnabled(false);
@@ -15,7 +15,6 @@ import com.jme3.light.DirectionalLight;
 import com.jme3.material.Material;
 import com.jme3.material.RenderState;
 import com.jme3.math.*;
-import com.jme3.renderer.Camera;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
 import com.jme3.renderer.queue.RenderQueue;
@@ -25,26 +24,20 @@ import com.jme3.scene.shape.Cylinder;
 import com.jme3.scene.shape.Quad;
 import com.jme3.scene.shape.Sphere;
 import com.jme3.shadow.DirectionalLightShadowRenderer;
-import com.jme3.texture.FrameBuffer;
-import com.jme3.texture.Image;
 import com.jme3.util.BufferUtils;
 import de.lessvoid.nifty.Nifty;
-import java.awt.Graphics;
-import java.awt.Transparency;
-import java.awt.color.ColorSpace;
-import java.awt.image.*;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.shaman.terrain.AbstractTerrainStep;
 import org.shaman.terrain.TerrainHeighmapCreator;
 import org.shaman.terrain.Heightmap;
+import org.shaman.terrain.MeshRasterizer;
+import org.shaman.terrain.RasterExporter;
 import org.shaman.terrain.erosion.WaterErosionSimulation;
 
 /**
@@ -63,6 +56,7 @@ public class SketchTerrain extends AbstractTerrainStep implements ActionListener
 	private static final boolean DEBUG_DIFFUSION_SOLVER = false;
 	private static final boolean SAVE_TEXTURES = false;
 	private static final int DIFFUSION_SOLVER_ITERATIONS = 100;
+	private static final double DIFFUSION_SOLVER_TOLERANCE = 1e-5;
 	
 	private Heightmap map;
 	private Heightmap originalMap;
@@ -93,8 +87,6 @@ public class SketchTerrain extends AbstractTerrainStep implements ActionListener
 	private int selectedPreset;
 	
 	private DiffusionSolver solver;
-	private Matrix solverMatrix;
-	private int step;
 	private long lastUpdateTime;
 	
 	public SketchTerrain() {
@@ -260,46 +252,44 @@ public class SketchTerrain extends AbstractTerrainStep implements ActionListener
 		LOG.info("Solve diffusion");
 		//create solver
 		solver = new DiffusionSolver(map.getSize(), featureCurves.toArray(new ControlCurve[featureCurves.size()]));
-		solverMatrix = new Matrix(map.getSize(), map.getSize());
-		//Save
-		if (DEBUG_DIFFUSION_SOLVER) {
-			solver.saveFloatMatrix(solverMatrix, "diffusion/Iter0.png",1);
-		}
-		step = 1;
 		screenController.startSolving();
 		lastUpdateTime = System.currentTimeMillis();
 		app.setCameraEnabled(false);
 	}
 	private void runSolving() {
 		long maxTime = 50;
-		int minIterations = 5;
 		//run iterations
 		long time = System.currentTimeMillis() + maxTime;
-		for (int i=0; (System.currentTimeMillis()<time) || (i<minIterations); ++i) {
-			solverMatrix = solver.oneIteration(solverMatrix, step);
-			step++;
+		do {
+			solver.iterate();
+		} while (!solver.isConverged() && System.currentTimeMillis()<time);
+		screenController.setSolvingIteration(solver.getIteration());
+		if (solver.isConverged()) {
+			LOG.log(Level.INFO, "diffusion converged after {0} iterations", solver.getIteration());
+			solvingFinished();
+			return;
 		}
-		screenController.setSolvingIteration(step);
 		//update terrain occasionally
 		time = System.currentTimeMillis();
 		if (time > lastUpdateTime + 500) {
 			lastUpdateTime = time;
-			for (int x=0; x<map.getSize(); ++x) {
-				for (int y=0; y<map.getSize(); ++y) {
-					map.setHeightAt(x, y, (float) solverMatrix.get(x, y) + originalMap.getHeightAt(x, y));
-				}
-			}
+			fillHeightmap();
 			app.setTerrain(map);
 		}
 	}
+	private void fillHeightmap() {
+		double[] solution = solver.getSolution();
+		int size = map.getSize();
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				map.setHeightAt(x, y, (float) solution[x*size + y] + originalMap.getHeightAt(x, y));
+			}
+		}
+	}
 	private void solvingFinished() {
 		LOG.info("solved");
 		//fill heighmap
-		for (int x=0; x<map.getSize(); ++x) {
-			for (int y=0; y<map.getSize(); ++y) {
-				map.setHeightAt(x, y, (float) solverMatrix.get(x, y) + originalMap.getHeightAt(x, y));
-			}
-		}
+		fillHeightmap();
 		app.setTerrain(map);
 		LOG.info("terrain updated");
 		solver = null;
@@ -538,11 +528,18 @@ public class SketchTerrain extends AbstractTerrainStep implements ActionListener
 		private Matrix alpha, beta, gamma; //factors specifying the influence of the gradient, smootheness and elevation
 		private Matrix gradX, gradY; //the normalized direction of the gradient at this point
 		private Matrix gradH; //the target gradient / height difference from the reference point specified by gradX, gradY
+		
+		//the sparse system
+		private final StencilSolver system;
+		private MeshRasterizer rasterizer;
 
 		private DiffusionSolver(int size, ControlCurve[] curves) {
 			this.size = size;
 			this.curves = curves;
 			rasterize();
+			system = new StencilSolver(size);
+			assemble();
+			system.start();
 		}
 		
 		/**
@@ -667,100 +664,78 @@ public class SketchTerrain extends AbstractTerrainStep implements ActionListener
 			LOG.info("curves rasterized");
 		}
 		
-		public Matrix oneIteration(Matrix last, int iteration) {
-			Matrix mat = new Matrix(size, size);
-			//add elevation constraint
-			mat.plusEquals(elevation.arrayTimes(beta));
-			//add laplace constraint
-			Matrix laplace = new Matrix(size, size);
-//			Matrix gamma1 = new Matrix(size, size);
-//			Matrix gamma2 = new Matrix(size, size);
+		/**
+		 * Assembles the sparse system from the rasterized constraints.
+		 * The solution h is the fixed point of the relaxation
+		 * <pre>
+		 * h = beta*elevation + (1-alpha-beta)*gamma*avg4(h) + alpha*(gradH + gx^2*h(x-sgn(gx),y) + gy^2*h(x,y-sgn(gy)))
+		 * </pre>
+		 * that was iterated in the previous version of this solver.
+		 */
+		private void assemble() {
 			for (int x=0; x<size; ++x) {
 				for (int y=0; y<size; ++y) {
-					double v = 0;
-					v += last.get(Math.max(0, x-1), y);
-					v += last.get(Math.min(size-1, x+1), y);
-					v += last.get(x, Math.max(0, y-1));
-					v += last.get(x, Math.min(size-1, y+1));
-					v /= 4.0;
-					v *= 1 - alpha.get(x, y) - beta.get(x, y);
+					double a = alpha.get(x, y);
+					double b = beta.get(x, y);
+					//elevation constraint
+					double rhs = b * elevation.get(x, y) + a * gradH.get(x, y);
+					//laplace constraint
+					double c = 1 - a - b;
 					if (LIMIT_SMOOTHING) {
-						v *= gamma.get(x, y);
+						c *= gamma.get(x, y);
 					}
-//					gamma2.set(x, y, 1 - alpha.get(x, y) - beta.get(x, y));
-//					gamma1.set(x, y, (1 - alpha.get(x, y) - beta.get(x, y)) * gamma.get(x, y));
-					laplace.set(x, y, v);
-				}
-			}
-//			if (iteration==1) {
-//				saveFloatMatrix(gamma1, "diffusion/Gamma1.png", 1);
-//				saveFloatMatrix(gamma2, "diffusion/Gamma2.png", 1);
-//				saveFloatMatrix(gamma1.minus(gamma2), "diffusion/GammaDiff.png", 1);
-//			}
-//			saveFloatMatrix(laplace, "diffusion/Laplace"+iteration+".png",1);
-			mat.plusEquals(laplace);
-			//add gradient constraint
-			Matrix gradient = new Matrix(size, size);
-			for (int x=0; x<size; ++x) {
-				for (int y=0; y<size; ++y) {
-					double v = 0;
-					//v = gradH.get(x, y);
+					double west = -c/4, east = -c/4, south = -c/4, north = -c/4;
+					//gradient constraint
 					double gx = gradX.get(x, y);
 					double gy = gradY.get(x, y);
-					if (gx==0 && gy==0) {
-						v = 0; //no gradient
-					} else {
-						double h1, h2;
-						if (EVALUATE_SLOPE_RELATIVE_TO_ORIGINAL) {
-							h1 = last.get(clamp(x-(int) Math.signum(gx)), y)
-									+ originalMap.getHeightAt(clamp(x-(int) Math.signum(gx)), y)
-									- originalMap.getHeightAt(x, y);
-							h2 = last.get(x, clamp(y-(int) Math.signum(gy)))
-									+ originalMap.getHeightAt(x, clamp(y-(int) Math.signum(gy)))
-									- originalMap.getHeightAt(x, y);
-						} else {
-							h1 = last.get(clamp(x-(int) Math.signum(gx)), y);
-							h2 = last.get(x, clamp(y-(int) Math.signum(gy)));
-						}
-						v += gx*gx*h1;
-						v += gy*gy*h2;
+					double wx = a * gx * gx;
+					double wy = a * gy * gy;
+					if (gx > 0) {
+						west -= wx;
+					} else if (gx < 0) {
+						east -= wx;
+					}
+					if (gy > 0) {
+						south -= wy;
+					} else if (gy < 0) {
+						north -= wy;
 					}
-					gradient.set(x, y, v);
+					if (EVALUATE_SLOPE_RELATIVE_TO_ORIGINAL) {
+						double h = originalMap.getHeightAt(x, y);
+						rhs += wx * (originalMap.getHeightAt(clamp(x-(int) Math.signum(gx)), y) - h);
+						rhs += wy * (originalMap.getHeightAt(x, clamp(y-(int) Math.signum(gy))) - h);
+					}
+					system.setEquation(x, y, 1, west, east, south, north, rhs);
 				}
 			}
-			Matrix oldGradient;
-			if (DEBUG_DIFFUSION_SOLVER) {
-				oldGradient = gradient.copy(); //Test
-			}
-			if (DEBUG_DIFFUSION_SOLVER) {
-				saveFloatMatrix(gradient, "diffusion/Gradient"+iteration+".png",1);
-			}
-			Matrix gradChange = gradH.plus(gradient);
-			gradChange.arrayTimesEquals(alpha);
-			if (DEBUG_DIFFUSION_SOLVER) {
-				saveFloatMatrix(gradChange, "diffusion/GradChange"+iteration+".png",1);
-			}
-			mat.plusEquals(gradChange);
-			//Test
+		}
+		
+		/**
+		 * Performs one iteration of the sparse solver
+		 */
+		public void iterate() {
+			system.iterate();
 			if (DEBUG_DIFFUSION_SOLVER) {
-				Matrix newGradient = new Matrix(size, size);
-				for (int x=0; x<size; ++x) {
-					for (int y=0; y<size; ++y) {
-						double v = 0;
-						v += gradX.get(x, y)*gradX.get(x, y)
-								*mat.get(clamp(x-(int) Math.signum(gradX.get(x, y))), y);
-						v += gradY.get(x, y)*gradY.get(x, y)
-								*mat.get(x, clamp(y-(int) Math.signum(gradY.get(x, y))));
-						v -= mat.get(x, y);
-						newGradient.set(x, y, -v);
-					}
-				}
-				Matrix diff = oldGradient.minus(newGradient);
-				saveFloatMatrix(diff, "diffusion/Diff"+iteration+".png",1);
+				LOG.log(Level.INFO, "iteration {0}: residual={1}", new Object[]{system.getIteration(), system.getResidual()});
 			}
-			
-			return mat;
 		}
+		
+		public boolean isConverged() {
+			return system.getResidual() <= DIFFUSION_SOLVER_TOLERANCE
+					|| system.getIteration() >= DIFFUSION_SOLVER_ITERATIONS;
+		}
+		
+		public int getIteration() {
+			return system.getIteration();
+		}
+		
+		/**
+		 * @return the height offset to the original map, stored at {@code x*size+y}
+		 */
+		public double[] getSolution() {
+			return system.getSolution();
+		}
+		
 		private int clamp(int i) {
 			return Math.max(0, Math.min(size-1, i));
 		}
@@ -1090,30 +1065,15 @@ public class SketchTerrain extends AbstractTerrainStep implements ActionListener
 		 * @param scene 
 		 */
 		private void fillMatrix(Matrix matrix, Spatial scene, boolean max) {
-			//init
-			Camera cam = new Camera(size, size);
-			cam.setParallelProjection(true);
-			ViewPort view = new ViewPort("Off", cam);
-			view.setClearFlags(true, true, true);
-			FrameBuffer buffer = new FrameBuffer(size, size, 1);
-			buffer.setDepthBuffer(Image.Format.Depth);
-			buffer.setColorBuffer(Image.Format.RGBA32F);
-			view.setOutputFrameBuffer(buffer);
-			view.attachScene(scene);
 			//render
-			scene.updateGeometricState();
-			view.setEnabled(true);
-			app.getRenderManager().renderViewPort(view, 0);
+			MeshRasterizer rasterizer = getRasterizer();
+			rasterizer.clear(ColorRGBA.BlackNoAlpha);
+			rasterizer.draw(scene);
 			//retrive data
-			ByteBuffer data = BufferUtils.createByteBuffer(size*size*4*4);
-			app.getRenderer().readFrameBufferWithFormat(buffer, data, Image.Format.RGBA32F);
-			data.rewind();
-			for (int y=0; y<size; ++y) {
-				for (int x=0; x<size; ++x) {
-//					byte d = data.get();
-//					matrix.set(x, y, (d & 0xff) / 255.0);
-//					data.get(); data.get(); data.get();
-					double v = data.getFloat();
+			float[] data = rasterizer.getChannel(0);
+			for (int x=0; x<size; ++x) {
+				for (int y=0; y<size; ++y) {
+					double v = data[x*size + y];
 					double old = matrix.get(x, y);
 					if (max) {
 						v = Math.max(v, old);
@@ -1121,7 +1081,6 @@ public class SketchTerrain extends AbstractTerrainStep implements ActionListener
 						v += old;
 					}
 					matrix.set(x, y, v);
-					data.getFloat(); data.getFloat(); data.getFloat();
 				}
 			}
 		}
@@ -1132,95 +1091,76 @@ public class SketchTerrain extends AbstractTerrainStep implements ActionListener
 		 * @param scene 
 		 */
 		private void fillSlopeMatrix(Spatial scene) {
-			//init
-			Camera cam = new Camera(size, size);
-			cam.setParallelProjection(true);
-			ViewPort view = new ViewPort("Off", cam);
-			view.setClearFlags(true, true, true);
-			view.setBackgroundColor(new ColorRGBA(0.5f, 0.5f, 0.5f, 0f));
-			FrameBuffer buffer = new FrameBuffer(size, size, 1);
-			buffer.setDepthBuffer(Image.Format.Depth);
-			buffer.setColorBuffer(Image.Format.RGBA32F);
-			view.setOutputFrameBuffer(buffer);
-			view.attachScene(scene);
 			//render
-			scene.updateGeometricState();
-			view.setEnabled(true);
-			app.getRenderManager().renderViewPort(view, 0);
+			MeshRasterizer rasterizer = getRasterizer();
+			rasterizer.clear(new ColorRGBA(0.5f, 0.5f, 0.5f, 0f));
+			rasterizer.draw(scene);
 			//retrive data
-			ByteBuffer data = BufferUtils.createByteBuffer(size*size*4*4);
-			app.getRenderer().readFrameBufferWithFormat(buffer, data, Image.Format.RGBA32F);
-			data.rewind();
-			for (int y=0; y<size; ++y) {
-				for (int x=0; x<size; ++x) {
-//					double gx = (((data.get() & 0xff) / 256.0) - 0.5) * 2;
-//					double gy = (((data.get() & 0xff) / 256.0) - 0.5) * 2;
-					double gx = (data.getFloat() - 0.5) * 2;
-					double gy = (data.getFloat() - 0.5) * 2;
+			float[] red = rasterizer.getChannel(0);
+			float[] green = rasterizer.getChannel(1);
+			float[] blue = rasterizer.getChannel(2);
+			float[] alphaChannel = rasterizer.getChannel(3);
+			for (int x=0; x<size; ++x) {
+				for (int y=0; y<size; ++y) {
+					int i = x*size + y;
+					double gx = (red[i] - 0.5) * 2;
+					double gy = (green[i] - 0.5) * 2;
 					double s = Math.sqrt(gx*gx + gy*gy);
 					if (s==0) {
 						gx=0; gy=0; s=1;
 					}
 					gradX.set(x, y, (gx / s) + gradX.get(x, y));
 					gradY.set(x, y, (gy / s) + gradY.get(x, y));
-//					double v = (((data.get() & 0xff) / 255.0) - 0.5);
-					double v = (data.getFloat() - 0.5);
+					double v = (blue[i] - 0.5);
 					if (Math.abs(v)<0.002) {
 						v=0;
 					}
 					gradH.set(x, y, v*2 + gradH.get(x, y));
-//					data.get();
-					double a = data.getFloat();
+					double a = alphaChannel[i];
 					alpha.set(x, y, a);
 				}
 			}
 		}
 		
-		private void saveMatrix(Matrix matrix, String filename) {
-			byte[] buffer = new byte[size*size];
-			int i=0;
-			for (int x=0; x<size; ++x) {
-				for (int y=0; y<size; ++y) {
-					buffer[i] = (byte) (matrix.get(x, y) * 255);
-					i++;
-				}
-			}
-			ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-			int[] nBits = { 8 };
-			ColorModel cm = new ComponentColorModel(cs, nBits, false, true,
-					Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
-			SampleModel sm = cm.createCompatibleSampleModel(size, size);
-			DataBufferByte db = new DataBufferByte(buffer, size * size);
-			WritableRaster raster = Raster.createWritableRaster(sm, db, null);
-			BufferedImage result = new BufferedImage(cm, raster, false, null);
-			try {
-				ImageIO.write(result, "png", new File(filename));
-			} catch (IOException ex) {
-				Logger.getLogger(SketchTerrain.class.getName()).log(Level.SEVERE, null, ex);
+		private MeshRasterizer getRasterizer() {
+			if (rasterizer == null) {
+				rasterizer = new MeshRasterizer(size);
 			}
+			return rasterizer;
+		}
+		
+		private void saveMatrix(Matrix matrix, String filename) {
+			saveMatrix(matrix, filename, 0, 1);
 		}
 		
 		private void saveFloatMatrix(Matrix matrix, String filename, double scale) {
-			byte[] buffer = new byte[size*size];
-			int i=0;
-			for (int x=0; x<size; ++x) {
-				for (int y=0; y<size; ++y) {
-					buffer[i] = (byte) ((matrix.get(x, y)*scale/2 + 0.5) * 255);
-					i++;
+			saveMatrix(matrix, filename, (float) (-1/scale), (float) (1/scale));
+		}
+		
+		private void saveMatrix(final Matrix matrix, String filename, float min, float max) {
+			RasterExporter.Source source = new RasterExporter.Source() {
+				@Override
+				public int getSize() {
+					return matrix.getRowDimension();
 				}
-			}
-			ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-			int[] nBits = { 8 };
-			ColorModel cm = new ComponentColorModel(cs, nBits, false, true,
-					Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
-			SampleModel sm = cm.createCompatibleSampleModel(size, size);
-			DataBufferByte db = new DataBufferByte(buffer, size * size);
-			WritableRaster raster = Raster.createWritableRaster(sm, db, null);
-			BufferedImage result = new BufferedImage(cm, raster, false, null);
+
+				@Override
+				public int getChannels() {
+					return 1;
+				}
+
+				@Override
+				public void getRow(int channel, int x, int y, int length, float[] store) {
+					double[] row = matrix.getArray()[x];
+					for (int i=0; i<length; ++i) {
+						store[i] = (float) row[y+i];
+					}
+				}
+			};
 			try {
-				ImageIO.write(result, "png", new File(filename));
+				RasterExporter.write(source, RasterExporter.Format.PNG16, min, max, new File(filename));
 			} catch (IOException ex) {
-				Logger.getLogger(SketchTerrain.class.getName()).log(Level.SEVERE, null, ex);
+				LOG.log(Level.SEVERE, "unable to save "+filename, ex);
 			}
 		}
 	}
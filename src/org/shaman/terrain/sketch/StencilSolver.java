@@ -0,0 +1,356 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.sketch;
+
+import java.util.Arrays;
+
+/**
+ * Solves a sparse linear system with a five-point stencil on a square grid.
+ * Every cell {@code (x,y)} has one equation
+ * <pre>
+ * center*h(x,y) + west*h(x-1,y) + east*h(x+1,y) + south*h(x,y-1) + north*h(x,y+1) = rhs
+ * </pre>
+ * The system does not need to be symmetric, but it should be diagonally dominant.
+ * It is solved with BiCGSTAB, preconditioned with one multigrid V-cycle.
+ * The coarse levels are built by aggregating 2x2 cells (Galerkin product with
+ * piecewise constant interpolation), Gauss-Seidel is used as smoother.
+ * <p>
+ * All memory is allocated in the constructor, {@link #iterate() } works in place.
+ * The cell {@code (x,y)} is stored at index {@code x*size+y}.
+ * @author Sebastian Weiss
+ */
+public class StencilSolver {
+	private static final int PRE_SMOOTHING = 2;
+	private static final int POST_SMOOTHING = 2;
+	private static final int COARSEST_SIZE = 4;
+	private static final int COARSEST_SMOOTHING = 32;
+
+	/**
+	 * One level of the multigrid hierarchy
+	 */
+	private static final class Level {
+		private final int size;
+		private final double[] center, west, east, south, north;
+		/**
+		 * solution and right hand side of the correction equation
+		 */
+		private final double[] x, b;
+
+		private Level(int size) {
+			this.size = size;
+			int n = size*size;
+			center = new double[n];
+			west = new double[n];
+			east = new double[n];
+			south = new double[n];
+			north = new double[n];
+			x = new double[n];
+			b = new double[n];
+		}
+	}
+
+	private final int size;
+	private final int n;
+	private final Level[] levels;
+	private final double[] rhs;
+	private final double[] solution;
+	//BiCGSTAB vectors
+	private final double[] r, r0, p, v, s, t, y, z;
+	private double rho, alpha, omega;
+	private double rhsNorm;
+	private double residual;
+	private int iteration;
+	private boolean hierarchyDirty = true;
+
+	public StencilSolver(int size) {
+		this.size = size;
+		this.n = size*size;
+		int count = 1;
+		for (int s=size; s>COARSEST_SIZE; s=(s+1)/2) {
+			count++;
+		}
+		levels = new Level[count];
+		int ls = size;
+		for (int i=0; i<count; ++i) {
+			levels[i] = new Level(ls);
+			ls = (ls+1)/2;
+		}
+		rhs = new double[n];
+		solution = new double[n];
+		r = new double[n];
+		r0 = new double[n];
+		p = new double[n];
+		v = new double[n];
+		s = new double[n];
+		t = new double[n];
+		y = new double[n];
+		z = new double[n];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Sets the equation of a cell.
+	 * Neighbors outside of the grid are clamped to the border, their weight is
+	 * added to the center.
+	 */
+	public void setEquation(int x, int y, double center, double west, double east,
+			double south, double north, double rhs) {
+		Level l = levels[0];
+		int i = x*size + y;
+		if (x==0) { center += west; west = 0; }
+		if (x==size-1) { center += east; east = 0; }
+		if (y==0) { center += south; south = 0; }
+		if (y==size-1) { center += north; north = 0; }
+		l.center[i] = center;
+		l.west[i] = west;
+		l.east[i] = east;
+		l.south[i] = south;
+		l.north[i] = north;
+		this.rhs[i] = rhs;
+		hierarchyDirty = true;
+	}
+
+	/**
+	 * @return the solution vector, can be modified to set the initial guess
+	 * before {@link #start() } is called
+	 */
+	public double[] getSolution() {
+		return solution;
+	}
+
+	/**
+	 * @return the relative residual {@code |b-Ax| / |b|} after the last iteration
+	 */
+	public double getResidual() {
+		return residual;
+	}
+
+	/**
+	 * @return the number of iterations since {@link #start() }
+	 */
+	public int getIteration() {
+		return iteration;
+	}
+
+	/**
+	 * Starts the solver with the current solution as initial guess.
+	 * Must be called after the equations were changed.
+	 */
+	public void start() {
+		if (hierarchyDirty) {
+			for (int i=1; i<levels.length; ++i) {
+				coarsen(levels[i-1], levels[i]);
+			}
+			hierarchyDirty = false;
+		}
+		multiply(levels[0], solution, r);
+		for (int i=0; i<n; ++i) {
+			r[i] = rhs[i] - r[i];
+		}
+		System.arraycopy(r, 0, r0, 0, n);
+		Arrays.fill(p, 0);
+		Arrays.fill(v, 0);
+		rho = alpha = omega = 1;
+		rhsNorm = Math.sqrt(dot(rhs, rhs));
+		if (rhsNorm == 0) {
+			rhsNorm = 1;
+		}
+		residual = Math.sqrt(dot(r, r)) / rhsNorm;
+		iteration = 0;
+	}
+
+	/**
+	 * Performs one preconditioned BiCGSTAB iteration
+	 * @return the relative residual
+	 */
+	public double iterate() {
+		if (residual == 0) {
+			return 0;
+		}
+		double rhoNew = dot(r0, r);
+		if (rhoNew == 0) {
+			//breakdown, restart with the current solution
+			start();
+			rhoNew = dot(r0, r);
+		}
+		double beta = (rhoNew / rho) * (alpha / omega);
+		for (int i=0; i<n; ++i) {
+			p[i] = r[i] + beta * (p[i] - omega * v[i]);
+		}
+		precondition(p, y);
+		multiply(levels[0], y, v);
+		alpha = rhoNew / dot(r0, v);
+		for (int i=0; i<n; ++i) {
+			s[i] = r[i] - alpha * v[i];
+		}
+		precondition(s, z);
+		multiply(levels[0], z, t);
+		double tt = dot(t, t);
+		omega = tt == 0 ? 0 : dot(t, s) / tt;
+		for (int i=0; i<n; ++i) {
+			solution[i] += alpha * y[i] + omega * z[i];
+			r[i] = s[i] - omega * t[i];
+		}
+		rho = rhoNew;
+		iteration++;
+		residual = Math.sqrt(dot(r, r)) / rhsNorm;
+		if (omega == 0) {
+			start(); //stagnation, restart
+		}
+		return residual;
+	}
+
+	/**
+	 * Iterates until the relative residual is below the tolerance.
+	 * @param tolerance the relative residual
+	 * @param maxIterations the maximal number of iterations
+	 * @return the number of iterations
+	 */
+	public int solve(double tolerance, int maxIterations) {
+		start();
+		while (residual > tolerance && iteration < maxIterations) {
+			iterate();
+		}
+		return iteration;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int i=0; i<a.length; ++i) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * out = A*in
+	 */
+	private static void multiply(Level l, double[] in, double[] out) {
+		int size = l.size;
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				int i = x*size + y;
+				double v = l.center[i] * in[i];
+				if (x>0) v += l.west[i] * in[i-size];
+				if (x<size-1) v += l.east[i] * in[i+size];
+				if (y>0) v += l.south[i] * in[i-1];
+				if (y<size-1) v += l.north[i] * in[i+1];
+				out[i] = v;
+			}
+		}
+	}
+
+	/**
+	 * Builds the coarse operator {@code P^T A P}, P maps every coarse cell
+	 * to the 2x2 fine cells
+	 */
+	private static void coarsen(Level fine, Level coarse) {
+		int fs = fine.size;
+		int cs = coarse.size;
+		Arrays.fill(coarse.center, 0);
+		Arrays.fill(coarse.west, 0);
+		Arrays.fill(coarse.east, 0);
+		Arrays.fill(coarse.south, 0);
+		Arrays.fill(coarse.north, 0);
+		for (int x=0; x<fs; ++x) {
+			int cx = x/2;
+			for (int y=0; y<fs; ++y) {
+				int cy = y/2;
+				int i = x*fs + y;
+				int j = cx*cs + cy;
+				coarse.center[j] += fine.center[i];
+				//west/east neighbor is in the same aggregate if x is odd / even
+				if ((x&1)==1) coarse.center[j] += fine.west[i]; else coarse.west[j] += fine.west[i];
+				if ((x&1)==0 && x<fs-1) coarse.center[j] += fine.east[i]; else coarse.east[j] += fine.east[i];
+				if ((y&1)==1) coarse.center[j] += fine.south[i]; else coarse.south[j] += fine.south[i];
+				if ((y&1)==0 && y<fs-1) coarse.center[j] += fine.north[i]; else coarse.north[j] += fine.north[i];
+			}
+		}
+	}
+
+	/**
+	 * out = V-cycle(in), a fixed linear operator
+	 */
+	private void precondition(double[] in, double[] out) {
+		Level l = levels[0];
+		System.arraycopy(in, 0, l.b, 0, n);
+		Arrays.fill(l.x, 0);
+		vcycle(0);
+		System.arraycopy(l.x, 0, out, 0, n);
+	}
+
+	private void vcycle(int level) {
+		Level l = levels[level];
+		if (level == levels.length-1) {
+			for (int i=0; i<COARSEST_SMOOTHING; ++i) {
+				smooth(l, true);
+				smooth(l, false);
+			}
+			return;
+		}
+		for (int i=0; i<PRE_SMOOTHING; ++i) {
+			smooth(l, true);
+		}
+		//restrict the residual
+		Level c = levels[level+1];
+		int fs = l.size;
+		int cs = c.size;
+		Arrays.fill(c.b, 0);
+		Arrays.fill(c.x, 0);
+		for (int x=0; x<fs; ++x) {
+			for (int y=0; y<fs; ++y) {
+				c.b[(x/2)*cs + y/2] += residual(l, x, y);
+			}
+		}
+		vcycle(level+1);
+		//prolongate the correction
+		for (int x=0; x<fs; ++x) {
+			for (int y=0; y<fs; ++y) {
+				l.x[x*fs + y] += c.x[(x/2)*cs + y/2];
+			}
+		}
+		for (int i=0; i<POST_SMOOTHING; ++i) {
+			smooth(l, false);
+		}
+	}
+
+	private static double residual(Level l, int x, int y) {
+		int size = l.size;
+		int i = x*size + y;
+		double v = l.center[i] * l.x[i];
+		if (x>0) v += l.west[i] * l.x[i-size];
+		if (x<size-1) v += l.east[i] * l.x[i+size];
+		if (y>0) v += l.south[i] * l.x[i-1];
+		if (y<size-1) v += l.north[i] * l.x[i+1];
+		return l.b[i] - v;
+	}
+
+	/**
+	 * One Gauss-Seidel sweep, forward or backward
+	 */
+	private static void smooth(Level l, boolean forward) {
+		int size = l.size;
+		int n = size*size;
+		for (int k=0; k<n; ++k) {
+			int i = forward ? k : n-1-k;
+			double c = l.center[i];
+			if (c == 0) {
+				continue;
+			}
+			int x = i / size;
+			int y = i - x*size;
+			double v = l.b[i];
+			if (x>0) v -= l.west[i] * l.x[i-size];
+			if (x<size-1) v -= l.east[i] * l.x[i+size];
+			if (y>0) v -= l.south[i] * l.x[i-1];
+			if (y<size-1) v -= l.north[i] * l.x[i+1];
+			l.x[i] = v / c;
+		}
+	}
+}
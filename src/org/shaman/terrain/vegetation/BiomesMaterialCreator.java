@@ -105,9 +105,10 @@ public class BiomesMaterialCreator {
 		initPlainMaterial();
 	}
 	private void normalize() {
+		float[] v = new float[biomes.getDimensions()];
 		for (int x=0; x<size; ++x) {
 			for (int y=0; y<size; ++y) {
-				float[] v = biomes.getVectorAt(x, y);
+				v = biomes.getVectorAt(x, y, v);
 				float sum = 0;
 				for (int i=0; i<v.length; ++i) {
 					sum += v[i]*v[i];
@@ -220,9 +221,10 @@ public class BiomesMaterialCreator {
 		buf2.rewind();
 		buf3.rewind();
 		float[] colors = new float[3*4];
+		float[] v = new float[biomes.getDimensions()];
 		for (int x=0; x<size; ++x) {
 			for (int y=0; y<size; ++y) {
-				float[] v = biomes.getVectorAt(y, size-x-1);
+				v = biomes.getVectorAt(y, size-x-1, v);
 				Arrays.fill(colors, 0);
 				for (int i=0; i<v.length; ++i) {
 					colors[BIOME_TO_TEXTURE[i]] += 1-(1-v[i])*(1-v[i]);
@@ -282,11 +284,12 @@ public class BiomesMaterialCreator {
 		buf.rewind();
 		float r,g,b,a;
 		Biome[] bx = Biome.values();
+		float[] v = new float[biomes.getDimensions()];
 		for (int x=0; x<size; ++x) {
 			for (int y=0; y<size; ++y) {
 				r=g=b=0;
 				a=1;
-				float[] v = biomes.getVectorAt(y, size-x-1);
+				v = biomes.getVectorAt(y, size-x-1, v);
 				for (int i=0; i<v.length; ++i) {
 					r += v[i]*bx[i].color.r;
 					g += v[i]*bx[i].color.g;
@@ -150,15 +150,23 @@ public class GrassPlanter {
 			//The iterator divided by four is the grass-count.
 			return iIt/4;
 		}
+
+		@Override
+		public long getChecksum() {
+			//hashes the whole maps, so edits in place are detected as well
+			long hash = (map.getChecksum() ^ biomes.getChecksum()) * 0x100000001b3L;
+			return (hash ^ Float.floatToIntBits(scaleFactor)) * 0x100000001b3L;
+		}
 		
 	}
 	private Texture createDensityMap(Heightmap map) {
 		ByteBuffer data = BufferUtils.createByteBuffer(map.getSize() * map.getSize() * 4);
 		data.rewind();
+		float[] b = new float[biomes.getDimensions()];
 		for (int x=0; x<map.getSize(); ++x) {
 			for (int y=0; y<map.getSize(); ++y) {
 				float h = map.getHeightAt(y, map.getSize()-x-1);
-				float[] b = biomes.getVectorAt(x, y);
+				b = biomes.getVectorAt(x, y, b);
 				float v = h>0 ? 1 : 0;
 				v *= (b[Biome.GRASSLAND.ordinal()]*1 + b[Biome.TUNDRA.ordinal()]*0.2f
 						+ b[Biome.TAIGA.ordinal()]*0.2f);
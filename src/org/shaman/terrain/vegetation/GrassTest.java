@@ -27,9 +27,8 @@ import com.jme3.texture.Texture;
 import com.jme3.texture.Texture2D;
 import com.jme3.texture.image.ColorSpace;
 import com.jme3.util.BufferUtils;
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
-import java.io.ObjectInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.logging.Level;
@@ -37,6 +36,7 @@ import java.util.logging.Logger;
 import org.shaman.terrain.AbstractTerrainStep;
 import org.shaman.terrain.CustomFlyByCamera;
 import org.shaman.terrain.Heightmap;
+import org.shaman.terrain.SaveFile;
 import se.fojob.forester.Forester;
 import se.fojob.forester.RectBounds;
 import se.fojob.forester.grass.GrassLayer;
@@ -96,10 +96,9 @@ public class GrassTest extends SimpleApplication {
 		
 		String file = "C:\\Users\\Sebastian\\Documents\\Java\\ProceduralTerrain\\saves\\Auto WaterErosionSimulation 325_20_47_28.save";
 		Map<Object, Object> loadedProperties = null;
-		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-			Class loadedStep = (Class<? extends AbstractTerrainStep>) in.readObject();
-			loadedProperties = (Map<Object, Object>) in.readObject();
-		} catch (Exception ex) {
+		try {
+			loadedProperties = SaveFile.read(new File(file)).getProperties();
+		} catch (IOException ex) {
 			LOG.log(Level.SEVERE, "unable to load save file", ex);
 		}
 		
@@ -216,6 +215,12 @@ public class GrassTest extends SimpleApplication {
 			//The iterator divided by four is the grass-count.
 			return iIt/4;
 		}
+
+		@Override
+		public long getChecksum() {
+			//hashes the whole map, so edits in place are detected as well
+			return map.getChecksum();
+		}
 		
 	}
 	private Texture createDensityMap(Heightmap map) {
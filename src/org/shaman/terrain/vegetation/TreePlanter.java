@@ -121,6 +121,7 @@ public class TreePlanter {
 		float density = 0.2f / size;
 		Random rand = new Random();
 		Biome[] allBiomes = Biome.values();
+		float[] v = new float[biomes.getDimensions()];
 		for (int x=0; x<biomes.getSize(); ++x) {
 			for (int y=0; y<biomes.getSize(); ++y) {
 				if (map.getHeightAt(x, y)<=0) {
@@ -131,7 +132,7 @@ public class TreePlanter {
 					continue;
 				}
 				//find highest scoring biome
-				float[] v = biomes.getVectorAt(x, y);
+				v = biomes.getVectorAt(x, y, v);
 				float max = 0;
 				Biome biome = null;
 				for (int i=0; i<v.length; ++i) {
@@ -284,11 +284,12 @@ public class VegetationGenerator extends AbstractTerrainStep {
 	}
 	void guiSmoothBiomeBorder() {
 		Vectorfield b = materialCreator.getBiomes().clone();
+		float[] v2 = new float[b.getDimensions()];
 		for (int x=0; x<b.getSize(); ++x) {
 			for (int y=0; y<b.getSize(); ++y) {
 				float[] v = new float[b.getDimensions()];
 				for (float[] i : KERNEL) {
-					float[] v2 = b.getVectorAtClamping(x+(int) i[0], y+ (int) i[1]);
+					v2 = b.getVectorAtClamping(x+(int) i[0], y+ (int) i[1], v2);
 					for (int j=0; j<b.getDimensions(); ++j) {
 						v[j] += v2[j]*i[2];
 					}
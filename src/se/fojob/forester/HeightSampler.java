@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package se.fojob.forester;
+
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Spatial;
+import com.jme3.terrain.Terrain;
+
+/**
+ * A snapshot of the heights of a terrain. Lookups use bilinear interpolation
+ * and never allocate, and since the snapshot is never modified it can be 
+ * shared between loader threads.
+ * <br/><br/>
+ * Create one snapshot of the whole terrain with create(Terrain), and a small 
+ * region of it with getRegion() when a tile is loaded. The region is a 
+ * compact copy, so the lookups of a tile stay in a few cache lines.
+ * Heights are returned the same way as Terrain.getHeight(), that is in world 
+ * units without the y-translation, and NaN outside of the terrain.
+ * 
+ * @author Andreas
+ */
+public class HeightSampler {
+
+    //The samples, the sample at x,z is stored at x + width*z.
+    protected final float[] heights;
+    protected final int width, depth;
+    //The heightmap position of the first sample.
+    protected final int originX, originZ;
+    //The size of the whole heightmap.
+    protected final int size;
+    //World to heightmap transform.
+    protected final float invScaleX, invScaleZ, biasX, biasZ, scaleY;
+    
+    protected HeightSampler(float[] heights, int width, int depth, int originX, int originZ, HeightSampler parent) {
+        this.heights = heights;
+        this.width = width;
+        this.depth = depth;
+        this.originX = originX;
+        this.originZ = originZ;
+        this.size = parent.size;
+        this.invScaleX = parent.invScaleX;
+        this.invScaleZ = parent.invScaleZ;
+        this.biasX = parent.biasX;
+        this.biasZ = parent.biasZ;
+        this.scaleY = parent.scaleY;
+    }
+    
+    protected HeightSampler(float[] heights, int size, Vector3f translation, Vector3f scale) {
+        this.heights = heights;
+        this.width = size;
+        this.depth = size;
+        this.originX = 0;
+        this.originZ = 0;
+        this.size = size;
+        this.invScaleX = 1f / scale.x;
+        this.invScaleZ = 1f / scale.z;
+        //Same offset as the terrain quad.
+        this.biasX = (size - 1) * 0.5f - translation.x / scale.x;
+        this.biasZ = (size - 1) * 0.5f - translation.z / scale.z;
+        this.scaleY = scale.y;
+    }
+    
+    /**
+     * Takes a snapshot of the whole terrain. This copies the heightmap, so 
+     * do it once and create regions from it.
+     * 
+     * @param terrain The terrain.
+     * @return The height sampler.
+     */
+    public static HeightSampler create(Terrain terrain){
+        float[] map = terrain.getHeightMap();
+        int size = (int) Math.sqrt(map.length);
+        Vector3f translation = Vector3f.ZERO;
+        Vector3f scale = Vector3f.UNIT_XYZ;
+        if(terrain instanceof Spatial){
+            Spatial spatial = (Spatial) terrain;
+            translation = spatial.getWorldTranslation();
+            scale = spatial.getWorldScale();
+        }
+        return new HeightSampler(map, size, translation, scale);
+    }
+    
+    /**
+     * Copies the samples needed for lookups within the given rectangle.
+     * 
+     * @param bounds The rectangle (in world coordinates).
+     * @param margin How much to extend the rectangle on each side.
+     * @return A height sampler for the region.
+     */
+    public HeightSampler getRegion(RectBounds bounds, float margin){
+        return getRegion(bounds.getxMin() - margin, bounds.getzMin() - margin, 
+                bounds.getxMax() + margin, bounds.getzMax() + margin);
+    }
+    
+    /**
+     * Copies the samples needed for lookups within the given rectangle.
+     * Lookups outside of it are clamped to the border of the region.
+     * 
+     * @param xMin The minimum x-coordinate.
+     * @param zMin The minimum z-coordinate.
+     * @param xMax The maximum x-coordinate.
+     * @param zMax The maximum z-coordinate.
+     * @return A height sampler for the region.
+     */
+    public HeightSampler getRegion(float xMin, float zMin, float xMax, float zMax){
+        float hx0 = xMin*invScaleX + biasX, hx1 = xMax*invScaleX + biasX;
+        float hz0 = zMin*invScaleZ + biasZ, hz1 = zMax*invScaleZ + biasZ;
+        //A negative scale flips the axis.
+        int x0 = clamp((int) Math.floor(Math.min(hx0, hx1)), originX, originX + width - 2);
+        int x1 = clamp((int) Math.ceil(Math.max(hx0, hx1)) + 1, x0 + 2, originX + width);
+        int z0 = clamp((int) Math.floor(Math.min(hz0, hz1)), originZ, originZ + depth - 2);
+        int z1 = clamp((int) Math.ceil(Math.max(hz0, hz1)) + 1, z0 + 2, originZ + depth);
+        int w = x1 - x0;
+        int d = z1 - z0;
+        float[] region = new float[w * d];
+        for(int z = 0; z < d; z++){
+            System.arraycopy(heights, (x0 - originX) + width * (z + z0 - originZ), region, w * z, w);
+        }
+        return new HeightSampler(region, w, d, x0, z0, this);
+    }
+    
+    private static int clamp(int value, int min, int max){
+        return value < min ? min : (value > max ? max : value);
+    }
+    
+    /**
+     * Gets the height at a world position.
+     * 
+     * @param x The x-coordinate.
+     * @param z The z-coordinate.
+     * @return The height, or NaN if the position is outside of the terrain.
+     */
+    public float getHeight(float x, float z){
+        float hx = x*invScaleX + biasX;
+        float hz = z*invScaleZ + biasZ;
+        if(!(hx >= 0 && hz >= 0 && hx <= size - 1 && hz <= size - 1)){
+            return Float.NaN;
+        }
+        hx -= originX;
+        hz -= originZ;
+        int ix = clamp((int) hx, 0, width - 2);
+        int iz = clamp((int) hz, 0, depth - 2);
+        float fx = Math.min(Math.max(hx - ix, 0f), 1f);
+        float fz = Math.min(Math.max(hz - iz, 0f), 1f);
+        int i = ix + width * iz;
+        float h0 = heights[i] + (heights[i + 1] - heights[i]) * fx;
+        float h1 = heights[i + width] + (heights[i + width + 1] - heights[i + width]) * fx;
+        return (h0 + (h1 - h0) * fz) * scaleY;
+    }
+    
+    /**
+     * Gets a checksum of the samples and the transform. Caches use it to
+     * detect a modified terrain.
+     * 
+     * @return A 64 bit hash.
+     */
+    public long getChecksum(){
+        //FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        int[] values = {width, depth, originX, originZ, size, Float.floatToIntBits(invScaleX),
+            Float.floatToIntBits(invScaleZ), Float.floatToIntBits(biasX), 
+            Float.floatToIntBits(biasZ), Float.floatToIntBits(scaleY)};
+        for(int value : values){
+            hash = (hash ^ value) * 0x100000001b3L;
+        }
+        for(float height : heights){
+            hash = (hash ^ Float.floatToIntBits(height)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    /**
+     * Gets the heights of several positions.
+     * 
+     * @param xz The positions as x,z pairs.
+     * @param count The number of positions.
+     * @param store The array to store the heights in, it is created if it
+     * is null or too small.
+     * @return The heights.
+     */
+    public float[] getHeights(float[] xz, int count, float[] store){
+        if(store == null || store.length < count){
+            store = new float[count];
+        }
+        for(int i = 0; i < count; i++){
+            store[i] = getHeight(xz[2*i], xz[2*i + 1]);
+        }
+        return store;
+    }
+    
+}//HeightSampler
@@ -30,8 +30,9 @@ package se.fojob.forester.grass;
 
 import com.jme3.bounding.BoundingBox;
 import com.jme3.math.ColorRGBA;
-import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
 import com.jme3.renderer.queue.RenderQueue.Bucket;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer;
@@ -42,8 +43,11 @@ import com.jme3.terrain.Terrain;
 import se.fojob.forester.grass.GrassLayer.MeshType;
 import se.fojob.forester.image.ColorMap;
 import se.fojob.forester.image.DensityMap;
+import se.fojob.forester.HeightSampler;
 import se.fojob.forester.RectBounds;
+import com.jme3.util.BufferUtils;
 import java.nio.Buffer;
+import java.util.Arrays;
 
 /**
  * This class contains a few methods for generating grass meshes.
@@ -53,11 +57,34 @@ import java.nio.Buffer;
 public class GrassGeometryGenerator {
     
     protected Terrain terrain;
+    protected HeightSampler heights;
+    protected Mesh quadTemplate, crossQuadTemplate;
     
     public GrassGeometryGenerator(Terrain terrain){
         this.terrain = terrain;
     }
     
+    /**
+     * Gets a snapshot of the terrain heights. It is taken on the first
+     * call, use updateHeights() if the terrain is modified afterwards.
+     * 
+     * @return The height sampler.
+     */
+    public synchronized HeightSampler getHeightSampler(){
+        if(heights == null){
+            heights = HeightSampler.create(terrain);
+        }
+        return heights;
+    }
+    
+    /**
+     * Discards the snapshot of the terrain heights. Tiles that are loaded
+     * from now on use the new heights.
+     */
+    public synchronized void updateHeights(){
+        heights = null;
+    }
+    
     /**
      * This method creates a grass geometry. This is this method you call
      * from the grassloader.
@@ -73,6 +100,72 @@ public class GrassGeometryGenerator {
                                         DensityMap densityMap,
                                         ColorMap colorMap
                                         )
+    {
+        return createGrassGeometry(layer, page, densityMap, colorMap, getHeightSampler());
+    }
+    
+    /**
+     * This method creates a grass geometry.
+     * 
+     * @param layer The grasslayer.
+     * @param page The grass page.
+     * @param densityMap The densitymap (or null).
+     * @param colorMap The colormap (or null).
+     * @param heights The terrain heights, usually a region covering the tile.
+     * @return A batched grass geometry.
+     */
+    public Geometry createGrassGeometry(GrassLayer layer, 
+                                        GrassPage page,
+                                        DensityMap densityMap,
+                                        ColorMap colorMap,
+                                        HeightSampler heights
+                                        )
+    {
+        return createGrassGeometry(layer, createGrassMesh(layer, page, densityMap, colorMap, heights));
+    }
+    
+    /**
+     * Creates a grass geometry out of an existing mesh, for example
+     * one that was read from the page cache.
+     * 
+     * @param layer The grasslayer.
+     * @param grassMesh The grass mesh.
+     * @return A batched grass geometry.
+     */
+    public Geometry createGrassGeometry(GrassLayer layer, Mesh grassMesh){
+        grassMesh.setStatic();
+        grassMesh.updateCounts();
+        Geometry geom = new Geometry();
+        geom.setMesh(grassMesh);
+        if(isInstanced(grassMesh)){
+            geom.setMaterial(layer.getInstancedMaterial());
+            //The PreShadow technique does not support instancing.
+            geom.setShadowMode(ShadowMode.Off);
+        } else {
+            geom.setMaterial(layer.getMaterial().clone());
+            geom.setShadowMode(layer.getShadowMode());
+        }
+        geom.setQueueBucket(Bucket.Transparent);
+        
+        return geom;
+    }
+    
+    /**
+     * This method plants the grass of a page and creates its mesh.
+     * 
+     * @param layer The grasslayer.
+     * @param page The grass page.
+     * @param densityMap The densitymap (or null).
+     * @param colorMap The colormap (or null).
+     * @param heights The terrain heights, usually a region covering the tile.
+     * @return The grass mesh.
+     */
+    public Mesh createGrassMesh(GrassLayer layer, 
+                                GrassPage page,
+                                DensityMap densityMap,
+                                ColorMap colorMap,
+                                HeightSampler heights
+                                )
     {
         RectBounds bounds = page.getBounds();
         //Calculate the area of the page
@@ -97,23 +190,201 @@ public class GrassGeometryGenerator {
         //No need running this if there's no grass data.
         if(grassCount != 0)
         {
-            if(meshType == MeshType.QUADS){
-                grassMesh = generateGrass_QUADS(layer,page,grassData,grassCount,colorMap);
+            if(layer.isInstancing()){
+                grassMesh = generateGrass_INSTANCED(layer,page,grassData,grassCount,colorMap,heights);
+            } else if(meshType == MeshType.QUADS){
+                grassMesh = generateGrass_QUADS(layer,page,grassData,grassCount,colorMap,heights);
             } else if(meshType == MeshType.CROSSQUADS){
-                grassMesh = generateGrass_CROSSQUADS(layer,page,grassData,grassCount,colorMap);
+                grassMesh = generateGrass_CROSSQUADS(layer,page,grassData,grassCount,colorMap,heights);
             } else if(meshType == MeshType.BILLBOARDS){
-                grassMesh = generateGrass_BILLBOARDS(layer,page,grassData,grassCount,colorMap);
+                grassMesh = generateGrass_BILLBOARDS(layer,page,grassData,grassCount,colorMap,heights);
             }
         }
         
-        grassMesh.setStatic();
-        grassMesh.updateCounts();
-        Geometry geom = new Geometry();
-        geom.setMesh(grassMesh);
-        geom.setMaterial(layer.getMaterial().clone());
-        geom.setQueueBucket(Bucket.Transparent);
+        return grassMesh;
+    }
+    
+    /**
+     * Checks if a grass mesh is rendered with instancing.
+     * 
+     * @param mesh The grass mesh.
+     * @return true if the mesh has per-instance data.
+     */
+    public static boolean isInstanced(Mesh mesh){
+        VertexBuffer vb = mesh.getBuffer(Type.TexCoord3);
+        return vb != null && vb.isInstanced();
+    }
+    
+    /**
+     * Gets the mesh that is drawn for each instance. The buffers are
+     * shared by all instanced pages of the same mesh type.
+     * 
+     * @param meshType The mesh type, QUADS or CROSSQUADS.
+     * @return The template mesh.
+     */
+    protected synchronized Mesh getTemplate(MeshType meshType){
+        if(meshType == MeshType.CROSSQUADS){
+            if(crossQuadTemplate == null){
+                crossQuadTemplate = createTemplate(2);
+            }
+            return crossQuadTemplate;
+        }
+        if(quadTemplate == null){
+            quadTemplate = createTemplate(1);
+        }
+        return quadTemplate;
+    }
+    
+    /**
+     * Creates a template of one or two crossed quads. The quads span -1 to 1
+     * horizontally and 0 to 1 vertically, the shader scales and rotates
+     * them. The vertex order is the same as in the static meshes.
+     */
+    private static Mesh createTemplate(int quads){
+        //Along x (first quad) and along z (second quad).
+        float[] positions = {-1,1,0, 1,1,0, -1,0,0, 1,0,0,
+                             0,1,-1, 0,1,1, 0,0,-1, 0,0,1};
+        float[] texCoords = {0,1, 1,1, 0,0, 1,0,
+                             0,1, 1,1, 0,0, 1,0};
+        //The xz normals before rotation.
+        float[] normals = {0,-1, 0,-1, 0,-1, 0,-1,
+                           1,0, 1,0, 1,0, 1,0};
+        //Selects the terrain height of the end of the quad.
+        float[] ends = {1,0,0,0, 0,1,0,0, 1,0,0,0, 0,1,0,0,
+                        0,0,1,0, 0,0,0,1, 0,0,1,0, 0,0,0,1};
+        short[] indices = {0,2,1, 1,2,3, 4,6,5, 5,6,7};
         
-        return geom;
+        Mesh mesh = new Mesh();
+        mesh.setMode(Mesh.Mode.Triangles);
+        mesh.setBuffer(Type.Position, 3, Arrays.copyOf(positions, quads*12));
+        mesh.setBuffer(Type.TexCoord, 2, Arrays.copyOf(texCoords, quads*8));
+        mesh.setBuffer(Type.TexCoord2, 2, Arrays.copyOf(normals, quads*8));
+        mesh.setBuffer(Type.TexCoord5, 4, Arrays.copyOf(ends, quads*16));
+        mesh.setBuffer(Type.Index, 3, Arrays.copyOf(indices, quads*6));
+        mesh.setStatic();
+        return mesh;
+    }
+    
+    /**
+     * Method for creating an instanced mesh. The mesh shares the buffers of
+     * the template, and only adds the page-local grass data and the terrain
+     * heights at the ends of the quads (and the colors) per patch.
+     *
+     * @param layer The grass-layer.
+     * @param page The page.
+     * @param grassData The grassdata array. See the createGrassGeometry method.
+     * @param grassCount The initial grass-count. See the createGrassGeometry method.
+     * @param colorMap The colormap to use (or null).
+     * @param heights The terrain heights.
+     * @return An instanced mesh.
+     */
+    protected Mesh generateGrass_INSTANCED( GrassLayer layer,
+                                            GrassPage page,
+                                            float[] grassData,
+                                            int grassCount,
+                                            ColorMap colorMap,
+                                            HeightSampler heights
+                                            )
+    {
+        Mesh template = getTemplate(layer.getMeshType());
+        int ends = layer.getMeshType() == MeshType.CROSSQUADS ? 4 : 2;
+        
+        Mesh mesh = new Mesh();
+        mesh.setMode(Mesh.Mode.Triangles);
+        for(VertexBuffer vb : template.getBufferList()){
+            mesh.setBuffer(vb);
+        }
+        
+        float[] endHeights = new float[grassCount*ends];
+        float[] colors = null;
+        float[] cols = null;
+        if(colorMap != null){
+            colors = new float[grassCount*4];
+            cols = colorMap.getColorsUnfiltered(page, null);
+        }
+        
+        float minWidth = layer.getMinWidth();
+        float maxWidth = layer.getMaxWidth();
+        float minHeight = layer.getMinHeight();
+        float maxHeight = layer.getMaxHeight();
+        
+        RectBounds bounds = page.getBounds();
+        float cX = bounds.getCenter().x;
+        float cZ = bounds.getCenter().z;
+        int pw = (int)bounds.getWidth();
+        float xOffset = -page.getCenterPoint().x + pw*0.5f;
+        float zOffset = -page.getCenterPoint().z + pw*0.5f;
+        
+        float yMin = Float.POSITIVE_INFINITY, yMax = Float.NEGATIVE_INFINITY;
+        
+        int gIt = 0;
+        int hIt = 0;
+        int cIt = 0;
+        for(int i = 0; i < grassCount; i++)
+        {
+            float x = grassData[gIt];
+            float z = grassData[gIt + 1];
+            float size = grassData[gIt + 2];
+            float angle = grassData[gIt + 3];
+            
+            float halfScaleX = (minWidth + size*(maxWidth - minWidth))*0.5f;
+            float xTrans = (float)(Math.cos(angle)) * halfScaleX;
+            float zTrans = (float)(Math.sin(angle)) * halfScaleX;
+            
+            //Same ends as the static meshes.
+            endHeights[hIt++] = heights.getHeight(x - xTrans, z - zTrans);
+            endHeights[hIt++] = heights.getHeight(x + xTrans, z + zTrans);
+            if(ends == 4){
+                endHeights[hIt++] = heights.getHeight(x + zTrans, z - xTrans);
+                endHeights[hIt++] = heights.getHeight(x - zTrans, z + xTrans);
+            }
+            for(int e = hIt - ends; e < hIt; e++){
+                yMin = Math.min(yMin, endHeights[e]);
+                yMax = Math.max(yMax, endHeights[e]);
+            }
+            
+            if(colors != null){
+                int position = 4*((int) (x + xOffset) + pw*(int) (z + zOffset));
+                colors[cIt++] = cols[position];
+                colors[cIt++] = cols[position + 1];
+                colors[cIt++] = cols[position + 2];
+                colors[cIt++] = 1.f;
+            }
+            
+            //The instance data is the grass data relative to the page.
+            grassData[gIt++] = x - cX;
+            grassData[gIt++] = z - cZ;
+            gIt += 2;
+        }
+        
+        VertexBuffer data = new VertexBuffer(Type.TexCoord3);
+        data.setInstanced(true);
+        data.setupData(VertexBuffer.Usage.Static, 4, Format.Float, 
+                BufferUtils.createFloatBuffer(grassCount*4).put(grassData, 0, grassCount*4).flip());
+        mesh.setBuffer(data);
+        
+        VertexBuffer endBuf = new VertexBuffer(Type.TexCoord4);
+        endBuf.setInstanced(true);
+        endBuf.setupData(VertexBuffer.Usage.Static, ends, Format.Float, 
+                BufferUtils.createFloatBuffer(endHeights));
+        mesh.setBuffer(endBuf);
+        
+        if(colors != null){
+            VertexBuffer colBuf = new VertexBuffer(Type.Color);
+            colBuf.setInstanced(true);
+            colBuf.setupData(VertexBuffer.Usage.Static, 4, Format.Float, 
+                    BufferUtils.createFloatBuffer(colors));
+            mesh.setBuffer(colBuf);
+        }
+        
+        //The template does not tell the bounds, they come from the patches.
+        float extent = bounds.getWidth()*0.5f + maxWidth*0.5f;
+        BoundingBox box = new BoundingBox(
+                new Vector3f(0, (yMin + yMax + maxHeight)*0.5f, 0), 
+                extent, (yMax + maxHeight - yMin)*0.5f, extent);
+        mesh.setBound(box);
+        mesh.updateCounts();
+        return mesh;
     }
     
     /**
@@ -124,13 +395,15 @@ public class GrassGeometryGenerator {
      * @param grassData The grassdata array. See the createGrassGeometry method.
      * @param grassCount The initial grass-count. See the createGrassGeometry method.
      * @param colorMap The colormap to use (or null).
+     * @param heights The terrain heights.
      * @return A static quad mesh.
      */
     protected Mesh generateGrass_QUADS( GrassLayer layer,
                                         GrassPage page,
                                         float[] grassData, 
                                         int grassCount,
-                                        ColorMap colorMap
+                                        ColorMap colorMap,
+                                        HeightSampler heights
                                       )
     {
         //The grass mesh
@@ -224,8 +497,8 @@ public class GrassGeometryGenerator {
             float x1 = x - xTrans, z1 = z - zTrans;
             float x2 = x + xTrans, z2 = z + zTrans;
             
-            float y1 = terrain.getHeight(new Vector2f(x1,z1));
-            float y2 = terrain.getHeight(new Vector2f(x2,z2));
+            float y1 = heights.getHeight(x1, z1);
+            float y2 = heights.getHeight(x2, z2);
             
             float y1h = y1 + scaleY;
             float y2h = y2 + scaleY;
@@ -350,13 +623,15 @@ public class GrassGeometryGenerator {
      * @param grassData The grassdata array. See the createGrassGeometry method.
      * @param grassCount The initial grass-count. See the createGrassGeometry method.
      * @param colorMap The colormap to use (or null).
+     * @param heights The terrain heights.
      * @return A static cross-quad mesh.
      */
     protected Mesh generateGrass_CROSSQUADS(GrassLayer layer,
                                             GrassPage page,
                                             float[] grassData, 
                                             int grassCount,
-                                            ColorMap colorMap
+                                            ColorMap colorMap,
+                                            HeightSampler heights
                                             )
     {
         //The grass mesh
@@ -458,10 +733,10 @@ public class GrassGeometryGenerator {
             float x3 = x + zTrans, z3 = z - xTrans;
             float x4 = x - zTrans, z4 = z + xTrans;
             
-            float y1 = terrain.getHeight(new Vector2f(x1,z1)); 
-            float y2 = terrain.getHeight(new Vector2f(x2,z2));
-            float y3 = terrain.getHeight(new Vector2f(x3,z3));
-            float y4 = terrain.getHeight(new Vector2f(x4,z4));
+            float y1 = heights.getHeight(x1, z1); 
+            float y2 = heights.getHeight(x2, z2);
+            float y3 = heights.getHeight(x3, z3);
+            float y4 = heights.getHeight(x4, z4);
             
             float y1h = y1 + scaleY;
             float y2h = y2 + scaleY;
@@ -651,13 +926,15 @@ public class GrassGeometryGenerator {
      * @param grassData The grassdata array. See the createGrassGeometry method.
      * @param grassCount The initial grass-count. See the createGrassGeometry method.
      * @param colorMap The colormap to use (or null).
+     * @param heights The terrain heights.
      * @return A billboarded quad mesh.
      */
     protected Mesh generateGrass_BILLBOARDS(    GrassLayer layer,
                                                 GrassPage page,
                                                 float[] grassData, 
                                                 int grassCount,
-                                                ColorMap colorMap
+                                                ColorMap colorMap,
+                                                HeightSampler heights
                                            )
     {
         Mesh mesh = new Mesh();
@@ -742,7 +1019,7 @@ public class GrassGeometryGenerator {
             float halfScaleX = (minWidth + size*(maxWidth - minWidth))*0.5f;
             float scaleY = minHeight + size*(maxHeight - minHeight);
             
-            float y = terrain.getHeight(new Vector2f(x,z));
+            float y = heights.getHeight(x, z);
             
             //Bounding box stuff.
 //            if(y < yMin){
@@ -28,9 +28,12 @@
  */
 package se.fojob.forester.grass;
 
+import com.jme3.app.Application;
 import com.jme3.material.Material;
 import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
+import com.jme3.math.Vector4f;
+import com.jme3.renderer.Caps;
 import com.jme3.renderer.queue.RenderQueue.ShadowMode;
 import com.jme3.shader.VarType;
 import com.jme3.texture.Texture;
@@ -39,6 +42,10 @@ import se.fojob.forester.Forester;
 import se.fojob.forester.grass.algorithms.GPAUniform;
 import se.fojob.forester.grass.algorithms.GrassPlantingAlgorithm;
 import se.fojob.forester.image.FormatReader.Channel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import se.fojob.paging.DetailLevel;
+import se.fojob.paging.interfaces.PagingEngine;
 
 /**
  * The GrassLayer class contains data specific to each type of grass.
@@ -81,6 +88,10 @@ public class GrassLayer {
     
     protected boolean needsUpdate;
     
+    //Instanced rendering.
+    protected boolean instancing;
+    protected Material instancedMaterial;
+    
     /**
      * Don't use this constructor. Create new instances of this class only 
      * through the GrassLoaders addLayer-method.
@@ -155,6 +166,13 @@ public class GrassLayer {
     }
     
     protected void updateMaterial(){
+        updateMaterial(material);
+        if(instancedMaterial != null){
+            updateMaterial(instancedMaterial);
+        }
+    }
+    
+    protected void updateMaterial(Material material){
         
         material.setTextureParam("AlphaNoiseMap",VarType.Texture2D,alphaNoiseMap);
         material.setTextureParam("ColorMap",VarType.Texture2D,colorMap);
@@ -165,6 +183,9 @@ public class GrassLayer {
         material.setVector3("SwayData",swayData);
         material.setVector2("Wind", wind);
         material.setInt("NumLights", 4);
+        if(material.getMaterialDef().getMaterialParam("GrassSize") != null){
+            material.setVector4("GrassSize", new Vector4f(minWidth, maxWidth, minHeight, maxHeight));
+        }
     }
     
     public void update(){
@@ -172,6 +193,67 @@ public class GrassLayer {
             updateMaterial();
             needsUpdate = false;
         }
+        if(instancedMaterial != null){
+            updateFade();
+        }
+    }
+    
+    /**
+     * The instanced material is shared by all pages, so it fades by the 
+     * distance of each vertex instead of being set up per page.
+     */
+    protected void updateFade(){
+        PagingEngine engine = grassLoader.getPagingEngine();
+        DetailLevel level = engine.getDetailLevels().get(0);
+        instancedMaterial.setBoolean("FadeEnabled", engine.isFadeEnabled() && level.isFadeEnabled());
+        instancedMaterial.setFloat("FadeEnd", level.getFarTransDist());
+        instancedMaterial.setFloat("FadeRange", level.getFarTransDist() - level.getFarDist());
+    }
+    
+    /**
+     * Checks if the pages of this layer are rendered with hardware instancing.
+     * Billboards, and materials without instancing support, always use
+     * static meshes.
+     * 
+     * @return true if instancing is used.
+     */
+    public boolean isInstancing(){
+        return instancing && type != MeshType.BILLBOARDS 
+                && material.getMaterialDef().getMaterialParam("Instancing") != null;
+    }
+    
+    /**
+     * Enables hardware instancing. Each page then only stores the position,
+     * size and angle of its grass patches, and all pages share one template
+     * mesh and one material. Instanced grass does not cast shadows.
+     * 
+     * @param instancing true to use instancing.
+     */
+    public void setInstancing(boolean instancing){
+        Application app = Forester.getInstance().getApp();
+        if(instancing && app != null && app.getRenderer() != null
+                && !app.getRenderer().getCaps().contains(Caps.MeshInstancing)){
+            Logger.getLogger(GrassLayer.class.getName()).log(Level.WARNING, 
+                    "Instancing is not supported by the renderer, using static meshes.");
+            return;
+        }
+        this.instancing = instancing;
+    }
+    
+    /**
+     * Gets the material that is shared by all instanced pages.
+     * 
+     * @return The instanced material.
+     */
+    public synchronized Material getInstancedMaterial(){
+        if(instancedMaterial == null){
+            Material mat = material.clone();
+            mat.setBoolean("Instancing", true);
+            updateMaterial(mat);
+            instancedMaterial = mat;
+            updateFade();
+        }
+        return instancedMaterial;
     }
     
     public void setMeshType(MeshType type){
@@ -196,6 +278,7 @@ public class GrassLayer {
 
     public void setMaxHeight(float maxHeight) {
         this.maxHeight = maxHeight;
+        needsUpdate = true;
     }
 
     public float getMaxWidth() {
@@ -204,6 +287,7 @@ public class GrassLayer {
 
     public void setMaxWidth(float maxWidth) {
         this.maxWidth = maxWidth;
+        needsUpdate = true;
     }
 
     public float getMinHeight() {
@@ -212,6 +296,7 @@ public class GrassLayer {
 
     public void setMinHeight(float minHeight) {
         this.minHeight = minHeight;
+        needsUpdate = true;
     }
 
     public float getMinWidth() {
@@ -220,6 +305,7 @@ public class GrassLayer {
 
     public void setMinWidth(float minWidth) {
         this.minWidth = minWidth;
+        needsUpdate = true;
     }
     
     public boolean isSwaying(){
@@ -34,14 +34,18 @@ import com.jme3.math.Vector2f;
 import com.jme3.renderer.Camera;
 import com.jme3.renderer.queue.RenderQueue.Bucket;
 import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
 import com.jme3.terrain.Terrain;
+import se.fojob.forester.HeightSampler;
 import se.fojob.forester.MapBlock;
 import se.fojob.forester.grass.GrassLayer.MeshType;
 import se.fojob.forester.grass.datagrids.MapGrid;
 import se.fojob.forester.grass.datagrids.UDGrassProvider;
 import se.fojob.forester.image.ColorMap;
 import se.fojob.forester.image.DensityMap;
+import se.fojob.forester.image.FormatReader.Channel;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
@@ -65,6 +69,7 @@ public class GrassLoader extends GeometryTileLoader {
     protected MapProvider mapProvider;
     protected boolean useBinaries;
     protected String binariesDir = ".";
+    protected GrassPageCache pageCache;
 
     /**
      * The only constructor.
@@ -173,12 +178,82 @@ public class GrassLoader extends GeometryTileLoader {
         }
     }
 
+    /**
+     * Stores generated tiles in the binaries dir and loads them from there
+     * when they are visited again, see GrassPageCache.
+     * 
+     * @param useBinaries Whether to use the page cache.
+     */
     public void setUseBinaries(boolean useBinaries) {
         this.useBinaries = useBinaries;
     }
 
     public void setBinariesDir(String binariesDir) {
         this.binariesDir = binariesDir;
+        pageCache = null;
+    }
+
+    /**
+     * Gets the on-disk cache of grass pages. It is used when useBinaries 
+     * is set, and keeps its files in the binaries dir.
+     * 
+     * @return The page cache.
+     */
+    public synchronized GrassPageCache getPageCache() {
+        if (pageCache == null) {
+            pageCache = new GrassPageCache(new File(binariesDir), name == null ? "grass" : name);
+        }
+        return pageCache;
+    }
+
+    /**
+     * Computes the key of a cached tile. It covers the layer settings and
+     * planting algorithms, the density and color maps and the terrain 
+     * heights of the tile.
+     * 
+     * @param block The maps of the tile.
+     * @param heights The terrain heights of the tile.
+     * @return The key.
+     */
+    protected long getCacheKey(MapBlock block, HeightSampler heights) {
+        long hash = mix(heights.getChecksum(), pagingEngine.getTileSize());
+        hash = mix(hash, pagingEngine.getResolution());
+        for (int i = 0; i < layers.size(); i++) {
+            GrassLayer layer = layers.get(i);
+            hash = mix(hash, layer.getMeshType().ordinal());
+            hash = mix(hash, layer.isInstancing() ? 1 : 0);
+            hash = mix(hash, Float.floatToIntBits(layer.getDensityMultiplier()));
+            hash = mix(hash, Float.floatToIntBits(layer.getMinWidth()));
+            hash = mix(hash, Float.floatToIntBits(layer.getMaxWidth()));
+            hash = mix(hash, Float.floatToIntBits(layer.getMinHeight()));
+            hash = mix(hash, Float.floatToIntBits(layer.getMaxHeight()));
+            hash = mix(hash, layer.getPlantingAlgorithm().getClass().getName().hashCode());
+            hash = mix(hash, layer.getPlantingAlgorithm().getChecksum());
+            DensityMap densityMap = block.getDensityMaps().get(layer.getDmTexNum());
+            if (densityMap != null) {
+                hash = mix(hash, densityMap.getChecksum(layer.getDmChannel()));
+            }
+            ColorMap colorMap = block.getColorMaps() == null ? null : block.getColorMaps().get(i);
+            if (colorMap != null) {
+                hash = mix(hash, colorMap.getChecksum(Channel.Red));
+                hash = mix(hash, colorMap.getChecksum(Channel.Green));
+                hash = mix(hash, colorMap.getChecksum(Channel.Blue));
+                hash = mix(hash, colorMap.getChecksum(Channel.Alpha));
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    /**
+     * Call this method when the terrain has been modified. Tiles that
+     * are loaded from now on use the new heights.
+     */
+    public void updateHeights() {
+        grassGen.updateHeights();
     }
 
     public MapProvider getMapProvider() {
@@ -214,37 +289,71 @@ public class GrassLoader extends GeometryTileLoader {
 
             ArrayList<Page> pages = tile.getPages();
             float ps = pagingEngine.getPageSize() * 0.5f;
+            
+            //The heights of the tile, grass may reach out a little.
+            float margin = 0;
+            for (GrassLayer layer : layers) {
+                margin = Math.max(margin, layer.getMaxWidth());
+            }
+            float ts = pagingEngine.getTileSize();
+            float cx = tile.getX() * ts, cz = tile.getZ() * ts;
+            ts = ts * 0.5f + margin;
+            HeightSampler heights = grassGen.getHeightSampler().getRegion(
+                    cx - ts, cz - ts, cx + ts, cz + ts);
+            
+            //Cached meshes are only used if nothing they depend on has changed.
+            long key = 0;
+            Mesh[][] meshes = null;
+            if (useBinaries) {
+                key = getCacheKey(block, heights);
+                meshes = getPageCache().load(tile.getX(), tile.getZ(), key, pages.size(), layers.size());
+            }
+            boolean generate = meshes == null;
+            if (generate) {
+                meshes = new Mesh[pages.size()][layers.size()];
+            }
+            
             //Loads grass geometry to each page.
-            for (Page p : pages) {
-                GrassPage page = (GrassPage) p;
+            for (int j = 0; j < pages.size(); j++) {
+                GrassPage page = (GrassPage) pages.get(j);
                 Node[] nodes = new Node[1];
                 nodes[0] = new Node("Grass");
 
                 for (int i = 0; i < layers.size(); i++) {
                     
                     GrassLayer layer = layers.get(i);
-                    DensityMap densityMap = block.getDensityMaps().get(layer.getDmTexNum());
-                    if (densityMap == null) {
-                        continue;
+                    if (generate) {
+                        DensityMap densityMap = block.getDensityMaps().get(layer.getDmTexNum());
+                        if (densityMap == null) {
+                            continue;
+                        }
+                        ColorMap colorMap = null;
+                        if (block.getColorMaps() != null) {
+                            colorMap = block.getColorMaps().get(i);
+                        }
+                        meshes[j][i] = grassGen.createGrassMesh(layer,
+                                page,
+                                densityMap,
+                                colorMap,
+                                heights);
                     }
-                    ColorMap colorMap = null;
-                    if (block.getColorMaps() != null) {
-                        colorMap = block.getColorMaps().get(i);
+                    if (meshes[j][i] == null) {
+                        continue;
                     }
 
-                    Geometry geom = grassGen.createGrassGeometry(layer,
-                            page,
-                            densityMap,
-                            colorMap);
+                    Geometry geom = grassGen.createGrassGeometry(layer, meshes[j][i]);
                     
                     geom.setQueueBucket(Bucket.Transparent);
-                    geom.setShadowMode(layer.getShadowMode());
                     nodes[0].attachChild(geom);
 
                 }//for each layer
                 page.setNodes(nodes);
                 page.calculateOverlap(ps, 0);
             }//for each page
+            
+            if (useBinaries && generate) {
+                getPageCache().store(tile.getX(), tile.getZ(), key, meshes);
+            }
 
             for (Page p : tile.getPages()) {
                 p.calculateOverlap(ps, 0);
@@ -28,8 +28,10 @@
  */
 package se.fojob.forester.grass;
 
+import com.jme3.material.Material;
 import com.jme3.math.Vector3f;
-import se.fojob.forester.RectBounds;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Spatial;
 import se.fojob.paging.GeometryPage;
 import se.fojob.paging.interfaces.PagingEngine;
 
@@ -44,6 +46,25 @@ public class GrassPage extends GeometryPage {
         super(x,z,center,engine);
     }
     
+    /**
+     * Instanced geometries share the material of their layer, which fades 
+     * per vertex on its own. Only the other geometries are faded per page.
+     */
+    @Override
+    public void setFade(boolean enabled, float fadeStart, float fadeEnd, int detailLevel) {
+        float fadeRange = fadeEnd - fadeStart;
+        for (Spatial spat : nodes[detailLevel].getChildren()) {
+            Geometry geom = (Geometry) spat;
+            if (GrassGeometryGenerator.isInstanced(geom.getMesh())) {
+                continue;
+            }
+            Material material = geom.getMaterial();
+            material.setFloat("FadeEnd", fadeEnd);
+            material.setFloat("FadeRange", fadeRange);
+            material.setBoolean("FadeEnabled", enabled);
+        }
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package se.fojob.forester.grass;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk cache of generated grass meshes. There is one file per tile,
+ * holding the vertex buffers of every page and layer. The buffers are 
+ * stored in the native byte order, so a cached tile is loaded by mapping 
+ * the file and handing views of it to the meshes, without copying. 
+ * Instanced meshes are stored with their own copy of the template.
+ * <br/><br/>
+ * Each file carries a key that the grass loader computes from the layer 
+ * settings, the density and color maps and the terrain heights of the tile.
+ * If the key does not match the file is ignored and the tile is generated 
+ * (and stored) again.
+ * 
+ * @author Andreas
+ */
+public class GrassPageCache {
+    
+    protected static final Logger log = Logger.getLogger(GrassPageCache.class.getName());
+    
+    protected static final int MAGIC = 0x47505343; //GPSC
+    protected static final int VERSION = 2;
+    
+    protected File dir;
+    protected String prefix;
+    
+    /**
+     * Creates a new page cache.
+     * 
+     * @param dir The folder of the cache files.
+     * @param prefix The prefix of the cache files, usually the name of 
+     * the grass loader.
+     */
+    public GrassPageCache(File dir, String prefix) {
+        this.dir = dir;
+        this.prefix = prefix;
+    }
+    
+    public File getFile(int x, int z){
+        return new File(dir, prefix + "_" + x + "_" + z + ".grass");
+    }
+    
+    /**
+     * Loads the meshes of a tile.
+     * 
+     * @param x The x-index of the tile.
+     * @param z The z-index of the tile.
+     * @param key The cache key.
+     * @param pages The number of pages.
+     * @param layers The number of layers.
+     * @return The meshes indexed by [page][layer], or null if the tile is
+     * not cached or the key does not match. Layers without geometry are null.
+     */
+    public Mesh[][] load(int x, int z, long key, int pages, int layers){
+        File file = getFile(x, z);
+        if(!file.isFile()){
+            return null;
+        }
+        ByteBuffer data;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            //Check the header first, a stale file is never mapped, so it 
+            //can be replaced right away.
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+            while(header.hasRemaining() && channel.read(header) >= 0){
+            }
+            header.flip();
+            if(header.remaining() < 24 || header.getInt() != MAGIC || header.getInt() != VERSION 
+                    || header.getLong() != key || header.getInt() != pages || header.getInt() != layers){
+                //Stale, or written with another byte order.
+                return null;
+            }
+            data = map(file, channel);
+        } catch (IOException ex){
+            log.log(Level.WARNING, "Unable to read grass cache " + file, ex);
+            return null;
+        }
+        data.order(ByteOrder.nativeOrder());
+        data.position(24);
+        try {
+            Mesh[][] meshes = new Mesh[pages][layers];
+            for(int p = 0; p < pages; p++){
+                for(int l = 0; l < layers; l++){
+                    meshes[p][l] = readMesh(data);
+                }
+            }
+            return meshes;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex){
+            log.log(Level.WARNING, "Corrupt grass cache " + file, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Maps a cache file. Vertex buffers must not be read-only, a private 
+     * mapping is writable but never changes the file. It stays valid after 
+     * the file is closed. Files that can not be opened for writing, e.g. 
+     * in a read-only cache folder, are copied into memory instead.
+     * 
+     * @param file The cache file.
+     * @param channel A channel of the file, opened for reading.
+     * @return The contents of the file.
+     */
+    protected ByteBuffer map(File file, FileChannel channel) throws IOException {
+        if(file.canWrite()){
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+                return raf.getChannel().map(FileChannel.MapMode.PRIVATE, 0, raf.length());
+            } catch (IOException ex){
+                log.log(Level.FINE, "Unable to map grass cache " + file, ex);
+            }
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) channel.size());
+        channel.position(0);
+        while(data.hasRemaining() && channel.read(data) >= 0){
+        }
+        data.flip();
+        return data;
+    }
+    
+    protected Mesh readMesh(ByteBuffer data){
+        int count = data.getInt();
+        int mode = data.getInt();
+        if(count < 0){
+            return null;
+        }
+        Mesh mesh = new Mesh();
+        mesh.setMode(Mesh.Mode.values()[mode]);
+        Vector3f min = new Vector3f(data.getFloat(), data.getFloat(), data.getFloat());
+        Vector3f max = new Vector3f(data.getFloat(), data.getFloat(), data.getFloat());
+        for(int i = 0; i < count; i++){
+            Type type = Type.values()[data.getInt()];
+            Format format = Format.values()[data.getInt()];
+            int components = data.getInt();
+            int instanceSpan = data.getInt();
+            int length = data.getInt();
+            data.getInt();
+            //A view of the mapped file.
+            ByteBuffer bytes = data.slice();
+            bytes.limit(length);
+            bytes.order(data.order());
+            data.position(data.position() + padded(length));
+            VertexBuffer vb = new VertexBuffer(type);
+            vb.setInstanceSpan(instanceSpan);
+            vb.setupData(VertexBuffer.Usage.Static, components, format, view(bytes, format));
+            mesh.setBuffer(vb);
+        }
+        if(Float.isNaN(min.x)){
+            mesh.updateBound();
+        } else {
+            //Instanced meshes can not compute their bound.
+            BoundingBox box = new BoundingBox();
+            box.setMinMax(min, max);
+            mesh.setBound(box);
+        }
+        mesh.updateCounts();
+        return mesh;
+    }
+    
+    private static Buffer view(ByteBuffer bytes, Format format){
+        switch(format){
+            case Float:
+                return bytes.asFloatBuffer();
+            case Double:
+                return bytes.asDoubleBuffer();
+            case Int:
+            case UnsignedInt:
+                return bytes.asIntBuffer();
+            case Short:
+            case UnsignedShort:
+                return bytes.asShortBuffer();
+            default:
+                return bytes;
+        }
+    }
+    
+    /**
+     * Stores the meshes of a tile. The file is written next to the old one
+     * and then moved over it, so a tile is never half written.
+     * 
+     * @param x The x-index of the tile.
+     * @param z The z-index of the tile.
+     * @param key The cache key.
+     * @param meshes The meshes indexed by [page][layer], may contain nulls.
+     */
+    public void store(int x, int z, long key, Mesh[][] meshes){
+        int layers = meshes.length == 0 ? 0 : meshes[0].length;
+        int size = 24;
+        ArrayList<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+        for(Mesh[] page : meshes){
+            for(Mesh mesh : page){
+                ByteBuffer block = writeMesh(mesh);
+                size += block.remaining();
+                blocks.add(block);
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(meshes.length).putInt(layers);
+        header.flip();
+        
+        File file = getFile(x, z);
+        File temp = new File(dir, file.getName() + ".tmp");
+        try {
+            dir.mkdirs();
+            try(RandomAccessFile raf = new RandomAccessFile(temp, "rw")){
+                raf.setLength(size);
+                FileChannel channel = raf.getChannel();
+                while(header.hasRemaining()){
+                    channel.write(header);
+                }
+                for(ByteBuffer block : blocks){
+                    while(block.hasRemaining()){
+                        channel.write(block);
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex){
+            log.log(Level.WARNING, "Unable to write grass cache " + file, ex);
+            temp.delete();
+        }
+    }
+    
+    protected ByteBuffer writeMesh(Mesh mesh){
+        if(mesh == null){
+            ByteBuffer block = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            block.putInt(-1).putInt(0).flip();
+            return block;
+        }
+        int size = 32;
+        ArrayList<VertexBuffer> buffers = new ArrayList<VertexBuffer>();
+        for(VertexBuffer vb : mesh.getBufferList()){
+            if(vb.getData() == null){
+                continue;
+            }
+            buffers.add(vb);
+            size += 24 + padded(byteLength(vb));
+        }
+        ByteBuffer block = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        block.putInt(buffers.size());
+        block.putInt(mesh.getMode().ordinal());
+        if(mesh.getBound() instanceof BoundingBox){
+            BoundingBox box = (BoundingBox) mesh.getBound();
+            Vector3f min = box.getMin(null), max = box.getMax(null);
+            block.putFloat(min.x).putFloat(min.y).putFloat(min.z);
+            block.putFloat(max.x).putFloat(max.y).putFloat(max.z);
+        } else {
+            for(int i = 0; i < 6; i++){
+                block.putFloat(Float.NaN);
+            }
+        }
+        for(VertexBuffer vb : buffers){
+            block.putInt(vb.getBufferType().ordinal());
+            block.putInt(vb.getFormat().ordinal());
+            block.putInt(vb.getNumComponents());
+            block.putInt(vb.isInstanced() ? vb.getInstanceSpan() : 0);
+            block.putInt(byteLength(vb));
+            block.putInt(0);
+            Buffer data = vb.getData();
+            int limit = data.limit();
+            //Absolute copies, the position of the buffer stays untouched.
+            if(data instanceof FloatBuffer){
+                FloatBuffer src = (FloatBuffer) data;
+                for(int i = 0; i < limit; i++){
+                    block.putFloat(src.get(i));
+                }
+            } else if(data instanceof IntBuffer){
+                IntBuffer src = (IntBuffer) data;
+                for(int i = 0; i < limit; i++){
+                    block.putInt(src.get(i));
+                }
+            } else if(data instanceof ShortBuffer){
+                ShortBuffer src = (ShortBuffer) data;
+                for(int i = 0; i < limit; i++){
+                    block.putShort(src.get(i));
+                }
+            } else if(data instanceof DoubleBuffer){
+                DoubleBuffer src = (DoubleBuffer) data;
+                for(int i = 0; i < limit; i++){
+                    block.putDouble(src.get(i));
+                }
+            } else {
+                ByteBuffer src = (ByteBuffer) data;
+                for(int i = 0; i < limit; i++){
+                    block.put(src.get(i));
+                }
+            }
+            //Keeps the next buffer aligned.
+            block.position(block.position() + padded(byteLength(vb)) - byteLength(vb));
+        }
+        block.flip();
+        return block;
+    }
+    
+    private static int byteLength(VertexBuffer vb){
+        Buffer data = vb.getData();
+        if(data instanceof DoubleBuffer){
+            return data.limit() * 8;
+        } else if(data instanceof FloatBuffer || data instanceof IntBuffer){
+            return data.limit() * 4;
+        } else if(data instanceof ShortBuffer){
+            return data.limit() * 2;
+        }
+        //Byte and half float buffers.
+        return data.limit();
+    }
+    
+    private static int padded(int length){
+        return (length + 7) & ~7;
+    }
+    
+    /**
+     * Deletes all cache files of this cache.
+     */
+    public void clear(){
+        File[] files = dir.listFiles();
+        if(files == null){
+            return;
+        }
+        for(File file : files){
+            if(file.getName().startsWith(prefix + "_") && file.getName().endsWith(".grass")){
+                file.delete();
+            }
+        }
+    }
+    
+}//GrassPageCache
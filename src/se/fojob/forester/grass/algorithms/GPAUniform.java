@@ -90,6 +90,11 @@ public class GPAUniform implements GrassPlantingAlgorithm {
         //The iterator divided by four is the grass-count.
         return iIt/4;
     }
+    
+    @Override
+    public long getChecksum() {
+        return 31L * scaling.ordinal() + Float.floatToIntBits(threshold);
+    }
 
     public Scaling getScaling() {
         return scaling;
@@ -55,4 +55,13 @@ public interface GrassPlantingAlgorithm {
                                     float[] grassData, 
                                     int grassCount
                                 );
+    
+    /**
+     * Gets a checksum of the settings of the algorithm. It is part of the
+     * key of cached grass pages, so it has to change whenever the settings 
+     * change where grass is planted.
+     * 
+     * @return The checksum.
+     */
+    public long getChecksum();
 }
@@ -30,6 +30,7 @@ package se.fojob.forester.image;
 
 import com.jme3.math.ColorRGBA;
 import com.jme3.texture.Texture;
+import se.fojob.forester.image.FormatReader.Channel;
 import se.fojob.paging.GeometryPage;
 
 /**
@@ -60,20 +61,53 @@ public class ColorMap extends ImageReader {
      */
     public ColorRGBA[] getColorsUnfiltered(GeometryPage page) {
 
+        int width = (int) page.getBounds().getWidth();
+        int height = (int) page.getBounds().getHeight();
+        float[] rgba = getColorsUnfiltered(page, null);
+
+        ColorRGBA[] colors = new ColorRGBA[width * height];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = new ColorRGBA(rgba[4*i], rgba[4*i + 1], rgba[4*i + 2], rgba[4*i + 3]);
+        }
+        return colors;
+    }
+    
+    /**
+     * Gets the colors without allocations. It is thread safe.
+     * 
+     * @param page The page.
+     * @param store The array to store the colors in, it is created if it is
+     * null or too small.
+     * @return The colors as r,g,b,a values, width*height*4 floats.
+     */
+    public float[] getColorsUnfiltered(GeometryPage page, float[] store) {
+
         int width = (int) page.getBounds().getWidth();
         int height = (int) page.getBounds().getHeight();
 
         int offsetX = page.getX() * width;
         int offsetZ = imageHeight - 1 - page.getZ() * height;
 
-        ColorRGBA[] colors = new ColorRGBA[width * height];
+        float[] colors = store;
+        if (colors == null || colors.length < width * height * 4) {
+            colors = new float[width * height * 4];
+        }
+        float[] r = getChannel(Channel.Red);
+        float[] g = getChannel(Channel.Green);
+        float[] b = getChannel(Channel.Blue);
+        float[] a = getChannel(Channel.Alpha);
 
+        int k = 0;
         for (int j = 0; j < height; j++) {
+            int row = imageWidth * (offsetZ - j);
             for (int i = 0; i < width; i++) {
-                colors[i + width * j] = getColor(i + offsetX, offsetZ - j);
+                int position = i + offsetX + row;
+                colors[k++] = r[position];
+                colors[k++] = g[position];
+                colors[k++] = b[position];
+                colors[k++] = a[position];
             }
         }
-        this.buf.clear();
         return colors;
     }
 }//ColorMap
@@ -28,7 +28,6 @@
  */
 package se.fojob.forester.image;
 
-import com.jme3.math.FastMath;
 import com.jme3.texture.Texture;
 import se.fojob.forester.image.FormatReader.Channel;
 import se.fojob.paging.GeometryPage;
@@ -63,6 +62,19 @@ public class DensityMap extends ImageReader {
      * @return The density value.
      */
     public float[] getDensityUnfiltered(GeometryPage page, Channel channel) {
+        return getDensityUnfiltered(page, channel, null);
+    }
+    
+    /**
+     * A method to get density values without allocations. It is thread safe.
+     * 
+     * @param page The page object.
+     * @param channel The channel to read.
+     * @param store The array to store the values in, it is created if it is 
+     * null or too small. The size is width*width, with width the page width.
+     * @return The density values.
+     */
+    public float[] getDensityUnfiltered(GeometryPage page, Channel channel, float[] store) {
         
         int width = (int) page.getBounds().getWidth();
         
@@ -70,27 +82,23 @@ public class DensityMap extends ImageReader {
         //Not flipped
         int offsetZ = (int)(imageHeight*scale) - 1 - page.getZ() * width;
         //Get a set of density values from the densityMap;
-        float[] dens = new float[width * width];
+        float[] dens = store;
+        if (dens == null || dens.length < width * width) {
+            dens = new float[width * width];
+        }
         
         //TODO A better check.
         if (image.getFormat().getBitsPerPixel() <= 24 && channel == Channel.Alpha) {
             throw new RuntimeException("Image" + image.toString() + "does not contain an alpha channel");
         }
         
-        if (channel != Channel.Luminance) {
-            for (int j = 0; j < width; j++) {
-                for (int i = 0; i < width; i++) {
-                    dens[i + width * j] = getColor((int)(scale*(i + offsetX)), (int)(scale*(offsetZ - j)), channel);
-                }
-            }
-        } else if (channel == Channel.Luminance) {
-            for (int j = 0; j < width; j++) {
-                for (int i = 0; i < width; i++) {
-                    dens[i + width * j] = getLuminance((int)(scale*(i + offsetX)), (int)(scale*(offsetZ - j)));
-                }
+        float[] values = getChannel(channel);
+        for (int j = 0; j < width; j++) {
+            int row = imageWidth * (int)(scale*(offsetZ - j));
+            for (int i = 0; i < width; i++) {
+                dens[i + width * j] = values[(int)(scale*(i + offsetX)) + row];
             }
         }
-        this.buf.clear();
         return dens;
     }
     
@@ -38,10 +38,16 @@ import se.fojob.forester.image.formatreader.RDR_L8;
 import se.fojob.forester.image.formatreader.RDR_RGB8;
 import se.fojob.forester.image.formatreader.RDR_RGBA8;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class used for reading jME images. Borrows heavily from the terrain
  * classes (the way they set up their image reading system).
+ * <br/><br/>
+ * Every channel is decoded once, on first use, into a float array. All
+ * reads go to these arrays, so an image reader can be used by several 
+ * threads at once without locking.
  * 
  * @author Andreas
  */
@@ -50,9 +56,11 @@ public class ImageReader {
     protected Image image;
     protected int imageWidth;
     protected int imageHeight;
-    protected ByteBuffer buf;
-    protected ColorRGBA store = new ColorRGBA();
     protected FormatReader fReader;
+    //The decoded channels, indexed by the ordinal of the channel.
+    private AtomicReferenceArray<float[]> channels;
+    //Checksums of the decoded channels, 0 if not computed yet.
+    private AtomicLongArray checksums;
     
     public ImageReader(){}
     
@@ -60,7 +68,8 @@ public class ImageReader {
         this.image = image;
         this.imageWidth = image.getWidth();
         this.imageHeight = image.getHeight();
-        this.buf = image.getData(0);
+        this.channels = new AtomicReferenceArray<float[]>(Channel.values().length);
+        this.checksums = new AtomicLongArray(Channel.values().length);
         switch(image.getFormat()){
             case ABGR8:
                 fReader = new RDR_ABGR8();
@@ -85,6 +94,65 @@ public class ImageReader {
         }
     }
     
+    /**
+     * Get the values of a channel. The value at x,y is stored at 
+     * x + width*y. The array is shared and must not be modified.
+     * 
+     * @param channel The channel.
+     * @return The values of the channel.
+     */
+    public float[] getChannel(Channel channel){
+        float[] values = channels.get(channel.ordinal());
+        if(values == null){
+            values = decode(channel);
+            //Another thread may have decoded it in the meantime.
+            if(!channels.compareAndSet(channel.ordinal(), null, values)){
+                values = channels.get(channel.ordinal());
+            }
+        }
+        return values;
+    }
+    
+    /**
+     * Get a checksum of a channel. Caches use it to detect modified maps.
+     * 
+     * @param channel The channel.
+     * @return A 64 bit hash of the size and values of the channel.
+     */
+    public long getChecksum(Channel channel){
+        long hash = checksums.get(channel.ordinal());
+        if(hash == 0){
+            //FNV-1a over the float bits.
+            hash = 0xcbf29ce484222325L;
+            hash = (hash ^ imageWidth) * 0x100000001b3L;
+            hash = (hash ^ imageHeight) * 0x100000001b3L;
+            for(float value : getChannel(channel)){
+                hash = (hash ^ Float.floatToIntBits(value)) * 0x100000001b3L;
+            }
+            if(hash == 0){
+                hash = 1;
+            }
+            checksums.set(channel.ordinal(), hash);
+        }
+        return hash;
+    }
+    
+    private float[] decode(Channel channel){
+        //A private view, so the buffer position is not shared.
+        ByteBuffer src = image.getData(0);
+        ByteBuffer buf = src.duplicate().order(src.order());
+        ColorRGBA store = new ColorRGBA();
+        float[] values = new float[imageWidth*imageHeight];
+        for(int i = 0; i < values.length; i++){
+            if(channel == Channel.Luminance){
+                values[i] = fReader.getLuminance(i, buf, store);
+            } else {
+                values[i] = fReader.getColor(i, channel, buf);
+            }
+        }
+        return values;
+    }
+    
     /**
      * Get color at position x,y.
      * 
@@ -93,8 +161,21 @@ public class ImageReader {
      * @return The colorvalue.
      */
     public ColorRGBA getColor(int x,int y){
+        return getColor(x, y, new ColorRGBA());
+    }
+    
+    /**
+     * Get color at position x,y.
+     * 
+     * @param x Position x
+     * @param y Position y
+     * @param store The object to store the color in.
+     * @return store
+     */
+    public ColorRGBA getColor(int x, int y, ColorRGBA store){
         int position = x + imageWidth*y;
-        return fReader.getColor(position, buf, store);
+        return store.set(getChannel(Channel.Red)[position], getChannel(Channel.Green)[position], 
+                getChannel(Channel.Blue)[position], getChannel(Channel.Alpha)[position]);
     }
     
     /**
@@ -106,8 +187,7 @@ public class ImageReader {
      * @return The color value as a float.
      */
     public float getColor(int x, int y, Channel channel){
-        int position = x + imageWidth*y;
-        return fReader.getColor(position, channel, buf);
+        return getChannel(channel)[x + imageWidth*y];
     }
     
     /**
@@ -118,7 +198,6 @@ public class ImageReader {
      * @return The luminance value as a float.
      */
     public float getLuminance(int x, int y){
-        int position = x + imageWidth*y;
-        return fReader.getLuminance(position, buf, store);
+        return getChannel(Channel.Luminance)[x + imageWidth*y];
     }
 }
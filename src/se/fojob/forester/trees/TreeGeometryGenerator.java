@@ -28,263 +28,322 @@
  */
 package se.fojob.forester.trees;
 
+import com.jme3.app.Application;
 import com.jme3.bounding.BoundingBox;
 import com.jme3.bounding.BoundingSphere;
-import com.jme3.math.Quaternion;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
 import com.jme3.math.Vector3f;
+import com.jme3.renderer.Caps;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer;
 import com.jme3.scene.mesh.IndexBuffer;
+import com.jme3.util.BufferUtils;
 import com.jme3.util.IntMap.Entry;
 import java.nio.Buffer;
 import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import se.fojob.forester.Forester;
 
 /**
  * Class used to generate tree batches. This class borrows from
  * BatchNode.java.
+ * <p>
+ * By default a batch is an instanced mesh: it shares the vertex buffers
+ * of the model and only stores one transform per tree. Models whose 
+ * material does not support instancing are merged into a static mesh 
+ * instead. The generator keeps no per-call state, so tiles can be loaded 
+ * from several threads at once.
  * 
  * @author Andreas
  */
 public class TreeGeometryGenerator {
     
-    //Used when creating buffers
-    private Vector3f posTemp;
-    private Vector3f normTemp;
-    private Vector3f tanTemp;
-    private Quaternion rot;
+    private static final Logger log = Logger.getLogger(TreeGeometryGenerator.class.getName());
     
-    //Temporary arrays to store vertex values
-    private float[] baseP = null; //Positions
-    private float[] baseN = null; //Normals
-    private float[] baseT = null; //Tangents
-    private float[] baseX = null; //TexCoords
+    //Number of floats per tree in the instance buffer.
+    protected static final int INSTANCE_COMPONENTS = 16;
     
-    private float[] tempP = null;
-    private float[] tempN = null;
-    private float[] tempT = null;
+    //The vertex data of the models, read once per mesh.
+    private final Map<Mesh,BaseMesh> baseMeshes = Collections.synchronizedMap(new WeakHashMap<Mesh,BaseMesh>());
     
-    //Booleans
-    private boolean usesNormals = false;
-    private boolean usesTangents = false;
-    //Used to label and keep track of the buffers used by the base mesh.    
-    private int[] compsForBuf = null;
-    VertexBuffer.Format[] formatForBuf = null;
-    //Keep track of how many components there are in tangents.
-    private int tanComps = 4;
+    //Scratch arrays used when merging, one set per loader thread.
+    private final ThreadLocal<MergeBuffers> mergeBuffers = new ThreadLocal<MergeBuffers>(){
+        @Override
+        protected MergeBuffers initialValue() {
+            return new MergeBuffers();
+        }
+    };
+    
+    private boolean instancing = true;
     
     public TreeGeometryGenerator(){
     }
     
+    /**
+     * Creates a batch for one model geometry and a list of trees. An 
+     * instanced batch is created if instancing is enabled and supported 
+     * by the material, otherwise the model is merged into a static mesh.
+     * 
+     * @param baseGeom The model geometry.
+     * @param treeList The trees, relative to the page center.
+     * @param pageCenter The world position of the page center.
+     * @return The batch, or null if the list is empty.
+     */
+    public Geometry generateGeometry(Geometry baseGeom, TreeDataList treeList, Vector3f pageCenter){
+        if(isInstancing(baseGeom.getMaterial())){
+            return generateInstancedGeometry(baseGeom, treeList, pageCenter);
+        }
+        return generateStaticGeometry(baseGeom, treeList, false);
+    }
+    
+    /**
+     * Checks whether instancing is enabled.
+     * 
+     * @return true if instancing is used where the material supports it.
+     */
+    public boolean isInstancing(){
+        return instancing;
+    }
+    
+    /**
+     * Checks whether batches with the given material are instanced.
+     * The material definition needs an UseInstancing parameter, like
+     * the stock lighting and unshaded materials.
+     * 
+     * @param mat The material of the model.
+     * @return true if an instanced batch is created.
+     */
+    public boolean isInstancing(Material mat){
+        return instancing && mat.getMaterialDef().getMaterialParam("UseInstancing") != null;
+    }
+    
+    /**
+     * Enables or disables hardware instancing. Instancing is on by default,
+     * and ignored if the renderer does not support it. Note that instanced 
+     * trees are placed in world space, so the paging root node should not 
+     * be transformed.
+     * 
+     * @param instancing true to use instancing.
+     */
+    public void setInstancing(boolean instancing){
+        Application app = Forester.getInstance().getApp();
+        if(instancing && app != null && app.getRenderer() != null
+                && !app.getRenderer().getCaps().contains(Caps.MeshInstancing)){
+            log.log(Level.WARNING, "Instancing is not supported by the renderer, using static meshes.");
+            instancing = false;
+        }
+        this.instancing = instancing;
+    }
+    
+    /**
+     * Creates an instanced batch. The mesh shares all buffers of the
+     * model mesh and adds an instance buffer with the world matrix of 
+     * each tree, in the layout of Common/ShaderLib/Instancing.glsllib.
+     * 
+     * @param baseGeom The model geometry.
+     * @param treeList The trees, relative to the page center.
+     * @param pageCenter The world position of the page center.
+     * @return The batch, or null if the list is empty.
+     */
+    public Geometry generateInstancedGeometry(Geometry baseGeom, 
+                                              TreeDataList treeList, 
+                                              Vector3f pageCenter)
+    {
+        if(treeList.isEmpty()){
+            return null;
+        }
+        Mesh baseMesh = baseGeom.getMesh();
+        Mesh batchMesh = new Mesh();
+        batchMesh.setMode(baseMesh.getMode());
+        for(VertexBuffer vb : baseMesh.getBufferList()){
+            if(!vb.isInstanced()){
+                batchMesh.setBuffer(vb);
+            }
+        }
+        
+        //Bounds of the model, rotated freely around the y axis.
+        BoundingVolume bv = baseMesh.getBound();
+        Vector3f c = bv.getCenter();
+        float radius, yMin, yMax;
+        if(bv instanceof BoundingBox){
+            BoundingBox bb = (BoundingBox) bv;
+            float ex = FastMath.abs(c.x) + bb.getXExtent();
+            float ez = FastMath.abs(c.z) + bb.getZExtent();
+            radius = FastMath.sqrt(ex*ex + ez*ez);
+            yMin = c.y - bb.getYExtent();
+            yMax = c.y + bb.getYExtent();
+        } else {
+            float r = ((BoundingSphere) bv).getRadius();
+            radius = FastMath.sqrt(c.x*c.x + c.z*c.z) + r;
+            yMin = c.y - r;
+            yMax = c.y + r;
+        }
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        
+        FloatBuffer transforms = BufferUtils.createFloatBuffer(treeList.size()*INSTANCE_COMPONENTS);
+        for(int i = 0; i < treeList.size(); i++){
+            TreeData data = treeList.get(i);
+            float s = data.scale;
+            float cos = FastMath.cos(data.rot);
+            float sin = FastMath.sin(data.rot);
+            //Columns of the world matrix, with the normal rotation 
+            //quaternion in the w components. The shader rotates normals
+            //by the conjugate, so the inverse rotation is stored.
+            transforms.put(cos*s).put(0).put(-sin*s).put(0);
+            transforms.put(0).put(s).put(0).put(-FastMath.sin(data.rot*0.5f));
+            transforms.put(sin*s).put(0).put(cos*s).put(0);
+            transforms.put(pageCenter.x + data.x)
+                    .put(pageCenter.y + data.y)
+                    .put(pageCenter.z + data.z)
+                    .put(FastMath.cos(data.rot*0.5f));
+            
+            float r = radius*s;
+            min.x = Math.min(min.x, data.x - r);
+            max.x = Math.max(max.x, data.x + r);
+            min.y = Math.min(min.y, data.y + yMin*s);
+            max.y = Math.max(max.y, data.y + yMax*s);
+            min.z = Math.min(min.z, data.z - r);
+            max.z = Math.max(max.z, data.z + r);
+        }
+        transforms.flip();
+        VertexBuffer instBuf = new VertexBuffer(VertexBuffer.Type.InstanceData);
+        instBuf.setInstanced(true);
+        instBuf.setupData(VertexBuffer.Usage.Static, INSTANCE_COMPONENTS, VertexBuffer.Format.Float, transforms);
+        batchMesh.setBuffer(instBuf);
+        
+        //The bound is relative to the page center, like the static batches.
+        BoundingBox box = new BoundingBox();
+        box.setMinMax(min, max);
+        batchMesh.setBound(box);
+        batchMesh.updateCounts();
+        batchMesh.setStatic();
+        
+        Geometry geom = new Geometry(baseGeom.getMaterial().toString(),batchMesh);
+        Material mat = baseGeom.getMaterial().clone();
+        mat.setBoolean("UseInstancing", true);
+        geom.setMaterial(mat);
+        geom.setQueueBucket(baseGeom.getQueueBucket());
+        return geom;
+    }//generateInstancedGeometry
+    
+    /**
+     * Creates a static batch by merging one copy of the model per tree
+     * into a single mesh.
+     * 
+     * @param baseGeom The model geometry.
+     * @param treeList The trees, relative to the page center.
+     * @param createTanBin Not used.
+     * @return The batch, or null if the list is empty.
+     */
     public Geometry generateStaticGeometry( Geometry baseGeom, 
                                             TreeDataList treeList,
                                             boolean createTanBin
                                           ) 
     {
-        Mesh baseMesh = baseGeom.getMesh();
-        //DEBUG
         if(treeList.isEmpty()){
             return null;
         }
+        BaseMesh base = getBaseMesh(baseGeom.getMesh());
+        MergeBuffers temp = mergeBuffers.get();
+        temp.ensureCapacity(base);
+        
         //The batch mesh.
         Mesh batchMesh = new Mesh();
         //Only triangle meshes allowed. Simplex component count is always 3.
         batchMesh.setMode(Mesh.Mode.Triangles);
-        batchMesh.setDynamic();
-        
-        //Arrays to keep track of component count and formats for each buffer.
-        compsForBuf = new int[VertexBuffer.Type.values().length];
-        formatForBuf = new VertexBuffer.Format[compsForBuf.length];
         
-        posTemp = new Vector3f();
-        normTemp = new Vector3f();
-        tanTemp = new Vector3f();
-        
-        int vertCount = baseMesh.getVertexCount();
-        int triCount = baseMesh.getTriangleCount();
+        int vertCount = base.vertCount;
+        int triCount = base.triCount;
         
         int totalVerts = vertCount*treeList.size();
         int totalTris = triCount*treeList.size();  
         
-        //Set the arrays with the component number and format for each buffer.
-        for (Entry<VertexBuffer> entry : baseMesh.getBuffers()) {
-            compsForBuf[entry.getKey()] = entry.getValue().getNumComponents();
-            formatForBuf[entry.getKey()] = entry.getValue().getFormat();
-        }
         //The number is 2^16 - 1, which is the largest unsigned short.
-        if (totalVerts > 65535) {
-            // make sure we create an UnsignedInt buffer so
-            // we can fit all of the meshes
-            formatForBuf[VertexBuffer.Type.Index.ordinal()] = VertexBuffer.Format.UnsignedInt;
-        } else {
-            formatForBuf[VertexBuffer.Type.Index.ordinal()] = VertexBuffer.Format.UnsignedShort;
-        }
+        VertexBuffer.Format indexFormat = (totalVerts > 65535) 
+                ? VertexBuffer.Format.UnsignedInt 
+                : VertexBuffer.Format.UnsignedShort;
 
         //Generate buffers for the batch mesh.
-        for (int i = 0; i < compsForBuf.length; i++) {
-            if (compsForBuf[i] == 0) {
+        FloatBuffer outPos = null, outNorm = null, outTan = null, outTex = null;
+        IndexBuffer outIdx = null;
+        for (int i = 0; i < base.compsForBuf.length; i++) {
+            if (base.compsForBuf[i] == 0) {
                 continue;
             }
-
-            Buffer data;
-            if (i == VertexBuffer.Type.Index.ordinal()) {
-                data = VertexBuffer.createBuffer(formatForBuf[i], compsForBuf[i], totalTris);                
+            VertexBuffer.Type type = VertexBuffer.Type.values()[i];
+            VertexBuffer vb = new VertexBuffer(type);
+            if (type == VertexBuffer.Type.Index) {
+                vb.setupData(VertexBuffer.Usage.Static, 3, indexFormat, 
+                        VertexBuffer.createBuffer(indexFormat, 3, totalTris));
             } else {
-                data = VertexBuffer.createBuffer(formatForBuf[i], compsForBuf[i], totalVerts);                
+                Buffer data = VertexBuffer.createBuffer(base.formatForBuf[i], base.compsForBuf[i], totalVerts);
+                vb.setupData(VertexBuffer.Usage.Static, base.compsForBuf[i], base.formatForBuf[i], data);
             }
-
-            VertexBuffer vb = new VertexBuffer(VertexBuffer.Type.values()[i]);
-            
-            vb.setupData(VertexBuffer.Usage.Dynamic, compsForBuf[i], formatForBuf[i], data);
             batchMesh.setBuffer(vb);
             
-            //Set up the arrays that will be used.
-            if(vb.getBufferType() == VertexBuffer.Type.Position){
-                baseP = new float[vertCount*3];
-                tempP = new float[vertCount*3];
-                FloatBuffer basePos = baseMesh.getFloatBuffer(VertexBuffer.Type.Position);
-                basePos.position(0);
-                basePos.get(baseP);
-            }else if(vb.getBufferType() == VertexBuffer.Type.Normal){
-                assert(vb.getNumElements() == vertCount);
-                baseN = new float[vertCount*3];
-                tempN = new float[vertCount*3];
-                FloatBuffer baseNorm = baseMesh.getFloatBuffer(VertexBuffer.Type.Normal);
-                baseNorm.position(0);
-                baseNorm.get(baseN);
-                usesNormals = true;
-            }else if(vb.getBufferType() == VertexBuffer.Type.Tangent){
-                assert(vb.getNumElements() == vertCount);
-                //This is because of tangent parities; sometimes meshes
-                //uses them, sometimes they don't.
-                tanComps = vb.getNumComponents();
-                baseT = new float[vertCount*tanComps];
-                tempT = new float[vertCount*tanComps];
-                FloatBuffer baseTan= baseMesh.getFloatBuffer(VertexBuffer.Type.Tangent);
-                baseTan.position(0);
-                baseTan.get(baseT);
-                usesTangents = true;
-            }else if(vb.getBufferType() == VertexBuffer.Type.TexCoord){
-                //The texcoords are not to be manipulated, so no temp
-                //array is needed.
-                baseX = new float[vertCount*2];
-                FloatBuffer baseTex= baseMesh.getFloatBuffer(VertexBuffer.Type.TexCoord);
-                baseTex.position(0);
-                baseTex.get(baseX);
+            if(type == VertexBuffer.Type.Index){
+                outIdx = batchMesh.getIndexBuffer();
+            } else if(type == VertexBuffer.Type.Position){
+                outPos = (FloatBuffer) vb.getData();
+            } else if(type == VertexBuffer.Type.Normal){
+                outNorm = (FloatBuffer) vb.getData();
+            } else if(type == VertexBuffer.Type.Tangent){
+                outTan = (FloatBuffer) vb.getData();
+            } else if(type == VertexBuffer.Type.TexCoord){
+                outTex = (FloatBuffer) vb.getData();
             }
-            
         }//for-loop
 
-        //Keep track of where in the base mesh buffers we currently are.
+        //Keep track of where in the batch buffers we currently are.
         int globalVertIndex = 0;
         int globalTriIndex = 0;
         
-        //Bounding box initial values.
-        //float xMin = 0, xMax = 0, zMin = 0, zMax = 0, yMin = 0, yMax = 0;
-        
         for (int i = 0; i < treeList.size(); i++) {
             
             TreeData data = treeList.get(i);
             
             //Create new buffers for each tree data. These buffers end up in
             //the temporary arrays
-            generateBuffers(data, vertCount);
+            generateBuffers(data, base, temp);
             
-            for (int bufType = 0; bufType < compsForBuf.length; bufType++) {
-                
-                VertexBuffer outBuf = batchMesh.getBuffer(VertexBuffer.Type.values()[bufType]);
-
-                if (outBuf == null) {
-                    continue;
+            if (outIdx != null) {
+                int[] indices = base.indices;
+                int offset = globalTriIndex * 3;
+                for (int k = 0; k < indices.length; k++) {
+                    outIdx.put(offset + k, indices[k] + globalVertIndex);
                 }
-
-                if (VertexBuffer.Type.Index.ordinal() == bufType) {
-                    int components = compsForBuf[bufType];
-
-                    IndexBuffer inIdx = baseMesh.getIndicesAsList();
-                    IndexBuffer outIdx = batchMesh.getIndexBuffer();
-
-                    for (int tri = 0; tri < triCount; tri++) {
-                        for (int comp = 0; comp < components; comp++) {
-                            int idx = inIdx.get(tri * components + comp) + globalVertIndex;
-                            outIdx.put((globalTriIndex + tri) * components + comp, idx);
-                        }
-                    }
-                } else if (VertexBuffer.Type.Position.ordinal() == bufType) {
-                    FloatBuffer outPos = (FloatBuffer) outBuf.getData();
-                    outPos.put(tempP);
-                } else if (VertexBuffer.Type.Normal.ordinal() == bufType) {
-                    FloatBuffer outPos = (FloatBuffer) outBuf.getData();
-                    outPos.put(tempN);
-                } else if (VertexBuffer.Type.Tangent.ordinal() == bufType){
-                    FloatBuffer outTan = (FloatBuffer) outBuf.getData();
-                    outTan.put(tempT);
-                } else if (VertexBuffer.Type.TexCoord.ordinal() == bufType){
-                    FloatBuffer outTex = (FloatBuffer) outBuf.getData();
-                    //Just keep feeding it the base mesh texcoords each iteration.
-                    outTex.put(baseX);
-                }
-            }//innerFor
+            }
+            if (outPos != null) {
+                outPos.put(temp.tempP, 0, vertCount*3);
+            }
+            if (outNorm != null) {
+                outNorm.put(temp.tempN, 0, vertCount*3);
+            }
+            if (outTan != null) {
+                outTan.put(temp.tempT, 0, vertCount*base.tanComps);
+            }
+            if (outTex != null) {
+                //Just keep feeding it the base mesh texcoords each iteration.
+                outTex.put(base.baseX);
+            }
             
             //Increase the counters.
             globalVertIndex += vertCount;
             globalTriIndex += triCount;
             
-            //Boundingbox stuff.
-            
-//            if(data.x > xMax){
-//                xMax = data.x;
-//            } else if (data.x < xMin){
-//                xMin = data.x;
-//            }
-//            if(data.y > yMax){
-//                yMax = data.y;
-//            } else if (data.y < yMin){
-//                yMin = data.y;
-//            }
-//            if(data.z > zMax){
-//                zMax = data.z;
-//            } else if (data.z < zMin){
-//                zMin = data.z;
-//            }
-            
         }//outerFor
         
-        //Reset temporary variables
-        usesNormals = false;
-        usesTangents = false;
-        compsForBuf = null;
-        formatForBuf = null;
-        posTemp = null;
-        normTemp = null;
-        tanTemp = null;
-        baseP = null;
-        baseN = null;
-        baseT = null;
-        baseX = null;
-        tempP = null;
-        tempN = null;
-        tempT = null;
-        rot = null;
-        
-        //Create bounding box.
-//        float rad = ((BoundingSphere)baseGeom.getModelBound()).getRadius();
-        
-        BoundingBox box = new BoundingBox();
-//        Vector3f boxCenter = new Vector3f();
-//        boxCenter.x = (xMin + xMax)*0.5f;
-//        boxCenter.y = (yMin + yMax)*0.5f;
-//        boxCenter.z = (zMin + zMax)*0.5f;
-//        box.setCenter(boxCenter);
-//        box.setXExtent((xMax - xMin)*0.5f + rad);
-//        box.setYExtent((yMax - yMin)*0.5f + rad);
-//        box.setZExtent((zMax - zMin)*0.5f + rad);
-        batchMesh.setBound(box);
-//        batchMesh.setBound(new BoundingBox());
+        batchMesh.setBound(new BoundingBox());
         batchMesh.updateBound();
-        
         batchMesh.updateCounts();
-        batchMesh.setStatic();
         //Create the static geometry and set the material
         Geometry geom = new Geometry(baseGeom.getMaterial().toString(),batchMesh);
         geom.setMaterial(baseGeom.getMaterial().clone());
@@ -294,65 +353,142 @@ public class TreeGeometryGenerator {
         
     }//generateStaticGeometry
     
-    private void generateBuffers(TreeData data, int vertCount) {
-        Vector3f pos = posTemp;
-        Vector3f norm = normTemp;
-        Vector3f tan = tanTemp;
-                
-        int pIt = 0, nIt = 0, tIt = 0;
+    /**
+     * Gets the vertex data of a model mesh. The data is read from the
+     * mesh buffers the first time a mesh is batched.
+     */
+    protected BaseMesh getBaseMesh(Mesh mesh){
+        synchronized(baseMeshes){
+            BaseMesh base = baseMeshes.get(mesh);
+            if(base == null){
+                base = new BaseMesh(mesh);
+                baseMeshes.put(mesh, base);
+            }
+            return base;
+        }
+    }
+    
+    private void generateBuffers(TreeData data, BaseMesh base, MergeBuffers temp) {
+        float[] baseP = base.baseP, baseN = base.baseN, baseT = base.baseT;
+        float[] tempP = temp.tempP, tempN = temp.tempN, tempT = temp.tempT;
+        int tanComps = base.tanComps;
         
-        rot = new Quaternion().fromAngleNormalAxis(data.rot, Vector3f.UNIT_Y);
+        //Rotation around the y axis.
+        float cos = FastMath.cos(data.rot);
+        float sin = FastMath.sin(data.rot);
+        float s = data.scale;
         
-        for(int i = 0; i < vertCount; i++){
-            // Positions
-            pos.x = baseP[pIt++];
-            pos.y = baseP[pIt++];
-            pos.z = baseP[pIt];
-            
-            //scale
-            pos.multLocal(data.scale);
-            //rotate
-            rot.mult(pos,pos);
-            //translate
-            pos.addLocal(data.x,data.y,data.z);
-            
-            pIt -= 2;
+        int pIt = 0, tIt = 0;
+        for(int i = 0; i < base.vertCount; i++, pIt += 3){
+            float x = baseP[pIt], y = baseP[pIt + 1], z = baseP[pIt + 2];
+            //scale, rotate and translate
+            tempP[pIt] = (cos*x + sin*z)*s + data.x;
+            tempP[pIt + 1] = y*s + data.y;
+            tempP[pIt + 2] = (cos*z - sin*x)*s + data.z;
             
-            tempP[pIt++] = pos.x;
-            tempP[pIt++] = pos.y;
-            tempP[pIt++] = pos.z;
-            
-            if(usesNormals){
-                norm.x = baseN[nIt++];
-                norm.y = baseN[nIt++];
-                norm.z = baseN[nIt];
-                //rotate
-                rot.mult(norm,norm);
-            
-                nIt -= 2;
-                tempN[nIt++] = norm.x;
-                tempN[nIt++] = norm.y;
-                tempN[nIt++] = norm.z;
+            if(baseN != null){
+                x = baseN[pIt];
+                z = baseN[pIt + 2];
+                tempN[pIt] = cos*x + sin*z;
+                tempN[pIt + 1] = baseN[pIt + 1];
+                tempN[pIt + 2] = cos*z - sin*x;
             }
             
-            if(usesTangents){
-                tan.x = baseT[tIt++];
-                tan.y = baseT[tIt++];
-                tan.z = baseT[tIt];
-                //rotate
-                rot.mult(tan,tan);
-            
-                tIt -= 2;
-                tempT[tIt++] = tan.x;
-                tempT[tIt++] = tan.y;
-                tempT[tIt++] = tan.z;
-                
+            if(baseT != null){
+                x = baseT[tIt];
+                z = baseT[tIt + 2];
+                tempT[tIt] = cos*x + sin*z;
+                tempT[tIt + 1] = baseT[tIt + 1];
+                tempT[tIt + 2] = cos*z - sin*x;
                 if(tanComps == 4){
-                    tIt++;
+                    //Tangent parity.
+                    tempT[tIt + 3] = baseT[tIt + 3];
                 }
-            }//outerIf
-            
+                tIt += tanComps;
+            }
         }//for-loop
     }//generateBuffers
     
+    /**
+     * The vertex data of a model mesh. Instances are immutable once
+     * created and shared between threads.
+     */
+    protected static class BaseMesh {
+        
+        final int vertCount;
+        final int triCount;
+        //Used to label and keep track of the buffers used by the base mesh.
+        final int[] compsForBuf;
+        final VertexBuffer.Format[] formatForBuf;
+        //Keep track of how many components there are in tangents.
+        final int tanComps;
+        
+        final float[] baseP; //Positions
+        final float[] baseN; //Normals
+        final float[] baseT; //Tangents
+        final float[] baseX; //TexCoords
+        final int[] indices;
+        
+        BaseMesh(Mesh mesh){
+            vertCount = mesh.getVertexCount();
+            triCount = mesh.getTriangleCount();
+            compsForBuf = new int[VertexBuffer.Type.values().length];
+            formatForBuf = new VertexBuffer.Format[compsForBuf.length];
+            for (Entry<VertexBuffer> entry : mesh.getBuffers()) {
+                if(entry.getValue().isInstanced()){
+                    continue;
+                }
+                compsForBuf[entry.getKey()] = entry.getValue().getNumComponents();
+                formatForBuf[entry.getKey()] = entry.getValue().getFormat();
+            }
+            baseP = read(mesh, VertexBuffer.Type.Position, 3);
+            baseN = read(mesh, VertexBuffer.Type.Normal, 3);
+            baseX = read(mesh, VertexBuffer.Type.TexCoord, compsForBuf[VertexBuffer.Type.TexCoord.ordinal()]);
+            VertexBuffer tan = mesh.getBuffer(VertexBuffer.Type.Tangent);
+            //This is because of tangent parities; sometimes meshes
+            //uses them, sometimes they don't.
+            tanComps = (tan == null) ? 0 : tan.getNumComponents();
+            baseT = read(mesh, VertexBuffer.Type.Tangent, tanComps);
+            
+            IndexBuffer inIdx = mesh.getIndicesAsList();
+            indices = new int[triCount*3];
+            for(int i = 0; i < indices.length; i++){
+                indices[i] = inIdx.get(i);
+            }
+        }
+        
+        private float[] read(Mesh mesh, VertexBuffer.Type type, int components){
+            FloatBuffer buf = mesh.getFloatBuffer(type);
+            if(buf == null){
+                return null;
+            }
+            //Use a duplicate so the position of the model buffer is untouched.
+            buf = buf.duplicate();
+            buf.clear();
+            float[] array = new float[vertCount*components];
+            buf.get(array);
+            return array;
+        }
+    }//BaseMesh
+    
+    /**
+     * Temporary arrays to store the transformed vertices of one tree.
+     */
+    private static class MergeBuffers {
+        
+        float[] tempP = new float[0];
+        float[] tempN = new float[0];
+        float[] tempT = new float[0];
+        
+        void ensureCapacity(BaseMesh base){
+            if(tempP.length < base.vertCount*3){
+                tempP = new float[base.vertCount*3];
+                tempN = new float[base.vertCount*3];
+            }
+            if(tempT.length < base.vertCount*base.tanComps){
+                tempT = new float[base.vertCount*base.tanComps];
+            }
+        }
+    }//MergeBuffers
+    
 }//TreeGeometryGenerator
@@ -38,6 +38,7 @@ import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
 import com.jme3.terrain.Terrain;
+import se.fojob.forester.HeightSampler;
 import se.fojob.forester.trees.datagrids.DataGrid;
 import se.fojob.forester.trees.datagrids.DataProvider;
 import se.fojob.forester.trees.datagrids.MapGrid;
@@ -61,6 +62,7 @@ public class TreeLoader extends GeometryTileLoader {
     protected TreeImpostorGenerator treeImpGen;
     protected DataProvider dataProvider;
     protected int nIt = Short.MAX_VALUE;
+    protected HeightSampler heights;
 
     public TreeLoader(int tileSize,
             int resolution,
@@ -119,6 +121,56 @@ public class TreeLoader extends GeometryTileLoader {
         return task;
     }
 
+    /**
+     * Gets the terrain heights around a tile. The snapshot of the terrain
+     * is taken on the first call, use updateHeights() if the terrain is
+     * modified afterwards.
+     * 
+     * @param tile The tile.
+     * @return A height sampler covering the tile.
+     */
+    public HeightSampler getHeightSampler(Tile tile) {
+        HeightSampler sampler;
+        synchronized (this) {
+            if (heights == null) {
+                heights = HeightSampler.create(terrain);
+            }
+            sampler = heights;
+        }
+        float ts = pagingEngine.getTileSize();
+        float cx = tile.getX() * ts, cz = tile.getZ() * ts;
+        ts *= 0.5f;
+        return sampler.getRegion(cx - ts, cz - ts, cx + ts, cz + ts);
+    }
+
+    /**
+     * Call this method when the terrain has been modified. Tiles that
+     * are loaded from now on use the new heights.
+     */
+    public synchronized void updateHeights() {
+        heights = null;
+    }
+
+    /**
+     * Checks whether trees are drawn with hardware instancing.
+     * 
+     * @return true if instancing is enabled.
+     */
+    public boolean isInstancing() {
+        return treeGen.isInstancing();
+    }
+
+    /**
+     * Enables or disables hardware instancing of tree models. Models whose
+     * material has no UseInstancing parameter are always merged into
+     * static batches. Only affects tiles that are loaded afterwards.
+     * 
+     * @param instancing true to use instancing.
+     */
+    public void setInstancing(boolean instancing) {
+        treeGen.setInstancing(instancing);
+    }
+
     public DataProvider getDataProvider() {
         return dataProvider;
     }
@@ -186,10 +238,10 @@ public class TreeLoader extends GeometryTileLoader {
                     //Generate batches for each of the models geometries.
                     for (Spatial spat : model.getChildren()) {
                         Geometry baseGeom = (Geometry) spat;
-                        Geometry staticGeometry = treeGen.generateStaticGeometry(baseGeom, dataList, false);
-                        if (staticGeometry != null) {
-                            batchNode.attachChild(staticGeometry);
-                            staticGeometry.setShadowMode(layer.getShadowMode());
+                        Geometry batch = treeGen.generateGeometry(baseGeom, dataList, page.getCenterPoint());
+                        if (batch != null) {
+                            batchNode.attachChild(batch);
+                            batch.setShadowMode(layer.getShadowMode());
                         }
                     }
                     if (layer.isUsePhysics()) {
@@ -28,9 +28,9 @@
  */
 package se.fojob.forester.trees.datagrids;
 
-import com.jme3.math.Vector2f;
 import com.jme3.texture.Texture;
 import se.fojob.forester.MapBlock;
+import se.fojob.forester.HeightSampler;
 import se.fojob.forester.RectBounds;
 import se.fojob.forester.image.ColorMap;
 import se.fojob.forester.image.DensityMap;
@@ -66,9 +66,10 @@ public class MapGrid implements DataProvider {
     public TreeDataBlock getData(TreeTile tile) {
         TreeDataBlock block = new TreeDataBlock();
         ArrayList<TreeLayer> layers = treeLoader.getLayers();
+        HeightSampler heights = treeLoader.getHeightSampler(tile);
         for (int i = 0; i < layers.size(); i++) {
             TreeLayer layer = layers.get(i);
-            Grid2D<TreeDataList> list = generateTreeData(layer, tile);
+            Grid2D<TreeDataList> list = generateTreeData(layer, tile, heights);
             if (list != null) {
                 block.put(layer, list);
             }
@@ -76,7 +77,7 @@ public class MapGrid implements DataProvider {
         return block;
     }
 
-    protected Grid2D<TreeDataList> generateTreeData(TreeLayer layer, TreeTile tile) {
+    protected Grid2D<TreeDataList> generateTreeData(TreeLayer layer, TreeTile tile, HeightSampler heights) {
 
         FastRandom random = new FastRandom();
         float scaleDiff = layer.getMaximumScale() - layer.getMinimumScale();
@@ -112,7 +113,7 @@ public class MapGrid implements DataProvider {
                         TreeData data = new TreeData();
                         data.x = x + bounds.getxMin();
                         data.z = z + bounds.getzMin();
-                        data.y = treeLoader.getTerrain().getHeight(new Vector2f(data.x, data.z));
+                        data.y = heights.getHeight(data.x, data.z);
 
                         data.x -= page.getCenterPoint().x;
                         data.z -= page.getCenterPoint().z;
@@ -28,7 +28,7 @@
  */
 package se.fojob.forester.trees.datagrids;
 
-import com.jme3.math.Vector2f;
+import se.fojob.forester.HeightSampler;
 import se.fojob.forester.RectBounds;
 import se.fojob.forester.trees.TreeData;
 import se.fojob.forester.trees.TreeDataBlock;
@@ -66,15 +66,16 @@ public class UDTreeProvider implements DataProvider {
         }
         TreeDataBlock block = new TreeDataBlock();
         ArrayList<TreeLayer> layers = treeLoader.getLayers();
+        HeightSampler heights = treeLoader.getHeightSampler(tile);
         for (int i = 0; i < layers.size(); i++) {
             TreeLayer layer = layers.get(i);
-            Grid2D<TreeDataList> list = generateTreeData(layer, tile);
+            Grid2D<TreeDataList> list = generateTreeData(layer, tile, heights);
             block.put(layer, list);
         }
         return block;
     }
 
-    protected Grid2D<TreeDataList> generateTreeData(TreeLayer layer, TreeTile tile) {
+    protected Grid2D<TreeDataList> generateTreeData(TreeLayer layer, TreeTile tile, HeightSampler heights) {
 
         FastRandom random = new FastRandom();
         float scaleDiff = layer.getMaximumScale() - layer.getMinimumScale();
@@ -95,7 +96,7 @@ public class UDTreeProvider implements DataProvider {
                     float x = bounds.getxMin() + random.unitRandom() * length;
                     float z = bounds.getzMin() + random.unitRandom() * length;
                     
-                    data.y = treeLoader.getTerrain().getHeight(new Vector2f(x, z));
+                    data.y = heights.getHeight(x, z);
                     
                     data.x = x - page.getCenterPoint().x;
                     data.z = z - page.getCenterPoint().z;
@@ -29,6 +29,8 @@
 package se.fojob.grid;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.logging.Logger;
 
 /**
@@ -36,6 +38,11 @@ import java.util.logging.Logger;
  * additional methods to lookup elements (cells) based on hashcodes. It
  * should be considered a work in progress.
  * <br/><br/>
+ * The lookups use a hash index from the cell hashcodes to the positions
+ * in the list, so they take constant time. The index is updated by add, set
+ * and remove, after any other modification (e.g. through an iterator) it is
+ * rebuilt on the next lookup.
+ * <br/><br/>
  * Grid2D implements Cell2D which makes it possible to make a grid of
  * grids.
  * 
@@ -50,6 +57,13 @@ public class Grid2D<T extends Cell2D> extends ArrayList<T> implements Cell2D{
     
     protected static final short hashRadius = (1 << 14);
     
+    //Index from the cell hashcodes to the positions in the list.
+    private final IntIndex index = new IntIndex();
+    //The modCount the index belongs to, it is rebuilt if they differ.
+    private int indexModCount = -1;
+    //If two cells share a hashcode, only the first one is indexed.
+    private boolean duplicates;
+    
     /**
      * The default constructor. Creates a grid at position 0,0 with
      * x and z dimensions both 4 (the initial array size is 16).
@@ -126,14 +140,11 @@ public class Grid2D<T extends Cell2D> extends ArrayList<T> implements Cell2D{
             return null;
         }
         //Returns the old cell.
-        T c = null;
-        for(int i = 0; i < size(); i++){
-            c = get(i);
-            if(c.hashCode() == hash){
-                return set(i,newCell);
-            }
+        int i = indexOfCell(hash);
+        if(i < 0){
+            return null;
         }
-        return null;
+        return set(i,newCell);
     }
     
     /**
@@ -154,14 +165,8 @@ public class Grid2D<T extends Cell2D> extends ArrayList<T> implements Cell2D{
      * @return The cell with hashCode "hash", or null if no such cell exists.
      */
     public T getCell(int hash){
-        T c = null;
-        for(int i = 0; i < size(); i++){
-            c = get(i);
-            if(c!=null && c.hashCode() == hash){
-                return c;
-            }
-        }
-        return null;
+        int i = indexOfCell(hash);
+        return i < 0 ? null : get(i);
     }
     
     /**
@@ -172,15 +177,7 @@ public class Grid2D<T extends Cell2D> extends ArrayList<T> implements Cell2D{
      * @return The cell, or null if it's not in the grid.
      */
     public T removeCell(int x, int z){
-        int hashCode = hash(x,z);
-        T c = null;
-        for(int i = 0; i < size(); i++){
-            c = get(i);
-            if(c.hashCode() == hashCode){
-                return remove(i);
-            }
-        }
-        return null;
+        return removeCell(hash(x,z));
     }
     
     /**
@@ -190,15 +187,7 @@ public class Grid2D<T extends Cell2D> extends ArrayList<T> implements Cell2D{
      * @return The cell, or null if it's not in the grid.
      */
     public T removeCell(T cell){
-        int hashCode = cell.hashCode();
-        T c = null;
-        for(int i = 0; i < size(); i++){
-            c = get(i);
-            if(c.hashCode() == hashCode){
-                return remove(i);
-            }
-        }
-        return null;
+        return removeCell(cell.hashCode());
     }
     
     /**
@@ -208,14 +197,126 @@ public class Grid2D<T extends Cell2D> extends ArrayList<T> implements Cell2D{
      * @return The cell, or null if it's not in the grid.
      */
     public T removeCell(int hash){
-        T c = null;
+        int i = indexOfCell(hash);
+        return i < 0 ? null : remove(i);
+    }
+    
+    /**
+     * Gets the position of the first cell with hashcode "hash".
+     * 
+     * @param hash the hashcode to use for lookup.
+     * @return The position in the list, or -1 if no such cell exists.
+     */
+    protected int indexOfCell(int hash){
+        if(indexModCount != modCount){
+            rebuildIndex();
+        }
+        return index.get(hash);
+    }
+    
+    private void rebuildIndex(){
+        index.clear();
+        duplicates = false;
         for(int i = 0; i < size(); i++){
-            c = get(i);
-            if(c.hashCode() == hash){
-                return remove(i);
+            T c = get(i);
+            if(c != null && !index.putIfAbsent(c.hashCode(), i)){
+                duplicates = true;
+            }
+        }
+        indexModCount = modCount;
+    }
+    
+    @Override
+    public boolean add(T cell){
+        boolean valid = indexModCount == modCount;
+        super.add(cell);
+        if(valid){
+            if(cell != null && !index.putIfAbsent(cell.hashCode(), size() - 1)){
+                duplicates = true;
+            }
+            indexModCount = modCount;
+        }
+        return true;
+    }
+    
+    @Override
+    public T set(int i, T cell){
+        T old = super.set(i, cell);
+        if(indexModCount == modCount){
+            if(duplicates){
+                //The hashcode of the old cell may belong to another cell.
+                indexModCount = -1;
+            } else {
+                if(old != null){
+                    index.remove(old.hashCode());
+                }
+                if(cell != null && !index.putIfAbsent(cell.hashCode(), i)){
+                    //Rebuild to index the first of the two cells.
+                    indexModCount = -1;
+                }
+            }
+        }
+        return old;
+    }
+    
+    @Override
+    public T remove(int i){
+        boolean valid = indexModCount == modCount && !duplicates;
+        T old = super.remove(i);
+        if(valid){
+            if(old != null){
+                index.remove(old.hashCode());
+            }
+            //The following cells moved down by one.
+            for(int j = i; j < size(); j++){
+                T c = get(j);
+                if(c != null){
+                    index.put(c.hashCode(), j);
+                }
+            }
+            indexModCount = modCount;
+        }
+        return old;
+    }
+    
+    @Override
+    public boolean remove(Object o){
+        if(o instanceof Cell2D){
+            int i = indexOfCell(o.hashCode());
+            if(i >= 0 && o.equals(get(i))){
+                remove(i);
+                return true;
             }
         }
-        return null;
+        return super.remove(o);
+    }
+    
+    @Override
+    public boolean contains(Object o){
+        if(o instanceof Cell2D){
+            int i = indexOfCell(o.hashCode());
+            if(i >= 0 && o.equals(get(i))){
+                return true;
+            }
+        }
+        return super.contains(o);
+    }
+    
+    @Override
+    public void clear(){
+        super.clear();
+        index.clear();
+        duplicates = false;
+        indexModCount = modCount;
+    }
+    
+    @Override
+    public boolean addAll(Collection<? extends T> c){
+        //Use add to keep the index up to date.
+        for(T cell : c){
+            add(cell);
+        }
+        return !c.isEmpty();
     }
     
     @Override
@@ -241,4 +342,107 @@ public class Grid2D<T extends Cell2D> extends ArrayList<T> implements Cell2D{
         return x + hashRadius + ((z + hashRadius) << 15);
     }
     
+    /**
+     * An open addressing hash map from int keys to non-negative int values
+     * with linear probing.
+     */
+    private static final class IntIndex {
+        
+        private int[] keys = new int[16];
+        private int[] values = new int[16];
+        private int size;
+        
+        IntIndex(){
+            Arrays.fill(values, -1);
+        }
+        
+        private int slot(int key){
+            return (key * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(keys.length)) & (keys.length - 1);
+        }
+        
+        int get(int key){
+            for(int i = slot(key); values[i] >= 0; i = (i + 1) & (keys.length - 1)){
+                if(keys[i] == key){
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+        
+        void put(int key, int value){
+            int i = find(key);
+            if(values[i] < 0){
+                insert(i, key, value);
+            } else {
+                values[i] = value;
+            }
+        }
+        
+        /**
+         * @return false if the key is already in the map, it is not changed then.
+         */
+        boolean putIfAbsent(int key, int value){
+            int i = find(key);
+            if(values[i] >= 0){
+                return false;
+            }
+            insert(i, key, value);
+            return true;
+        }
+        
+        //The slot of the key or the free slot where it belongs.
+        private int find(int key){
+            int i = slot(key);
+            while(values[i] >= 0 && keys[i] != key){
+                i = (i + 1) & (keys.length - 1);
+            }
+            return i;
+        }
+        
+        private void insert(int i, int key, int value){
+            keys[i] = key;
+            values[i] = value;
+            size++;
+            if(2 * size > keys.length){
+                int[] oldKeys = keys;
+                int[] oldValues = values;
+                keys = new int[2 * oldKeys.length];
+                values = new int[2 * oldKeys.length];
+                Arrays.fill(values, -1);
+                size = 0;
+                for(int j = 0; j < oldKeys.length; j++){
+                    if(oldValues[j] >= 0){
+                        insert(find(oldKeys[j]), oldKeys[j], oldValues[j]);
+                    }
+                }
+            }
+        }
+        
+        void remove(int key){
+            int i = find(key);
+            if(values[i] < 0){
+                return;
+            }
+            values[i] = -1;
+            size--;
+            //Move the following entries of the probe sequence into the gap.
+            int mask = keys.length - 1;
+            for(int j = (i + 1) & mask; values[j] >= 0; j = (j + 1) & mask){
+                int k = slot(keys[j]);
+                //Move the entry if its home slot is not in (i, j].
+                if(i <= j ? (i >= k || k > j) : (i >= k && k > j)){
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = -1;
+                    i = j;
+                }
+            }
+        }
+        
+        void clear(){
+            Arrays.fill(values, -1);
+            size = 0;
+        }
+    }
+    
 }//Grid2D
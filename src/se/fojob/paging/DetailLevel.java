@@ -68,5 +68,21 @@ public class DetailLevel {
 
         farTransDist = farDist + fadingRange;
     }
+
+    public float getNearDist() {
+        return nearDist;
+    }
+
+    public float getFarDist() {
+        return farDist;
+    }
+
+    public float getFarTransDist() {
+        return farTransDist;
+    }
+
+    public boolean isFadeEnabled() {
+        return fadeEnabled;
+    }
     
 } //DetailLevel
@@ -31,6 +31,7 @@ package se.fojob.paging;
 import se.fojob.paging.interfaces.Tile;
 import se.fojob.paging.interfaces.TileLoader;
 import se.fojob.paging.interfaces.PagingEngine;
+import com.jme3.bounding.BoundingBox;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.Camera;
 import com.jme3.scene.Node;
@@ -38,12 +39,21 @@ import se.fojob.grid.GenericCell2D;
 import se.fojob.grid.Grid2D;
 import se.fojob.grid.Cell2D;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,6 +63,11 @@ import java.util.logging.Logger;
  * used for dividing a space into smaller entities. Each tile is in 
  * turn sub-divided into pages. The amount of pages in each tile depends
  * on the resolution of the tile.
+ * <br/><br/>
+ * Tiles are loaded by a pool of worker threads. Queued loads are ordered
+ * by their distance to the camera, tiles in the view frustum first, and
+ * re-prioritized every frame. Loads of tiles that leave the grid are
+ * cancelled if they have not started yet.
  * 
  * @author Andreas
  */
@@ -90,6 +105,12 @@ public class GeometryPagingEngine implements PagingEngine{
     
     protected boolean updateTiles = false;
     
+    //Tile loading
+    protected int workerCount = 1;
+    protected int tilesPerFrame = 2;
+    protected ArrayList<Tile> finishedTiles = new ArrayList<Tile>();
+    protected BoundingBox tileBounds = new BoundingBox();
+    
     //Temporary variable
     protected Vector3f camPos;
     
@@ -191,6 +212,7 @@ public class GeometryPagingEngine implements PagingEngine{
             scrollGrid(camCell);
         }
         
+        finishedTiles.clear();
         Tile tile = null;
         for (int i = 0; i < grid.size(); i++){
             tile= grid.get(i);
@@ -200,29 +222,12 @@ public class GeometryPagingEngine implements PagingEngine{
             }
             
             if(!tile.isLoaded() && !tile.isIdle() && !tile.isPending()){
-                Callable<Boolean> task = tileLoader.loadTile(tile);
-                Future<Boolean> future = getExecutor().submit(task);
-                tile.setFuture(future);
-                tile.setPending(true); 
+                loadTile(tile);
                 continue;
                 
             } else if(tile.isPending()){
                 if(tile.getFuture().isDone()){
-                    try {
-                        boolean result = tile.getFuture().get();
-                        if(result == true){
-                            tile.setLoaded(true);
-                        } else {
-                            tile.setIdle(true);
-                        }
-                        tile.setPending(false);
-                        tile.setFuture(null);
-                    } catch (InterruptedException ex) {
-                        log.log(Level.SEVERE, null, ex.getCause());
-                    } catch (ExecutionException ex) {
-                        log.log(Level.SEVERE, null, ex.getCause());
-                    }
-                    
+                    finishedTiles.add(tile);
                 }
             } else if(tile.isLoaded()){
                 //If the tile is loaded, update and process it every frame.
@@ -232,6 +237,8 @@ public class GeometryPagingEngine implements PagingEngine{
                 tile.process(camPos);
             }
         }
+        finishTiles();
+        prioritizeTasks();
         
         //If the cache is being used.
         if(useCache){
@@ -246,6 +253,15 @@ public class GeometryPagingEngine implements PagingEngine{
 					continue;
 				}
                 if(tile.getCacheTimer() >= cacheTime){
+                    if(!cancelLoad(tile)){
+                        if(!tile.getFuture().isDone()){
+                            //Still being built, unloaded once the load has finished.
+                            continue;
+                        }
+                        //Drop the result.
+                        tile.setPending(false);
+                        tile.setFuture(null);
+                    }
                     cache.remove(i);
                     tile.unload();
 					i--;
@@ -256,95 +272,229 @@ public class GeometryPagingEngine implements PagingEngine{
         }
     }
     
+    /**
+     * Submits the load task of the tile to the executor.
+     * 
+     * @param tile The tile to load.
+     */
+    protected void loadTile(Tile tile){
+        LoadTask task = new LoadTask(tileLoader.loadTile(tile), tile);
+        task.priority = getLoadPriority(tile);
+        tile.setFuture(task);
+        tile.setPending(true);
+        getExecutor().execute(task);
+    }
+    
+    /**
+     * Cancels the load task of a tile that is removed from the grid, if the
+     * task is still queued. The tile is loaded again if it returns to the
+     * grid. A load that has already started is not interrupted, the tile 
+     * stays pending until it has finished.
+     * 
+     * @param tile The tile.
+     * @return true if the tile is no longer pending.
+     */
+    protected boolean cancelLoad(Tile tile){
+        Future<Boolean> future = tile.getFuture();
+        if(!tile.isPending() || future == null){
+            return true;
+        }
+        //A FutureTask is not done while it runs, so only a task that is 
+        //still in the queue can be cancelled safely.
+        if(executor instanceof ThreadPoolExecutor && future instanceof Runnable
+                && ((ThreadPoolExecutor) executor).remove((Runnable) future)){
+            future.cancel(false);
+            tile.setPending(false);
+            tile.setFuture(null);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Marks the finished tiles as loaded, at most tilesPerFrame of them,
+     * the tiles closest to the camera first. The others stay pending until
+     * the next frames.
+     */
+    protected void finishTiles(){
+        if(finishedTiles.size() > tilesPerFrame){
+            for(Tile t : finishedTiles){
+                ((LoadTask) t.getFuture()).priority = getLoadPriority(t);
+            }
+            Collections.sort(finishedTiles, new Comparator<Tile>() {
+                @Override
+                public int compare(Tile t1, Tile t2) {
+                    return Float.compare(((LoadTask) t1.getFuture()).priority, 
+                            ((LoadTask) t2.getFuture()).priority);
+                }
+            });
+        }
+        int count = Math.min(tilesPerFrame, finishedTiles.size());
+        for(int i = 0; i < count; i++){
+            Tile tile = finishedTiles.get(i);
+            try {
+                boolean result = tile.getFuture().get();
+                if(result == true){
+                    tile.setLoaded(true);
+                } else {
+                    tile.setIdle(true);
+                }
+            } catch (CancellationException ex) {
+                //Loaded again in the next frame.
+            } catch (InterruptedException ex) {
+                log.log(Level.SEVERE, null, ex.getCause());
+            } catch (ExecutionException ex) {
+                log.log(Level.SEVERE, null, ex.getCause());
+            }
+            tile.setPending(false);
+            tile.setFuture(null);
+        }
+    }
+    
+    /**
+     * Updates the priorities of the queued load tasks to the current
+     * camera position and direction.
+     */
+    protected void prioritizeTasks(){
+        if(!(executor instanceof ThreadPoolExecutor)){
+            return;
+        }
+        BlockingQueue<Runnable> queue = ((ThreadPoolExecutor) executor).getQueue();
+        if(!(queue instanceof PriorityBlockingQueue) || queue.isEmpty()){
+            return;
+        }
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>(queue.size());
+        queue.drainTo(tasks);
+        for(Runnable r : tasks){
+            if(r instanceof LoadTask){
+                LoadTask task = (LoadTask) r;
+                task.priority = getLoadPriority(task.tile);
+            }
+        }
+        queue.addAll(tasks);
+    }
+    
+    /**
+     * Computes the load priority of a tile, tiles with lower values are
+     * loaded first. It is the distance from the camera to the tile center,
+     * tiles outside of the view frustum come after all visible tiles.
+     * 
+     * @param tile The tile.
+     * @return The priority.
+     */
+    protected float getLoadPriority(Tile tile){
+        float cx = tile.getX() * tileSize;
+        float cz = tile.getZ() * tileSize;
+        float dx = cx - camPos.x;
+        float dz = cz - camPos.z;
+        float dist = (float) Math.sqrt(dx * dx + dz * dz);
+        //The height of the geometry is unknown, use a column around the camera.
+        tileBounds.getCenter().set(cx, camPos.y, cz);
+        tileBounds.setXExtent(tileSize * 0.5f);
+        tileBounds.setYExtent(radius);
+        tileBounds.setZExtent(tileSize * 0.5f);
+        int planeState = camera.getPlaneState();
+        camera.setPlaneState(0);
+        boolean inFrustum = camera.contains(tileBounds) != Camera.FrustumIntersect.Outside;
+        camera.setPlaneState(planeState);
+        if(!inFrustum){
+            dist += gridSize * tileSize;
+        }
+        return dist;
+    }
+    
     /**
      * Internal method.
      * 
      * This method is called whenever the camera moves from one grid-cell to
-     * another, to move the grid along with the camera.
+     * another, to move the grid along with the camera. The camera may move
+     * by any number of cells: tiles that are in the old and the new grid are
+     * kept, the tiles that left the grid are replaced by tiles from the
+     * cache or by new tiles.
      */
     protected void scrollGrid(Cell2D camCell)
     {
-        int dX = camCell.getX() - currentCell.getX();
-        int dZ = camCell.getZ() - currentCell.getZ();
+        ArrayList<Cell2D> leaving = new ArrayList<Cell2D>();
+        ArrayList<Cell2D> entering = new ArrayList<Cell2D>();
+        collectCells(currentCell, camCell, leaving);
+        collectCells(camCell, currentCell, entering);
         
-        Tile tile = null;
-        
-        if (dX == 1 || dX == -1){ 
-            int oldX = currentCell.getX() - dX*halfGridSize;
-            int newX = oldX + dX*gridSize;
-            
-            for(int k =  -halfGridSize; k <= halfGridSize; k++){
-                int z = k + currentCell.getZ();
-                
-                if(useCache){
-                    //Browse the cache to see if the page is there before
-                    //creating a new one
-                    tile = cache.getCell(newX,z);
-                    if(tile == null){
-                        Tile newTile = tileLoader.createTile(newX, z);
-                        tile = grid.setCell(oldX,z,newTile);
-                        cache.add(tile);
-                    } else {
-                        grid.setCell(oldX,z,tile);
-                        log.log(Level.INFO, "Tile recycled from cache at: {0}", tile.toString());
-                        cache.remove(tile);
-                        tile.resetCacheTimer();
-                    }
-                }
-                else{
-                    //Just create a new page and loose the old one.
-                    Tile newTile = tileLoader.createTile(newX, z);
-                    Tile oldTile = grid.setCell(oldX,z,newTile);
-                    oldTile.unload();
+        for(int i = 0; i < entering.size(); i++){
+            Cell2D cell = entering.get(i);
+            Tile tile = null;
+            if(useCache){
+                //Browse the cache to see if the page is there before
+                //creating a new one
+                tile = cache.getCell(cell.getX(), cell.getZ());
+                if(tile != null){
+                    log.log(Level.INFO, "Tile recycled from cache at: {0}", tile.toString());
+                    cache.remove(tile);
+                    tile.resetCacheTimer();
                 }
             }
-            tile = null;
+            if(tile == null){
+                tile = tileLoader.createTile(cell.getX(), cell.getZ());
+            }
+            //Both windows have the same size, so every entering tile
+            //takes the place of a leaving tile.
+            Cell2D old = leaving.get(i);
+            Tile oldTile = grid.getCell(old.getX(), old.getZ());
+            if(oldTile == null){
+                grid.add(tile);
+                continue;
+            }
+            grid.setCell(oldTile, tile);
+            cancelLoad(oldTile);
+            if(useCache){
+                cache.add(oldTile);
+            } else {
+                //Just loose the old tile.
+                oldTile.unload();
+            }
         }
-        
-        if(dZ == 1 || dZ == -1){
-            int oldZ = currentCell.getZ() - dZ*halfGridSize;
-            int newZ = oldZ + dZ*gridSize;
-            
-            for(int i =  -halfGridSize; i <= halfGridSize; i++){
-                //Check to make sure that this page was not checked in the
-                //previous loop.
-                if((dX == 1 && i == -halfGridSize) || (dX == -1 && i == halfGridSize)){
-                    continue;
+        currentCell = camCell;
+    }
+    
+    /**
+     * Collects the cells of the grid centered at a that are not in the grid
+     * centered at b. Only these cells are visited, so small moves are cheap.
+     * 
+     * @param a The center of the first grid.
+     * @param b The center of the second grid.
+     * @param store The list to add the cells to.
+     */
+    protected void collectCells(Cell2D a, Cell2D b, ArrayList<Cell2D> store){
+        int minX = a.getX() - halfGridSize;
+        int maxX = a.getX() + halfGridSize;
+        for(int z = a.getZ() - halfGridSize; z <= a.getZ() + halfGridSize; z++){
+            if(Math.abs(z - b.getZ()) > halfGridSize){
+                //The whole row is outside of the second grid.
+                for(int x = minX; x <= maxX; x++){
+                    store.add(new GenericCell2D(x, z));
                 }
-                int x = i + currentCell.getX();
-                if(useCache){
-                    //Browse the cache to see if the page is there before
-                    //creating a new one
-                    tile = cache.getCell(x,newZ);
-                    if(tile == null){
-                        Tile newTile = tileLoader.createTile(x, newZ);
-                        tile = grid.setCell(x,oldZ,newTile);
-                        cache.add(tile);
-                    } else {
-                        grid.setCell(x,oldZ,tile);
-                        log.log(Level.INFO, "Tile recycled from cache at: {0}", tile.toString());
-                        cache.remove(tile);
-                        tile.resetCacheTimer();
-                    }
+            } else {
+                //Only the cells left and right of the second grid.
+                for(int x = minX; x <= Math.min(maxX, b.getX() - halfGridSize - 1); x++){
+                    store.add(new GenericCell2D(x, z));
                 }
-                else{
-                    Tile newTile = tileLoader.createTile(x, newZ);
-                    Tile oldTile = grid.setCell(x,oldZ,newTile);
-                    oldTile.unload();
+                for(int x = Math.max(minX, b.getX() + halfGridSize + 1); x <= maxX; x++){
+                    store.add(new GenericCell2D(x, z));
                 }
             }
-            tile = null;
         }
-        currentCell = camCell;
     }
     
     @Override
     public void reloadTiles(){
         for(Tile tile: grid){
+            cancelLoad(tile);
             tile.unload();
         }
         grid.clear();
         if(useCache){
+            for(Tile tile: cache){
+                cancelLoad(tile);
+            }
             cache.clear();
         }
         initGrid();
@@ -378,6 +528,7 @@ public class GeometryPagingEngine implements PagingEngine{
     public void reloadTile(int x, int z){
         Tile tile = grid.getCell(x, z);
         if(tile != null){
+            cancelLoad(tile);
             tile.unload();
             grid.removeCell(tile);
             Tile newTile = tileLoader.createTile(x, z);
@@ -474,19 +625,54 @@ public class GeometryPagingEngine implements PagingEngine{
     @Override
     public ExecutorService getExecutor() {
         if(executor == null){
-            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            //The queue orders the tile loads by their priority.
+            ThreadPoolExecutor pool = new PriorityExecutor(workerCount, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
                 @Override
                 public Thread newThread(Runnable r) {
                     Thread th = new Thread(r);
-                    th.setName("Paging Thread");
+                    th.setName("Paging Thread " + count.incrementAndGet());
                     th.setDaemon(true);
                     return th;
                 }
             });
+            pool.prestartAllCoreThreads();
+            executor = pool;
         }
         return executor;
     }
     
+    public int getWorkerCount() {
+        return workerCount;
+    }
+    
+    @Override
+    public void setWorkerCount(int workerCount) {
+        workerCount = Math.max(1, workerCount);
+        if(executor instanceof ThreadPoolExecutor){
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            //The core size must not exceed the maximum size.
+            if(workerCount > pool.getMaximumPoolSize()){
+                pool.setMaximumPoolSize(workerCount);
+                pool.setCorePoolSize(workerCount);
+            } else {
+                pool.setCorePoolSize(workerCount);
+                pool.setMaximumPoolSize(workerCount);
+            }
+            pool.prestartAllCoreThreads();
+        }
+        this.workerCount = workerCount;
+    }
+    
+    public int getTilesPerFrame() {
+        return tilesPerFrame;
+    }
+    
+    @Override
+    public void setTilesPerFrame(int tilesPerFrame) {
+        this.tilesPerFrame = Math.max(1, tilesPerFrame);
+    }
+    
     @Override
     public boolean isVisible() {
         return visible;
@@ -609,6 +795,74 @@ public class GeometryPagingEngine implements PagingEngine{
         this.updateTiles = updateTiles;
     }
     
+    /**
+     * A task in the queue of the executor. Tasks with lower priority 
+     * values run first.
+     */
+    protected static class PrioritizedTask<V> extends FutureTask<V> implements Comparable<PrioritizedTask<?>> {
+        
+        protected float priority;
+        
+        public PrioritizedTask(Callable<V> callable, float priority) {
+            super(callable);
+            this.priority = priority;
+        }
+        
+        public PrioritizedTask(Runnable runnable, V result, float priority) {
+            super(runnable, result);
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask<?> o) {
+            return Float.compare(priority, o.priority);
+        }
+    }
+    
+    /**
+     * A tile load in the queue of the executor.
+     */
+    protected static class LoadTask extends PrioritizedTask<Boolean> {
+        
+        protected final Tile tile;
+        
+        public LoadTask(Callable<Boolean> callable, Tile tile) {
+            super(callable, 0);
+            this.tile = tile;
+        }
+    }
+    
+    /**
+     * The executor of the engine. Its queue orders the tasks by priority. 
+     * Tasks that are not tile loads, e.g. the ones submitted by users 
+     * of getExecutor(), run after all tile loads.
+     */
+    protected static class PriorityExecutor extends ThreadPoolExecutor {
+        
+        public PriorityExecutor(int workerCount, ThreadFactory threadFactory) {
+            super(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, 
+                    new PriorityBlockingQueue<Runnable>(), threadFactory);
+        }
+        
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new PrioritizedTask<T>(callable, Float.POSITIVE_INFINITY);
+        }
+        
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return new PrioritizedTask<T>(runnable, value, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if(!(command instanceof PrioritizedTask)){
+                command = new PrioritizedTask<Void>(command, null, Float.POSITIVE_INFINITY);
+            }
+            super.execute(command);
+        }
+    }
+    
     static{
         
         Slappy:
@@ -95,12 +95,30 @@ public interface PagingEngine {
     public Camera getCamera();
     
     /**
-     * Getter for the executor.
+     * Getter for the executor. Tasks that are submitted to it run after 
+     * the pending tile loads.
      * 
      * @return The executor object used by the engine.
      */
     public ExecutorService getExecutor();
     
+    /**
+     * Sets the number of threads loading tiles. The tile loader must be
+     * thread safe if more than one thread is used.
+     * 
+     * @param workerCount The number of threads.
+     */
+    public void setWorkerCount(int workerCount);
+    
+    /**
+     * Sets the maximal number of loaded tiles that are added to the scene
+     * per frame. This limits the frame time spikes when many tiles finish
+     * at once.
+     * 
+     * @param tilesPerFrame The number of tiles.
+     */
+    public void setTilesPerFrame(int tilesPerFrame);
+    
     /**
      * Getter for the pageloader.
      * 
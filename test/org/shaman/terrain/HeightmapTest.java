@@ -5,6 +5,10 @@
  */
 package org.shaman.terrain;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -59,4 +63,49 @@ public class HeightmapTest {
 		assertEquals(2, map.getHeightInterpolating(1.5f, 2), e);
 		assertEquals(2.5, map.getHeightInterpolating(2, 1.5f), e);
 	}
+	
+	@Test
+	public void testDirectStorage() {
+		Heightmap heap = new Heightmap(8);
+		Heightmap direct = new Heightmap(8, true);
+		assertTrue(direct.isDirect());
+		for (int x=0; x<8; ++x) {
+			for (int y=0; y<8; ++y) {
+				heap.setHeightAt(x, y, x*10+y);
+				direct.setHeightAt(x, y, x*10+y);
+			}
+		}
+		assertArrayEquals(heap.getRow(3, null), direct.getRow(3, null), 0);
+		assertArrayEquals(heap.getRegion(2, 3, 4, 2, null), direct.getRegion(2, 3, 4, 2, null), 0);
+		assertEquals(44, direct.getRegion(2, 3, 4, 2, null)[2*2+1], 0);
+		assertEquals(heap.getChecksum(), direct.getChecksum());
+		Heightmap copy = direct.clone();
+		assertTrue(copy.isDirect());
+		direct.setHeightAt(1, 1, -1);
+		assertEquals(11, copy.getHeightAt(1, 1), 0);
+		//the checksum follows edits in place
+		assertEquals(heap.getChecksum(), copy.getChecksum());
+		assertTrue(heap.getChecksum() != direct.getChecksum());
+	}
+	
+	@Test
+	public void testSerialization() throws Exception {
+		Vectorfield field = new Vectorfield(4, 3);
+		for (int x=0; x<4; ++x) {
+			for (int y=0; y<4; ++y) {
+				field.setVectorAt(x, y, new float[]{x, y, x*y});
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(field);
+		}
+		Vectorfield read;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			read = (Vectorfield) in.readObject();
+		}
+		assertEquals(3, read.getDimensions());
+		assertArrayEquals(new float[]{2, 3, 6}, read.getVectorAt(2, 3), 0);
+		assertEquals(6, read.getLayer(2, null).getHeightAt(2, 3), 0);
+	}
 }
@@ -0,0 +1,112 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.shaman.terrain.heightmap.TileExecutor;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class MeshRasterizerTest {
+
+	public MeshRasterizerTest() {
+	}
+
+	private static Mesh createMesh(Mesh.Mode mode, Vector3f[] pos, ColorRGBA[] col, int... index) {
+		Mesh mesh = new Mesh();
+		mesh.setBuffer(VertexBuffer.Type.Position, 3, BufferUtils.createFloatBuffer(pos));
+		if (col != null) {
+			mesh.setBuffer(VertexBuffer.Type.Color, 4, BufferUtils.createFloatBuffer(col));
+		}
+		if (index.length > 0) {
+			mesh.setBuffer(VertexBuffer.Type.Index, 1, index);
+		}
+		mesh.setMode(mode);
+		mesh.updateCounts();
+		return mesh;
+	}
+
+	@Test
+	public void testSharedEdges() {
+		//a fan of triangles around a center, with an odd center position
+		int size = 32;
+		Vector3f[] pos = new Vector3f[] {
+			new Vector3f(13.3f, 17.7f, 0),
+			new Vector3f(2.2f, 3.1f, 0),
+			new Vector3f(29.6f, 1.9f, 0),
+			new Vector3f(30.1f, 28.4f, 0),
+			new Vector3f(3.5f, 29.2f, 0),
+			new Vector3f(2.2f, 3.1f, 0)
+		};
+		Mesh mesh = createMesh(Mesh.Mode.TriangleFan, pos, null);
+		MeshRasterizer r = new MeshRasterizer(size);
+		r.clear(ColorRGBA.BlackNoAlpha);
+		r.draw(mesh, null, ColorRGBA.White, MeshRasterizer.BlendMode.ADD);
+		float[] data = r.getChannel(0);
+		int covered = 0;
+		for (float v : data) {
+			assertTrue("pixel drawn twice", v==0 || v==1);
+			if (v==1) covered++;
+		}
+		//area of the quad 2.2,3.1 - 29.6,1.9 - 30.1,28.4 - 3.5,29.2
+		assertEquals(711, covered, 30);
+		//inside and outside
+		assertEquals(1, data[15*size + 15], 0);
+		assertEquals(0, data[1*size + 1], 0);
+	}
+
+	@Test
+	public void testInterpolation() {
+		int size = 16;
+		Vector3f[] pos = new Vector3f[] {
+			new Vector3f(0, 0, 0), new Vector3f(16, 0, 0), new Vector3f(0, 16, 0), new Vector3f(16, 16, 0)
+		};
+		ColorRGBA[] col = new ColorRGBA[] {
+			new ColorRGBA(0, 0, 0, 1), new ColorRGBA(1, 0, 0, 1), new ColorRGBA(0, 1, 0, 1), new ColorRGBA(1, 1, 0, 1)
+		};
+		Mesh mesh = createMesh(Mesh.Mode.Triangles, pos, col, 0, 1, 2, 2, 1, 3);
+		MeshRasterizer r = new MeshRasterizer(size);
+		r.clear(ColorRGBA.Black);
+		r.draw(mesh, null, null, MeshRasterizer.BlendMode.REPLACE);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				assertEquals((x+0.5f)/size, r.getChannel(0)[x*size+y], 1e-5);
+				assertEquals((y+0.5f)/size, r.getChannel(1)[x*size+y], 1e-5);
+			}
+		}
+	}
+
+	@Test
+	public void testIndependentOfThreads() {
+		int size = 64;
+		Vector3f[] pos = new Vector3f[20];
+		ColorRGBA[] col = new ColorRGBA[20];
+		java.util.Random rand = new java.util.Random(3);
+		for (int i=0; i<pos.length; ++i) {
+			pos[i] = new Vector3f(rand.nextFloat()*size, rand.nextFloat()*size, 0);
+			col[i] = new ColorRGBA(rand.nextFloat(), rand.nextFloat(), rand.nextFloat(), rand.nextFloat());
+		}
+		float[][] results = new float[2][];
+		TileExecutor[] executors = {new TileExecutor(1, 64), new TileExecutor(3, 4)};
+		for (int e=0; e<2; ++e) {
+			MeshRasterizer r = new MeshRasterizer(size, executors[e]);
+			r.clear(ColorRGBA.Gray);
+			r.draw(createMesh(Mesh.Mode.TriangleStrip, pos, col), null, null, MeshRasterizer.BlendMode.ALPHA);
+			r.draw(createMesh(Mesh.Mode.LineStrip, pos, col), null, null, MeshRasterizer.BlendMode.MAX);
+			results[e] = r.getChannel(3).clone();
+		}
+		assertTrue(Arrays.equals(results[0], results[1]));
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class ProgressivePreviewTest {
+
+	public ProgressivePreviewTest() {
+	}
+
+	@Test
+	public void testProgressiveAndCancel() throws InterruptedException {
+		ProgressivePreview<Integer> preview = new ProgressivePreview<>();
+		final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		//a slow generation that is cancelled
+		preview.submit(256, new ProgressivePreview.Generator<Integer>() {
+			@Override
+			public Integer generate(int size) {
+				started.countDown();
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return -size;
+			}
+		}, new ProgressivePreview.Listener<Integer>() {
+			@Override
+			public void update(Integer result, int size, boolean finished) {
+				results.add("stale "+result);
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		preview.submit(256, new ProgressivePreview.Generator<Integer>() {
+			@Override
+			public Integer generate(int size) {
+				return size;
+			}
+		}, new ProgressivePreview.Listener<Integer>() {
+			@Override
+			public void update(Integer result, int size, boolean finished) {
+				results.add(result+(finished ? " final" : ""));
+				if (finished) {
+					done.countDown();
+				}
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(java.util.Arrays.asList("32", "64", "256 final"), results);
+		preview.shutdown();
+	}
+
+	@Test
+	public void testCancelAndWait() throws InterruptedException {
+		ProgressivePreview<Integer> preview = new ProgressivePreview<>();
+		final AtomicBoolean running = new AtomicBoolean();
+		final CountDownLatch started = new CountDownLatch(1);
+		//a generator that does not react to interrupts
+		preview.submit(256, new ProgressivePreview.Generator<Integer>() {
+			@Override
+			public Integer generate(int size) {
+				running.set(true);
+				started.countDown();
+				long end = System.currentTimeMillis() + 300;
+				while (System.currentTimeMillis() < end) {
+					Thread.yield();
+				}
+				running.set(false);
+				return size;
+			}
+		}, new ProgressivePreview.Listener<Integer>() {
+			@Override
+			public void update(Integer result, int size, boolean finished) {
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		preview.cancelAndWait();
+		assertFalse(running.get());
+		preview.shutdown();
+	}
+
+	@Test
+	public void testUpsample() {
+		Heightmap map = new Heightmap(8);
+		for (int x=0; x<8; ++x) {
+			for (int y=0; y<8; ++y) {
+				map.setHeightAt(x, y, x + 2*y);
+			}
+		}
+		Heightmap large = ProgressivePreview.upsample(map, 29);
+		for (int x=0; x<29; ++x) {
+			for (int y=0; y<29; ++y) {
+				assertEquals((x + 2*y) * 7 / 28f, large.getHeightAt(x, y), 1e-4);
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class RasterExporterTest {
+
+	public RasterExporterTest() {
+	}
+
+	private static File createTempFolder() throws IOException {
+		File folder = File.createTempFile("export", "");
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+
+	@Test
+	public void testPNG() throws IOException {
+		int size = 150; //several bands
+		Random rand = new Random(1);
+		Vectorfield field = new Vectorfield(size, 3);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				field.setVectorAt(x, y, new float[]{rand.nextFloat(), x/(float) size, y/(float) size});
+			}
+		}
+		File folder = createTempFolder();
+		File gray = new File(folder, "gray.png");
+		File rgb = new File(folder, "rgb.png");
+		RasterExporter.write(RasterExporter.of(field, 0), RasterExporter.Format.PNG16, 0, 1, gray);
+		RasterExporter.write(RasterExporter.of(field, 0, 1, 2), RasterExporter.Format.PNG16, 0, 1, rgb);
+
+		Raster r1 = ImageIO.read(gray).getRaster();
+		BufferedImage i2 = ImageIO.read(rgb);
+		Raster r2 = i2.getRaster();
+		assertEquals(size, r1.getWidth());
+		assertEquals(size, r1.getHeight());
+		assertEquals(3, r2.getNumBands());
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				//rows of the map are the scanlines
+				assertEquals(Math.round(field.getScalarAt(x, y, 0)*65535), r1.getSample(y, x, 0));
+				for (int i=0; i<3; ++i) {
+					assertEquals(Math.round(field.getScalarAt(x, y, i)*65535), r2.getSample(y, x, i));
+				}
+			}
+		}
+		gray.delete();
+		rgb.delete();
+	}
+
+	@Test
+	public void testR32Tiles() throws IOException {
+		int size = 100;
+		Heightmap map = new Heightmap(size);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				map.setHeightAt(x, y, x*1000 + y + 0.25f);
+			}
+		}
+		File folder = createTempFolder();
+		RasterExporter.writeTiles(RasterExporter.of(map), RasterExporter.Format.R32, 0, 1, 64, folder, "map");
+		assertEquals(4, folder.list().length);
+		File tile = new File(folder, "map_x1_y0.r32");
+		ByteBuffer data;
+		try (RandomAccessFile file = new RandomAccessFile(tile, "r")) {
+			assertEquals(65*65*4, file.length());
+			byte[] bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+			data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		for (int u=0; u<65; ++u) {
+			for (int v=0; v<65; ++v) {
+				//clamped at the border of the map
+				int x = Math.min(size-1, 64+u);
+				assertEquals(map.getHeightAt(x, v), data.getFloat((u*65 + v)*4), 0);
+			}
+		}
+		for (File f : folder.listFiles()) {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.shaman.terrain.erosion.RiverSource;
+import org.shaman.terrain.erosion.WaterErosionSimulation;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class TerrainArchiveTest {
+
+	public TerrainArchiveTest() {
+	}
+
+	private Map<Object, Object> createProperties(int size) {
+		Random rand = new Random(1);
+		Heightmap map = new Heightmap(size);
+		Vectorfield biomes = new Vectorfield(size, 3);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				map.setHeightAt(x, y, (float) Math.sin(x*0.05) * (float) Math.cos(y*0.03) + rand.nextFloat()*0.01f);
+				biomes.setVectorAt(x, y, new float[]{rand.nextFloat(), x, -y});
+			}
+		}
+		List<RiverSource> sources = new ArrayList<>();
+		RiverSource source = new RiverSource();
+		source.x = 3;
+		source.intensity = 0.5f;
+		sources.add(source);
+		Map<Object, Object> properties = new HashMap<>();
+		properties.put(AbstractTerrainStep.KEY_HEIGHTMAP, map);
+		properties.put(AbstractTerrainStep.KEY_BIOMES, biomes);
+		properties.put(AbstractTerrainStep.KEY_RIVER_SOURCES, sources);
+		properties.put(AbstractTerrainStep.KEY_TERRAIN_SCALE, 2.5f);
+		return properties;
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testWriteRead() throws IOException {
+		int size = 300; //not a multiple of the tile size
+		Map<Object, Object> properties = createProperties(size);
+		File file = File.createTempFile("terrain", ".save");
+		file.deleteOnExit();
+		new SaveFile(WaterErosionSimulation.class, properties).write(file);
+		assertTrue(TerrainArchive.isArchive(file));
+
+		SaveFile save = SaveFile.read(file);
+		assertEquals(WaterErosionSimulation.class, save.getStep());
+		Map<Object, Object> read = save.getProperties();
+		Heightmap map = (Heightmap) properties.get(AbstractTerrainStep.KEY_HEIGHTMAP);
+		Heightmap map2 = (Heightmap) read.get(AbstractTerrainStep.KEY_HEIGHTMAP);
+		assertEquals(size, map2.getSize());
+		for (int x=0; x<size; ++x) {
+			assertArrayEquals(map.getRow(x, null), map2.getRow(x, null), 0);
+		}
+		Vectorfield biomes = (Vectorfield) properties.get(AbstractTerrainStep.KEY_BIOMES);
+		Vectorfield biomes2 = (Vectorfield) read.get(AbstractTerrainStep.KEY_BIOMES);
+		assertEquals(3, biomes2.getDimensions());
+		for (int i=0; i<3; ++i) {
+			for (int x=0; x<size; ++x) {
+				assertArrayEquals(biomes.getRow(i, x, null), biomes2.getRow(i, x, null), 0);
+			}
+		}
+		assertEquals(2.5f, read.get(AbstractTerrainStep.KEY_TERRAIN_SCALE));
+		RiverSource source = ((List<RiverSource>) read.get(AbstractTerrainStep.KEY_RIVER_SOURCES)).get(0);
+		assertEquals(3, source.x);
+		assertEquals(0.5f, source.intensity, 0);
+
+		//partial read across tile borders
+		try (TerrainArchive archive = TerrainArchive.open(file)) {
+			assertEquals(3, archive.getLayers(AbstractTerrainStep.KEY_BIOMES));
+			float[] region = archive.readRegion(AbstractTerrainStep.KEY_BIOMES, 2, 250, 240, 30, 50, null);
+			assertArrayEquals(biomes.getRegion(2, 250, 240, 30, 50, null), region, 0);
+		}
+	}
+
+	@Test
+	public void testReadSerialized() throws IOException {
+		Map<Object, Object> properties = createProperties(16);
+		File file = File.createTempFile("terrain", ".save");
+		file.deleteOnExit();
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+			out.writeObject(WaterErosionSimulation.class);
+			out.writeObject(properties);
+		}
+		assertFalse(TerrainArchive.isArchive(file));
+		SaveFile save = SaveFile.read(file);
+		assertEquals(WaterErosionSimulation.class, save.getStep());
+		Heightmap map = (Heightmap) save.getProperties().get(AbstractTerrainStep.KEY_HEIGHTMAP);
+		assertEquals(((Heightmap) properties.get(AbstractTerrainStep.KEY_HEIGHTMAP)).getHeightAt(5, 7), map.getHeightAt(5, 7), 0);
+	}
+}
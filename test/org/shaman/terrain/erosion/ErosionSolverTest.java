@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.erosion;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.shaman.terrain.Heightmap;
+import org.shaman.terrain.erosion.WaterErosionSimulation.ErosionSolver;
+import org.shaman.terrain.heightmap.TileExecutor;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class ErosionSolverTest {
+
+	public ErosionSolverTest() {
+	}
+
+	private static Heightmap createTerrain(int size) {
+		Heightmap map = new Heightmap(size);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				//an island in the ocean
+				float dx = (x - size/2f) / size;
+				float dy = (y - size/2f) / size;
+				map.setHeightAt(x, y, 0.3f - (float) Math.sqrt(dx*dx + dy*dy) + 0.05f * (float) Math.sin(x*0.7) * (float) Math.cos(y*0.4));
+			}
+		}
+		return map;
+	}
+
+	private static ErosionSolver createSolver(int size, long seed, TileExecutor executor) {
+		Heightmap temperature = new Heightmap(size);
+		temperature.fillHeight(0.5f);
+		Heightmap moisture = new Heightmap(size);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				moisture.setHeightAt(x, y, x / (float) size);
+			}
+		}
+		return new ErosionSolver(temperature, moisture, createTerrain(size), seed, executor);
+	}
+
+	@Test
+	public void testDeterministic() {
+		int size = 96;
+		ErosionSolver s1 = createSolver(size, 42, new TileExecutor(1, 64));
+		ErosionSolver s2 = createSolver(size, 42, new TileExecutor(3, 16));
+		for (int i=0; i<30; ++i) {
+			s1.oneIteration(true, false);
+			s2.oneIteration(true, false);
+		}
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				assertEquals(s1.getTerrainHeight().getHeightAt(x, y), s2.getTerrainHeight().getHeightAt(x, y), 0);
+				assertEquals(s1.getWaterHeight().getHeightAt(x, y), s2.getWaterHeight().getHeightAt(x, y), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testRainDistribution() {
+		int size = 64;
+		Heightmap terrain = createTerrain(size);
+		Heightmap moisture = new Heightmap(size);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				moisture.setHeightAt(x, y, x < size/2 ? 0.25f : 1f);
+			}
+		}
+		RainDistribution rain = new RainDistribution(terrain, moisture);
+		assertFalse(rain.isEmpty());
+		int[] counts = new int[2];
+		for (int i=0; i<200000; ++i) {
+			int cell = rain.sample(RainDistribution.random(1, 0, i));
+			int x = cell / size;
+			int y = cell % size;
+			assertTrue("rain in the ocean", terrain.getHeightAt(x, y) > 0);
+			counts[x < size/2 ? 0 : 1]++;
+		}
+		//the island is symmetric, the right half gets four times the rain
+		assertEquals(4, counts[1] / (double) counts[0], 0.2);
+
+		Heightmap ocean = new Heightmap(size);
+		ocean.fillHeight(-1);
+		assertTrue(new RainDistribution(ocean, moisture).isEmpty());
+	}
+}
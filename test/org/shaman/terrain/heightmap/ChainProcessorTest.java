@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.shaman.terrain.Heightmap;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class ChainProcessorTest {
+
+	public ChainProcessorTest() {
+	}
+
+	@Test
+	public void testFusion() {
+		ChainProcessor chain = new ChainProcessor();
+		chain.add(new NormalizationProcessor());
+		chain.add(new PerlinNoiseProcessor(1, 4, 0.5));
+		chain.add(new PerlinNoiseProcessor(2, 9, 0.2));
+		chain.add(new NormalizationProcessor());
+		chain.add(new PerlinNoiseProcessor(3, 20, 0.1));
+		chain.add(new ThermalErosionProcessor());
+		chain.add(new NormalizationProcessor());
+		assertEquals("[NormalizationProcessor, PerlinNoiseProcessor, PerlinNoiseProcessor] +reduce(NormalizationProcessor)"
+				+ " | [NormalizationProcessor, PerlinNoiseProcessor]"
+				+ " | ThermalErosionProcessor"
+				+ " | [NormalizationProcessor]", chain.getPlan());
+		for (boolean direct : new boolean[]{false, true}) {
+			Heightmap input = new Heightmap(77, direct);
+			for (int x=0; x<77; ++x) {
+				for (int y=0; y<77; ++y) {
+					input.setHeightAt(x, y, (float) Math.sin(x*0.1) * y);
+				}
+			}
+			Heightmap expected = input.clone();
+			for (HeightmapProcessor p : chain) {
+				expected = p.apply(expected);
+			}
+			Heightmap actual = chain.apply(input.clone());
+			for (int x=0; x<77; ++x) {
+				for (int y=0; y<77; ++y) {
+					assertEquals(expected.getHeightAt(x, y), actual.getHeightAt(x, y), 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a value to every pixel and counts the applications
+	 */
+	private static class CountingProcessor implements HeightmapProcessor {
+		private float value;
+		private int count;
+
+		private CountingProcessor(float value) {
+			this.value = value;
+		}
+
+		@Override
+		public Heightmap apply(Heightmap map) {
+			count++;
+			for (int x=0; x<map.getSize(); ++x) {
+				for (int y=0; y<map.getSize(); ++y) {
+					map.adjustHeightAt(x, y, value);
+				}
+			}
+			return map;
+		}
+
+		@Override
+		public void reseed() {}
+
+		@Override
+		public long getFingerprint() {
+			return new Fingerprint(getClass()).add(value).get();
+		}
+
+		@Override
+		public List<? extends PropItem> getProperties() {
+			return Collections.emptyList();
+		}
+	}
+
+	@Test
+	public void testCache() {
+		CountingProcessor c1 = new CountingProcessor(1);
+		CountingProcessor c2 = new CountingProcessor(2);
+		CountingProcessor c3 = new CountingProcessor(3);
+		ChainProcessor chain = new ChainProcessor();
+		chain.add(c1);
+		chain.add(new PerlinNoiseProcessor(1, 4, 0.5));
+		chain.add(c2);
+		chain.add(c3);
+		HeightmapCache cache = new HeightmapCache(1<<20);
+		chain.setCache(cache);
+		Heightmap expected = chain.apply(new Heightmap(32));
+		assertEquals(4, cache.size());
+		//everything is cached
+		Heightmap actual = chain.apply(new Heightmap(32));
+		assertEquals(1, c1.count);
+		assertEquals(1, c3.count);
+		assertEquals(expected.getHeightAt(5, 7), actual.getHeightAt(5, 7), 0);
+		//change the third processor
+		c2.value = 5;
+		actual = chain.apply(new Heightmap(32));
+		assertEquals(1, c1.count);
+		assertEquals(2, c2.count);
+		assertEquals(2, c3.count);
+		assertEquals(expected.getHeightAt(5, 7) + 3, actual.getHeightAt(5, 7), 1e-5);
+		//another input
+		Heightmap input = new Heightmap(32);
+		input.fillHeight(1);
+		chain.apply(input);
+		assertEquals(2, c1.count);
+		//the budget
+		chain.setCache(new HeightmapCache(2 * 4 * 32 * 32));
+		chain.apply(new Heightmap(32));
+		assertEquals(2, chain.getCache().size());
+		assertTrue(chain.getCache().getUsedBytes() <= chain.getCache().getBudget());
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.shaman.terrain.Heightmap;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class FractalNoiseProcessorTest {
+
+	public FractalNoiseProcessorTest() {
+	}
+
+	@Test
+	public void testNormalized() {
+		FractalNoiseProcessor p = new FractalNoiseProcessor(5, 4, 2, 0.3, 0.3);
+		assertEquals(10, p.getProperties().size());
+		for (boolean direct : new boolean[]{false, true}) {
+			Heightmap map = p.apply(new Heightmap(100, direct));
+			float min = Float.MAX_VALUE;
+			float max = -Float.MAX_VALUE;
+			for (int x=0; x<100; ++x) {
+				for (int y=0; y<100; ++y) {
+					min = Math.min(min, map.getHeightAt(x, y));
+					max = Math.max(max, map.getHeightAt(x, y));
+				}
+			}
+			assertEquals(0, min, 1e-6);
+			assertEquals(1, max, 1e-6);
+		}
+	}
+}
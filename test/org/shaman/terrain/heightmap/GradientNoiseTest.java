@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class GradientNoiseTest {
+
+	public GradientNoiseTest() {
+	}
+
+	@Test
+	public void testCompatible() {
+		Random rand = new Random(5);
+		for (int s=0; s<5; ++s) {
+			long seed = rand.nextLong();
+			Noise reference = new Noise(seed);
+			GradientNoise noise = GradientNoise.compatible(seed);
+			for (int i=0; i<1000; ++i) {
+				double x = (rand.nextDouble()-0.5) * 100;
+				double y = (rand.nextDouble()-0.5) * 100;
+				double z = rand.nextDouble() * 10;
+				assertEquals(reference.noise(x, y), noise.noise(x, y), 0);
+				assertEquals(reference.noise(x, y, z), noise.noise(x, y, z), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testFractalTile() {
+		int size = 50;
+		Random rand = new Random(8);
+		double[] frequencies = {2, 5.5, 13};
+		double[] amplitudes = {0.5, 0.2, 0.05};
+		Noise[] reference = new Noise[3];
+		GradientNoise[] octaves = new GradientNoise[3];
+		for (int i=0; i<3; ++i) {
+			long seed = rand.nextLong();
+			reference[i] = new Noise(seed);
+			octaves[i] = GradientNoise.compatible(seed);
+		}
+		FractalNoise fractal = new FractalNoise(octaves, frequencies, amplitudes);
+		float[] data = new float[size*size];
+		fractal.addTile(data, size, 10, 3, 40, 47);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				//the code of the stacked PerlinNoiseProcessors
+				float v = 0;
+				if (x>=10 && x<40 && y>=3 && y<47) {
+					for (int i=0; i<3; ++i) {
+						double scale = frequencies[i] / size;
+						v += reference[i].noise(x*scale, y*scale)*amplitudes[i];
+					}
+				}
+				assertEquals(v, data[x*size + y], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testFast() {
+		GradientNoise noise = GradientNoise.fast(42);
+		float[] row = new float[2000];
+		noise.addRow(row, 0, 7, -1000, 1000, 0.01, 1);
+		double min = 0, max = 0;
+		for (int i=0; i<row.length; ++i) {
+			assertEquals(noise.noise(7*0.01, (i-1000)*0.01), row[i], 1e-5);
+			if (i>0) {
+				assertEquals("not continuous", row[i-1], row[i], 0.05);
+			}
+			min = Math.min(min, row[i]);
+			max = Math.max(max, row[i]);
+		}
+		assertTrue(min >= -1 && min < -0.3);
+		assertTrue(max <= 1 && max > 0.3);
+		assertEquals(noise.noise(0.3, 1.7), GradientNoise.fast(42).noise(0.3, 1.7), 0);
+		assertTrue(noise.noise(0.3, 1.7) != GradientNoise.fast(43).noise(0.3, 1.7));
+		for (int i=0; i<1000; ++i) {
+			double v = noise.noise(i*0.37, i*0.11, i*0.05);
+			assertTrue(v >= -1 && v <= 1);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+/**
+ * Compares the speed of {@link Noise} and the {@link GradientNoise} modes.
+ * Every benchmark fills a map with five octaves of noise, single threaded.
+ * Usage: {@code NoiseBenchmark [size] [rounds]}
+ * @author Sebastian Weiss
+ */
+public class NoiseBenchmark {
+	private static final int OCTAVES = 5;
+	private static final int WARMUP_ROUNDS = 3;
+
+	private static interface Benchmark {
+		void run(float[] data, int size);
+	}
+
+	/**
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		final Noise[] reference = new Noise[OCTAVES];
+		for (int i=0; i<OCTAVES; ++i) {
+			reference[i] = new Noise(i);
+		}
+		final FractalNoise compatible = FractalNoise.create(1, GradientNoise.Mode.COMPATIBLE, OCTAVES, 4, 2, 0.5);
+		final FractalNoise fast = FractalNoise.create(1, GradientNoise.Mode.FAST, OCTAVES, 4, 2, 0.5);
+		float[] data = new float[size*size];
+		run("Noise", new Benchmark() {
+			@Override
+			public void run(float[] data, int size) {
+				for (int x=0; x<size; ++x) {
+					for (int y=0; y<size; ++y) {
+						float v = 0;
+						double frequency = 4;
+						double amplitude = 1;
+						for (int i=0; i<OCTAVES; ++i) {
+							double scale = frequency / size;
+							v += reference[i].noise(x*scale, y*scale) * amplitude;
+							frequency *= 2;
+							amplitude *= 0.5;
+						}
+						data[x*size + y] = v;
+					}
+				}
+			}
+		}, data, size, rounds);
+		run("GradientNoise.COMPATIBLE", new Benchmark() {
+			@Override
+			public void run(float[] data, int size) {
+				java.util.Arrays.fill(data, 0);
+				compatible.addTile(data, size, 0, 0, size, size);
+			}
+		}, data, size, rounds);
+		run("GradientNoise.FAST", new Benchmark() {
+			@Override
+			public void run(float[] data, int size) {
+				java.util.Arrays.fill(data, 0);
+				fast.addTile(data, size, 0, 0, size, size);
+			}
+		}, data, size, rounds);
+	}
+
+	private static void run(String name, Benchmark benchmark, float[] data, int size, int rounds) {
+		for (int i=0; i<WARMUP_ROUNDS; ++i) {
+			benchmark.run(data, size);
+		}
+		long best = Long.MAX_VALUE;
+		long total = 0;
+		for (int i=0; i<rounds; ++i) {
+			long time = System.nanoTime();
+			benchmark.run(data, size);
+			time = System.nanoTime() - time;
+			best = Math.min(best, time);
+			total += time;
+		}
+		double samples = (double) size * size * OCTAVES;
+		System.out.printf("%-26s best %8.2f ms, mean %8.2f ms, %6.2f ns/sample%n",
+				name, best / 1e6, total / 1e6 / rounds, best / samples);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.heightmap;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class VoronoiGridTest {
+	
+	public VoronoiGridTest() {
+	}
+	
+	@Test
+	public void testAgainstBruteForce() {
+		testAgainstBruteForce(0.1f, 3);
+		testAgainstBruteForce(0, 1); //weights close to zero, as in GraphToHeightmap
+	}
+	
+	private void testAgainstBruteForce(float minWeight, float maxWeight) {
+		Random rand = new Random(42);
+		int size = 64;
+		int cellCount = 8;
+		float cellSize = size / (float) cellCount;
+		List<Vector3f> points = new ArrayList<>();
+		for (int x=0; x<cellCount; ++x) {
+			for (int y=0; y<cellCount; ++y) {
+				for (int i=0; i<2; ++i) {
+					points.add(new Vector3f(
+							x*cellSize + rand.nextFloat()*cellSize,
+							y*cellSize + rand.nextFloat()*cellSize,
+							rand.nextFloat()*(maxWeight-minWeight) + minWeight));
+				}
+			}
+		}
+		VoronoiGrid grid = new VoronoiGrid(size, cellCount, points);
+		int[] indices = new int[3];
+		float[] distances = new float[3];
+		float[] expected = new float[points.size()];
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				assertEquals(3, grid.findNearest(x, y, 3, indices, distances));
+				for (int i=0; i<points.size(); ++i) {
+					Vector3f p = points.get(i);
+					expected[i] = FastMath.sqrt((p.x-x)*(p.x-x) + (p.y-y)*(p.y-y))*p.z;
+				}
+				Arrays.sort(expected);
+				for (int i=0; i<3; ++i) {
+					assertEquals(expected[i], distances[i], 0);
+					Vector3f p = points.get(indices[i]);
+					assertEquals(expected[i], FastMath.sqrt((p.x-x)*(p.x-x) + (p.y-y)*(p.y-y))*p.z, 0);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.terrain.sketch;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class StencilSolverTest {
+
+	public StencilSolverTest() {
+	}
+
+	@Test
+	public void testNonSymmetricSystem() {
+		int size = 37; //odd size to test the aggregation at the border
+		Random rand = new Random(7);
+		double[][] coeff = new double[size*size][6];
+		StencilSolver solver = new StencilSolver(size);
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				//smoothing with a random one-sided gradient term and a few fixed cells
+				double fixed = rand.nextInt(50)==0 ? 1 : 0;
+				double c = (1-fixed) * rand.nextDouble();
+				double g = (1-fixed-c) * rand.nextDouble();
+				double[] k = coeff[x*size+y];
+				k[0] = 1;
+				k[1] = -c/4 - (rand.nextBoolean() ? g : 0);
+				k[2] = -c/4;
+				k[3] = -c/4;
+				k[4] = -c/4;
+				k[5] = fixed * rand.nextDouble() + rand.nextDouble() * 0.01;
+				solver.setEquation(x, y, k[0], k[1], k[2], k[3], k[4], k[5]);
+			}
+		}
+		solver.solve(1e-8, 100);
+		assertTrue("not converged: "+solver.getResidual(), solver.getResidual() <= 1e-8);
+		//check the true residual
+		double[] h = solver.getSolution();
+		for (int x=0; x<size; ++x) {
+			for (int y=0; y<size; ++y) {
+				double[] k = coeff[x*size+y];
+				double v = k[0] * h[x*size+y]
+						+ k[1] * h[Math.max(0, x-1)*size+y]
+						+ k[2] * h[Math.min(size-1, x+1)*size+y]
+						+ k[3] * h[x*size+Math.max(0, y-1)]
+						+ k[4] * h[x*size+Math.min(size-1, y+1)];
+				assertEquals(k[5], v, 1e-6);
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package se.fojob.forester;
+
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the height sampler with the terrain it was created from.
+ *
+ * @author Andreas
+ */
+public class HeightSamplerTest {
+
+    private static TerrainQuad createTerrain(){
+        int size = 129;
+        Random rand = new Random(1);
+        float[] map = new float[size * size];
+        for(int i = 0; i < map.length; i++){
+            map[i] = rand.nextFloat() * 10;
+        }
+        TerrainQuad terrain = new TerrainQuad("terrain", 33, size, map);
+        terrain.setLocalScale(new Vector3f(2, 0.5f, 2));
+        terrain.setLocalTranslation(10, 0, -20);
+        terrain.updateGeometricState();
+        return terrain;
+    }
+
+    @Test
+    public void testGridPoints(){
+        TerrainQuad terrain = createTerrain();
+        HeightSampler heights = HeightSampler.create(terrain);
+        HeightSampler region = heights.getRegion(-30, -50, 20, 0);
+        for(int x = -30; x <= 20; x += 2){
+            for(int z = -50; z <= 0; z += 2){
+                float expected = terrain.getHeight(new Vector2f(x, z));
+                assertEquals(expected, heights.getHeight(x, z), 1e-4f);
+                assertEquals(expected, region.getHeight(x, z), 1e-4f);
+            }
+        }
+        assertTrue(Float.isNaN(heights.getHeight(10 + 200, 0)));
+    }
+
+    @Test
+    public void testInterpolation(){
+        TerrainQuad terrain = createTerrain();
+        HeightSampler heights = HeightSampler.create(terrain);
+        HeightSampler region = heights.getRegion(-30, -50, 20, 0);
+        Random rand = new Random(2);
+        float[] xz = new float[200];
+        for(int i = 0; i < xz.length; i += 2){
+            xz[i] = -30 + rand.nextFloat() * 50;
+            xz[i + 1] = -50 + rand.nextFloat() * 50;
+        }
+        float[] store = region.getHeights(xz, 100, null);
+        for(int i = 0; i < 100; i++){
+            float x = xz[2*i], z = xz[2*i + 1];
+            assertEquals(heights.getHeight(x, z), store[i], 1e-4f);
+            //The terrain interpolates over triangles, the result stays within the cell.
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for(int dx = 0; dx <= 2; dx += 2){
+                for(int dz = 0; dz <= 2; dz += 2){
+                    float h = terrain.getHeight(new Vector2f(x - (x % 2 + 2) % 2 + dx, z - (z % 2 + 2) % 2 + dz));
+                    min = Math.min(min, h);
+                    max = Math.max(max, h);
+                }
+            }
+            assertTrue(store[i] >= min - 1e-4f && store[i] <= max + 1e-4f);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package se.fojob.forester.grass;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import java.util.Locale;
+import se.fojob.forester.HeightSampler;
+import se.fojob.forester.grass.GrassLayer.MeshType;
+
+/**
+ * Compares building the static and the instanced meshes of one grass page,
+ * by time and by the size of the buffers made for the page. The instanced
+ * meshes share the buffers of the template, so those are not counted.
+ * Usage: {@code GrassGeometryBenchmark [patches] [rounds]}
+ *
+ * @author Andreas
+ */
+public class GrassGeometryBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        for(MeshType type : new MeshType[]{MeshType.QUADS, MeshType.CROSSQUADS}){
+            GrassLayer layer = GrassGeometryGeneratorTest.createLayer(type);
+            run(layer, count, rounds);
+        }
+    }
+
+    private static void run(GrassLayer layer, int count, int rounds){
+        GrassPage page = GrassGeometryGeneratorTest.createPage();
+        HeightSampler heights = new GrassGeometryGeneratorTest.PlaneSampler();
+        float[] grassData = GrassGeometryGeneratorTest.createGrassData(count);
+        GrassGeometryGenerator gen = new GrassGeometryGenerator(null);
+        Mesh template = gen.getTemplate(layer.getMeshType());
+
+        long bestStatic = Long.MAX_VALUE, bestInstanced = Long.MAX_VALUE;
+        long staticBytes = 0, instancedBytes = 0;
+        for(int i = -WARMUP_ROUNDS; i < rounds; i++){
+            long time = System.nanoTime();
+            Mesh mesh = layer.getMeshType() == MeshType.CROSSQUADS
+                    ? gen.generateGrass_CROSSQUADS(layer, page, grassData.clone(), count, null, heights)
+                    : gen.generateGrass_QUADS(layer, page, grassData.clone(), count, null, heights);
+            time = System.nanoTime() - time;
+            if(i >= 0){
+                bestStatic = Math.min(bestStatic, time);
+            }
+            staticBytes = getBytes(mesh, null);
+
+            time = System.nanoTime();
+            mesh = gen.generateGrass_INSTANCED(layer, page, grassData.clone(), count, null, heights);
+            time = System.nanoTime() - time;
+            if(i >= 0){
+                bestInstanced = Math.min(bestInstanced, time);
+            }
+            instancedBytes = getBytes(mesh, template);
+        }
+        System.out.printf(Locale.ROOT, "%-10s %d patches: static %8.3f ms %9d bytes, instanced %8.3f ms %9d bytes "
+                + "(+%d shared), time %5.2fx, size %5.2fx%n",
+                layer.getMeshType(), count, bestStatic/1e6, staticBytes, bestInstanced/1e6, instancedBytes,
+                getBytes(template, null), (double) bestStatic/bestInstanced, (double) staticBytes/instancedBytes);
+    }
+
+    /**
+     * The size of the buffers of a mesh, without the ones shared with the
+     * template.
+     */
+    private static long getBytes(Mesh mesh, Mesh template){
+        long bytes = 0;
+        for(VertexBuffer vb : mesh.getBufferList()){
+            if(template != null && template.getBuffer(vb.getBufferType()) == vb){
+                continue;
+            }
+            bytes += (long) vb.getData().limit()*vb.getFormat().getComponentSize();
+        }
+        return bytes;
+    }
+}
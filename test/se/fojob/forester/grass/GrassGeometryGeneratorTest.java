@@ -0,0 +1,163 @@
+package se.fojob.forester.grass;
+
+import com.jme3.app.Application;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.plugins.FileLocator;
+import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture2D;
+import com.jme3.util.BufferUtils;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.fojob.forester.Forester;
+import se.fojob.forester.HeightSampler;
+import se.fojob.forester.grass.GrassLayer.MeshType;
+import se.fojob.paging.GeometryPagingEngine;
+
+/**
+ * Builds one page with the static and the instanced quads or crossed quads, 
+ * and rebuilds the instanced ones the way Grass.vert does.
+ *
+ * @author Andreas
+ */
+public class GrassGeometryGeneratorTest {
+
+    /**
+     * A sloped plane.
+     */
+    static class PlaneSampler extends HeightSampler {
+        PlaneSampler(){
+            super(new float[4], 2, Vector3f.ZERO, Vector3f.UNIT_XYZ);
+        }
+
+        @Override
+        public float getHeight(float x, float z) {
+            return 0.1f*x - 0.2f*z + 3;
+        }
+    }
+
+    static GrassLayer createLayer(MeshType type){
+        final DesktopAssetManager am = new DesktopAssetManager(true);
+        am.registerLocator("src", FileLocator.class);
+        Application app = new Application(){
+            {
+                assetManager = am;
+            }
+        };
+        Forester.getInstance().initialize(new Node(), new Camera(64, 64), null, app);
+        Material mat = new Material(am, "Resources/MatDefs/Grass/grassBase.j3md");
+        Texture2D tex = new Texture2D(new Image(Image.Format.RGBA8, 1, 1, BufferUtils.createByteBuffer(4)));
+        mat.setTexture("ColorMap", tex);
+        mat.setTexture("AlphaNoiseMap", tex);
+        GrassLayer layer = new GrassLayer(mat, type, null);
+        layer.setMinWidth(0.5f);
+        layer.setMaxWidth(1.5f);
+        layer.setMinHeight(0.8f);
+        layer.setMaxHeight(2f);
+        return layer;
+    }
+
+    private static float mix(float a, float b, float t){
+        return a + (b - a)*t;
+    }
+
+    static GrassPage createPage(){
+        GeometryPagingEngine engine = new GeometryPagingEngine(64, 1, 128, new Node(), new Camera(64, 64));
+        return new GrassPage(1, -1, new Vector3f(96, 0, -32), engine);
+    }
+    
+    static float[] createGrassData(int count){
+        Random rand = new Random(1);
+        float[] grassData = new float[count*4];
+        for(int i = 0; i < count; i++){
+            grassData[i*4] = 64 + rand.nextFloat()*64;
+            grassData[i*4 + 1] = -64 + rand.nextFloat()*64;
+            grassData[i*4 + 2] = rand.nextFloat();
+            grassData[i*4 + 3] = rand.nextFloat()*6.28f;
+        }
+        return grassData;
+    }
+
+    @Test
+    public void testInstancedQuads(){
+        testInstanced(MeshType.QUADS, 1);
+    }
+
+    @Test
+    public void testInstancedCrossQuads(){
+        testInstanced(MeshType.CROSSQUADS, 2);
+    }
+    
+    private void testInstanced(MeshType type, int quads){
+        GrassLayer layer = createLayer(type);
+        GrassPage page = createPage();
+        HeightSampler heights = new PlaneSampler();
+        
+        int count = 200;
+        float[] grassData = createGrassData(count);
+        GrassGeometryGenerator gen = new GrassGeometryGenerator(null);
+        Mesh mesh = type == MeshType.CROSSQUADS 
+                ? gen.generateGrass_CROSSQUADS(layer, page, grassData.clone(), count, null, heights)
+                : gen.generateGrass_QUADS(layer, page, grassData.clone(), count, null, heights);
+        Mesh instanced = gen.generateGrass_INSTANCED(layer, page, grassData.clone(), count, null, heights);
+        
+        //Static: 12 position, 8 texcoord and 8 normal floats per patch and quad.
+        int vertices = quads*4;
+        assertEquals(count*vertices*3, mesh.getBuffer(Type.Position).getData().limit());
+        assertEquals(count*vertices*2, mesh.getBuffer(Type.TexCoord).getData().limit());
+        assertEquals(count*vertices*2, mesh.getBuffer(Type.TexCoord2).getData().limit());
+        assertEquals(count*quads*6, mesh.getBuffer(Type.Index).getData().limit());
+        //Instanced: 4 grass data and 2 height floats per patch and quad, 
+        //the rest is shared.
+        int ends = quads*2;
+        assertTrue(GrassGeometryGenerator.isInstanced(instanced));
+        assertEquals(count, instanced.getInstanceCount());
+        assertEquals(count*4, instanced.getBuffer(Type.TexCoord3).getData().limit());
+        assertEquals(count*ends, instanced.getBuffer(Type.TexCoord4).getData().limit());
+        Mesh template = gen.getTemplate(type);
+        assertEquals(vertices, template.getVertexCount());
+        for(VertexBuffer vb : template.getBufferList()){
+            assertSame(vb, instanced.getBuffer(vb.getBufferType()));
+        }
+        
+        FloatBuffer pos = mesh.getFloatBuffer(Type.Position);
+        FloatBuffer norm = mesh.getFloatBuffer(Type.TexCoord2);
+        FloatBuffer tPos = template.getFloatBuffer(Type.Position);
+        FloatBuffer tNorm = template.getFloatBuffer(Type.TexCoord2);
+        FloatBuffer tEnds = template.getFloatBuffer(Type.TexCoord5);
+        FloatBuffer data = instanced.getFloatBuffer(Type.TexCoord3);
+        FloatBuffer endHeights = instanced.getFloatBuffer(Type.TexCoord4);
+        for(int i = 0; i < count; i++){
+            float x = data.get(i*4), z = data.get(i*4 + 1);
+            float size = data.get(i*4 + 2), angle = data.get(i*4 + 3);
+            float halfWidth = 0.5f*mix(layer.getMinWidth(), layer.getMaxWidth(), size);
+            float height = mix(layer.getMinHeight(), layer.getMaxHeight(), size);
+            float dirX = (float) Math.cos(angle), dirZ = (float) Math.sin(angle);
+            float perpX = -dirZ, perpZ = dirX;
+            for(int v = 0; v < vertices; v++){
+                float px = tPos.get(v*3), py = tPos.get(v*3 + 1), pz = tPos.get(v*3 + 2);
+                //Each end selector picks one of the end heights.
+                float y = py*height;
+                for(int e = 0; e < ends; e++){
+                    y += endHeights.get(i*ends + e)*tEnds.get(v*4 + e);
+                }
+                int k = (i*vertices + v)*3;
+                assertEquals(pos.get(k), x + (px*dirX + pz*perpX)*halfWidth, 1e-4f);
+                assertEquals(pos.get(k + 1), y, 1e-4f);
+                assertEquals(pos.get(k + 2), z + (px*dirZ + pz*perpZ)*halfWidth, 1e-4f);
+                //The rotated self-shadowing normal.
+                float nx = tNorm.get(v*2), nz = tNorm.get(v*2 + 1);
+                assertEquals(norm.get((i*vertices + v)*2), nx*dirX + nz*perpX, 1e-5f);
+                assertEquals(norm.get((i*vertices + v)*2 + 1), nx*dirZ + nz*perpZ, 1e-5f);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package se.fojob.forester.grass;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Writes grass meshes to the page cache and reads them back.
+ *
+ * @author Andreas
+ */
+public class GrassPageCacheTest {
+
+    private static Mesh createMesh(int quads){
+        Mesh mesh = new Mesh();
+        float[] positions = new float[quads * 12];
+        for(int i = 0; i < positions.length; i++){
+            positions[i] = i * 0.5f;
+        }
+        mesh.setBuffer(Type.Position, 3, positions);
+        //An odd number of bytes.
+        ByteBuffer indices = (ByteBuffer) VertexBuffer.createBuffer(Format.UnsignedByte, 1, quads * 6 + 1);
+        for(int i = 0; i < indices.limit(); i++){
+            indices.put(i, (byte) i);
+        }
+        VertexBuffer iBuf = new VertexBuffer(Type.Index);
+        iBuf.setupData(VertexBuffer.Usage.Dynamic, 1, Format.UnsignedByte, indices);
+        mesh.setBuffer(iBuf);
+        mesh.setBuffer(Type.TexCoord, 2, new float[quads * 8]);
+        return mesh;
+    }
+
+    private static void assertMeshEquals(Mesh expected, Mesh actual){
+        assertEquals(expected.getBufferList().size(), actual.getBufferList().size());
+        for(VertexBuffer vb : expected.getBufferList()){
+            VertexBuffer other = actual.getBuffer(vb.getBufferType());
+            assertEquals(vb.getFormat(), other.getFormat());
+            assertEquals(vb.getNumComponents(), other.getNumComponents());
+            assertEquals(vb.isInstanced(), other.isInstanced());
+            assertEquals(vb.getData().limit(), other.getData().limit());
+            assertTrue(other.getData().isDirect());
+            if(vb.getFormat() == Format.Float){
+                FloatBuffer a = (FloatBuffer) vb.getData(), b = (FloatBuffer) other.getData();
+                for(int i = 0; i < a.limit(); i++){
+                    assertEquals(a.get(i), b.get(i), 0);
+                }
+            } else {
+                ByteBuffer a = (ByteBuffer) vb.getData(), b = (ByteBuffer) other.getData();
+                for(int i = 0; i < a.limit(); i++){
+                    assertEquals(a.get(i), b.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException{
+        final File dir = File.createTempFile("grass", "");
+        dir.delete();
+        GrassPageCache cache = new GrassPageCache(dir, "test");
+        Mesh[][] meshes = {{createMesh(3), null}, {createMesh(10), createMesh(1)}};
+        cache.store(2, -1, 42L, meshes);
+        assertTrue(cache.getFile(2, -1).isFile());
+
+        Mesh[][] loaded = cache.load(2, -1, 42L, 2, 2);
+        assertNotNull(loaded);
+        assertMeshEquals(meshes[0][0], loaded[0][0]);
+        assertNull(loaded[0][1]);
+        assertMeshEquals(meshes[1][0], loaded[1][0]);
+        assertMeshEquals(meshes[1][1], loaded[1][1]);
+
+        //instanced meshes keep their bound and instance count
+        Mesh instanced = createMesh(1);
+        VertexBuffer data = new VertexBuffer(Type.TexCoord3);
+        data.setInstanced(true);
+        data.setupData(VertexBuffer.Usage.Static, 4, Format.Float, BufferUtils.createFloatBuffer(new float[20]));
+        instanced.setBuffer(data);
+        instanced.setBound(new BoundingBox(new Vector3f(1, 2, 3), 4, 5, 6));
+        instanced.updateCounts();
+        cache.store(0, 0, 7L, new Mesh[][]{{instanced}});
+        Mesh loadedInstanced = cache.load(0, 0, 7L, 1, 1)[0][0];
+        assertMeshEquals(instanced, loadedInstanced);
+        assertEquals(5, loadedInstanced.getInstanceCount());
+        assertEquals(instanced.getBound().toString(), loadedInstanced.getBound().toString());
+
+        //stale or missing entries
+        assertNull(cache.load(2, -1, 43L, 2, 2));
+        assertNull(cache.load(2, -1, 42L, 2, 3));
+        assertNull(cache.load(1, 0, 42L, 2, 2));
+        //a stale entry is not kept open and can be replaced
+        cache.store(2, -1, 43L, meshes);
+        assertNotNull(cache.load(2, -1, 43L, 2, 2));
+        assertNull(cache.load(2, -1, 42L, 2, 2));
+
+        //files that can't be mapped privately are copied
+        GrassPageCache copying = new GrassPageCache(dir, "test"){
+            @Override
+            protected ByteBuffer map(File file, FileChannel channel) throws IOException {
+                return super.map(new File(dir, "missing"), channel);
+            }
+        };
+        loaded = copying.load(2, -1, 43L, 2, 2);
+        assertNotNull(loaded);
+        assertMeshEquals(meshes[1][0], loaded[1][0]);
+
+        cache.clear();
+        assertFalse(cache.getFile(2, -1).exists());
+        assertFalse(cache.getFile(0, 0).exists());
+        dir.delete();
+    }
+}
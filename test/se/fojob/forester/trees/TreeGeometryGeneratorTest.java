@@ -0,0 +1,182 @@
+package se.fojob.forester.trees;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.material.Material;
+import com.jme3.material.MaterialDef;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.shape.Box;
+import com.jme3.shader.VarType;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the static and the instanced tree batches with the transforms
+ * of the tree data.
+ *
+ * @author Andreas
+ */
+public class TreeGeometryGeneratorTest {
+
+    private static Geometry createModel(MaterialDef def){
+        //A trunk standing on the ground.
+        Mesh mesh = new Box(0.5f, 2, 1);
+        FloatBuffer pos = mesh.getFloatBuffer(VertexBuffer.Type.Position);
+        for(int i = 1; i < pos.limit(); i += 3){
+            pos.put(i, pos.get(i) + 2);
+        }
+        mesh.updateBound();
+        Geometry geom = new Geometry("tree", mesh);
+        geom.setMaterial(new Material(def));
+        return geom;
+    }
+
+    private static MaterialDef createDef(boolean instancing){
+        MaterialDef def = new MaterialDef(null, "test");
+        if(instancing){
+            def.addMaterialParam(VarType.Boolean, "UseInstancing", null);
+        }
+        return def;
+    }
+
+    private static TreeDataList createTrees(int seed, int count){
+        Random rand = new Random(seed);
+        TreeDataList list = new TreeDataList(0, 0);
+        for(int i = 0; i < count; i++){
+            list.add(new TreeData(rand.nextFloat()*64 - 32, rand.nextFloat()*10, 
+                    rand.nextFloat()*64 - 32, 0.5f + rand.nextFloat(), rand.nextFloat()*6.28f));
+        }
+        return list;
+    }
+
+    private static Vector3f transform(TreeData data, Vector3f v){
+        Quaternion rot = new Quaternion().fromAngleNormalAxis(data.rot, Vector3f.UNIT_Y);
+        return rot.mult(v.mult(data.scale)).addLocal(data.x, data.y, data.z);
+    }
+
+    private static void assertVector(Vector3f expected, float x, float y, float z){
+        assertEquals(expected.x, x, 1e-4f);
+        assertEquals(expected.y, y, 1e-4f);
+        assertEquals(expected.z, z, 1e-4f);
+    }
+
+    @Test
+    public void testStatic(){
+        Geometry model = createModel(createDef(false));
+        TreeDataList trees = createTrees(1, 20);
+        int basePosition = model.getMesh().getFloatBuffer(VertexBuffer.Type.Position).position();
+        TreeGeometryGenerator gen = new TreeGeometryGenerator();
+        Geometry batch = gen.generateGeometry(model, trees, new Vector3f(100, 0, 100));
+        Mesh mesh = batch.getMesh();
+        Mesh base = model.getMesh();
+        int vertCount = base.getVertexCount();
+        assertEquals(vertCount*trees.size(), mesh.getVertexCount());
+        assertEquals(base.getTriangleCount()*trees.size(), mesh.getTriangleCount());
+        assertEquals(VertexBuffer.Usage.Static, mesh.getBuffer(VertexBuffer.Type.Position).getUsage());
+
+        FloatBuffer basePos = base.getFloatBuffer(VertexBuffer.Type.Position);
+        FloatBuffer baseNorm = base.getFloatBuffer(VertexBuffer.Type.Normal);
+        FloatBuffer pos = mesh.getFloatBuffer(VertexBuffer.Type.Position);
+        FloatBuffer norm = mesh.getFloatBuffer(VertexBuffer.Type.Normal);
+        for(int t = 0; t < trees.size(); t++){
+            TreeData data = trees.get(t);
+            for(int v = 0; v < vertCount; v++){
+                int i = (t*vertCount + v)*3;
+                Vector3f p = transform(data, new Vector3f(basePos.get(v*3), basePos.get(v*3 + 1), basePos.get(v*3 + 2)));
+                assertVector(p, pos.get(i), pos.get(i + 1), pos.get(i + 2));
+                Vector3f n = new Quaternion().fromAngleNormalAxis(data.rot, Vector3f.UNIT_Y)
+                        .mult(new Vector3f(baseNorm.get(v*3), baseNorm.get(v*3 + 1), baseNorm.get(v*3 + 2)));
+                assertVector(n, norm.get(i), norm.get(i + 1), norm.get(i + 2));
+            }
+        }
+        assertEquals(basePosition, basePos.position());
+    }
+
+    @Test
+    public void testInstanced(){
+        Geometry model = createModel(createDef(true));
+        TreeDataList trees = createTrees(2, 20);
+        Vector3f center = new Vector3f(100, 5, -50);
+        TreeGeometryGenerator gen = new TreeGeometryGenerator();
+        Geometry batch = gen.generateGeometry(model, trees, center);
+        Mesh mesh = batch.getMesh();
+        Mesh base = model.getMesh();
+        assertEquals(trees.size(), mesh.getInstanceCount());
+        assertSame(base.getBuffer(VertexBuffer.Type.Position), mesh.getBuffer(VertexBuffer.Type.Position));
+        assertEquals(Boolean.TRUE, batch.getMaterial().getParam("UseInstancing").getValue());
+        assertNull(model.getMaterial().getParam("UseInstancing"));
+
+        VertexBuffer inst = mesh.getBuffer(VertexBuffer.Type.InstanceData);
+        assertTrue(inst.isInstanced());
+        FloatBuffer data = (FloatBuffer) inst.getData();
+        FloatBuffer basePos = base.getFloatBuffer(VertexBuffer.Type.Position);
+        FloatBuffer baseNorm = base.getFloatBuffer(VertexBuffer.Type.Normal);
+        BoundingBox bound = (BoundingBox) mesh.getBound();
+        for(int t = 0; t < trees.size(); t++){
+            float[] m = new float[16];
+            data.position(t*16);
+            data.get(m);
+            for(int v = 0; v < base.getVertexCount(); v++){
+                float x = basePos.get(v*3), y = basePos.get(v*3 + 1), z = basePos.get(v*3 + 2);
+                Vector3f p = transform(trees.get(t), new Vector3f(x, y, z));
+                Vector3f d = p.subtract(bound.getCenter());
+                assertTrue(Math.abs(d.x) <= bound.getXExtent() + 1e-4f);
+                assertTrue(Math.abs(d.y) <= bound.getYExtent() + 1e-4f);
+                assertTrue(Math.abs(d.z) <= bound.getZExtent() + 1e-4f);
+                //Same math as Instancing.glsllib
+                p.addLocal(center);
+                assertVector(p,
+                        m[0]*x + m[4]*y + m[8]*z + m[12],
+                        m[1]*x + m[5]*y + m[9]*z + m[13],
+                        m[2]*x + m[6]*y + m[10]*z + m[14]);
+                Vector3f n = new Vector3f(baseNorm.get(v*3), baseNorm.get(v*3 + 1), baseNorm.get(v*3 + 2));
+                Vector3f q = new Vector3f(m[3], m[7], m[11]);
+                Vector3f rotated = n.add(n.cross(q).addLocal(n.mult(m[15])).crossLocal(q).multLocal(2));
+                assertVector(new Quaternion().fromAngleNormalAxis(trees.get(t).rot, Vector3f.UNIT_Y).mult(n),
+                        rotated.x, rotated.y, rotated.z);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final Geometry model = createModel(createDef(false));
+        final TreeGeometryGenerator gen = new TreeGeometryGenerator();
+        final Geometry expected = gen.generateStaticGeometry(model, createTrees(3, 50), false);
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Geometry>> results = new ArrayList<Future<Geometry>>();
+            for(int i = 0; i < 16; i++){
+                final int seed = (i % 2 == 0) ? 3 : 4;
+                final int count = (i % 2 == 0) ? 50 : 7;
+                results.add(exec.submit(new Callable<Geometry>() {
+                    @Override
+                    public Geometry call() {
+                        return gen.generateStaticGeometry(model, createTrees(seed, count), false);
+                    }
+                }));
+            }
+            FloatBuffer exp = expected.getMesh().getFloatBuffer(VertexBuffer.Type.Position);
+            for(int i = 0; i < results.size(); i += 2){
+                FloatBuffer pos = results.get(i).get().getMesh().getFloatBuffer(VertexBuffer.Type.Position);
+                assertEquals(exp.limit(), pos.limit());
+                for(int k = 0; k < exp.limit(); k++){
+                    assertEquals(exp.get(k), pos.get(k), 0);
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+}
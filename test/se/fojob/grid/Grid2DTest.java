@@ -0,0 +1,81 @@
+package se.fojob.grid;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the indexed lookups of Grid2D with a linear search.
+ *
+ * @author Andreas
+ */
+public class Grid2DTest {
+
+    private static GenericCell2D find(List<GenericCell2D> list, int hash){
+        for(GenericCell2D c : list){
+            if(c.hashCode() == hash){
+                return c;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testRandomOperations(){
+        Random rand = new Random(1);
+        Grid2D<GenericCell2D> grid = new Grid2D<GenericCell2D>();
+        List<GenericCell2D> reference = new ArrayList<GenericCell2D>();
+        for(int step = 0; step < 20000; step++){
+            int x = rand.nextInt(20) - 10;
+            int z = rand.nextInt(20) - 10;
+            int hash = Grid2D.hash(x, z);
+            switch(rand.nextInt(7)){
+                case 0:
+                case 1:
+                    GenericCell2D cell = new GenericCell2D(x, z);
+                    grid.add(cell);
+                    reference.add(cell);
+                    break;
+                case 2:
+                    GenericCell2D removed = grid.removeCell(x, z);
+                    GenericCell2D expected = find(reference, hash);
+                    assertSame(expected, removed);
+                    if(expected != null){
+                        reference.remove(reference.indexOf(expected));
+                    }
+                    break;
+                case 3:
+                    if(!grid.isEmpty()){
+                        int i = rand.nextInt(grid.size());
+                        assertSame(reference.remove(i), grid.remove(i));
+                    }
+                    break;
+                case 4:
+                    GenericCell2D newCell = new GenericCell2D(rand.nextInt(20) - 10, rand.nextInt(20) - 10);
+                    GenericCell2D old = find(reference, hash);
+                    if(old != null && newCell.hashCode() != hash){
+                        reference.set(reference.indexOf(old), newCell);
+                        assertSame(old, grid.setCell(x, z, newCell));
+                    } else {
+                        grid.setCell(x, z, newCell);
+                    }
+                    break;
+                case 5:
+                    //modification that bypasses the index
+                    Iterator<GenericCell2D> it = grid.iterator();
+                    if(it.hasNext()){
+                        GenericCell2D first = it.next();
+                        it.remove();
+                        assertSame(reference.remove(0), first);
+                    }
+                    break;
+                default:
+                    assertSame(find(reference, hash), grid.getCell(x, z));
+            }
+            assertEquals(reference, grid);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package se.fojob.paging;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Node;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.fojob.paging.interfaces.Tile;
+import se.fojob.paging.interfaces.TileLoader;
+
+/**
+ * Checks that the grid follows the camera for arbitrary moves.
+ *
+ * @author Andreas
+ */
+public class GeometryPagingEngineTest {
+
+    private static class CountingLoader implements TileLoader {
+        GeometryPagingEngine engine;
+        int created;
+
+        @Override
+        public Callable<Boolean> loadTile(Tile tile) {
+            return new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        public void update(float tpf) {
+            engine.update(tpf);
+        }
+
+        @Override
+        public Tile createTile(int x, int z) {
+            created++;
+            return new GeometryTile(x, z, engine);
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public void setName(String name) {
+        }
+    }
+
+    private static void assertWindow(GeometryPagingEngine engine, int cx, int cz, int half){
+        Set<Integer> cells = new HashSet<Integer>();
+        for(Tile tile : engine.getGrid()){
+            assertTrue("tile " + tile + " outside of the grid",
+                    Math.abs(tile.getX() - cx) <= half && Math.abs(tile.getZ() - cz) <= half);
+            assertTrue("duplicate tile " + tile, cells.add(tile.hashCode()));
+        }
+        assertEquals((2 * half + 1) * (2 * half + 1), cells.size());
+    }
+
+    @Test
+    public void testScroll(){
+        Camera cam = new Camera(64, 64);
+        cam.setLocation(new Vector3f(0, 0, 0));
+        CountingLoader loader = new CountingLoader();
+        //tile size 64, radius 128: grid size 7
+        GeometryPagingEngine engine = new GeometryPagingEngine(64, 1, 128, new Node("root"), cam);
+        loader.engine = engine;
+        engine.setTileLoader(loader);
+        int half = 3;
+        assertWindow(engine, 0, 0, half);
+        assertEquals(49, loader.created);
+
+        //one cell
+        cam.setLocation(new Vector3f(64, 0, 0));
+        engine.update(0.01f);
+        assertWindow(engine, 1, 0, half);
+        assertEquals(49 + 7, loader.created);
+
+        //diagonal jump over several cells
+        cam.setLocation(new Vector3f(64 * 4, 0, -64 * 2));
+        engine.update(0.01f);
+        assertWindow(engine, 4, -2, half);
+
+        //back, the tiles come from the cache
+        int created = loader.created;
+        cam.setLocation(new Vector3f(64, 0, 0));
+        engine.update(0.01f);
+        assertWindow(engine, 1, 0, half);
+        assertEquals(created, loader.created);
+
+        //teleport
+        cam.setLocation(new Vector3f(64 * 100, 0, 64 * 50));
+        engine.update(0.01f);
+        assertWindow(engine, 100, 50, half);
+        assertEquals(engine.getCurrentCell().hashCode(), engine.getGridCell(cam.getLocation()).hashCode());
+    }
+
+    @Test
+    public void testCancelRunningLoad() throws Exception {
+        Camera cam = new Camera(64, 64);
+        cam.setLocation(new Vector3f(0, 0, 0));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Tile> running = new AtomicReference<Tile>();
+        final ConcurrentHashMap<Tile, AtomicInteger> loads = new ConcurrentHashMap<Tile, AtomicInteger>();
+        CountingLoader loader = new CountingLoader(){
+            @Override
+            public Callable<Boolean> loadTile(final Tile tile) {
+                loads.putIfAbsent(tile, new AtomicInteger());
+                loads.get(tile).incrementAndGet();
+                return new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws InterruptedException {
+                        if(running.compareAndSet(null, tile)){
+                            started.countDown();
+                            release.await();
+                        }
+                        return false;
+                    }
+                };
+            }
+        };
+        GeometryPagingEngine engine = new GeometryPagingEngine(64, 1, 128, new Node("root"), cam);
+        engine.setWorkerCount(1);
+        loader.engine = engine;
+        engine.setTileLoader(loader);
+        engine.update(0.01f);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Tile tile = running.get();
+
+        //the tile leaves the grid while it is being loaded
+        cam.setLocation(new Vector3f(64 * 100, 0, 0));
+        engine.update(0.01f);
+        assertFalse(engine.getGrid().contains(tile));
+        assertTrue(tile.isPending());
+        assertNotNull(tile.getFuture());
+        
+        //and comes back before the load has finished
+        cam.setLocation(new Vector3f(0, 0, 0));
+        engine.update(0.01f);
+        assertTrue(engine.getGrid().contains(tile));
+        assertTrue(tile.isPending());
+        assertEquals(1, loads.get(tile).get());
+
+        release.countDown();
+        tile.getFuture().get(5, TimeUnit.SECONDS);
+        //other tiles may finish first, only tilesPerFrame are taken each frame
+        for(int i = 0; i < 100 && tile.isPending(); i++){
+            engine.update(0.01f);
+        }
+        assertFalse(tile.isPending());
+        assertTrue(tile.isIdle());
+        assertEquals(1, loads.get(tile).get());
+    }
+
+    @Test
+    public void testExecutor() throws Exception {
+        GeometryPagingEngine engine = new GeometryPagingEngine(64, 1, 128, new Node("root"), new Camera(64, 64));
+        ExecutorService executor = engine.getExecutor();
+        Future<Integer> result = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 42;
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertEquals(42, (int) result.get(5, TimeUnit.SECONDS));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}